@@ -0,0 +1,128 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.microsoft.identity.common.adal.internal.AndroidSecretKeyEnabledHelper;
+import com.microsoft.identity.common.adal.internal.cache.StorageHelper;
+import com.microsoft.identity.common.internal.cache.DecryptedValueCache;
+import com.microsoft.identity.common.internal.cache.SharedPreferencesFileManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+@RunWith(AndroidJUnit4.class)
+public class DecryptedValueCacheTests extends AndroidSecretKeyEnabledHelper {
+
+    private static final String sTEST_SHARED_PREFS_NAME = "com.microsoft.test.decrypted.preferences";
+    private static final String sTEST_KEY = "test_key";
+    private static final String sTEST_VALUE = "test_value";
+
+    private DecryptedValueCache mDecryptedValueCache;
+    private SharedPreferencesFileManager mSharedPreferencesFileManager;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mDecryptedValueCache = new DecryptedValueCache();
+        mSharedPreferencesFileManager = new SharedPreferencesFileManager(
+                InstrumentationRegistry.getTargetContext(),
+                sTEST_SHARED_PREFS_NAME,
+                new StorageHelper(InstrumentationRegistry.getTargetContext()),
+                mDecryptedValueCache
+        );
+    }
+
+    @After
+    public void tearDown() {
+        mSharedPreferencesFileManager.clear();
+    }
+
+    @Test
+    public void testHitAndMissCounters() {
+        assertNull(mDecryptedValueCache.get("blob"));
+        assertEquals(1, mDecryptedValueCache.getMissCount());
+        assertEquals(0, mDecryptedValueCache.getHitCount());
+
+        mDecryptedValueCache.put("blob", sTEST_VALUE);
+
+        assertEquals(sTEST_VALUE, mDecryptedValueCache.get("blob"));
+        assertEquals(1, mDecryptedValueCache.getMissCount());
+        assertEquals(1, mDecryptedValueCache.getHitCount());
+    }
+
+    @Test
+    public void testReadAfterPutIsServedFromCache() {
+        mSharedPreferencesFileManager.putString(sTEST_KEY, sTEST_VALUE);
+
+        assertEquals(sTEST_VALUE, mSharedPreferencesFileManager.getString(sTEST_KEY));
+        assertEquals(1, mDecryptedValueCache.getHitCount());
+        assertEquals(0, mDecryptedValueCache.getMissCount());
+    }
+
+    @Test
+    public void testPutEvictsOverwrittenValue() {
+        mSharedPreferencesFileManager.putString(sTEST_KEY, sTEST_VALUE);
+        mSharedPreferencesFileManager.putString(sTEST_KEY, "new_value");
+
+        assertEquals(1, mDecryptedValueCache.getSize());
+        assertEquals("new_value", mSharedPreferencesFileManager.getString(sTEST_KEY));
+    }
+
+    @Test
+    public void testRemoveEvictsValue() {
+        mSharedPreferencesFileManager.putString(sTEST_KEY, sTEST_VALUE);
+        mSharedPreferencesFileManager.remove(sTEST_KEY);
+
+        assertEquals(0, mDecryptedValueCache.getSize());
+        assertNull(mSharedPreferencesFileManager.getString(sTEST_KEY));
+    }
+
+    @Test
+    public void testClearEvictsAllValues() {
+        mSharedPreferencesFileManager.putString(sTEST_KEY, sTEST_VALUE);
+        mSharedPreferencesFileManager.putString("other_key", "other_value");
+        mSharedPreferencesFileManager.clear();
+
+        assertEquals(0, mDecryptedValueCache.getSize());
+    }
+
+    @Test
+    public void testValuesDecryptedByGetAllAreCached() {
+        mSharedPreferencesFileManager.putString(sTEST_KEY, sTEST_VALUE);
+        mDecryptedValueCache.evictAll();
+
+        assertEquals(sTEST_VALUE, mSharedPreferencesFileManager.getAll().get(sTEST_KEY));
+        assertEquals(1, mDecryptedValueCache.getSize());
+
+        assertEquals(sTEST_VALUE, mSharedPreferencesFileManager.getString(sTEST_KEY));
+        assertEquals(1, mDecryptedValueCache.getHitCount());
+    }
+}
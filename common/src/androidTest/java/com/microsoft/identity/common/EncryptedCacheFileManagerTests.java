@@ -0,0 +1,302 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.microsoft.identity.common.adal.internal.AndroidSecretKeyEnabledHelper;
+import com.microsoft.identity.common.adal.internal.cache.IStorageHelper;
+import com.microsoft.identity.common.adal.internal.cache.StorageHelper;
+import com.microsoft.identity.common.internal.cache.EncryptedCacheFileManager;
+import com.microsoft.identity.common.internal.cache.SharedPreferencesFileManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class EncryptedCacheFileManagerTests extends AndroidSecretKeyEnabledHelper {
+
+    private static final String TEST_CACHE_NAME = "com.microsoft.test.encrypted_cache";
+    private static final String TEST_LEGACY_CACHE_NAME = "com.microsoft.test.legacy_cache";
+    private static final String TEST_KEY = "test_key";
+    private static final String TEST_VALUE = "test_value";
+
+    private Context mContext;
+    private StorageHelper mStorageHelper;
+    private EncryptedCacheFileManager mFileManager;
+    private SharedPreferencesFileManager mLegacyFileManager;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mContext = InstrumentationRegistry.getTargetContext();
+        mStorageHelper = new StorageHelper(mContext);
+        mFileManager = new EncryptedCacheFileManager(mContext, TEST_CACHE_NAME, mStorageHelper);
+        mLegacyFileManager = new SharedPreferencesFileManager(
+                mContext,
+                TEST_LEGACY_CACHE_NAME,
+                mStorageHelper
+        );
+    }
+
+    @After
+    public void tearDown() {
+        mFileManager.clear();
+        mLegacyFileManager.clear();
+        getCacheFile().delete();
+    }
+
+    private File getCacheFile() {
+        return getCacheFile(TEST_CACHE_NAME);
+    }
+
+    private File getCacheFile(final String name) {
+        return new File(
+                mContext.getFilesDir(),
+                name + EncryptedCacheFileManager.FILE_EXTENSION
+        );
+    }
+
+    /**
+     * Files are only read once per process, so every read test needs a name of its own.
+     */
+    private static String newCacheName() {
+        return TEST_CACHE_NAME + "." + System.nanoTime();
+    }
+
+    private static void copy(final File source, final File target) throws IOException {
+        final byte[] contents = new byte[(int) source.length()];
+        final DataInputStream in = new DataInputStream(new FileInputStream(source));
+
+        try {
+            in.readFully(contents);
+        } finally {
+            in.close();
+        }
+
+        write(target, contents);
+    }
+
+    private static void write(final File target, final byte[] contents) throws IOException {
+        final FileOutputStream out = new FileOutputStream(target);
+
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Fails every decryption, as an unavailable KeyStore would.
+     */
+    private static class FailingStorageHelper implements IStorageHelper {
+
+        @Override
+        public String encrypt(final String clearText) throws GeneralSecurityException {
+            throw new GeneralSecurityException("KeyStore unavailable");
+        }
+
+        @Override
+        public String decrypt(final String encryptedBlob) throws GeneralSecurityException {
+            throw new GeneralSecurityException("KeyStore unavailable");
+        }
+
+        @Override
+        public SecretKey loadSecretKeyForEncryption() throws GeneralSecurityException {
+            throw new GeneralSecurityException("KeyStore unavailable");
+        }
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        mFileManager.putString(TEST_KEY, TEST_VALUE);
+        assertEquals(TEST_VALUE, mFileManager.getString(TEST_KEY));
+        assertTrue(mFileManager.contains(TEST_KEY));
+
+        mFileManager.remove(TEST_KEY);
+        assertNull(mFileManager.getString(TEST_KEY));
+        assertEquals(0, mFileManager.getAll().size());
+    }
+
+    @Test
+    public void testValuesAreEncryptedAtRest() throws Exception {
+        mFileManager.putString(TEST_KEY, TEST_VALUE);
+
+        final File cacheFile = getCacheFile();
+        final byte[] contents = new byte[(int) cacheFile.length()];
+        final DataInputStream in = new DataInputStream(new FileInputStream(cacheFile));
+
+        try {
+            in.readFully(contents);
+        } finally {
+            in.close();
+        }
+
+        assertFalse(new String(contents, "UTF-8").contains(TEST_VALUE));
+    }
+
+    @Test
+    public void testBatchCommitsOnce() {
+        final long initialGeneration = mFileManager.getGeneration();
+
+        mFileManager.beginBatch();
+        mFileManager.putString("1", "a");
+        mFileManager.putString("2", "b:with:separators");
+        assertEquals("a", mFileManager.getString("1"));
+        assertEquals(initialGeneration, mFileManager.getGeneration());
+        mFileManager.commitBatch();
+
+        assertEquals(initialGeneration + 1, mFileManager.getGeneration());
+        assertEquals(2, mFileManager.getAll().size());
+        assertEquals("b:with:separators", mFileManager.getString("2"));
+    }
+
+    @Test
+    public void testFailedWriteLeavesCacheUnchanged() {
+        mFileManager.putString(TEST_KEY, TEST_VALUE);
+        final long generation = mFileManager.getGeneration();
+
+        // A directory in place of the temporary file makes every write fail
+        final File tempFile = new File(getCacheFile().getPath() + ".tmp");
+        assertTrue(tempFile.mkdir());
+
+        try {
+            try {
+                mFileManager.putString(TEST_KEY, "other_value");
+                fail("Expected the write to fail.");
+            } catch (final IllegalStateException e) {
+                // Expected
+            }
+
+            try {
+                mFileManager.clear();
+                fail("Expected the clear to fail.");
+            } catch (final IllegalStateException e) {
+                // Expected
+            }
+
+            assertEquals(TEST_VALUE, mFileManager.getString(TEST_KEY));
+            assertEquals(generation, mFileManager.getGeneration());
+        } finally {
+            assertTrue(tempFile.delete());
+        }
+    }
+
+    @Test
+    public void testMigrateFromSharedPreferences() {
+        mLegacyFileManager.putString("1", "a");
+        mLegacyFileManager.putString("2", "b");
+
+        assertTrue(mFileManager.migrateFrom(mLegacyFileManager));
+
+        final Map<String, String> entries = mFileManager.getAll();
+        assertEquals(2, entries.size());
+        assertEquals("a", entries.get("1"));
+        assertEquals("b", entries.get("2"));
+        assertEquals(0, mLegacyFileManager.getAll().size());
+
+        // Migration only happens once
+        mLegacyFileManager.putString("3", "c");
+        assertFalse(mFileManager.migrateFrom(mLegacyFileManager));
+        assertNull(mFileManager.getString("3"));
+    }
+
+    @Test
+    public void testUndecryptableFileIsKept() throws IOException {
+        mFileManager.putString(TEST_KEY, TEST_VALUE);
+
+        final String name = newCacheName();
+        final File cacheFile = getCacheFile(name);
+        copy(getCacheFile(), cacheFile);
+
+        try {
+            final EncryptedCacheFileManager failingFileManager =
+                    new EncryptedCacheFileManager(mContext, name, new FailingStorageHelper());
+
+            assertNull(failingFileManager.getString(TEST_KEY));
+
+            try {
+                failingFileManager.putString("other_key", "other_value");
+                fail("Expected the write to fail.");
+            } catch (final IllegalStateException e) {
+                // Expected
+            }
+
+            assertTrue(cacheFile.exists());
+
+            // The next access reads the file again
+            final EncryptedCacheFileManager fileManager =
+                    new EncryptedCacheFileManager(mContext, name, mStorageHelper);
+            assertEquals(TEST_VALUE, fileManager.getString(TEST_KEY));
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    @Test
+    public void testMalformedFileIsQuarantined() throws IOException {
+        final String name = newCacheName();
+        final File cacheFile = getCacheFile(name);
+        final File quarantinedFile = new File(
+                cacheFile.getPath() + EncryptedCacheFileManager.QUARANTINE_FILE_EXTENSION
+        );
+        write(cacheFile, "not a cache file".getBytes("UTF-8"));
+
+        try {
+            final EncryptedCacheFileManager fileManager =
+                    new EncryptedCacheFileManager(mContext, name, mStorageHelper);
+
+            assertEquals(0, fileManager.getAll().size());
+            assertFalse(cacheFile.exists());
+            assertTrue(quarantinedFile.exists());
+
+            fileManager.putString(TEST_KEY, TEST_VALUE);
+            assertEquals(TEST_VALUE, fileManager.getString(TEST_KEY));
+        } finally {
+            cacheFile.delete();
+            quarantinedFile.delete();
+        }
+    }
+}
@@ -0,0 +1,442 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.microsoft.identity.common.adal.internal.AndroidSecretKeyEnabledHelper;
+import com.microsoft.identity.common.adal.internal.cache.StorageHelper;
+import com.microsoft.identity.common.internal.cache.CacheKeyValueDelegate;
+import com.microsoft.identity.common.internal.cache.IndexedAccountCredentialCache;
+import com.microsoft.identity.common.internal.cache.SharedPreferencesFileManager;
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.dto.AccountRecord;
+import com.microsoft.identity.common.internal.dto.Credential;
+import com.microsoft.identity.common.internal.dto.CredentialType;
+import com.microsoft.identity.common.internal.dto.IdTokenRecord;
+import com.microsoft.identity.common.internal.dto.RefreshTokenRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.AUTHORITY_TYPE;
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.CACHED_AT;
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.CLIENT_ID;
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.ENVIRONMENT;
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.EXPIRES_ON;
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.HOME_ACCOUNT_ID;
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.LOCAL_ACCOUNT_ID;
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.REALM;
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.REALM2;
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.SECRET;
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.TARGET;
+import static com.microsoft.identity.common.SharedPreferencesAccountCredentialCacheTest.USERNAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class IndexedAccountCredentialCacheTest extends AndroidSecretKeyEnabledHelper {
+
+    private static final String sAccountCredentialSharedPreferences =
+            "com.microsoft.identity.client.account_credential_cache";
+
+    private Context mContext;
+    private CacheKeyValueDelegate mDelegate;
+    private SharedPreferencesFileManager mSharedPreferencesFileManager;
+    private IndexedAccountCredentialCache mIndexedCache;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mContext = InstrumentationRegistry.getTargetContext();
+        mDelegate = new CacheKeyValueDelegate();
+        mSharedPreferencesFileManager = new SharedPreferencesFileManager(
+                mContext,
+                sAccountCredentialSharedPreferences,
+                new StorageHelper(mContext)
+        );
+        mIndexedCache = new IndexedAccountCredentialCache(
+                mDelegate,
+                mSharedPreferencesFileManager
+        );
+    }
+
+    @After
+    public void tearDown() {
+        mIndexedCache.clearAll();
+    }
+
+    @Test
+    public void saveAndLoadFromNewInstance() {
+        final AccountRecord account = createAccount(REALM);
+        final AccessTokenRecord accessToken = createAccessToken(REALM);
+
+        mIndexedCache.saveAccount(account);
+        mIndexedCache.saveCredential(accessToken);
+
+        // A fresh instance must load the records written through by the first
+        final IndexedAccountCredentialCache reloadedCache = new IndexedAccountCredentialCache(
+                mDelegate,
+                mSharedPreferencesFileManager
+        );
+
+        assertEquals(account, reloadedCache.getAccount(mDelegate.generateCacheKey(account)));
+        assertEquals(accessToken, reloadedCache.getCredential(mDelegate.generateCacheKey(accessToken)));
+    }
+
+    @Test
+    public void getCredentialsFilteredByUsesIndexes() {
+        mIndexedCache.saveCredential(createAccessToken(REALM));
+        mIndexedCache.saveCredential(createAccessToken(REALM2));
+        mIndexedCache.saveCredential(createRefreshToken());
+        mIndexedCache.saveCredential(createIdToken(REALM));
+
+        assertEquals(4, mIndexedCache.getCredentials().size());
+
+        final List<Credential> accessTokens = mIndexedCache.getCredentialsFilteredBy(
+                HOME_ACCOUNT_ID,
+                ENVIRONMENT,
+                CredentialType.AccessToken,
+                CLIENT_ID,
+                REALM2,
+                "user.read",
+                null
+        );
+        assertEquals(1, accessTokens.size());
+        assertEquals(REALM2, ((AccessTokenRecord) accessTokens.get(0)).getRealm());
+
+        // RefreshTokens are not realm-scoped, a realm criterion must not exclude them
+        final List<Credential> refreshTokens = mIndexedCache.getCredentialsFilteredBy(
+                HOME_ACCOUNT_ID,
+                ENVIRONMENT,
+                CredentialType.RefreshToken,
+                CLIENT_ID,
+                REALM,
+                null,
+                null
+        );
+        assertEquals(1, refreshTokens.size());
+
+        final List<Credential> noMatches = mIndexedCache.getCredentialsFilteredBy(
+                HOME_ACCOUNT_ID,
+                "login.windows.net",
+                null,
+                null,
+                null,
+                null,
+                null
+        );
+        assertTrue(noMatches.isEmpty());
+    }
+
+    @Test
+    public void getAccountsFilteredBy() {
+        mIndexedCache.saveAccount(createAccount(REALM));
+        mIndexedCache.saveAccount(createAccount(REALM2));
+
+        assertEquals(2, mIndexedCache.getAccountsFilteredBy(HOME_ACCOUNT_ID, ENVIRONMENT, null).size());
+        assertEquals(1, mIndexedCache.getAccountsFilteredBy(null, null, REALM2).size());
+        assertTrue(mIndexedCache.getAccountsFilteredBy("other-home-id", null, null).isEmpty());
+    }
+
+    @Test
+    public void removeCredentialUpdatesIndexAndBackingStore() {
+        final AccessTokenRecord accessToken = createAccessToken(REALM);
+        final String cacheKey = mDelegate.generateCacheKey(accessToken);
+        mIndexedCache.saveCredential(accessToken);
+
+        assertTrue(mIndexedCache.removeCredential(accessToken));
+        assertFalse(mIndexedCache.removeCredential(accessToken));
+        assertNull(mIndexedCache.getCredential(cacheKey));
+        assertNull(mSharedPreferencesFileManager.getString(cacheKey));
+        assertTrue(
+                mIndexedCache.getCredentialsFilteredBy(
+                        HOME_ACCOUNT_ID,
+                        null,
+                        CredentialType.AccessToken,
+                        null,
+                        null,
+                        null,
+                        null
+                ).isEmpty()
+        );
+    }
+
+    @Test
+    public void removeAccount() {
+        final AccountRecord account = createAccount(REALM);
+        mIndexedCache.saveAccount(account);
+
+        assertTrue(mIndexedCache.removeAccount(account));
+        assertTrue(mIndexedCache.getAccounts().isEmpty());
+        assertTrue(mSharedPreferencesFileManager.getAll().isEmpty());
+    }
+
+    @Test
+    public void overwriteReplacesIndexedRecord() {
+        final AccessTokenRecord accessToken = createAccessToken(REALM);
+        mIndexedCache.saveCredential(accessToken);
+
+        final AccessTokenRecord renewedToken = createAccessToken(REALM);
+        renewedToken.setSecret("renewed-secret");
+        mIndexedCache.saveCredential(renewedToken);
+
+        final List<Credential> credentials = mIndexedCache.getCredentials();
+        assertEquals(1, credentials.size());
+        assertEquals("renewed-secret", credentials.get(0).getSecret());
+    }
+
+    @Test
+    public void failedBatchCommitLeavesNoRecordsBehind() {
+        // Discards its batches as if they could not be persisted
+        final SharedPreferencesFileManager failingFileManager = new SharedPreferencesFileManager(
+                mContext,
+                sAccountCredentialSharedPreferences,
+                new StorageHelper(mContext)
+        ) {
+            @Override
+            public void commitBatch() {
+                super.abortBatch();
+                throw new IllegalStateException("Failed to persist batch");
+            }
+        };
+        final IndexedAccountCredentialCache cache = new IndexedAccountCredentialCache(
+                mDelegate,
+                failingFileManager
+        );
+        final AccountRecord account = createAccount(REALM);
+
+        cache.beginBatch();
+        cache.saveAccount(account);
+        assertEquals(account, cache.getAccount(mDelegate.generateCacheKey(account)));
+
+        try {
+            cache.commitBatch();
+            fail("Expected the commit to fail.");
+        } catch (final IllegalStateException e) {
+            // Expected
+        }
+
+        assertNull(cache.getAccount(mDelegate.generateCacheKey(account)));
+        assertEquals(0, cache.getAccounts().size());
+    }
+
+    @Test
+    public void reloadsAfterWriteThroughAnotherInstance() {
+        final AccessTokenRecord accessToken = createAccessToken(REALM);
+        final String cacheKey = mDelegate.generateCacheKey(accessToken);
+
+        // Load the index before the other instance writes
+        assertNull(mIndexedCache.getCredential(cacheKey));
+
+        final IndexedAccountCredentialCache otherCache = new IndexedAccountCredentialCache(
+                mDelegate,
+                new SharedPreferencesFileManager(
+                        mContext,
+                        sAccountCredentialSharedPreferences,
+                        new StorageHelper(mContext)
+                )
+        );
+        otherCache.saveCredential(accessToken);
+
+        assertEquals(accessToken, mIndexedCache.getCredential(cacheKey));
+
+        otherCache.removeCredential(accessToken);
+
+        assertNull(mIndexedCache.getCredential(cacheKey));
+    }
+
+    @Test
+    public void tokensAreOnlyDecryptedWhenLookedUp() {
+        final AccessTokenRecord accessToken = createAccessToken(REALM);
+        final RefreshTokenRecord refreshToken = createRefreshToken();
+        final IdTokenRecord idToken = createIdToken(REALM);
+        final String accessTokenKey = mDelegate.generateCacheKey(accessToken);
+        final String refreshTokenKey = mDelegate.generateCacheKey(refreshToken);
+        final String idTokenKey = mDelegate.generateCacheKey(idToken);
+
+        mIndexedCache.saveAccount(createAccount(REALM));
+        mIndexedCache.saveCredential(accessToken);
+        mIndexedCache.saveCredential(refreshToken);
+        mIndexedCache.saveCredential(idToken);
+
+        final RecordingStorageHelper storageHelper = new RecordingStorageHelper(mContext);
+        final IndexedAccountCredentialCache reloadedCache = new IndexedAccountCredentialCache(
+                mDelegate,
+                new SharedPreferencesFileManager(
+                        mContext,
+                        sAccountCredentialSharedPreferences,
+                        storageHelper
+                )
+        );
+
+        // Enumerating Accounts only needs their IdTokens
+        assertEquals(1, reloadedCache.getAccounts().size());
+        assertEquals(
+                idToken,
+                reloadedCache.getCredentialsFilteredBy(
+                        HOME_ACCOUNT_ID,
+                        ENVIRONMENT,
+                        CredentialType.IdToken,
+                        CLIENT_ID,
+                        REALM,
+                        null,
+                        null
+                ).get(0)
+        );
+        assertTrue(storageHelper.mDecryptedKeys.contains(idTokenKey));
+        assertFalse(storageHelper.mDecryptedKeys.contains(accessTokenKey));
+        assertFalse(storageHelper.mDecryptedKeys.contains(refreshTokenKey));
+
+        // A lookup which may return the AccessToken decrypts it, but not the RefreshToken
+        final List<Credential> accessTokens = reloadedCache.getCredentialsFilteredBy(
+                HOME_ACCOUNT_ID,
+                ENVIRONMENT,
+                CredentialType.AccessToken,
+                CLIENT_ID,
+                REALM,
+                TARGET,
+                null
+        );
+        assertEquals(1, accessTokens.size());
+        assertEquals(accessToken, accessTokens.get(0));
+        assertTrue(storageHelper.mDecryptedKeys.contains(accessTokenKey));
+        assertFalse(storageHelper.mDecryptedKeys.contains(refreshTokenKey));
+
+        assertEquals(refreshToken, reloadedCache.getCredential(refreshTokenKey));
+        assertEquals(3, reloadedCache.getCredentials().size());
+    }
+
+    @Test
+    public void getAccessTokensExpiredBeforeReturnsOnlyExpired() {
+        final AccessTokenRecord longExpired = createAccessToken(REALM);
+        longExpired.setExpiresOn("1000");
+        final AccessTokenRecord recentlyExpired = createAccessToken(REALM2);
+        recentlyExpired.setExpiresOn("2000");
+        final AccessTokenRecord valid = createAccessToken("other-realm");
+        valid.setExpiresOn(String.valueOf(System.currentTimeMillis() / 1000 + 3600));
+
+        mIndexedCache.saveCredential(valid);
+        mIndexedCache.saveCredential(recentlyExpired);
+        mIndexedCache.saveCredential(longExpired);
+
+        // Earliest expiry first
+        final List<AccessTokenRecord> expired = mIndexedCache.getAccessTokensExpiredBefore(
+                System.currentTimeMillis() / 1000
+        );
+        assertEquals(2, expired.size());
+        assertEquals(longExpired, expired.get(0));
+        assertEquals(recentlyExpired, expired.get(1));
+
+        assertEquals(1, mIndexedCache.getAccessTokensExpiredBefore(2000).size());
+
+        // The same must hold for AccessTokens which were not loaded yet
+        final IndexedAccountCredentialCache reloadedCache = new IndexedAccountCredentialCache(
+                mDelegate,
+                mSharedPreferencesFileManager
+        );
+        assertEquals(longExpired, reloadedCache.getAccessTokensExpiredBefore(2000).get(0));
+
+        assertTrue(reloadedCache.removeCredential(longExpired));
+        assertTrue(reloadedCache.getAccessTokensExpiredBefore(2000).isEmpty());
+    }
+
+    /**
+     * Records the cache keys of the entries it was asked to decrypt in bulk.
+     */
+    private static class RecordingStorageHelper extends StorageHelper {
+
+        private final Set<String> mDecryptedKeys = new HashSet<>();
+
+        RecordingStorageHelper(@NonNull final Context context) {
+            super(context);
+        }
+
+        @Override
+        public Map<String, String> decryptAll(@NonNull final Map<String, String> encryptedBlobs) {
+            mDecryptedKeys.addAll(encryptedBlobs.keySet());
+            return super.decryptAll(encryptedBlobs);
+        }
+    }
+
+    private static AccountRecord createAccount(final String realm) {
+        final AccountRecord account = new AccountRecord();
+        account.setHomeAccountId(HOME_ACCOUNT_ID);
+        account.setEnvironment(ENVIRONMENT);
+        account.setRealm(realm);
+        account.setLocalAccountId(LOCAL_ACCOUNT_ID);
+        account.setUsername(USERNAME);
+        account.setAuthorityType(AUTHORITY_TYPE);
+        return account;
+    }
+
+    private static AccessTokenRecord createAccessToken(final String realm) {
+        final AccessTokenRecord accessToken = new AccessTokenRecord();
+        accessToken.setCredentialType(CredentialType.AccessToken.name());
+        accessToken.setHomeAccountId(HOME_ACCOUNT_ID);
+        accessToken.setEnvironment(ENVIRONMENT);
+        accessToken.setClientId(CLIENT_ID);
+        accessToken.setRealm(realm);
+        accessToken.setTarget(TARGET);
+        accessToken.setCachedAt(CACHED_AT);
+        accessToken.setExpiresOn(EXPIRES_ON);
+        accessToken.setSecret(SECRET);
+        return accessToken;
+    }
+
+    private static RefreshTokenRecord createRefreshToken() {
+        final RefreshTokenRecord refreshToken = new RefreshTokenRecord();
+        refreshToken.setCredentialType(CredentialType.RefreshToken.name());
+        refreshToken.setHomeAccountId(HOME_ACCOUNT_ID);
+        refreshToken.setEnvironment(ENVIRONMENT);
+        refreshToken.setClientId(CLIENT_ID);
+        refreshToken.setSecret(SECRET);
+        refreshToken.setTarget(TARGET);
+        return refreshToken;
+    }
+
+    private static IdTokenRecord createIdToken(final String realm) {
+        final IdTokenRecord idToken = new IdTokenRecord();
+        idToken.setCredentialType(CredentialType.IdToken.name());
+        idToken.setHomeAccountId(HOME_ACCOUNT_ID);
+        idToken.setEnvironment(ENVIRONMENT);
+        idToken.setClientId(CLIENT_ID);
+        idToken.setRealm(realm);
+        idToken.setSecret(SECRET);
+        return idToken;
+    }
+}
@@ -0,0 +1,361 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.microsoft.identity.common.adal.internal.AndroidSecretKeyEnabledHelper;
+import com.microsoft.identity.common.adal.internal.cache.StorageHelper;
+import com.microsoft.identity.common.internal.cache.ISharedPreferencesFileManager;
+import com.microsoft.identity.common.internal.cache.JournaledCacheFileManager;
+import com.microsoft.identity.common.internal.cache.SharedPreferencesFileManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class JournaledCacheFileManagerTests extends AndroidSecretKeyEnabledHelper {
+
+    private static final String TAG = JournaledCacheFileManagerTests.class.getSimpleName();
+
+    private static final String TEST_CACHE_NAME = "com.microsoft.test.journaled_cache";
+    private static final String TEST_SHARED_PREFS_NAME = "com.microsoft.test.benchmark_preferences";
+    private static final String TEST_KEY = "test_key";
+    private static final String TEST_VALUE = "test_value";
+
+    private Context mContext;
+    private StorageHelper mStorageHelper;
+    private JournaledCacheFileManager mFileManager;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mContext = InstrumentationRegistry.getTargetContext();
+        mStorageHelper = new StorageHelper(mContext);
+        mFileManager = new JournaledCacheFileManager(mContext, TEST_CACHE_NAME, mStorageHelper);
+    }
+
+    @After
+    public void tearDown() {
+        mFileManager.clear();
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        mFileManager.putString(TEST_KEY, TEST_VALUE);
+        assertEquals(TEST_VALUE, mFileManager.getString(TEST_KEY));
+
+        mFileManager.remove(TEST_KEY);
+        assertNull(mFileManager.getString(TEST_KEY));
+        assertEquals(0, mFileManager.getAll().size());
+    }
+
+    @Test
+    public void testBatchAdvancesGenerationOnce() {
+        final long initialGeneration = mFileManager.getGeneration();
+
+        mFileManager.beginBatch();
+        mFileManager.putString("1", "a");
+        mFileManager.putString("2", "b");
+        mFileManager.remove("1");
+        assertEquals(initialGeneration, mFileManager.getGeneration());
+        mFileManager.commitBatch();
+
+        assertEquals(initialGeneration + 1, mFileManager.getGeneration());
+        assertEquals(1, mFileManager.getAll().size());
+        assertEquals("b", mFileManager.getString("2"));
+    }
+
+    @Test
+    public void testTornAppendIsDiscarded() throws Exception {
+        mFileManager.putString(TEST_KEY, TEST_VALUE);
+
+        final File journal = getJournal();
+        final long validLength = journal.length();
+
+        // Simulate a crash part way through appending a record
+        final FileOutputStream out = new FileOutputStream(journal, true);
+
+        try {
+            out.write(new byte[]{0, 0, 0, 64, 1, 2, 3, 4, 1});
+        } finally {
+            out.close();
+        }
+
+        assertEquals(validLength + 9, journal.length());
+
+        final String copyName = TEST_CACHE_NAME + ".torn";
+        final JournaledCacheFileManager recovered = replayCopy(journal, copyName);
+
+        try {
+            assertEquals(TEST_VALUE, recovered.getString(TEST_KEY));
+            assertEquals(validLength, new File(
+                    mContext.getFilesDir(),
+                    copyName + JournaledCacheFileManager.FILE_EXTENSION
+            ).length());
+        } finally {
+            recovered.clear();
+        }
+    }
+
+    @Test
+    public void testReplayAfterCompaction() {
+        final File journal = getJournal();
+        final StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < 1024; i++) {
+            value.append('x');
+        }
+
+        // Overwrite a few keys until the superseded records get the journal (past 64 KiB) compacted
+        long length = 0;
+        boolean compacted = false;
+
+        for (int i = 0; i < 1000 && !compacted; i++) {
+            mFileManager.putString("key" + (i % 4), value.toString() + i);
+            compacted = journal.length() < length;
+            length = journal.length();
+        }
+
+        assertTrue(compacted);
+
+        // Append to the compacted journal before replaying it
+        mFileManager.putString("key0", TEST_VALUE);
+        mFileManager.remove("key1");
+
+        final JournaledCacheFileManager recovered =
+                replayCopy(journal, TEST_CACHE_NAME + ".compacted");
+
+        try {
+            final Map<String, String> entries = recovered.getAll();
+            assertEquals(3, entries.size());
+            assertEquals(TEST_VALUE, entries.get("key0"));
+            assertNull(entries.get("key1"));
+            assertEquals(mFileManager.getString("key2"), entries.get("key2"));
+            assertEquals(mFileManager.getString("key3"), entries.get("key3"));
+        } finally {
+            recovered.clear();
+        }
+    }
+
+    @Test
+    public void testFailedWriteLeavesCacheUnchanged() {
+        mFileManager.putString(TEST_KEY, TEST_VALUE);
+        final long generation = mFileManager.getGeneration();
+
+        // Without a journal to append to, it is rewritten; a directory in place of the temporary
+        // file makes that fail.
+        assertTrue(getJournal().delete());
+        final File tempFile = new File(getJournal().getPath() + ".tmp");
+        assertTrue(tempFile.mkdir());
+
+        try {
+            mFileManager.putString(TEST_KEY, "other_value");
+            fail("Expected the write to fail.");
+        } catch (final IllegalStateException e) {
+            // Expected
+        } finally {
+            assertTrue(tempFile.delete());
+        }
+
+        assertEquals(TEST_VALUE, mFileManager.getString(TEST_KEY));
+        assertEquals(generation, mFileManager.getGeneration());
+
+        // The next write rewrites the journal
+        mFileManager.putString("other_key", TEST_VALUE);
+        assertTrue(getJournal().exists());
+    }
+
+    @Test
+    public void testUnrecognizedJournalIsTruncated() throws Exception {
+        mFileManager.putString(TEST_KEY, TEST_VALUE);
+
+        final File journal = getJournal();
+
+        // Overwrite the header, as a journal in another format would
+        final FileOutputStream out = new FileOutputStream(journal);
+
+        try {
+            out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        } finally {
+            out.close();
+        }
+
+        final String copyName = TEST_CACHE_NAME + ".unrecognized";
+        final JournaledCacheFileManager recovered = replayCopy(journal, copyName);
+        final File copy = new File(
+                mContext.getFilesDir(),
+                copyName + JournaledCacheFileManager.FILE_EXTENSION
+        );
+
+        try {
+            assertEquals(0, recovered.getAll().size());
+            assertEquals(0, copy.length());
+
+            // The next write rewrites the journal
+            recovered.putString(TEST_KEY, TEST_VALUE);
+            assertEquals(TEST_VALUE, recovered.getString(TEST_KEY));
+            assertTrue(copy.length() > 0);
+        } finally {
+            recovered.clear();
+        }
+    }
+
+    @Test
+    public void testMigrateFromSharedPreferences() {
+        final String name = TEST_CACHE_NAME + ".migrated";
+        final File journal = new File(
+                mContext.getFilesDir(),
+                name + JournaledCacheFileManager.FILE_EXTENSION
+        );
+        final ISharedPreferencesFileManager legacyFileManager =
+                new SharedPreferencesFileManager(mContext, TEST_SHARED_PREFS_NAME, mStorageHelper);
+        final JournaledCacheFileManager fileManager =
+                new JournaledCacheFileManager(mContext, name, mStorageHelper);
+
+        try {
+            legacyFileManager.putString("1", "a");
+            legacyFileManager.putString("2", "b");
+
+            assertTrue(fileManager.migrateFrom(legacyFileManager));
+
+            final Map<String, String> entries = fileManager.getAll();
+            assertEquals(2, entries.size());
+            assertEquals("a", entries.get("1"));
+            assertEquals("b", entries.get("2"));
+            assertEquals(0, legacyFileManager.getAll().size());
+
+            // Migration only happens once
+            legacyFileManager.putString("3", "c");
+            assertFalse(fileManager.migrateFrom(legacyFileManager));
+            assertNull(fileManager.getString("3"));
+        } finally {
+            legacyFileManager.clear();
+            fileManager.clear();
+            journal.delete();
+        }
+    }
+
+    /**
+     * Compares the cost of updating one credential in caches holding 10, 100 and 1000 of them,
+     * against a {@link SharedPreferencesFileManager}, which rewrites its whole file per commit.
+     */
+    @Test
+    public void testWriteBenchmark() {
+        final int writeCount = 50;
+        final StringBuilder credential = new StringBuilder("{\"secret\":\"");
+
+        for (int i = 0; i < 1500; i++) {
+            credential.append('x');
+        }
+
+        credential.append("\"}");
+
+        for (final int credentialCount : new int[]{10, 100, 1000}) {
+            final ISharedPreferencesFileManager sharedPreferencesFileManager =
+                    new SharedPreferencesFileManager(
+                            mContext,
+                            TEST_SHARED_PREFS_NAME,
+                            mStorageHelper
+                    );
+
+            try {
+                final long sharedPreferencesMicros = timeWrites(
+                        sharedPreferencesFileManager, credentialCount, writeCount, credential.toString()
+                );
+                final long journalMicros = timeWrites(
+                        mFileManager, credentialCount, writeCount, credential.toString()
+                );
+
+                Log.i(TAG, "Updating one of [" + credentialCount + "] credentials: SharedPreferences "
+                        + sharedPreferencesMicros + "us, journal " + journalMicros + "us");
+            } finally {
+                sharedPreferencesFileManager.clear();
+                mFileManager.clear();
+            }
+        }
+    }
+
+    private static long timeWrites(@NonNull final ISharedPreferencesFileManager fileManager,
+                                   final int credentialCount,
+                                   final int writeCount,
+                                   @NonNull final String credential) {
+        fileManager.beginBatch();
+
+        try {
+            for (int i = 0; i < credentialCount; i++) {
+                fileManager.putString("credential" + i, credential);
+            }
+        } finally {
+            fileManager.commitBatch();
+        }
+
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < writeCount; i++) {
+            fileManager.putString("credential" + (i % credentialCount), credential + i);
+        }
+
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / writeCount;
+    }
+
+    private File getJournal() {
+        return new File(
+                mContext.getFilesDir(),
+                TEST_CACHE_NAME + JournaledCacheFileManager.FILE_EXTENSION
+        );
+    }
+
+    /**
+     * The journal is only replayed once per process, so replay a copy under another name, which
+     * must be unique to the test.
+     */
+    private JournaledCacheFileManager replayCopy(@NonNull final File journal,
+                                                 @NonNull final String copyName) {
+        final File copy = new File(
+                mContext.getFilesDir(),
+                copyName + JournaledCacheFileManager.FILE_EXTENSION
+        );
+        assertTrue(journal.renameTo(copy));
+
+        return new JournaledCacheFileManager(mContext, copyName, mStorageHelper);
+    }
+}
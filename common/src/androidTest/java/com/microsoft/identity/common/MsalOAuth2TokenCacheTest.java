@@ -1546,4 +1546,69 @@ public class MsalOAuth2TokenCacheTest extends AndroidSecretKeyEnabledHelper {
                 getFamilyRefreshTokenForHomeAccountId("26685724-1f8e-4b97-a0ca-1863e33b9fb1"); // different home account id
         assertNull(refreshTokenRecord);
     }
+
+    @Test
+    public void removeExpiredAccessTokensDiscardsPartialBatch() {
+        final AccessTokenRecord first = new AccessTokenRecord();
+        first.setCredentialType(AccessToken.name());
+        first.setHomeAccountId(HOME_ACCOUNT_ID);
+        first.setRealm(REALM);
+        first.setEnvironment(ENVIRONMENT);
+        first.setClientId(CLIENT_ID);
+        first.setTarget(TARGET);
+        first.setCachedAt(CACHED_AT);
+        first.setExpiresOn(EXPIRES_ON);
+        first.setSecret(SECRET);
+        accountCredentialCache.saveCredential(first);
+
+        final AccessTokenRecord second = new AccessTokenRecord();
+        second.setCredentialType(AccessToken.name());
+        second.setHomeAccountId(HOME_ACCOUNT_ID);
+        second.setRealm(REALM2);
+        second.setEnvironment(ENVIRONMENT);
+        second.setClientId(CLIENT_ID);
+        second.setTarget(TARGET);
+        second.setCachedAt(CACHED_AT);
+        second.setExpiresOn(EXPIRES_ON);
+        second.setSecret(SECRET);
+        accountCredentialCache.saveCredential(second);
+
+        // Fails the second removal, after the first has been written to the batch
+        final IAccountCredentialCache failingCache = new SharedPreferencesAccountCredentialCache(
+                new CacheKeyValueDelegate(),
+                mSharedPreferencesFileManager
+        ) {
+            private int mRemovals;
+
+            @Override
+            public boolean removeCredential(@NonNull final Credential credentialToRemove) {
+                if (++mRemovals > 1) {
+                    throw new IllegalStateException("Simulated failure");
+                }
+
+                return super.removeCredential(credentialToRemove);
+            }
+        };
+
+        final MsalOAuth2TokenCache<
+                MicrosoftStsOAuth2Strategy,
+                MicrosoftStsAuthorizationRequest,
+                MicrosoftStsTokenResponse,
+                MicrosoftAccount,
+                MicrosoftRefreshToken> tokenCache = new MsalOAuth2TokenCache<>(
+                InstrumentationRegistry.getTargetContext(),
+                failingCache,
+                mockCredentialAdapter
+        );
+
+        try {
+            tokenCache.removeAccessTokensExpiredBefore(Long.MAX_VALUE);
+            fail("Expected the sweep to fail.");
+        } catch (final IllegalStateException e) {
+            // Expected
+        }
+
+        // Neither removal was committed
+        assertEquals(2, accountCredentialCache.getCredentials().size());
+    }
 }
@@ -45,7 +45,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.microsoft.identity.common.internal.cache.CacheKeyValueDelegate.CACHE_VALUE_SEPARATOR;
 import static org.junit.Assert.assertEquals;
@@ -1598,6 +1601,99 @@ public class SharedPreferencesAccountCredentialCacheTest extends AndroidSecretKe
         assertNull(mSharedPreferencesFileManager.getString(cacheKey));
     }
 
+    @Test
+    public void concurrentReadersAndWriter() throws Exception {
+        final int readerCount = 5;
+        final int readsPerThread = 50;
+        final int writes = 20;
+
+        for (int ii = 0; ii < writes; ii++) {
+            mSharedPreferencesAccountCredentialCache.saveCredential(
+                    newAccessToken(TARGET + " scope" + ii)
+            );
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int ii = 0; ii < readerCount; ii++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+
+                        for (int jj = 0; jj < readsPerThread; jj++) {
+                            final List<Credential> credentials =
+                                    mSharedPreferencesAccountCredentialCache.getCredentialsFilteredBy(
+                                            HOME_ACCOUNT_ID,
+                                            ENVIRONMENT,
+                                            CredentialType.AccessToken,
+                                            CLIENT_ID,
+                                            REALM,
+                                            null,
+                                            BEARER_AUTHENTICATION_SCHEME.getName()
+                                    );
+
+                            // The writer only ever adds tokens, never fewer than we started with
+                            assertTrue(credentials.size() >= writes);
+                        }
+                    } catch (final Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+
+                    for (int ii = writes; ii < 2 * writes; ii++) {
+                        mSharedPreferencesAccountCredentialCache.saveCredential(
+                                newAccessToken(TARGET + " scope" + ii)
+                        );
+                    }
+                } catch (final Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        }));
+
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+
+        start.countDown();
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        if (null != failure.get()) {
+            throw new AssertionError(failure.get());
+        }
+
+        assertEquals(2 * writes, mSharedPreferencesAccountCredentialCache.getCredentials().size());
+    }
+
+    private static AccessTokenRecord newAccessToken(final String target) {
+        final AccessTokenRecord accessToken = new AccessTokenRecord();
+        accessToken.setCredentialType(CredentialType.AccessToken.name());
+        accessToken.setHomeAccountId(HOME_ACCOUNT_ID);
+        accessToken.setRealm(REALM);
+        accessToken.setEnvironment(ENVIRONMENT);
+        accessToken.setClientId(CLIENT_ID);
+        accessToken.setTarget(target);
+        accessToken.setCachedAt(CACHED_AT);
+        accessToken.setExpiresOn(EXPIRES_ON);
+        accessToken.setSecret(SECRET);
+        return accessToken;
+    }
+
     public void persistAndRestoreExtraClaimsAccessToken() {
         // TODO
     }
@@ -42,6 +42,7 @@ import java.util.UUID;
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 @RunWith(AndroidJUnit4.class)
 public class SharedPreferencesBrokerApplicationMetadataCacheTest {
@@ -185,6 +186,47 @@ public class SharedPreferencesBrokerApplicationMetadataCacheTest {
         );
     }
 
+    @Test
+    public void testLookupsReflectWritesThroughOtherInstances() {
+        final IBrokerApplicationMetadataCache otherCache =
+                new SharedPreferencesBrokerApplicationMetadataCache(
+                        InstrumentationRegistry.getContext()
+                );
+        final BrokerApplicationMetadata fociMetadata = generateRandomMetadata();
+        final BrokerApplicationMetadata nonFociMetadata = generateRandomMetadata();
+        nonFociMetadata.setFoci(null);
+
+        // Build the indexes before writing
+        assertTrue(mMetadataCache.getAllClientIds().isEmpty());
+
+        otherCache.insert(fociMetadata);
+        otherCache.insert(nonFociMetadata);
+
+        assertEquals(
+                fociMetadata,
+                mMetadataCache.getMetadata(
+                        fociMetadata.getClientId(),
+                        fociMetadata.getEnvironment(),
+                        fociMetadata.getUid()
+                )
+        );
+        assertEquals(2, mMetadataCache.getAllClientIds().size());
+        assertTrue(mMetadataCache.getAllFociClientIds().contains(fociMetadata.getClientId()));
+        assertTrue(mMetadataCache.getAllNonFociClientIds().contains(nonFociMetadata.getClientId()));
+        assertEquals(1, mMetadataCache.getAllFociApplicationMetadata().size());
+
+        otherCache.remove(fociMetadata);
+
+        assertNull(
+                mMetadataCache.getMetadata(
+                        fociMetadata.getClientId(),
+                        fociMetadata.getEnvironment(),
+                        fociMetadata.getUid()
+                )
+        );
+        assertTrue(mMetadataCache.getAllFociClientIds().isEmpty());
+    }
+
     private static BrokerApplicationMetadata generateRandomMetadata() {
         final BrokerApplicationMetadata randomMetadata = new BrokerApplicationMetadata();
 
@@ -22,10 +22,14 @@
 // THE SOFTWARE.
 package com.microsoft.identity.common;
 
+import android.content.Context;
+import android.content.SharedPreferences;
+
 import androidx.test.InstrumentationRegistry;
 
 import com.microsoft.identity.common.adal.internal.AndroidSecretKeyEnabledHelper;
 import com.microsoft.identity.common.adal.internal.cache.StorageHelper;
+import com.microsoft.identity.common.internal.cache.DecryptedValueCache;
 import com.microsoft.identity.common.internal.cache.ISharedPreferencesFileManager;
 import com.microsoft.identity.common.internal.cache.SharedPreferencesFileManager;
 
@@ -61,6 +65,12 @@ public class SharedPreferencesFileManagerTests extends AndroidSecretKeyEnabledHe
                         InstrumentationRegistry.getTargetContext(),
                         sTEST_SHARED_PREFS_NAME,
                         new StorageHelper(InstrumentationRegistry.getTargetContext())
+                ),
+                new SharedPreferencesFileManager(
+                        InstrumentationRegistry.getTargetContext(),
+                        sTEST_SHARED_PREFS_NAME,
+                        new StorageHelper(InstrumentationRegistry.getTargetContext()),
+                        new DecryptedValueCache()
                 )
         });
     }
@@ -149,4 +159,109 @@ public class SharedPreferencesFileManagerTests extends AndroidSecretKeyEnabledHe
         // Verify that it is now empty
         assertEquals(0, mSharedPreferencesFileManager.getAll().size());
     }
+
+    @Test
+    public void testBatchIsVisibleToOwnReadsAndPersistedOnCommit() {
+        final SharedPreferences sharedPreferences = InstrumentationRegistry
+                .getTargetContext()
+                .getSharedPreferences(sTEST_SHARED_PREFS_NAME, Context.MODE_PRIVATE);
+
+        mSharedPreferencesFileManager.putString("2", "b");
+
+        mSharedPreferencesFileManager.beginBatch();
+        mSharedPreferencesFileManager.putString(sTEST_KEY, sTEST_VALUE);
+        mSharedPreferencesFileManager.remove("2");
+
+        // Staged writes are visible to this thread...
+        assertEquals(sTEST_VALUE, mSharedPreferencesFileManager.getString(sTEST_KEY));
+        assertFalse(mSharedPreferencesFileManager.contains("2"));
+        assertEquals(1, mSharedPreferencesFileManager.getAll().size());
+
+        // ...but not yet on disk
+        assertFalse(sharedPreferences.contains(sTEST_KEY));
+        assertTrue(sharedPreferences.contains("2"));
+
+        mSharedPreferencesFileManager.commitBatch();
+
+        assertTrue(sharedPreferences.contains(sTEST_KEY));
+        assertFalse(sharedPreferences.contains("2"));
+        assertEquals(sTEST_VALUE, mSharedPreferencesFileManager.getString(sTEST_KEY));
+    }
+
+    @Test
+    public void testNestedBatchCommitsOnOutermost() {
+        final SharedPreferences sharedPreferences = InstrumentationRegistry
+                .getTargetContext()
+                .getSharedPreferences(sTEST_SHARED_PREFS_NAME, Context.MODE_PRIVATE);
+
+        mSharedPreferencesFileManager.beginBatch();
+        mSharedPreferencesFileManager.beginBatch();
+        mSharedPreferencesFileManager.putString(sTEST_KEY, sTEST_VALUE);
+        mSharedPreferencesFileManager.commitBatch();
+
+        assertFalse(sharedPreferences.contains(sTEST_KEY));
+
+        mSharedPreferencesFileManager.commitBatch();
+
+        assertTrue(sharedPreferences.contains(sTEST_KEY));
+    }
+
+    @Test
+    public void testGenerationAdvancesOnCommit() {
+        final long initialGeneration = mSharedPreferencesFileManager.getGeneration();
+
+        mSharedPreferencesFileManager.putString(sTEST_KEY, sTEST_VALUE);
+        assertEquals(initialGeneration + 1, mSharedPreferencesFileManager.getGeneration());
+
+        mSharedPreferencesFileManager.beginBatch();
+        mSharedPreferencesFileManager.putString("1", "a");
+        mSharedPreferencesFileManager.remove(sTEST_KEY);
+        assertEquals(initialGeneration + 1, mSharedPreferencesFileManager.getGeneration());
+
+        mSharedPreferencesFileManager.commitBatch();
+        assertEquals(initialGeneration + 2, mSharedPreferencesFileManager.getGeneration());
+    }
+
+    @Test
+    public void testAbortBatchDiscardsWrites() {
+        mSharedPreferencesFileManager.putString("2", "b");
+        final long generation = mSharedPreferencesFileManager.getGeneration();
+
+        mSharedPreferencesFileManager.beginBatch();
+        mSharedPreferencesFileManager.putString(sTEST_KEY, sTEST_VALUE);
+        mSharedPreferencesFileManager.remove("2");
+        mSharedPreferencesFileManager.abortBatch();
+
+        assertFalse(mSharedPreferencesFileManager.contains(sTEST_KEY));
+        assertEquals("b", mSharedPreferencesFileManager.getString("2"));
+        assertEquals(generation, mSharedPreferencesFileManager.getGeneration());
+    }
+
+    @Test
+    public void testNestedAbortDiscardsOuterBatch() {
+        final SharedPreferences sharedPreferences = InstrumentationRegistry
+                .getTargetContext()
+                .getSharedPreferences(sTEST_SHARED_PREFS_NAME, Context.MODE_PRIVATE);
+
+        mSharedPreferencesFileManager.beginBatch();
+        mSharedPreferencesFileManager.putString("1", "a");
+        mSharedPreferencesFileManager.beginBatch();
+        mSharedPreferencesFileManager.putString(sTEST_KEY, sTEST_VALUE);
+        mSharedPreferencesFileManager.abortBatch();
+        mSharedPreferencesFileManager.commitBatch();
+
+        assertFalse(mSharedPreferencesFileManager.contains("1"));
+        assertFalse(mSharedPreferencesFileManager.contains(sTEST_KEY));
+        assertFalse(sharedPreferences.contains("1"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAbortBatchWithoutBegin() {
+        mSharedPreferencesFileManager.abortBatch();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCommitBatchWithoutBegin() {
+        mSharedPreferencesFileManager.commitBatch();
+    }
 }
@@ -0,0 +1,104 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.microsoft.identity.common.internal.cache.SharedPreferencesFileManager;
+import com.microsoft.identity.common.internal.cache.WriteBehindSharedPreferencesFileManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class WriteBehindSharedPreferencesFileManagerTests {
+
+    private static final String TEST_SHARED_PREFS_NAME = "com.microsoft.test.write_behind_preferences";
+    private static final String TEST_KEY = "test_key";
+    private static final String TEST_VALUE = "test_value";
+
+    private SharedPreferences mSharedPreferences;
+    private WriteBehindSharedPreferencesFileManager mFileManager;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mSharedPreferences = context.getSharedPreferences(TEST_SHARED_PREFS_NAME, Context.MODE_PRIVATE);
+        mFileManager = new WriteBehindSharedPreferencesFileManager(
+                new SharedPreferencesFileManager(context, TEST_SHARED_PREFS_NAME)
+        );
+    }
+
+    @After
+    public void tearDown() {
+        mFileManager.clear();
+    }
+
+    @Test
+    public void testWritesAreVisibleBeforeFlush() {
+        mFileManager.putString(TEST_KEY, TEST_VALUE);
+        mFileManager.putString("1", "a");
+        mFileManager.remove("1");
+
+        assertEquals(TEST_VALUE, mFileManager.getString(TEST_KEY));
+        assertNull(mFileManager.getString("1"));
+        assertEquals(1, mFileManager.getAll().size());
+        assertFalse(mSharedPreferences.contains(TEST_KEY));
+
+        // Staged writes are shared by every instance wrapping the same file
+        final WriteBehindSharedPreferencesFileManager otherFileManager =
+                new WriteBehindSharedPreferencesFileManager(
+                        new SharedPreferencesFileManager(
+                                InstrumentationRegistry.getTargetContext(),
+                                TEST_SHARED_PREFS_NAME
+                        )
+                );
+        assertEquals(TEST_VALUE, otherFileManager.getString(TEST_KEY));
+
+        mFileManager.flush();
+
+        assertEquals(TEST_VALUE, mSharedPreferences.getString(TEST_KEY, null));
+        assertFalse(mSharedPreferences.contains("1"));
+    }
+
+    @Test
+    public void testWritesAreFlushedInTheBackground() throws InterruptedException {
+        mFileManager.putLong(TEST_KEY, 42L);
+
+        Thread.sleep(WriteBehindSharedPreferencesFileManager.FLUSH_DELAY_MILLIS * 3);
+
+        assertTrue(mSharedPreferences.contains(TEST_KEY));
+        assertEquals(42L, mFileManager.getLong(TEST_KEY));
+    }
+}
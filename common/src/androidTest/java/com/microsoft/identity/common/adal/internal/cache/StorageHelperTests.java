@@ -36,6 +36,7 @@ import com.microsoft.identity.common.adal.internal.AndroidTestHelper;
 import com.microsoft.identity.common.adal.internal.AuthenticationConstants;
 import com.microsoft.identity.common.adal.internal.AuthenticationSettings;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -45,14 +46,20 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -83,6 +90,11 @@ public class StorageHelperTests extends AndroidSecretKeyEnabledHelper {
         AuthenticationSettings.INSTANCE.clearSecretKeysForTestCases();
     }
 
+    @After
+    public void tearDown() {
+        AuthenticationSettings.INSTANCE.setUseGcmEncryption(false);
+    }
+
     @Test
     public void testEncryptDecrypt() throws GeneralSecurityException, IOException {
         String clearText = "SomeValue1234";
@@ -216,7 +228,19 @@ public class StorageHelperTests extends AndroidSecretKeyEnabledHelper {
      */
     @Test
     public void testVersion() throws GeneralSecurityException, IOException {
+        assertKeyVersion(false);
+    }
+
+    /**
+     * Once opted in, new values are written in the AES/GCM format where it is supported.
+     */
+    @Test
+    public void testVersionWithGcmOptIn() throws GeneralSecurityException, IOException {
+        AuthenticationSettings.INSTANCE.setUseGcmEncryption(true);
+        assertKeyVersion(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+    }
 
+    private void assertKeyVersion(final boolean isGcm) throws GeneralSecurityException, IOException {
         final Context context = getInstrumentation().getTargetContext();
         final StorageHelper storageHelper = new StorageHelper(context);
         String value = "anvaERSgvhdfgkhrebgagagfdgadfgaadfgadfgadfg435gerhawdeADFGb #$%#gf3$%1234";
@@ -233,10 +257,62 @@ public class StorageHelperTests extends AndroidSecretKeyEnabledHelper {
         String keyVersionCheck = new String(bytes, 0, keyVersionLength, "UTF-8");
         Log.v(TAG, "Key version check:" + keyVersionCheck);
         if (Build.VERSION.SDK_INT < MIN_SDK_VERSION || AuthenticationSettings.INSTANCE.getSecretKeyData() != null) {
-            assertEquals("It should use user defined", "U001", keyVersionCheck);
+            assertEquals("It should use user defined", isGcm ? "U002" : "U001", keyVersionCheck);
         } else {
-            assertEquals("It should use user defined", "A001", keyVersionCheck);
+            assertEquals("It should use android key store", isGcm ? "A002" : "A001", keyVersionCheck);
+        }
+    }
+
+    /**
+     * Blobs written in the CBC + HMAC format must stay readable once new values are written with
+     * AES-GCM, since existing caches are only migrated as their values are rewritten.
+     */
+    @Test
+    public void testDecryptCbcBlobWithGcmEnabled() throws GeneralSecurityException, IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
         }
+
+        AuthenticationSettings.INSTANCE.setUseGcmEncryption(true);
+
+        final Context context = getInstrumentation().getTargetContext();
+        final StorageHelper gcmStorageHelper = new StorageHelper(context);
+        final StorageHelper cbcStorageHelper = new CbcStorageHelper(context);
+
+        final String value = "SomeValue1234";
+        final String cbcEncrypted = cbcStorageHelper.encrypt(value);
+        final String gcmEncrypted = gcmStorageHelper.encrypt(value);
+
+        assertFalse(cbcEncrypted.equals(gcmEncrypted));
+        assertEquals(value, gcmStorageHelper.decrypt(cbcEncrypted));
+        assertEquals(value, gcmStorageHelper.decrypt(gcmEncrypted));
+        assertEquals(
+                cbcStorageHelper.getEncryptionType(cbcEncrypted),
+                gcmStorageHelper.getEncryptionType(gcmEncrypted)
+        );
+    }
+
+    /**
+     * The encryption key is loaded once per instance; GCM mode never derives the HMAC key, so
+     * that alone must not trigger a reload.
+     */
+    @Test
+    public void testEncryptWithGcmLoadsKeyOnce() throws GeneralSecurityException, IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+
+        AuthenticationSettings.INSTANCE.setUseGcmEncryption(true);
+
+        final Context context = getInstrumentation().getTargetContext();
+        final KeyLoadCountingStorageHelper storageHelper = new KeyLoadCountingStorageHelper(context);
+
+        final String first = storageHelper.encrypt("SomeValue1");
+        final String second = storageHelper.encrypt("SomeValue2");
+
+        assertEquals(1, storageHelper.mKeyLoadCount);
+        assertEquals("SomeValue1", storageHelper.decrypt(first));
+        assertEquals("SomeValue2", storageHelper.decrypt(second));
     }
 
     @TargetApi(MIN_SDK_VERSION)
@@ -451,6 +527,136 @@ public class StorageHelperTests extends AndroidSecretKeyEnabledHelper {
         assertTrue("Decrypted data is same", decryptedValue.equals(unencryptedValue));
     }
 
+    @Test
+    public void testDecryptAll() throws IOException, GeneralSecurityException {
+        final int valueCount = 200;
+        final Context context = getInstrumentation().getTargetContext();
+        final StorageHelper storageHelper = new StorageHelper(context);
+
+        final Map<String, String> encryptedValues = new HashMap<>();
+
+        for (int i = 0; i < valueCount; i++) {
+            encryptedValues.put("key" + i, storageHelper.encrypt("SomeValue" + i));
+        }
+
+        // Corrupt one value: it must be left out rather than fail the whole batch
+        final String tamperedValue = encryptedValues.get("key0");
+        encryptedValues.put("key0", tamperedValue.substring(0, tamperedValue.length() - 8) + "AAAAAAAA");
+
+        final Map<String, String> decryptedValues = storageHelper.decryptAll(encryptedValues);
+
+        assertEquals(valueCount - 1, decryptedValues.size());
+        assertFalse(decryptedValues.containsKey("key0"));
+
+        for (int i = 1; i < valueCount; i++) {
+            assertEquals("SomeValue" + i, decryptedValues.get("key" + i));
+        }
+    }
+
+    /**
+     * Compares decrypting a few hundred values, as a bulk cache load does, against a reference
+     * decryption which looks up its Cipher and Mac and derives its HMAC key for every value.
+     */
+    @Test
+    public void testBulkDecryptBenchmark() throws IOException, GeneralSecurityException {
+        final int valueCount = 300;
+        final Context context = getInstrumentation().getTargetContext();
+        // The reference decryption below only understands the CBC + HMAC format
+        final StorageHelper storageHelper = new CbcStorageHelper(context);
+
+        final String[] encryptedValues = new String[valueCount];
+
+        for (int i = 0; i < valueCount; i++) {
+            encryptedValues[i] = storageHelper.encrypt("SomeValue" + i);
+        }
+
+        final SecretKey secretKey = storageHelper.loadSecretKey(StorageHelper.KeyType.KEYSTORE_ENCRYPTED_KEY);
+        assertNotNull(secretKey);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < valueCount; i++) {
+            assertEquals("SomeValue" + i, decryptUncached(encryptedValues[i], secretKey));
+        }
+        final long uncachedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < valueCount; i++) {
+            assertEquals("SomeValue" + i, storageHelper.decrypt(encryptedValues[i]));
+        }
+        final long pooledNanos = System.nanoTime() - start;
+
+        Log.i(TAG, "Decrypted " + valueCount + " values: per-value lookups "
+                + TimeUnit.NANOSECONDS.toMillis(uncachedNanos) + "ms, pooled "
+                + TimeUnit.NANOSECONDS.toMillis(pooledNanos) + "ms");
+    }
+
+    /**
+     * Writes blobs in the CBC + HMAC format regardless of API level and settings.
+     */
+    private static class CbcStorageHelper extends StorageHelper {
+
+        CbcStorageHelper(@NonNull final Context context) {
+            super(context);
+        }
+
+        @Override
+        protected boolean isGcmEncryptionEnabled() {
+            return false;
+        }
+    }
+
+    /**
+     * Counts the secret keys it loads.
+     */
+    private static class KeyLoadCountingStorageHelper extends StorageHelper {
+
+        private int mKeyLoadCount = 0;
+
+        KeyLoadCountingStorageHelper(@NonNull final Context context) {
+            super(context);
+        }
+
+        @Override
+        public SecretKey loadSecretKey(@NonNull final KeyType keyType)
+                throws IOException, GeneralSecurityException {
+            mKeyLoadCount++;
+            return super.loadSecretKey(keyType);
+        }
+    }
+
+    private static String decryptUncached(@NonNull final String encryptedBlob,
+                                          @NonNull final SecretKey secretKey)
+            throws IOException, GeneralSecurityException {
+        // Skip the encode version prefix, "cE1"
+        final byte[] bytes = Base64.decode(encryptedBlob.substring(3), Base64.DEFAULT);
+        final int ivIndex = bytes.length - StorageHelper.DATA_KEY_LENGTH - StorageHelper.HMAC_LENGTH;
+        final int macIndex = bytes.length - StorageHelper.HMAC_LENGTH;
+
+        final SecretKey hmacKey = new SecretKeySpec(
+                MessageDigest.getInstance("SHA256").digest(secretKey.getEncoded()),
+                "AES"
+        );
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(hmacKey);
+        mac.update(bytes, 0, macIndex);
+        assertTrue(MessageDigest.isEqual(
+                mac.doFinal(),
+                Arrays.copyOfRange(bytes, macIndex, bytes.length)
+        ));
+
+        final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(
+                Cipher.DECRYPT_MODE,
+                secretKey,
+                new IvParameterSpec(bytes, ivIndex, StorageHelper.DATA_KEY_LENGTH)
+        );
+
+        return new String(
+                cipher.doFinal(bytes, 4, ivIndex - 4),
+                AuthenticationConstants.ENCODING_UTF8
+        );
+    }
+
     @Test
     public void testSecretKeySerialization() throws UnsupportedEncodingException {
         final Context context = getInstrumentation().getTargetContext();
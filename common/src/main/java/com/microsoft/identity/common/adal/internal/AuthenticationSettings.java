@@ -82,6 +82,12 @@ public enum AuthenticationSettings {
 
     private int mReadTimeOut = DEFAULT_READ_CONNECT_TIMEOUT;
 
+    /**
+     * Whether new cache values are written in the AES/GCM format, false by default.
+     * See {@link #setUseGcmEncryption(boolean)}.
+     */
+    private volatile boolean mUseGcmEncryption = false;
+
     /**
      * Get bytes to derive secretKey to use in encrypt/decrypt.
      *
@@ -390,5 +396,32 @@ public enum AuthenticationSettings {
     public boolean getDisableWebViewHardwareAcceleration() {
         return mEnableHardwareAcceleration;
     }
+
+    /**
+     * Opts in to writing new cache values in the AES/GCM blob format (versions A002 and U002) on
+     * API 19 and above, rather than AES/CBC with HmacSHA256 (A001 and U001). Disabled by default.
+     * <p>
+     * The migration is one-way: values are moved to the new format as they are rewritten, and
+     * library versions which predate it cannot read them, so an app which downgrades the library,
+     * or shares its cache with an app on such a version, loses those values. Disabling the option
+     * again only affects values written afterwards; values already in the new format stay readable.
+     * Set it before the first cache access, since the format is chosen once per storage helper.
+     * Blobs encrypted with the legacy broker keys always keep the older format.
+     *
+     * @param useGcmEncryption true to write new values in the AES/GCM format.
+     * @see #getUseGcmEncryption()
+     */
+    public void setUseGcmEncryption(final boolean useGcmEncryption) {
+        mUseGcmEncryption = useGcmEncryption;
+    }
+
+    /**
+     * Whether new cache values are written in the AES/GCM blob format.
+     *
+     * @return true if opted in with {@link #setUseGcmEncryption(boolean)}.
+     */
+    public boolean getUseGcmEncryption() {
+        return mUseGcmEncryption;
+    }
 }
 
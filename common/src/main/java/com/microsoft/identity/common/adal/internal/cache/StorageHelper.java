@@ -49,6 +49,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.charset.Charset;
 import java.security.DigestException;
 import java.security.GeneralSecurityException;
 import java.security.Key;
@@ -64,15 +65,30 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.spec.AlgorithmParameterSpec;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import javax.security.auth.x500.X500Principal;
@@ -146,6 +162,43 @@ public class StorageHelper implements IStorageHelper {
      */
     public static final String VERSION_USER_DEFINED = "U001";
 
+    /**
+     * Indicate that token item is encrypted with AES/GCM and the key persisted in AndroidKeyStore.
+     * Used in place of {@link #VERSION_ANDROID_KEY_STORE} from KitKat on, once opted in with
+     * {@link AuthenticationSettings#setUseGcmEncryption(boolean)}; existing blobs of the older
+     * version are still read, and move to this one as they are rewritten.
+     */
+    public static final String VERSION_ANDROID_KEY_STORE_GCM = "A002";
+
+    /**
+     * Indicate that the token item is encrypted with AES/GCM and the user provided key.
+     * Used in place of {@link #VERSION_USER_DEFINED} under the same conditions as
+     * {@link #VERSION_ANDROID_KEY_STORE_GCM}, except by the broker, whose blobs must stay
+     * readable by the other broker apps.
+     */
+    public static final String VERSION_USER_DEFINED_GCM = "U002";
+
+    private static final byte[] VERSION_ANDROID_KEY_STORE_GCM_BYTES =
+            VERSION_ANDROID_KEY_STORE_GCM.getBytes(Charset.forName(AuthenticationConstants.ENCODING_UTF8));
+
+    private static final byte[] VERSION_USER_DEFINED_GCM_BYTES =
+            VERSION_USER_DEFINED_GCM.getBytes(Charset.forName(AuthenticationConstants.ENCODING_UTF8));
+
+    /**
+     * Authenticated encryption, replacing AES/CBC plus HmacSHA256 in one pass.
+     */
+    private static final String GCM_CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+
+    /**
+     * 96-bit nonce, as recommended for GCM.
+     */
+    private static final int GCM_IV_LENGTH = 12;
+
+    private static final int GCM_TAG_LENGTH_BITS = 128;
+
+    private static final char[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
     private static final int KEY_VERSION_BLOB_LENGTH = 4;
 
     /**
@@ -157,6 +210,35 @@ public class StorageHelper implements IStorageHelper {
 
     private static final String ANDROID_KEY_STORE = "AndroidKeyStore";
 
+    /**
+     * Smallest number of blobs which {@link #decryptAll(Map)} spreads across worker threads.
+     */
+    private static final int PARALLEL_DECRYPTION_THRESHOLD = 64;
+
+    private static final int DECRYPTION_THREAD_POOL_SIZE =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 3));
+
+    /**
+     * Runs the ciphers of {@link #decryptAll(Map)}. Its threads are daemons, so that an idle pool
+     * never keeps the process alive.
+     */
+    private static final ExecutorService sDecryptionExecutor = Executors.newFixedThreadPool(
+            DECRYPTION_THREAD_POOL_SIZE,
+            new ThreadFactory() {
+                private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    final Thread thread = new Thread(
+                            runnable,
+                            "StorageHelper-decrypt-" + mThreadCount.incrementAndGet()
+                    );
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+    );
+
     /**
      * Type of Secret key to be used.
      */
@@ -176,10 +258,122 @@ public class StorageHelper implements IStorageHelper {
         UNENCRYPTED
     }
 
+    /**
+     * Caches the per-value crypto primitives, which are otherwise looked up (and keys re-derived)
+     * for each value encrypted or decrypted.
+     * <p>
+     * Cipher and Mac instances are not thread-safe, so each thread keeps its own; a thread's Mac
+     * stays initialized with the HMAC key it last used, as doFinal() resets it for reuse.
+     */
+    private static final class CryptoEngine {
+
+        /**
+         * Bounds the memoized HMAC keys; in practice there is at most one per {@link KeyType}.
+         */
+        private static final int MAX_HMAC_KEYS = 8;
+
+        private static final ConcurrentHashMap<SecretKey, SecretKey> sHMacKeys =
+                new ConcurrentHashMap<>();
+
+        private static final ThreadLocal<Cipher> sCipher = new ThreadLocal<>();
+
+        private static final ThreadLocal<Cipher> sGcmCipher = new ThreadLocal<>();
+
+        private static final ThreadLocal<Mac> sMac = new ThreadLocal<>();
+
+        private static final ThreadLocal<SecretKey> sMacKey = new ThreadLocal<>();
+
+        private CryptoEngine() {
+            // Utility class.
+        }
+
+        /**
+         * Returns this thread's AES/CBC Cipher; callers must init() it.
+         */
+        static Cipher getCipher() throws GeneralSecurityException {
+            Cipher cipher = sCipher.get();
+
+            if (null == cipher) {
+                cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+                sCipher.set(cipher);
+            }
+
+            return cipher;
+        }
+
+        /**
+         * Returns this thread's AES/GCM Cipher; callers must init() it.
+         */
+        static Cipher getGcmCipher() throws GeneralSecurityException {
+            Cipher cipher = sGcmCipher.get();
+
+            if (null == cipher) {
+                cipher = Cipher.getInstance(GCM_CIPHER_ALGORITHM);
+                sGcmCipher.set(cipher);
+            }
+
+            return cipher;
+        }
+
+        /**
+         * Returns this thread's HmacSHA256 Mac, initialized with the supplied key.
+         */
+        static Mac getMac(@NonNull final SecretKey hmacKey) throws GeneralSecurityException {
+            Mac mac = sMac.get();
+
+            if (null == mac) {
+                mac = Mac.getInstance(HMAC_ALGORITHM);
+                sMac.set(mac);
+                sMacKey.remove();
+            }
+
+            if (hmacKey == sMacKey.get()) {
+                // Discard anything left over by a use which did not reach doFinal()
+                mac.reset();
+            } else {
+                // Clear the key first: should init() fail, the Mac must not be reused as is
+                sMacKey.remove();
+                mac.init(hmacKey);
+                sMacKey.set(hmacKey);
+            }
+
+            return mac;
+        }
+
+        /**
+         * Returns the HMAC key derived from the supplied key, deriving it only once per key.
+         */
+        static SecretKey getHMacKey(@NonNull final SecretKey key) throws NoSuchAlgorithmException {
+            SecretKey hmacKey = sHMacKeys.get(key);
+
+            if (null == hmacKey) {
+                hmacKey = deriveHMacKey(key);
+
+                if (sHMacKeys.size() >= MAX_HMAC_KEYS) {
+                    sHMacKeys.clear();
+                }
+
+                final SecretKey existing = sHMacKeys.putIfAbsent(key, hmacKey);
+
+                if (null != existing) {
+                    hmacKey = existing;
+                }
+            }
+
+            return hmacKey;
+        }
+    }
+
     private final Context mContext;
     private final SecureRandom mRandom;
     private IWpjTelemetryCallback mTelemetryCallback;
 
+    /**
+     * The key which last decrypted a blob of each version, tried first for the next one.
+     */
+    private final ConcurrentHashMap<EncryptionType, KeyType> mLastDecryptionKeyTypes =
+            new ConcurrentHashMap<>();
+
     /**
      * Public and private keys that are generated in AndroidKeyStore.
      */
@@ -234,49 +428,125 @@ public class StorageHelper implements IStorageHelper {
 
         // load key for encryption if not loaded
         mEncryptionKey = loadSecretKeyForEncryption();
-        mEncryptionHMACKey = getHMacKey(mEncryptionKey);
 
         Logger.verbose(TAG + methodName, "Encrypt version:" + mBlobVersion);
         final byte[] blobVersion = mBlobVersion.getBytes(AuthenticationConstants.ENCODING_UTF8);
         final byte[] bytes = clearText.getBytes(AuthenticationConstants.ENCODING_UTF8);
 
+        final byte[] blob = isGcmBlobVersion(blobVersion, 0)
+                ? encryptWithGcm(blobVersion, bytes)
+                : encryptWithCbcAndHMac(blobVersion, bytes);
+
+        final String encryptedText = encodeBlob(blob);
+        Logger.verbose(TAG + methodName, "Finished encryption");
+
+        return encryptedText;
+    }
+
+    /**
+     * Encrypts into a single array holding blobVersion, encrypted data, iv and mac digest.
+     */
+    @NonNull
+    private byte[] encryptWithCbcAndHMac(@NonNull final byte[] blobVersion,
+                                         @NonNull final byte[] bytes)
+            throws GeneralSecurityException {
+        // The encryption key is loaded only once, so its HMAC key is derived only once too
+        if (mEncryptionHMACKey == null) {
+            mEncryptionHMACKey = CryptoEngine.getHMacKey(mEncryptionKey);
+        }
+
         // IV: Initialization vector that is needed to start CBC
         final byte[] iv = new byte[DATA_KEY_LENGTH];
         mRandom.nextBytes(iv);
         final IvParameterSpec ivSpec = new IvParameterSpec(iv);
 
         // Set to encrypt mode
-        final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-        final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        final Cipher cipher = CryptoEngine.getCipher();
         cipher.init(Cipher.ENCRYPT_MODE, mEncryptionKey, ivSpec);
 
-        final byte[] encrypted = cipher.doFinal(bytes);
+        final byte[] blob = new byte[KEY_VERSION_BLOB_LENGTH
+                + cipher.getOutputSize(bytes.length) + DATA_KEY_LENGTH + HMAC_LENGTH];
+        System.arraycopy(blobVersion, 0, blob, 0, KEY_VERSION_BLOB_LENGTH);
+
+        final int encryptedLength = cipher.doFinal(bytes, 0, bytes.length, blob, KEY_VERSION_BLOB_LENGTH);
+        final int ivIndex = KEY_VERSION_BLOB_LENGTH + encryptedLength;
+        final int macIndex = ivIndex + DATA_KEY_LENGTH;
+        System.arraycopy(iv, 0, blob, ivIndex, DATA_KEY_LENGTH);
 
         // Mac output to sign encryptedData+IV. Keyversion is not included
         // in the digest. It defines what to use for Mac Key.
-        mac.init(mEncryptionHMACKey);
-        mac.update(blobVersion);
-        mac.update(encrypted);
-        mac.update(iv);
-        final byte[] macDigest = mac.doFinal();
+        final Mac mac = CryptoEngine.getMac(mEncryptionHMACKey);
+        mac.update(blob, 0, macIndex);
+        mac.doFinal(blob, macIndex);
+
+        // getOutputSize() may overestimate; trim in that case
+        return macIndex + HMAC_LENGTH == blob.length
+                ? blob
+                : Arrays.copyOf(blob, macIndex + HMAC_LENGTH);
+    }
 
-        // Init array to store blobVersion, encrypted data, iv, macdigest
-        final byte[] blobVerAndEncryptedDataAndIVAndMacDigest = new byte[blobVersion.length
-                + encrypted.length + iv.length + macDigest.length];
-        System.arraycopy(blobVersion, 0, blobVerAndEncryptedDataAndIVAndMacDigest, 0,
-                blobVersion.length);
-        System.arraycopy(encrypted, 0, blobVerAndEncryptedDataAndIVAndMacDigest,
-                blobVersion.length, encrypted.length);
-        System.arraycopy(iv, 0, blobVerAndEncryptedDataAndIVAndMacDigest, blobVersion.length
-                + encrypted.length, iv.length);
-        System.arraycopy(macDigest, 0, blobVerAndEncryptedDataAndIVAndMacDigest, blobVersion.length
-                + encrypted.length + iv.length, macDigest.length);
-
-        final String encryptedText = new String(Base64.encode(blobVerAndEncryptedDataAndIVAndMacDigest,
-                Base64.NO_WRAP), AuthenticationConstants.ENCODING_UTF8);
-        Logger.verbose(TAG + methodName, "Finished encryption");
+    /**
+     * Encrypts into a single array holding blobVersion, iv and encrypted data with its
+     * authentication tag. The blobVersion is authenticated as associated data.
+     */
+    @NonNull
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private byte[] encryptWithGcm(@NonNull final byte[] blobVersion,
+                                  @NonNull final byte[] bytes)
+            throws GeneralSecurityException {
+        final byte[] iv = new byte[GCM_IV_LENGTH];
+        mRandom.nextBytes(iv);
+
+        final Cipher cipher = CryptoEngine.getGcmCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, mEncryptionKey, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv));
+        cipher.updateAAD(blobVersion, 0, KEY_VERSION_BLOB_LENGTH);
+
+        final int encryptedIndex = KEY_VERSION_BLOB_LENGTH + GCM_IV_LENGTH;
+        final byte[] blob = new byte[encryptedIndex + cipher.getOutputSize(bytes.length)];
+        System.arraycopy(blobVersion, 0, blob, 0, KEY_VERSION_BLOB_LENGTH);
+        System.arraycopy(iv, 0, blob, KEY_VERSION_BLOB_LENGTH, GCM_IV_LENGTH);
+
+        final int encryptedLength = cipher.doFinal(bytes, 0, bytes.length, blob, encryptedIndex);
+
+        return encryptedIndex + encryptedLength == blob.length
+                ? blob
+                : Arrays.copyOf(blob, encryptedIndex + encryptedLength);
+    }
 
-        return getEncodeVersionLengthPrefix() + ENCODE_VERSION + encryptedText;
+    /**
+     * Base64-encodes the blob straight into a buffer which already holds the encode version
+     * prefix, so that the String is the only copy made.
+     */
+    @NonNull
+    private String encodeBlob(@NonNull final byte[] blob) {
+        final int prefixLength = 1 + ENCODE_VERSION.length();
+        final char[] encoded = new char[prefixLength + (blob.length + 2) / 3 * 4];
+
+        encoded[0] = getEncodeVersionLengthPrefix();
+        ENCODE_VERSION.getChars(0, ENCODE_VERSION.length(), encoded, 1);
+
+        int out = prefixLength;
+        int in = 0;
+        final int wholeGroupsEnd = blob.length - blob.length % 3;
+
+        while (in < wholeGroupsEnd) {
+            final int bits = (blob[in++] & 0xff) << 16 | (blob[in++] & 0xff) << 8 | (blob[in++] & 0xff);
+            encoded[out++] = BASE64_ALPHABET[bits >>> 18 & 0x3f];
+            encoded[out++] = BASE64_ALPHABET[bits >>> 12 & 0x3f];
+            encoded[out++] = BASE64_ALPHABET[bits >>> 6 & 0x3f];
+            encoded[out++] = BASE64_ALPHABET[bits & 0x3f];
+        }
+
+        if (in < blob.length) {
+            final boolean hasSecondByte = in + 1 < blob.length;
+            final int bits = (blob[in] & 0xff) << 16 | (hasSecondByte ? (blob[in + 1] & 0xff) << 8 : 0);
+            encoded[out++] = BASE64_ALPHABET[bits >>> 18 & 0x3f];
+            encoded[out++] = BASE64_ALPHABET[bits >>> 12 & 0x3f];
+            encoded[out++] = hasSecondByte ? BASE64_ALPHABET[bits >>> 6 & 0x3f] : '=';
+            encoded[out] = '=';
+        }
+
+        return new String(encoded);
     }
 
     @Override
@@ -288,29 +558,341 @@ public class StorageHelper implements IStorageHelper {
             throw new IllegalArgumentException("Input is empty or null");
         }
 
-        if (getEncryptionType(encryptedBlob) == EncryptionType.UNENCRYPTED) {
-            Logger.warn(TAG + methodName, "This string is not encrypted. Finished decryption.");
-            return encryptedBlob;
+        return decryptInternal(encryptedBlob, getPackageName());
+    }
+
+    /**
+     * Decrypts many blobs at once, as when loading a whole cache file. Blobs which could not be
+     * decrypted are left out of the result.
+     * <p>
+     * Keys are loaded, and telemetry is reported, on the calling thread. Maps of at least
+     * {@link #PARALLEL_DECRYPTION_THRESHOLD} blobs are then split across a bounded pool of daemon
+     * worker threads, which only run the ciphers; the calling thread takes a share of the work.
+     *
+     * @param encryptedBlobs The blobs to decrypt, by key.
+     * @return The decrypted clear texts, by key.
+     */
+    @NonNull
+    public Map<String, String> decryptAll(@NonNull final Map<String, String> encryptedBlobs) {
+        final String methodName = ":decryptAll";
+        final String packageName = getPackageName();
+        final Map<String, String> result = new HashMap<>();
+        final List<PendingDecryption> pendingDecryptions = new ArrayList<>(encryptedBlobs.size());
+        final Map<EncryptionType, List<DecryptionKey>> keysByEncryptionType =
+                new EnumMap<>(EncryptionType.class);
+
+        for (final Map.Entry<String, String> entry : encryptedBlobs.entrySet()) {
+            if (StringExtensions.isNullOrBlank(entry.getValue())) {
+                continue;
+            }
+
+            final byte[] bytes = decodeEncryptedBlob(entry.getValue());
+            final EncryptionType encryptionType;
+
+            try {
+                encryptionType = null == bytes
+                        ? EncryptionType.UNENCRYPTED
+                        : getEncryptionType(bytes);
+            } catch (final UnsupportedEncodingException e) {
+                Logger.warn(TAG + methodName, "Failed to decrypt a value: " + e.getMessage());
+                continue;
+            }
+
+            if (encryptionType == EncryptionType.UNENCRYPTED) {
+                Logger.warn(TAG + methodName, "This string is not encrypted.");
+                result.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+
+            List<DecryptionKey> keys = keysByEncryptionType.get(encryptionType);
+
+            if (null == keys) {
+                keys = loadDecryptionKeys(encryptionType, packageName);
+                keysByEncryptionType.put(encryptionType, keys);
+            }
+
+            pendingDecryptions.add(new PendingDecryption(entry.getKey(), bytes, encryptionType, keys));
+        }
+
+        if (pendingDecryptions.isEmpty()) {
+            return result;
+        }
+
+        // Probed once for the whole call, reporting how many values it covered
+        probeKeyStoreKeyForTelemetry(":decrypt", pendingDecryptions.size());
+
+        final List<DecryptionOutcome> outcomes = decryptPending(pendingDecryptions);
+        final Set<KeyType> failedKeyTypes = EnumSet.noneOf(KeyType.class);
+
+        for (final DecryptionOutcome outcome : outcomes) {
+            if (null != outcome.mClearText) {
+                result.put(outcome.mKey, outcome.mClearText);
+                mLastDecryptionKeyTypes.put(outcome.mEncryptionType, outcome.mKeyType);
+            }
+
+            for (final Map.Entry<KeyType, Exception> failure : outcome.mFailures.entrySet()) {
+                // Emitted once per key per call, rather than once per value
+                if (failedKeyTypes.add(failure.getKey())) {
+                    emitDecryptionFailureTelemetryIfNeeded(failure.getKey(), failure.getValue());
+                }
+            }
+        }
+
+        Logger.verbose(
+                TAG + methodName,
+                "Decrypted [" + result.size() + "] of [" + encryptedBlobs.size() + "] values."
+        );
+
+        return result;
+    }
+
+    /**
+     * Loads the keys which may decrypt a blob of the supplied type, the one which last worked
+     * first. Keys which cannot be loaded are left out.
+     */
+    @NonNull
+    private List<DecryptionKey> loadDecryptionKeys(@NonNull final EncryptionType encryptionType,
+                                                   @NonNull final String packageName) {
+        final List<KeyType> keyTypes = getKeysForDecryptionType(encryptionType, packageName);
+        final KeyType lastKeyType = mLastDecryptionKeyTypes.get(encryptionType);
+
+        if (null != lastKeyType && keyTypes.remove(lastKeyType)) {
+            keyTypes.add(0, lastKeyType);
+        }
+
+        final List<DecryptionKey> keys = new ArrayList<>(keyTypes.size());
+
+        for (final KeyType keyType : keyTypes) {
+            try {
+                final SecretKey secretKey = loadSecretKey(keyType);
+
+                if (null != secretKey) {
+                    keys.add(new DecryptionKey(keyType, secretKey));
+                }
+            } catch (final GeneralSecurityException | IOException e) {
+                emitDecryptionFailureTelemetryIfNeeded(keyType, e);
+            }
         }
 
-        // Try to read keystore key - to verify how often this is invoked before the migration is done.
-        // TODO: remove this whole try-catch clause once the experiment is done.
+        return keys;
+    }
+
+    /**
+     * Decrypts the supplied blobs with their preloaded keys, splitting large batches across the
+     * worker threads. Only {@link #decryptWithSecretKey(byte[], SecretKey)} runs off the calling
+     * thread; it touches no instance state.
+     */
+    @NonNull
+    private List<DecryptionOutcome> decryptPending(@NonNull final List<PendingDecryption> pendingDecryptions) {
+        final String methodName = ":decryptPending";
+
+        if (pendingDecryptions.size() < PARALLEL_DECRYPTION_THRESHOLD) {
+            return decryptChunk(pendingDecryptions);
+        }
+
+        final int chunkCount = Math.min(
+                DECRYPTION_THREAD_POOL_SIZE + 1,
+                pendingDecryptions.size() / (PARALLEL_DECRYPTION_THRESHOLD / 2)
+        );
+        final int chunkSize = (pendingDecryptions.size() + chunkCount - 1) / chunkCount;
+
+        final List<List<PendingDecryption>> chunks = new ArrayList<>(chunkCount);
+        final List<Future<List<DecryptionOutcome>>> futures = new ArrayList<>(chunkCount);
+
+        for (int start = 0; start < pendingDecryptions.size(); start += chunkSize) {
+            chunks.add(pendingDecryptions.subList(
+                    start,
+                    Math.min(start + chunkSize, pendingDecryptions.size())
+            ));
+        }
+
+        // Hand all but the first chunk to the pool; this thread decrypts the first
+        for (int i = 1; i < chunks.size(); i++) {
+            final List<PendingDecryption> chunk = chunks.get(i);
+
+            futures.add(sDecryptionExecutor.submit(new Callable<List<DecryptionOutcome>>() {
+                @Override
+                public List<DecryptionOutcome> call() {
+                    return decryptChunk(chunk);
+                }
+            }));
+        }
+
+        final List<DecryptionOutcome> outcomes = new ArrayList<>(pendingDecryptions.size());
+        outcomes.addAll(decryptChunk(chunks.get(0)));
+
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                outcomes.addAll(futures.get(i).get());
+            } catch (final ExecutionException e) {
+                cancel(futures, i + 1);
+
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+
+                throw new IllegalStateException(e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel(futures, i);
+                Logger.warn(TAG + methodName, "Interrupted, decrypting the remainder on this thread.");
+
+                for (int j = i; j < futures.size(); j++) {
+                    outcomes.addAll(decryptChunk(chunks.get(j + 1)));
+                }
+
+                break;
+            }
+        }
+
+        return outcomes;
+    }
+
+    private static void cancel(@NonNull final List<? extends Future<?>> futures, final int fromIndex) {
+        for (int i = fromIndex; i < futures.size(); i++) {
+            futures.get(i).cancel(true);
+        }
+    }
+
+    @NonNull
+    private List<DecryptionOutcome> decryptChunk(@NonNull final List<PendingDecryption> chunk) {
+        final List<DecryptionOutcome> outcomes = new ArrayList<>(chunk.size());
+
+        for (final PendingDecryption pendingDecryption : chunk) {
+            final DecryptionOutcome outcome = new DecryptionOutcome(
+                    pendingDecryption.mKey,
+                    pendingDecryption.mEncryptionType
+            );
+
+            for (final DecryptionKey key : pendingDecryption.mKeys) {
+                try {
+                    outcome.mClearText = decryptWithSecretKey(pendingDecryption.mBytes, key.mSecretKey);
+                    outcome.mKeyType = key.mKeyType;
+                    break;
+                } catch (final GeneralSecurityException | IOException e) {
+                    outcome.mFailures.put(key.mKeyType, e);
+                }
+            }
+
+            outcomes.add(outcome);
+        }
+
+        return outcomes;
+    }
+
+    /**
+     * A loaded key which may decrypt a blob.
+     */
+    private static final class DecryptionKey {
+
+        private final KeyType mKeyType;
+        private final SecretKey mSecretKey;
+
+        DecryptionKey(@NonNull final KeyType keyType, @NonNull final SecretKey secretKey) {
+            mKeyType = keyType;
+            mSecretKey = secretKey;
+        }
+    }
+
+    /**
+     * A decoded blob of {@link #decryptAll(Map)}, with the keys to try on it.
+     */
+    private static final class PendingDecryption {
+
+        private final String mKey;
+        private final byte[] mBytes;
+        private final EncryptionType mEncryptionType;
+        private final List<DecryptionKey> mKeys;
+
+        PendingDecryption(@NonNull final String key,
+                          @NonNull final byte[] bytes,
+                          @NonNull final EncryptionType encryptionType,
+                          @NonNull final List<DecryptionKey> keys) {
+            mKey = key;
+            mBytes = bytes;
+            mEncryptionType = encryptionType;
+            mKeys = keys;
+        }
+    }
+
+    /**
+     * The result of decrypting one blob, applied on the calling thread.
+     */
+    private static final class DecryptionOutcome {
+
+        private final String mKey;
+        private final EncryptionType mEncryptionType;
+
+        /**
+         * The clear text, or null if no key decrypted the blob.
+         */
+        private String mClearText;
+
+        /**
+         * The key which decrypted the blob, if any.
+         */
+        private KeyType mKeyType;
+
+        /**
+         * The keys which failed to decrypt the blob.
+         */
+        private final Map<KeyType, Exception> mFailures = new EnumMap<>(KeyType.class);
+
+        DecryptionOutcome(@NonNull final String key, @NonNull final EncryptionType encryptionType) {
+            mKey = key;
+            mEncryptionType = encryptionType;
+        }
+    }
+
+    // Try to read keystore key - to verify how often this is invoked before the migration is done.
+    // A bulk decryption probes once and reports how many values it decrypted, rather than
+    // loading the key for each of them.
+    // TODO: remove this whole method once the experiment is done.
+    private void probeKeyStoreKeyForTelemetry(@NonNull final String methodName,
+                                              final int valueCount) {
         if (mTelemetryCallback != null) {
+            final String countSuffix = valueCount > 1 ? " VALUE_COUNT:" + valueCount : "";
             try {
                 final SecretKey key = loadSecretKey(KeyType.KEYSTORE_ENCRYPTED_KEY);
                 if (key == null) {
-                    mTelemetryCallback.logEvent(mContext, methodName, false, "KEY_DECRYPTION_KEYSTORE_KEY_NOT_INITIALIZED");
+                    mTelemetryCallback.logEvent(mContext, methodName, false, "KEY_DECRYPTION_KEYSTORE_KEY_NOT_INITIALIZED" + countSuffix);
                 }
             } catch (final Exception e) {
                 // Best effort.
-                mTelemetryCallback.logEvent(mContext, methodName, false, "KEY_DECRYPTION_KEYSTORE_KEY_FAILED_TO_LOAD");
+                mTelemetryCallback.logEvent(mContext, methodName, false, "KEY_DECRYPTION_KEYSTORE_KEY_FAILED_TO_LOAD" + countSuffix);
             }
         }
+    }
 
-        final String packageName = getPackageName();
-        final List<KeyType> keysForDecryptionType = getKeysForDecryptionType(encryptedBlob, packageName);
+    @NonNull
+    private String decryptInternal(@NonNull final String encryptedBlob,
+                                   @NonNull final String packageName)
+            throws GeneralSecurityException, IOException {
+        final String methodName = ":decryptInternal";
+
+        // Decode once; the version, key candidates and payload all come from these bytes
+        final byte[] bytes = decodeEncryptedBlob(encryptedBlob);
+        final EncryptionType encryptionType = null == bytes
+                ? EncryptionType.UNENCRYPTED
+                : getEncryptionType(bytes);
+
+        if (encryptionType == EncryptionType.UNENCRYPTED) {
+            Logger.warn(TAG + methodName, "This string is not encrypted. Finished decryption.");
+            return encryptedBlob;
+        }
+
+        // Reported under the name of the public decrypt API
+        probeKeyStoreKeyForTelemetry(":decrypt", 1);
+
+        final List<KeyType> keysForDecryptionType = getKeysForDecryptionType(encryptionType, packageName);
+
+        // Try the key which last worked for this blob version first
+        final KeyType lastKeyType = mLastDecryptionKeyTypes.get(encryptionType);
+
+        if (null != lastKeyType && keysForDecryptionType.remove(lastKeyType)) {
+            keysForDecryptionType.add(0, lastKeyType);
+        }
 
-        final byte[] bytes = getByteArrayFromEncryptedBlob(encryptedBlob);
         for (final KeyType keyType : keysForDecryptionType) {
             try {
                 final SecretKey secretKey = loadSecretKey(keyType);
@@ -319,6 +901,7 @@ public class StorageHelper implements IStorageHelper {
                 }
 
                 String result = decryptWithSecretKey(bytes, secretKey);
+                mLastDecryptionKeyTypes.put(encryptionType, keyType);
                 Logger.verbose(TAG + methodName, "Finished decryption with keyType:" + keyType.name());
                 return result;
             } catch (GeneralSecurityException | IOException e) {
@@ -368,16 +951,19 @@ public class StorageHelper implements IStorageHelper {
      * NOTE: If it cannot verify the keyVersion, it will assume that this data is not encrypted.
      */
     public EncryptionType getEncryptionType(@NonNull final String data) throws UnsupportedEncodingException {
-        final String methodName = ":getEncryptionType";
+        final byte[] bytes = decodeEncryptedBlob(data);
 
-        final byte[] bytes;
-        try {
-            bytes = getByteArrayFromEncryptedBlob(data);
-        } catch (Exception e) {
-            Logger.error(TAG + methodName, "This data is not an encrypted blob. Treat as unencrypted data.", e);
+        if (null == bytes) {
             return EncryptionType.UNENCRYPTED;
         }
 
+        return getEncryptionType(bytes);
+    }
+
+    @NonNull
+    private EncryptionType getEncryptionType(@NonNull final byte[] bytes) throws UnsupportedEncodingException {
+        final String methodName = ":getEncryptionType";
+
         try {
             final String keyVersion = new String(
                     bytes,
@@ -386,9 +972,11 @@ public class StorageHelper implements IStorageHelper {
                     AuthenticationConstants.ENCODING_UTF8
             );
 
-            if (VERSION_USER_DEFINED.equalsIgnoreCase(keyVersion)) {
+            if (VERSION_USER_DEFINED.equalsIgnoreCase(keyVersion)
+                    || VERSION_USER_DEFINED_GCM.equalsIgnoreCase(keyVersion)) {
                 return EncryptionType.USER_DEFINED;
-            } else if (VERSION_ANDROID_KEY_STORE.equalsIgnoreCase(keyVersion)) {
+            } else if (VERSION_ANDROID_KEY_STORE.equalsIgnoreCase(keyVersion)
+                    || VERSION_ANDROID_KEY_STORE_GCM.equalsIgnoreCase(keyVersion)) {
                 return EncryptionType.ANDROID_KEY_STORE;
             }
         } catch (UnsupportedEncodingException e) {
@@ -399,6 +987,21 @@ public class StorageHelper implements IStorageHelper {
         return EncryptionType.UNENCRYPTED;
     }
 
+    /**
+     * Decodes the supplied blob, or returns null if it is not an encrypted blob.
+     */
+    @Nullable
+    private byte[] decodeEncryptedBlob(@NonNull final String data) {
+        final String methodName = ":decodeEncryptedBlob";
+
+        try {
+            return getByteArrayFromEncryptedBlob(data);
+        } catch (Exception e) {
+            Logger.error(TAG + methodName, "This data is not an encrypted blob. Treat as unencrypted data.", e);
+            return null;
+        }
+    }
+
     private byte[] getByteArrayFromEncryptedBlob(@NonNull final String encryptedBlob) {
         int encodeVersionLength = encryptedBlob.charAt(0) - 'a';
         validateEncodeVersion(encryptedBlob, encodeVersionLength);
@@ -415,9 +1018,13 @@ public class StorageHelper implements IStorageHelper {
     @NonNull
     public List<KeyType> getKeysForDecryptionType(@NonNull final String encryptedBlob,
                                                   @NonNull final String packageName) throws IOException {
-        List<KeyType> keyTypeList = new ArrayList<>();
+        return getKeysForDecryptionType(getEncryptionType(encryptedBlob), packageName);
+    }
 
-        EncryptionType encryptionType = getEncryptionType(encryptedBlob);
+    @NonNull
+    private List<KeyType> getKeysForDecryptionType(@NonNull final EncryptionType encryptionType,
+                                                   @NonNull final String packageName) {
+        List<KeyType> keyTypeList = new ArrayList<>();
 
         if (encryptionType == EncryptionType.USER_DEFINED) {
             if (isBrokerProcess()){
@@ -444,7 +1051,11 @@ public class StorageHelper implements IStorageHelper {
     private String decryptWithSecretKey(@NonNull final byte[] bytes,
                                         @NonNull final SecretKey secretKey)
             throws GeneralSecurityException, IOException {
-        final SecretKey hmacKey = getHMacKey(secretKey);
+        if (isGcmBlobVersion(bytes, 0)) {
+            return decryptWithGcm(bytes, secretKey);
+        }
+
+        final SecretKey hmacKey = CryptoEngine.getHMacKey(secretKey);
 
         // byte input array: encryptedData-iv-macDigest
         final int ivIndex = bytes.length - DATA_KEY_LENGTH - HMAC_LENGTH;
@@ -458,9 +1069,7 @@ public class StorageHelper implements IStorageHelper {
         // Calculate digest again and compare to the appended value
         // incoming message: version+encryptedData+IV+Digest
         // Digest of EncryptedData+IV excluding key Version and digest
-        final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-        final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
-        mac.init(hmacKey);
+        final Mac mac = CryptoEngine.getMac(hmacKey);
         mac.update(bytes, 0, macIndex);
         final byte[] macDigest = mac.doFinal();
 
@@ -471,6 +1080,7 @@ public class StorageHelper implements IStorageHelper {
         // that IV.
         // It is using same cipher for different version since version# change
         // will mean upgrade to AndroidKeyStore and new Key.
+        final Cipher cipher = CryptoEngine.getCipher();
         cipher.init(
                 Cipher.DECRYPT_MODE,
                 secretKey,
@@ -490,6 +1100,75 @@ public class StorageHelper implements IStorageHelper {
         return decrypted;
     }
 
+    @NonNull
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private String decryptWithGcm(@NonNull final byte[] bytes,
+                                  @NonNull final SecretKey secretKey)
+            throws GeneralSecurityException, IOException {
+        // byte input array: version-iv-encryptedData-tag
+        final int encryptedIndex = KEY_VERSION_BLOB_LENGTH + GCM_IV_LENGTH;
+
+        if (bytes.length < encryptedIndex + GCM_TAG_LENGTH_BITS / 8) {
+            throw new IOException("Invalid byte array input for decryption.");
+        }
+
+        if (!isGcmSupported()) {
+            throw new GeneralSecurityException("AES/GCM blobs cannot be decrypted on this API level.");
+        }
+
+        final Cipher cipher = CryptoEngine.getGcmCipher();
+        cipher.init(
+                Cipher.DECRYPT_MODE,
+                secretKey,
+                new GCMParameterSpec(GCM_TAG_LENGTH_BITS, bytes, KEY_VERSION_BLOB_LENGTH, GCM_IV_LENGTH)
+        );
+        cipher.updateAAD(bytes, 0, KEY_VERSION_BLOB_LENGTH);
+
+        // Throws AEADBadTagException, a GeneralSecurityException, if the blob was tampered with
+        return new String(
+                cipher.doFinal(bytes, encryptedIndex, bytes.length - encryptedIndex),
+                AuthenticationConstants.ENCODING_UTF8
+        );
+    }
+
+    /**
+     * Tests if the 4 bytes at offset are one of the AES/GCM blob versions.
+     */
+    private static boolean isGcmBlobVersion(@NonNull final byte[] bytes, final int offset) {
+        return bytes.length >= offset + KEY_VERSION_BLOB_LENGTH
+                && (regionMatches(bytes, offset, VERSION_ANDROID_KEY_STORE_GCM_BYTES)
+                || regionMatches(bytes, offset, VERSION_USER_DEFINED_GCM_BYTES));
+    }
+
+    private static boolean regionMatches(@NonNull final byte[] bytes,
+                                         final int offset,
+                                         @NonNull final byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Whether this API level supports the AES/GCM format.
+     */
+    private static boolean isGcmSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Whether new blobs use the AES/GCM format: only once opted in with
+     * {@link AuthenticationSettings#setUseGcmEncryption(boolean)}, which is a one-way migration,
+     * and where supported. Decryption of existing blobs is unaffected.
+     * Exposed to be overridden by mock tests.
+     */
+    protected boolean isGcmEncryptionEnabled() {
+        return AuthenticationSettings.INSTANCE.getUseGcmEncryption() && isGcmSupported();
+    }
+
     private void validateEncodeVersion(String encryptedBlob, int encodeVersionLength) {
         if (encodeVersionLength <= 0) {
             throw new IllegalArgumentException(
@@ -517,7 +1196,7 @@ public class StorageHelper implements IStorageHelper {
 
         // Loading key only once for performance. If API is upgraded, it will
         // restart the device anyway. It will load the correct key for new API.
-        if (mEncryptionKey != null && mEncryptionHMACKey != null) {
+        if (mEncryptionKey != null) {
             return mEncryptionKey;
         }
 
@@ -547,12 +1226,12 @@ public class StorageHelper implements IStorageHelper {
 
         // Try to get user defined key (ADAL/MSAL).
         if (AuthenticationSettings.INSTANCE.getSecretKeyData() != null) {
-            setBlobVersion(VERSION_USER_DEFINED);
+            setBlobVersion(isGcmEncryptionEnabled() ? VERSION_USER_DEFINED_GCM : VERSION_USER_DEFINED);
             return loadSecretKey(KeyType.ADAL_USER_DEFINED_KEY);
         }
 
         // Try loading existing keystore-encrypted key. If it doesn't exist, create a new one.
-        setBlobVersion(VERSION_ANDROID_KEY_STORE);
+        setBlobVersion(isGcmEncryptionEnabled() ? VERSION_ANDROID_KEY_STORE_GCM : VERSION_ANDROID_KEY_STORE);
         try {
             SecretKey key = loadSecretKey(KeyType.KEYSTORE_ENCRYPTED_KEY);
             if (key != null) {
@@ -777,7 +1456,7 @@ public class StorageHelper implements IStorageHelper {
      * @return SecretKey
      * @throws NoSuchAlgorithmException
      */
-    private SecretKey getHMacKey(final SecretKey key) throws NoSuchAlgorithmException {
+    private static SecretKey deriveHMacKey(final SecretKey key) throws NoSuchAlgorithmException {
         // Some keys may not produce byte[] with getEncoded
         final byte[] encodedKey = key.getEncoded();
         if (encodedKey != null) {
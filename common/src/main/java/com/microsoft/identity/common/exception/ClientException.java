@@ -146,6 +146,11 @@ public class ClientException extends BaseException {
      */
     public static final String DUPLICATE_COMMAND = "duplicate_command";
 
+    /**
+     * Command rejected. Too many commands are already waiting to be executed.
+     */
+    public static final String COMMAND_REJECTED = "command_rejected";
+
     /**
      * Emitted when the KeyStore generates a certificate that does not match the designated key size.
      * Due to a bug in some versions of Android, keySizes may not be exactly as specified
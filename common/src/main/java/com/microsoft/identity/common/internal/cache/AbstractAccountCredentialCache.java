@@ -32,12 +32,13 @@ import com.microsoft.identity.common.internal.dto.Credential;
 import com.microsoft.identity.common.internal.dto.CredentialType;
 import com.microsoft.identity.common.internal.dto.IdTokenRecord;
 import com.microsoft.identity.common.internal.dto.RefreshTokenRecord;
+import com.microsoft.identity.common.internal.dto.ScopeSet;
 import com.microsoft.identity.common.internal.logging.Logger;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 
 import static com.microsoft.identity.common.internal.controllers.BaseController.DEFAULT_SCOPES;
 
@@ -46,6 +47,86 @@ public abstract class AbstractAccountCredentialCache implements IAccountCredenti
     private static final String TAG = AbstractAccountCredentialCache.class.getSimpleName();
     private static final String NEW_LINE = "\n";
 
+    /**
+     * MSAL's default scopes, which are left out of target comparisons.
+     */
+    static final ScopeSet DEFAULT_SCOPE_SET = ScopeSet.of(DEFAULT_SCOPES);
+
+    /**
+     * The CredentialTypes stored as {@link AccessTokenRecord}s.
+     */
+    static final CredentialType[] ACCESS_TOKEN_TYPES = new CredentialType[]{
+            CredentialType.AccessToken,
+            CredentialType.AccessToken_With_AuthScheme
+    };
+
+    /**
+     * Orders AccessTokens by expires_on, earliest first. Their expires_on must be parseable.
+     */
+    static final Comparator<AccessTokenRecord> EXPIRY_ORDER = new Comparator<AccessTokenRecord>() {
+        @Override
+        public int compare(final AccessTokenRecord first, final AccessTokenRecord second) {
+            final long firstExpiry = first.getExpiresOnSeconds();
+            final long secondExpiry = second.getExpiresOnSeconds();
+
+            return firstExpiry < secondExpiry ? -1 : (firstExpiry == secondExpiry ? 0 : 1);
+        }
+    };
+
+    @Override
+    @NonNull
+    public List<Credential> getCredentialsFilteredBy(@NonNull final CredentialQuery query) {
+        return getCredentialsFilteredBy(
+                query.getHomeAccountId(),
+                query.getEnvironment(),
+                query.getCredentialType(),
+                query.getClientId(),
+                query.getRealm(),
+                query.getTarget(),
+                query.getAuthScheme()
+        );
+    }
+
+    @Override
+    @NonNull
+    public List<AccessTokenRecord> getAccessTokensExpiredBefore(final long epochSeconds) {
+        final List<AccessTokenRecord> expiredAccessTokens = new ArrayList<>();
+
+        for (final CredentialType credentialType : ACCESS_TOKEN_TYPES) {
+            for (final Credential credential : getCredentialsFilteredBy(
+                    null,
+                    null,
+                    credentialType,
+                    null,
+                    null,
+                    null,
+                    null)) {
+                if (credential instanceof AccessTokenRecord
+                        && isExpiredBefore((AccessTokenRecord) credential, epochSeconds)) {
+                    expiredAccessTokens.add((AccessTokenRecord) credential);
+                }
+            }
+        }
+
+        Collections.sort(expiredAccessTokens, EXPIRY_ORDER);
+
+        return expiredAccessTokens;
+    }
+
+    /**
+     * Tests if the supplied AccessToken expired before the supplied time. AccessTokens whose
+     * expires_on cannot be parsed are never reported as expired.
+     */
+    static boolean isExpiredBefore(@NonNull final AccessTokenRecord accessToken,
+                                   final long epochSeconds) {
+        try {
+            return accessToken.getExpiresOnSeconds() < epochSeconds;
+        } catch (final NumberFormatException e) {
+            Logger.warn(TAG, "Skipping AccessToken with malformed expires_on.");
+            return false;
+        }
+    }
+
     @Nullable
     protected Class<? extends Credential> getTargetClassForCredentialType(@Nullable String cacheKey,
                                                                           @NonNull CredentialType targetType) {
@@ -154,6 +235,7 @@ public abstract class AbstractAccountCredentialCache implements IAccountCredenti
         );
 
         final List<Credential> matchingCredentials = new ArrayList<>();
+        final ScopeSet targetScopes = mustMatchOnTarget ? ScopeSet.of(target) : ScopeSet.EMPTY;
 
         for (final Credential credential : allCredentials) {
             boolean matches = true;
@@ -187,10 +269,10 @@ public abstract class AbstractAccountCredentialCache implements IAccountCredenti
             if (mustMatchOnTarget) {
                 if (credential instanceof AccessTokenRecord) {
                     final AccessTokenRecord accessToken = (AccessTokenRecord) credential;
-                    matches = matches && targetsIntersect(target, accessToken.getTarget(), true);
+                    matches = matches && targetsIntersect(targetScopes, accessToken.getScopeSet(), true);
                 } else if (credential instanceof RefreshTokenRecord) {
                     final RefreshTokenRecord refreshToken = (RefreshTokenRecord) credential;
-                    matches = matches && targetsIntersect(target, refreshToken.getTarget(), true);
+                    matches = matches && targetsIntersect(targetScopes, refreshToken.getScopeSet(), true);
                 } else {
                     Logger.verbose(TAG, "Query specified target-match, but no target to match.");
                 }
@@ -220,33 +302,34 @@ public abstract class AbstractAccountCredentialCache implements IAccountCredenti
      * targetToMatch. False otherwise.
      */
     static boolean targetsIntersect(@NonNull final String targetToMatch,
-                                    @NonNull final String credentialTarget,
+                                    @Nullable final String credentialTarget,
+                                    boolean omitDefaultScopes) {
+        return targetsIntersect(
+                ScopeSet.of(targetToMatch),
+                ScopeSet.of(credentialTarget),
+                omitDefaultScopes
+        );
+    }
+
+    /**
+     * Examines the intersections of the provided targets (scopes).
+     *
+     * @param targetToMatch     The scopes our cache-query is looking for.
+     * @param credentialTarget  The scopes against which our sought value will be compared.
+     * @param omitDefaultScopes True if MSAL's default scopes should be considered in this lookup.
+     *                          False otherwise.
+     * @return True, if the credentialTarget contains all of the scopes declared by
+     * targetToMatch. False otherwise.
+     */
+    static boolean targetsIntersect(@NonNull final ScopeSet targetToMatch,
+                                    @NonNull final ScopeSet credentialTarget,
                                     boolean omitDefaultScopes) {
         // The credentialTarget must contain all of the scopes in the targetToMatch
         // It may contain more, but it must contain minimally those
         // Matching is case-insensitive
-        final String splitCriteria = "\\s+";
-        final String[] targetToMatchArray = targetToMatch.split(splitCriteria);
-        final String[] credentialTargetArray = credentialTarget.split(splitCriteria);
-
-        // Declare Sets to contain these scopes
-        final Set<String> soughtTargetSet = new HashSet<>();
-        final Set<String> credentialTargetSet = new HashSet<>();
-
-        // Add the array values to these sets, lowercasing them
-        for (final String target : targetToMatchArray) {
-            soughtTargetSet.add(target.toLowerCase());
-        }
-
-        for (final String target : credentialTargetArray) {
-            credentialTargetSet.add(target.toLowerCase());
-        }
-
-        if (omitDefaultScopes) {
-            soughtTargetSet.removeAll(DEFAULT_SCOPES);
-            credentialTargetSet.removeAll(DEFAULT_SCOPES);
-        }
-
-        return credentialTargetSet.containsAll(soughtTargetSet);
+        return credentialTarget.containsAll(
+                targetToMatch,
+                omitDefaultScopes ? DEFAULT_SCOPE_SET : ScopeSet.EMPTY
+        );
     }
 }
@@ -0,0 +1,413 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.dto.AccountCredentialBase;
+import com.microsoft.identity.common.internal.dto.AccountRecord;
+import com.microsoft.identity.common.internal.dto.IdTokenRecord;
+import com.microsoft.identity.common.internal.dto.RefreshTokenRecord;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Creates single-pass {@link TypeAdapter}s for the persisted {@link AccountCredentialBase} types.
+ * <p>
+ * Gson's reflective adapter drops the JSON members which do not map to a field, so the
+ * additionalFields of a record used to be recovered by parsing each cache value a second time.
+ * The adapters created here fill the declared fields and collect every other member into the
+ * additionalFields Map in a single streaming read, and write the declared fields followed by the
+ * additionalFields without building an intermediate JSON tree. The fields of each type are
+ * inspected once, when its adapter is created, and are written in the same order as Gson's
+ * reflective adapter so that the serialized form is unchanged. String fields, which is what the
+ * persisted records consist of, are read and written directly; fields of any other type are
+ * delegated to the adapter Gson provides for their declared type.
+ */
+class AccountCredentialTypeAdapterFactory implements TypeAdapterFactory {
+
+    /**
+     * The types for which single-pass adapters are created.
+     */
+    private static final Set<Class<?>> SUPPORTED_TYPES = Collections.unmodifiableSet(
+            new HashSet<Class<?>>(
+                    Arrays.<Class<?>>asList(
+                            AccountRecord.class,
+                            AccessTokenRecord.class,
+                            RefreshTokenRecord.class,
+                            IdTokenRecord.class
+                    )
+            )
+    );
+
+    /**
+     * Tests if instances of the supplied type are deserialized with their additionalFields.
+     *
+     * @param clazz The type to test.
+     * @return True if the supplied type is handled by this factory.
+     */
+    static boolean supports(@NonNull final Class<?> clazz) {
+        return SUPPORTED_TYPES.contains(clazz);
+    }
+
+    @Override
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(@NonNull final Gson gson, @NonNull final TypeToken<T> type) {
+        final Class<? super T> rawType = type.getRawType();
+
+        if (!supports(rawType)) {
+            return null;
+        }
+
+        return (TypeAdapter<T>) newAdapter(
+                gson,
+                (Class<? extends AccountCredentialBase>) rawType
+        );
+    }
+
+    @VisibleForTesting
+    static <R extends AccountCredentialBase> TypeAdapter<R> newAdapter(
+            @NonNull final Gson gson,
+            @NonNull final Class<R> clazz) {
+        return new AccountCredentialTypeAdapter<>(gson, clazz);
+    }
+
+    /**
+     * A serialized field of an {@link AccountCredentialBase}.
+     */
+    private static final class BoundField {
+
+        private final Field mField;
+
+        /**
+         * The name under which this field is written.
+         */
+        private final String mName;
+
+        /**
+         * Gson's adapter for the declared type of this field, or null for String fields, which
+         * are read and written directly.
+         */
+        @Nullable
+        private final TypeAdapter<Object> mAdapter;
+
+        BoundField(@NonNull final Field field,
+                   @NonNull final String name,
+                   @Nullable final TypeAdapter<Object> adapter) {
+            mField = field;
+            mName = name;
+            mAdapter = adapter;
+        }
+
+        void write(@NonNull final JsonWriter out, @Nullable final Object fieldValue)
+                throws IOException {
+            if (null == mAdapter) {
+                out.value((String) fieldValue);
+            } else {
+                mAdapter.write(out, fieldValue);
+            }
+        }
+
+        void read(@NonNull final JsonReader in, @NonNull final Object instance)
+                throws IOException, IllegalAccessException {
+            if (null == mAdapter) {
+                mField.set(instance, readString(in));
+            } else {
+                set(instance, mAdapter.read(in));
+            }
+        }
+
+        void read(@NonNull final JsonElement element, @NonNull final Object instance)
+                throws IllegalAccessException {
+            if (null == mAdapter) {
+                mField.set(instance, asString(element));
+            } else {
+                set(instance, mAdapter.fromJsonTree(element));
+            }
+        }
+
+        private void set(@NonNull final Object instance, @Nullable final Object fieldValue)
+                throws IllegalAccessException {
+            // Like Gson, leave primitives at their default when the member is null
+            if (null != fieldValue || !mField.getType().isPrimitive()) {
+                mField.set(instance, fieldValue);
+            }
+        }
+    }
+
+    private static final class AccountCredentialTypeAdapter<T extends AccountCredentialBase>
+            extends TypeAdapter<T> {
+
+        private final Gson mGson;
+
+        private final Constructor<T> mConstructor;
+
+        private final TypeAdapter<JsonElement> mJsonElementAdapter;
+
+        /**
+         * The serialized fields, in the order in which Gson writes them.
+         */
+        private final List<BoundField> mFields = new ArrayList<>();
+
+        /**
+         * The serialized fields, keyed by their @SerializedName value.
+         */
+        private final Map<String, BoundField> mFieldsByName = new HashMap<>();
+
+        /**
+         * Fields accepted under names which are not their @SerializedName value (alternates).
+         * Such members populate the field, but are also retained as additionalFields.
+         */
+        private final Map<String, BoundField> mFieldsByAlternateName = new HashMap<>();
+
+        AccountCredentialTypeAdapter(@NonNull final Gson gson, @NonNull final Class<T> clazz) {
+            mGson = gson;
+            mJsonElementAdapter = gson.getAdapter(JsonElement.class);
+
+            try {
+                mConstructor = clazz.getDeclaredConstructor();
+                mConstructor.setAccessible(true);
+            } catch (final NoSuchMethodException e) {
+                throw new IllegalArgumentException(
+                        clazz.getSimpleName() + " does not declare a no-arg constructor.",
+                        e
+                );
+            }
+
+            // Like Gson, walk from the supplied type up through its superclasses
+            for (Class<?> current = clazz; current != Object.class; current = current.getSuperclass()) {
+                for (final Field field : current.getDeclaredFields()) {
+                    bind(field);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void bind(@NonNull final Field field) {
+            final int modifiers = field.getModifiers();
+
+            if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                return;
+            }
+
+            field.setAccessible(true);
+
+            final TypeAdapter<Object> adapter = String.class == field.getType()
+                    ? null
+                    : (TypeAdapter<Object>) mGson.getAdapter(TypeToken.get(field.getGenericType()));
+            final SerializedName serializedName = field.getAnnotation(SerializedName.class);
+            final BoundField boundField;
+
+            if (null == serializedName) {
+                boundField = new BoundField(field, field.getName(), adapter);
+                mFieldsByAlternateName.put(field.getName(), boundField);
+            } else {
+                boundField = new BoundField(field, serializedName.value(), adapter);
+
+                for (final String alternate : serializedName.alternate()) {
+                    mFieldsByAlternateName.put(alternate, boundField);
+                }
+
+                mFieldsByName.put(serializedName.value(), boundField);
+            }
+
+            mFields.add(boundField);
+        }
+
+        @Override
+        public void write(@NonNull final JsonWriter out, @Nullable final T value) throws IOException {
+            if (null == value) {
+                out.nullValue();
+                return;
+            }
+
+            final Map<String, JsonElement> additionalFields = value.getAdditionalFields();
+            final boolean hasAdditionalFields = null != additionalFields && !additionalFields.isEmpty();
+            Set<String> writtenAdditionalFields = null;
+
+            out.beginObject();
+
+            try {
+                for (final BoundField boundField : mFields) {
+                    final Object fieldValue = boundField.mField.get(value);
+
+                    out.name(boundField.mName);
+
+                    if (hasAdditionalFields
+                            && null != fieldValue
+                            && additionalFields.containsKey(boundField.mName)) {
+                        // An additional field named like a declared one replaces its value, in place
+                        writeAdditionalField(out, additionalFields.get(boundField.mName));
+
+                        if (null == writtenAdditionalFields) {
+                            writtenAdditionalFields = new HashSet<>();
+                        }
+
+                        writtenAdditionalFields.add(boundField.mName);
+                    } else {
+                        boundField.write(out, fieldValue);
+                    }
+                }
+            } catch (final IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+
+            if (hasAdditionalFields) {
+                for (final Map.Entry<String, JsonElement> additionalField : additionalFields.entrySet()) {
+                    if (null == writtenAdditionalFields
+                            || !writtenAdditionalFields.contains(additionalField.getKey())) {
+                        out.name(additionalField.getKey());
+                        writeAdditionalField(out, additionalField.getValue());
+                    }
+                }
+            }
+
+            out.endObject();
+        }
+
+        private void writeAdditionalField(@NonNull final JsonWriter out,
+                                          @Nullable final JsonElement element) throws IOException {
+            if (null == element) {
+                out.nullValue();
+            } else {
+                mJsonElementAdapter.write(out, element);
+            }
+        }
+
+        @Override
+        @Nullable
+        public T read(@NonNull final JsonReader in) throws IOException {
+            if (JsonToken.NULL == in.peek()) {
+                in.nextNull();
+                return null;
+            }
+
+            final T instance = newInstance();
+            final Map<String, JsonElement> additionalFields = new HashMap<>();
+
+            try {
+                in.beginObject();
+
+                while (in.hasNext()) {
+                    final String name = in.nextName();
+                    final BoundField boundField = mFieldsByName.get(name);
+
+                    if (null != boundField) {
+                        boundField.read(in, instance);
+                        continue;
+                    }
+
+                    final JsonElement element = mJsonElementAdapter.read(in);
+                    final BoundField alternateField = mFieldsByAlternateName.get(name);
+
+                    if (null != alternateField) {
+                        alternateField.read(element, instance);
+                    }
+
+                    additionalFields.put(name, element);
+                }
+
+                in.endObject();
+            } catch (final IllegalStateException e) {
+                throw new JsonSyntaxException(e);
+            } catch (final IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+
+            instance.setAdditionalFields(additionalFields);
+
+            return instance;
+        }
+
+        @NonNull
+        private T newInstance() {
+            try {
+                return mConstructor.newInstance();
+            } catch (final InstantiationException e) {
+                throw new RuntimeException("Failed to invoke " + mConstructor, e);
+            } catch (final IllegalAccessException e) {
+                throw new AssertionError(e);
+            } catch (final InvocationTargetException e) {
+                throw new RuntimeException("Failed to invoke " + mConstructor, e.getTargetException());
+            }
+        }
+    }
+
+    /**
+     * Reads a String the way Gson's built-in String adapter does.
+     */
+    @Nullable
+    private static String readString(@NonNull final JsonReader in) throws IOException {
+        final JsonToken token = in.peek();
+
+        if (JsonToken.NULL == token) {
+            in.nextNull();
+            return null;
+        }
+
+        if (JsonToken.BOOLEAN == token) {
+            return Boolean.toString(in.nextBoolean());
+        }
+
+        return in.nextString();
+    }
+
+    @Nullable
+    private static String asString(@NonNull final JsonElement element) {
+        if (element.isJsonNull()) {
+            return null;
+        }
+
+        if (!element.isJsonPrimitive()) {
+            throw new JsonSyntaxException("Expected a string but was " + element);
+        }
+
+        return element.getAsString();
+    }
+}
@@ -50,8 +50,11 @@ import com.microsoft.identity.common.internal.providers.oauth2.OAuth2TokenCache;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.microsoft.identity.common.internal.cache.ADALOAuth2TokenCache.ERR_UNSUPPORTED_OPERATION;
 import static com.microsoft.identity.common.internal.cache.SharedPreferencesAccountCredentialCache.BROKER_FOCI_ACCOUNT_CREDENTIAL_SHARED_PREFERENCES;
@@ -90,15 +93,59 @@ public class BrokerOAuth2TokenCache
                 GenericTokenResponse extends MicrosoftTokenResponse,
                 GenericAccount extends MicrosoftAccount,
                 GenericRefreshToken extends MicrosoftRefreshToken>
-        extends OAuth2TokenCache<GenericOAuth2Strategy, GenericAuthorizationRequest, GenericTokenResponse> {
+        extends OAuth2TokenCache<GenericOAuth2Strategy, GenericAuthorizationRequest, GenericTokenResponse>
+        implements IRemoveExpiredAccessTokens {
 
     private static final String TAG = BrokerOAuth2TokenCache.class.getSimpleName();
 
     private static final String UNCHECKED = "unchecked";
 
+    /**
+     * The maximum number of uid-sequestered caches retained by this process.
+     */
+    private static final int MAX_PROCESS_UID_CACHES = 16;
+
+    /**
+     * Long-lived uid-sequestered caches of this process, by uid. Each one indexes its file once
+     * and is shared by every BrokerOAuth2TokenCache, rather than being rebuilt per lookup. The
+     * least recently used ones are evicted; that is safe since a cache revalidates its index
+     * against the generation of its file, which all instances for that file share.
+     * Guarded by itself.
+     */
+    private static final Map<Integer, MsalOAuth2TokenCache> sProcessUidCaches =
+            new LinkedHashMap<Integer, MsalOAuth2TokenCache>(MAX_PROCESS_UID_CACHES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<Integer, MsalOAuth2TokenCache> eldest) {
+                    return size() > MAX_PROCESS_UID_CACHES;
+                }
+            };
+
+    /**
+     * The long-lived FOCI cache of this process, created on first use.
+     */
+    private static MicrosoftFamilyOAuth2TokenCache sFociCache;
+
+    /**
+     * The most recent result of {@link #getAccounts()}, reused until anything is written.
+     */
+    private static volatile AccountsSnapshot sAccountsSnapshot;
+
     private final IBrokerApplicationMetadataCache mApplicationMetadataCache;
     private final MicrosoftFamilyOAuth2TokenCache mFociCache;
     private final int mCallingProcessUid;
+
+    /**
+     * True if this instance uses the long-lived caches of this process rather than injected ones,
+     * in which case it may share their account snapshot.
+     */
+    private final boolean mIsRegistryBacked;
+
+    /**
+     * Saves take the write lock; aggregated loads share the read lock so that concurrent silent
+     * requests no longer serialize on this instance.
+     */
+    private final ReentrantReadWriteLock mAggregationLock = new ReentrantReadWriteLock();
     private ProcessUidCacheFactory mDelegate = null;
 
     /**
@@ -119,8 +166,34 @@ public class BrokerOAuth2TokenCache
         );
 
         mCallingProcessUid = callingProcessUid;
-        mFociCache = initializeFociCache(context);
+        mFociCache = getRegisteredFociCache(context);
         mApplicationMetadataCache = applicationMetadataCache;
+        mIsRegistryBacked = true;
+    }
+
+    /**
+     * The accounts found across all caches, stamped with the
+     * {@link #getAccountsGeneration(List) write generation} of the files and the application
+     * metadata from which they were gathered.
+     */
+    private static final class AccountsSnapshot {
+
+        private final long mGeneration;
+        private final List<BrokerApplicationMetadata> mMetadata;
+        private final List<AccountRecord> mAccounts;
+
+        AccountsSnapshot(final long generation,
+                         @NonNull final List<BrokerApplicationMetadata> metadata,
+                         @NonNull final List<AccountRecord> accounts) {
+            mGeneration = generation;
+            mMetadata = metadata;
+            mAccounts = accounts;
+        }
+
+        boolean isCurrent(final long generation,
+                          @NonNull final List<BrokerApplicationMetadata> metadata) {
+            return mGeneration == generation && mMetadata.equals(metadata);
+        }
     }
 
     /**
@@ -163,6 +236,7 @@ public class BrokerOAuth2TokenCache
         mApplicationMetadataCache = applicationMetadataCache;
         mCallingProcessUid = callingProcessUid;
         mFociCache = fociCache;
+        mIsRegistryBacked = false;
     }
 
     /**
@@ -237,13 +311,15 @@ public class BrokerOAuth2TokenCache
     }
 
     @SuppressWarnings("unchecked")
-    public synchronized List<ICacheRecord> saveAndLoadAggregatedAccountData(
+    public List<ICacheRecord> saveAndLoadAggregatedAccountData(
             @NonNull final AccountRecord accountRecord,
             @NonNull final IdTokenRecord idTokenRecord,
             @NonNull final AccessTokenRecord accessTokenRecord,
             @Nullable final String familyId,
             @NonNull final AbstractAuthenticationScheme authScheme) throws ClientException {
-        synchronized (this) {
+        mAggregationLock.writeLock().lock();
+
+        try {
             final ICacheRecord cacheRecord = save(
                     accountRecord,
                     idTokenRecord,
@@ -268,6 +344,8 @@ public class BrokerOAuth2TokenCache
                     cacheRecord.getAccount(),
                     authScheme
             );
+        } finally {
+            mAggregationLock.writeLock().unlock();
         }
     }
 
@@ -341,7 +419,9 @@ public class BrokerOAuth2TokenCache
             @NonNull final GenericOAuth2Strategy oAuth2Strategy,
             @NonNull final GenericAuthorizationRequest request,
             @NonNull final GenericTokenResponse response) throws ClientException {
-        synchronized (this) {
+        mAggregationLock.writeLock().lock();
+
+        try {
             final String methodName = ":saveAndLoadAggregatedAccountData";
 
             final boolean isFoci = !StringExtensions.isNullOrBlank(response.getFamilyId());
@@ -393,6 +473,8 @@ public class BrokerOAuth2TokenCache
             );
 
             return result;
+        } finally {
+            mAggregationLock.writeLock().unlock();
         }
     }
 
@@ -559,7 +641,9 @@ public class BrokerOAuth2TokenCache
                                                             @Nullable final String target,
                                                             @NonNull final AccountRecord account,
                                                             @NonNull final AbstractAuthenticationScheme authScheme) {
-        synchronized (this) {
+        mAggregationLock.readLock().lock();
+
+        try {
             final String methodName = ":loadWithAggregatedAccountData";
 
             final BrokerApplicationMetadata appMetadata = mApplicationMetadataCache.getMetadata(
@@ -639,6 +723,8 @@ public class BrokerOAuth2TokenCache
             );
 
             return resultRecords;
+        } finally {
+            mAggregationLock.readLock().unlock();
         }
     }
 
@@ -1065,10 +1151,26 @@ public class BrokerOAuth2TokenCache
     public List<AccountRecord> getAccounts() {
         final String methodName = ":getAccounts";
 
-        final Set<AccountRecord> allAccounts = new HashSet<>();
-
         final List<BrokerApplicationMetadata> allMetadata = mApplicationMetadataCache.getAll();
 
+        // Read the generation first: a write made while we gather makes the result stale at once
+        final long generation = getAccountsGeneration(allMetadata);
+
+        if (mIsRegistryBacked) {
+            final AccountsSnapshot snapshot = sAccountsSnapshot;
+
+            if (null != snapshot && snapshot.isCurrent(generation, allMetadata)) {
+                Logger.verbose(
+                        TAG + methodName,
+                        "Returning [" + snapshot.mAccounts.size() + "] accounts from snapshot."
+                );
+
+                return new ArrayList<>(snapshot.mAccounts);
+            }
+        }
+
+        final Set<AccountRecord> allAccounts = new HashSet<>();
+
         for (final BrokerApplicationMetadata metadata : allMetadata) {
             final OAuth2TokenCache candidateCache = getTokenCacheForClient(
                     metadata.getClientId(),
@@ -1090,6 +1192,14 @@ public class BrokerOAuth2TokenCache
 
         final List<AccountRecord> allAccountsResult = new ArrayList<>(allAccounts);
 
+        if (mIsRegistryBacked) {
+            sAccountsSnapshot = new AccountsSnapshot(
+                    generation,
+                    allMetadata,
+                    new ArrayList<>(allAccountsResult)
+            );
+        }
+
         Logger.verbose(
                 TAG + methodName,
                 "Found ["
@@ -1100,6 +1210,36 @@ public class BrokerOAuth2TokenCache
         return allAccountsResult;
     }
 
+    /**
+     * Returns the combined write generation of the files from which {@link #getAccounts()}
+     * gathers: the FOCI file and the file of each uid in the supplied metadata. Generations only
+     * grow, so their sum changes whenever any of these files is written, while writes to
+     * unrelated files leave it alone.
+     *
+     * @param allMetadata The application metadata from which accounts are gathered.
+     * @return The combined write generation.
+     */
+    private static long getAccountsGeneration(
+            @NonNull final List<BrokerApplicationMetadata> allMetadata) {
+        long generation = SharedPreferencesFileManager
+                .generationOf(BROKER_FOCI_ACCOUNT_CREDENTIAL_SHARED_PREFERENCES)
+                .get();
+        final Set<Integer> uids = new HashSet<>();
+
+        for (final BrokerApplicationMetadata metadata : allMetadata) {
+            if (uids.add(metadata.getUid())) {
+                generation += SharedPreferencesFileManager
+                        .generationOf(
+                                SharedPreferencesAccountCredentialCache
+                                        .getBrokerUidSequesteredFilename(metadata.getUid())
+                        )
+                        .get();
+            }
+        }
+
+        return generation;
+    }
+
     /**
      * Removes the provided {@link AccountRecord} from all of the caches known by this instance.
      * This API is akin to a device-wide signout for a non-joined user. Note, this affects the cache
@@ -1210,6 +1350,63 @@ public class BrokerOAuth2TokenCache
         );
     }
 
+    /**
+     * Removes the expired AccessTokens of the FOCI cache and of the uid-sequestered cache of
+     * every app known to the application metadata cache.
+     *
+     * @param epochSeconds The cutoff, in seconds from epoch.
+     * @return The number of AccessTokens removed.
+     */
+    @Override
+    public int removeAccessTokensExpiredBefore(final long epochSeconds) {
+        final String methodName = ":removeAccessTokensExpiredBefore";
+
+        final List<MsalOAuth2TokenCache> cachesToSweep = new ArrayList<>();
+        cachesToSweep.add(mFociCache);
+
+        for (final BrokerApplicationMetadata metadata : mApplicationMetadataCache.getAll()) {
+            if (null != metadata.getFoci()) {
+                continue;
+            }
+
+            final MsalOAuth2TokenCache candidateCache = getTokenCacheForClient(
+                    metadata.getClientId(),
+                    metadata.getEnvironment(),
+                    metadata.getUid()
+            );
+
+            // Apps sharing a uid share a cache: sweep each one once
+            if (null != candidateCache && !containsInstance(cachesToSweep, candidateCache)) {
+                cachesToSweep.add(candidateCache);
+            }
+        }
+
+        int removed = 0;
+
+        for (final MsalOAuth2TokenCache cache : cachesToSweep) {
+            removed += cache.removeAccessTokensExpiredBefore(epochSeconds);
+        }
+
+        Logger.info(
+                TAG + methodName,
+                "Swept [" + cachesToSweep.size() + "] caches, removed ["
+                        + removed + "] expired AccessTokens."
+        );
+
+        return removed;
+    }
+
+    private static boolean containsInstance(@NonNull final List<?> list,
+                                            @NonNull final Object instance) {
+        for (final Object element : list) {
+            if (element == instance) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Tests if a clientId is 'known' to the cache. A clientId is known if a token has been
      * previously saved to the cache with it.
@@ -1462,11 +1659,6 @@ public class BrokerOAuth2TokenCache
                                                            final int bindingProcessUid) {
         final String methodName = ":initializeProcessUidCache";
 
-        Logger.verbose(
-                TAG + methodName,
-                "Initializing uid cache."
-        );
-
         if (null != mDelegate) {
             Logger.warn(
                     TAG + methodName,
@@ -1476,16 +1668,54 @@ public class BrokerOAuth2TokenCache
             return mDelegate.getTokenCache(context, bindingProcessUid);
         }
 
-        final IStorageHelper storageHelper = new StorageHelper(context);
-        final ISharedPreferencesFileManager sharedPreferencesFileManager =
-                new SharedPreferencesFileManager(
-                        context,
-                        SharedPreferencesAccountCredentialCache
-                                .getBrokerUidSequesteredFilename(bindingProcessUid),
-                        storageHelper
-                );
+        MsalOAuth2TokenCache cache;
+
+        synchronized (sProcessUidCaches) {
+            cache = sProcessUidCaches.get(bindingProcessUid);
+        }
+
+        if (null == cache) {
+            Logger.verbose(
+                    TAG + methodName,
+                    "Initializing uid cache."
+            );
+
+            final Context applicationContext = context.getApplicationContext();
+            final IStorageHelper storageHelper = new StorageHelper(applicationContext);
+            final ISharedPreferencesFileManager sharedPreferencesFileManager =
+                    new SharedPreferencesFileManager(
+                            applicationContext,
+                            SharedPreferencesAccountCredentialCache
+                                    .getBrokerUidSequesteredFilename(bindingProcessUid),
+                            storageHelper,
+                            // Per file, so that no cache holds the plaintext of another uid
+                            new DecryptedValueCache()
+                    );
+
+            cache = getTokenCache(applicationContext, sharedPreferencesFileManager, false);
+
+            synchronized (sProcessUidCaches) {
+                // Another thread may have registered one first; if so, use it.
+                final MsalOAuth2TokenCache registered = sProcessUidCaches.get(bindingProcessUid);
+
+                if (null == registered) {
+                    sProcessUidCaches.put(bindingProcessUid, cache);
+                } else {
+                    cache = registered;
+                }
+            }
+        }
+
+        return cache;
+    }
+
+    private static synchronized MicrosoftFamilyOAuth2TokenCache getRegisteredFociCache(
+            @NonNull final Context context) {
+        if (null == sFociCache) {
+            sFociCache = initializeFociCache(context.getApplicationContext());
+        }
 
-        return getTokenCache(context, sharedPreferencesFileManager, false);
+        return sFociCache;
     }
 
     private static MicrosoftFamilyOAuth2TokenCache initializeFociCache(@NonNull final Context context) {
@@ -1499,7 +1729,8 @@ public class BrokerOAuth2TokenCache
                 new SharedPreferencesFileManager(
                         context,
                         BROKER_FOCI_ACCOUNT_CREDENTIAL_SHARED_PREFERENCES,
-                        storageHelper
+                        storageHelper,
+                        new DecryptedValueCache()
                 );
 
         return getTokenCache(context, sharedPreferencesFileManager, true);
@@ -1511,7 +1742,7 @@ public class BrokerOAuth2TokenCache
                                                                     boolean isFoci) {
         final ICacheKeyValueDelegate cacheKeyValueDelegate = new CacheKeyValueDelegate();
         final IAccountCredentialCache accountCredentialCache =
-                new SharedPreferencesAccountCredentialCache(
+                new IndexedAccountCredentialCache(
                         cacheKeyValueDelegate,
                         spfm
                 );
@@ -0,0 +1,272 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.identity.common.internal.dto.CredentialType;
+
+import static com.microsoft.identity.common.internal.cache.CacheKeyValueDelegate.CACHE_VALUE_SEPARATOR;
+
+/**
+ * Tokenizes cache keys produced by {@link CacheKeyValueDelegate#generateCacheKey}.
+ * <p>
+ * Credential keys have the layout
+ * <code>home_account_id-environment-credential_type-client_id-realm-target[-auth_scheme]</code>
+ * while Account keys have the layout <code>home_account_id-environment-realm</code>. As the
+ * home_account_id, environment and client_id may themselves contain the separator, the key is
+ * anchored on its credential_type segment, which is resolved using a lookup table precomputed
+ * from the persistable {@link CredentialType}s.
+ * <p>
+ * Tokenizing does not allocate: a single instance may be reused for every key of a scan. Instances
+ * are not thread-safe.
+ */
+public final class CacheKeyTokenizer {
+
+    private static final char SEPARATOR = CACHE_VALUE_SEPARATOR.charAt(0);
+
+    /**
+     * The CredentialTypes which may appear in a cache key.
+     */
+    private static final CredentialType[] CACHEABLE_CREDENTIAL_TYPES = new CredentialType[]{
+            CredentialType.AccessToken,
+            CredentialType.AccessToken_With_AuthScheme,
+            CredentialType.RefreshToken,
+            CredentialType.IdToken,
+            CredentialType.V1IdToken
+    };
+
+    /**
+     * Cacheable CredentialTypes, indexed by the length of their name.
+     */
+    private static final CredentialType[][] CREDENTIAL_TYPES_BY_NAME_LENGTH;
+
+    static {
+        int maxLength = 0;
+
+        for (final CredentialType type : CACHEABLE_CREDENTIAL_TYPES) {
+            maxLength = Math.max(maxLength, type.name().length());
+        }
+
+        CREDENTIAL_TYPES_BY_NAME_LENGTH = new CredentialType[maxLength + 1][];
+
+        for (final CredentialType type : CACHEABLE_CREDENTIAL_TYPES) {
+            final int length = type.name().length();
+            final CredentialType[] existing = CREDENTIAL_TYPES_BY_NAME_LENGTH[length];
+
+            if (null == existing) {
+                CREDENTIAL_TYPES_BY_NAME_LENGTH[length] = new CredentialType[]{type};
+            } else {
+                final CredentialType[] expanded = new CredentialType[existing.length + 1];
+                System.arraycopy(existing, 0, expanded, 0, existing.length);
+                expanded[existing.length] = type;
+                CREDENTIAL_TYPES_BY_NAME_LENGTH[length] = expanded;
+            }
+        }
+    }
+
+    private String mCacheKey;
+    private CredentialType mCredentialType;
+    private int mCredentialTypeStart;
+    private int mCredentialTypeEnd;
+
+    /**
+     * Tokenizes the supplied cache key, replacing the state of any previously tokenized key.
+     *
+     * @param cacheKey The cache key to tokenize.
+     * @return True if the key belongs to a Credential, false if it belongs to an Account.
+     */
+    public boolean tokenize(@NonNull final String cacheKey) {
+        mCacheKey = cacheKey;
+        mCredentialType = null;
+        mCredentialTypeStart = -1;
+        mCredentialTypeEnd = -1;
+
+        int separator = cacheKey.indexOf(SEPARATOR);
+
+        while (separator >= 0) {
+            final int segmentStart = separator + 1;
+            final int segmentEnd = cacheKey.indexOf(SEPARATOR, segmentStart);
+
+            if (segmentEnd < 0) {
+                // The credential_type segment is never the last one
+                break;
+            }
+
+            final CredentialType type = resolve(cacheKey, segmentStart, segmentEnd);
+
+            if (null != type) {
+                mCredentialType = type;
+                mCredentialTypeStart = segmentStart;
+                mCredentialTypeEnd = segmentEnd;
+                return true;
+            }
+
+            separator = segmentEnd;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the most recently tokenized cache key.
+     *
+     * @return The cache key.
+     */
+    public String getCacheKey() {
+        return mCacheKey;
+    }
+
+    /**
+     * Returns the CredentialType of the most recently tokenized cache key.
+     *
+     * @return The CredentialType or null, if the key belongs to an Account.
+     */
+    @Nullable
+    public CredentialType getCredentialType() {
+        return mCredentialType;
+    }
+
+    /**
+     * Returns true if the most recently tokenized cache key belongs to a Credential.
+     *
+     * @return True if the key belongs to a Credential, false if it belongs to an Account.
+     */
+    public boolean isCredential() {
+        return null != mCredentialType;
+    }
+
+    /**
+     * Tests the home_account_id segment of the most recently tokenized Credential key.
+     *
+     * @param homeAccountId The lowercased, trimmed home_account_id to compare.
+     * @return True if the key's home_account_id may equal the supplied value.
+     */
+    public boolean homeAccountIdMatches(@NonNull final String homeAccountId) {
+        final int length = homeAccountId.length();
+
+        // The home_account_id is followed by at least the separator preceding the environment
+        return isCredential()
+                && length + 1 < mCredentialTypeStart
+                && mCacheKey.charAt(length) == SEPARATOR
+                && mCacheKey.regionMatches(true, 0, homeAccountId, 0, length);
+    }
+
+    /**
+     * Tests the environment segment of the most recently tokenized Credential key.
+     *
+     * @param environment The lowercased, trimmed environment to compare.
+     * @return True if the key's environment may equal the supplied value.
+     */
+    public boolean environmentMatches(@NonNull final String environment) {
+        if (!isCredential()) {
+            return false;
+        }
+
+        final int length = environment.length();
+        final int environmentStart = mCredentialTypeStart - 1 - length;
+
+        return environmentStart > 0
+                && mCacheKey.charAt(environmentStart - 1) == SEPARATOR
+                && mCacheKey.regionMatches(true, environmentStart, environment, 0, length);
+    }
+
+    /**
+     * Tests the client_id segment of the most recently tokenized Credential key. Note that keys
+     * of family RefreshTokens hold the family id in place of the client_id.
+     *
+     * @param clientId The lowercased, trimmed client_id to compare.
+     * @return True if the key's client_id may equal the supplied value.
+     */
+    public boolean clientIdMatches(@NonNull final String clientId) {
+        if (!isCredential()) {
+            return false;
+        }
+
+        final int length = clientId.length();
+        final int clientIdStart = mCredentialTypeEnd + 1;
+        final int clientIdEnd = clientIdStart + length;
+
+        // The client_id is always followed by the realm segment
+        return clientIdEnd < mCacheKey.length()
+                && mCacheKey.charAt(clientIdEnd) == SEPARATOR
+                && mCacheKey.regionMatches(true, clientIdStart, clientId, 0, length);
+    }
+
+    /**
+     * Returns the CredentialType encoded in the supplied cache key.
+     *
+     * @param cacheKey The cache key to inspect.
+     * @return The CredentialType or null, if the key belongs to an Account.
+     */
+    @Nullable
+    public static CredentialType getCredentialType(@NonNull final String cacheKey) {
+        int separator = cacheKey.indexOf(SEPARATOR);
+
+        while (separator >= 0) {
+            final int segmentStart = separator + 1;
+            final int segmentEnd = cacheKey.indexOf(SEPARATOR, segmentStart);
+
+            if (segmentEnd < 0) {
+                break;
+            }
+
+            final CredentialType type = resolve(cacheKey, segmentStart, segmentEnd);
+
+            if (null != type) {
+                return type;
+            }
+
+            separator = segmentEnd;
+        }
+
+        return null;
+    }
+
+    /**
+     * Resolves the CredentialType named (case-insensitively) by the supplied region of the key.
+     */
+    @Nullable
+    private static CredentialType resolve(@NonNull final String cacheKey,
+                                          final int start,
+                                          final int end) {
+        final int length = end - start;
+
+        if (length >= CREDENTIAL_TYPES_BY_NAME_LENGTH.length) {
+            return null;
+        }
+
+        final CredentialType[] candidates = CREDENTIAL_TYPES_BY_NAME_LENGTH[length];
+
+        if (null != candidates) {
+            for (final CredentialType candidate : candidates) {
+                if (cacheKey.regionMatches(true, start, candidate.name(), 0, length)) {
+                    return candidate;
+                }
+            }
+        }
+
+        return null;
+    }
+}
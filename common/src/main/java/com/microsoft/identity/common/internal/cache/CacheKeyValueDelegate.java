@@ -22,14 +22,19 @@
 // THE SOFTWARE.
 package com.microsoft.identity.common.internal.cache;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonWriter;
 import com.microsoft.identity.common.adal.internal.util.StringExtensions;
 import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
 import com.microsoft.identity.common.internal.dto.AccountCredentialBase;
@@ -40,15 +45,19 @@ import com.microsoft.identity.common.internal.dto.RefreshTokenRecord;
 import com.microsoft.identity.common.internal.logging.Logger;
 import com.microsoft.identity.common.internal.providers.oauth2.TokenRequest;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.microsoft.identity.common.internal.cache.CacheKeyValueDelegate.CacheKeyReplacements.AUTH_SCHEME;
 import static com.microsoft.identity.common.internal.cache.CacheKeyValueDelegate.CacheKeyReplacements.CLIENT_ID;
@@ -71,13 +80,35 @@ public class CacheKeyValueDelegate implements ICacheKeyValueDelegate {
     public static final String CACHE_VALUE_SEPARATOR = "-";
     private static final String FOCI_PREFIX = "foci-";
 
+    /**
+     * Expected JSON values of each inspected Class, see {@link #getExpectedJsonFields(Class)}.
+     */
+    private static final Map<Class<?>, Set<String>> sExpectedJsonFields = new ConcurrentHashMap<>();
+
+    /**
+     * The largest serialization buffer retained for reuse by a thread, in chars.
+     */
+    private static final int MAX_RETAINED_BUFFER_CAPACITY = 16 * 1024;
+
+    /**
+     * Per-thread buffer into which cache values are serialized.
+     */
+    private static final ThreadLocal<StringWriter> sCacheValueBuffer = new ThreadLocal<StringWriter>() {
+        @Override
+        protected StringWriter initialValue() {
+            return new StringWriter();
+        }
+    };
+
     private final Gson mGson;
 
     /**
      * Default constructor of CacheKeyValueDelegate.
      */
     public CacheKeyValueDelegate() {
-        mGson = new Gson();
+        mGson = new GsonBuilder()
+                .registerTypeAdapterFactory(new AccountCredentialTypeAdapterFactory())
+                .create();
         Logger.verbose(TAG, "Init: " + TAG);
     }
 
@@ -112,6 +143,11 @@ public class CacheKeyValueDelegate implements ICacheKeyValueDelegate {
     }
 
     private String generateCacheValueInternal(final Object baseObject) {
+        if (AccountCredentialTypeAdapterFactory.supports(baseObject.getClass())) {
+            // The registered adapter writes the additionalFields itself, in a single pass
+            return writeCacheValue(baseObject);
+        }
+
         JsonElement outboundElement = mGson.toJsonTree(baseObject);
         JsonObject outboundObject = outboundElement.getAsJsonObject();
 
@@ -129,6 +165,31 @@ public class CacheKeyValueDelegate implements ICacheKeyValueDelegate {
         return json;
     }
 
+    @SuppressWarnings("unchecked")
+    private String writeCacheValue(@NonNull final Object baseObject) {
+        final StringWriter buffer = sCacheValueBuffer.get();
+        buffer.getBuffer().setLength(0);
+
+        try {
+            final JsonWriter jsonWriter = mGson.newJsonWriter(buffer);
+            jsonWriter.setLenient(true);
+            ((TypeAdapter<Object>) mGson.getAdapter(baseObject.getClass())).write(jsonWriter, baseObject);
+            jsonWriter.flush();
+        } catch (final IOException e) {
+            // Writing to a StringWriter does not perform I/O
+            throw new JsonIOException(e);
+        }
+
+        final String json = buffer.toString();
+
+        if (buffer.getBuffer().capacity() > MAX_RETAINED_BUFFER_CAPACITY) {
+            // Don't hold onto the memory of an unusually large value
+            sCacheValueBuffer.remove();
+        }
+
+        return json;
+    }
+
     @Override
     public String generateCacheValue(AccountRecord account) {
         final String result = generateCacheValueInternal(account);
@@ -201,7 +262,12 @@ public class CacheKeyValueDelegate implements ICacheKeyValueDelegate {
         try {
             final T resultObject = (T) mGson.fromJson(string, t);
 
-            if (!StringExtensions.isNullOrBlank(string)) {
+            if (null != resultObject
+                    && !AccountCredentialTypeAdapterFactory.supports(t)
+                    && !StringExtensions.isNullOrBlank(string)) {
+                // The reflective adapter dropped any unexpected fields: recover them from a
+                // second parse. Supported types collect them while being deserialized.
+
                 // Turn the incoming String into a JSONObject
                 final JsonObject incomingJson = new JsonParser().parse(string).getAsJsonObject();
 
@@ -237,19 +303,26 @@ public class CacheKeyValueDelegate implements ICacheKeyValueDelegate {
 
     /**
      * For the supplied Class, return a Set of expected JSON values as dictated by @SerializedName
-     * declared on its Fields.
+     * declared on its Fields. The Set is computed once per Class.
      *
      * @param clazz The Class to inspect.
      * @return A Set of expected JSON values, as Strings.
      */
     private static Set<String> getExpectedJsonFields(final Class<? extends AccountCredentialBase> clazz) {
-        final Set<String> serializedNames = new HashSet<>();
-        final List<Field> fieldsToInspect = getFieldsUpTo(clazz, AccountCredentialBase.class);
-        final List<Field> annotatedFields = getSerializedNameAnnotatedFields(fieldsToInspect);
+        Set<String> serializedNames = sExpectedJsonFields.get(clazz);
+
+        if (null == serializedNames) {
+            serializedNames = new HashSet<>();
+            final List<Field> fieldsToInspect = getFieldsUpTo(clazz, AccountCredentialBase.class);
+            final List<Field> annotatedFields = getSerializedNameAnnotatedFields(fieldsToInspect);
+
+            for (final Field annotatedField : annotatedFields) {
+                final SerializedName serializedName = annotatedField.getAnnotation(SerializedName.class);
+                serializedNames.add(serializedName.value());
+            }
 
-        for (final Field annotatedField : annotatedFields) {
-            final SerializedName serializedName = annotatedField.getAnnotation(SerializedName.class);
-            serializedNames.add(serializedName.value());
+            serializedNames = Collections.unmodifiableSet(serializedNames);
+            sExpectedJsonFields.put(clazz, serializedNames);
         }
 
         return serializedNames;
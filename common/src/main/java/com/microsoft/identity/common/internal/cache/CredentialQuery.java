@@ -0,0 +1,163 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.identity.common.adal.internal.util.StringExtensions;
+import com.microsoft.identity.common.internal.dto.CredentialType;
+
+import java.util.Locale;
+
+/**
+ * The criteria of a Credential lookup, as accepted by
+ * {@link IAccountCredentialCache#getCredentialsFilteredBy(CredentialQuery)}.
+ * <p>
+ * As an {@link ICacheKeyFilter}, a query rejects the cache keys of Credentials which cannot match
+ * its home_account_id, environment, credential_type or client_id, so that they need not be
+ * decrypted or deserialized. Accepted keys are only candidates: the loaded Credentials must still
+ * be matched against every criterion. Instances are not thread-safe.
+ */
+public final class CredentialQuery implements ICacheKeyFilter {
+
+    private final String mHomeAccountId;
+    private final String mEnvironment;
+    private final CredentialType mCredentialType;
+    private final String mClientId;
+    private final String mRealm;
+    private final String mTarget;
+    private final String mAuthScheme;
+
+    // The criteria as they appear in cache keys, or null if not matched on
+    private final String mHomeAccountIdKeyComponent;
+    private final String mEnvironmentKeyComponent;
+    private final String mClientIdKeyComponent;
+
+    private final CacheKeyTokenizer mTokenizer = new CacheKeyTokenizer();
+
+    /**
+     * Constructs a new CredentialQuery. Null or blank criteria are not matched on.
+     *
+     * @param homeAccountId  The sought home_account_id.
+     * @param environment    The sought environment.
+     * @param credentialType The sought CredentialType.
+     * @param clientId       The sought client_id.
+     * @param realm          The sought realm.
+     * @param target         The sought target.
+     * @param authScheme     The sought auth scheme.
+     */
+    public CredentialQuery(@Nullable final String homeAccountId,
+                           @Nullable final String environment,
+                           @Nullable final CredentialType credentialType,
+                           @Nullable final String clientId,
+                           @Nullable final String realm,
+                           @Nullable final String target,
+                           @Nullable final String authScheme) {
+        mHomeAccountId = homeAccountId;
+        mEnvironment = environment;
+        mCredentialType = credentialType;
+        mClientId = clientId;
+        mRealm = realm;
+        mTarget = target;
+        mAuthScheme = authScheme;
+
+        mHomeAccountIdKeyComponent = toKeyComponent(homeAccountId);
+        mEnvironmentKeyComponent = toKeyComponent(environment);
+        mClientIdKeyComponent = toKeyComponent(clientId);
+    }
+
+    @Nullable
+    public String getHomeAccountId() {
+        return mHomeAccountId;
+    }
+
+    @Nullable
+    public String getEnvironment() {
+        return mEnvironment;
+    }
+
+    @Nullable
+    public CredentialType getCredentialType() {
+        return mCredentialType;
+    }
+
+    @Nullable
+    public String getClientId() {
+        return mClientId;
+    }
+
+    @Nullable
+    public String getRealm() {
+        return mRealm;
+    }
+
+    @Nullable
+    public String getTarget() {
+        return mTarget;
+    }
+
+    @Nullable
+    public String getAuthScheme() {
+        return mAuthScheme;
+    }
+
+    @Override
+    public boolean accept(@NonNull final String cacheKey) {
+        if (!mTokenizer.tokenize(cacheKey)) {
+            // Not a Credential
+            return false;
+        }
+
+        final CredentialType keyCredentialType = mTokenizer.getCredentialType();
+
+        if (null != mCredentialType && mCredentialType != keyCredentialType) {
+            return false;
+        }
+
+        if (null != mHomeAccountIdKeyComponent
+                && !mTokenizer.homeAccountIdMatches(mHomeAccountIdKeyComponent)) {
+            return false;
+        }
+
+        if (null != mEnvironmentKeyComponent
+                && !mTokenizer.environmentMatches(mEnvironmentKeyComponent)) {
+            return false;
+        }
+
+        // Family RefreshTokens are keyed by family id, so their client_id is only known once loaded
+        return null == mClientIdKeyComponent
+                || CredentialType.RefreshToken == keyCredentialType
+                || mTokenizer.clientIdMatches(mClientIdKeyComponent);
+    }
+
+    /**
+     * Normalizes a criterion the way {@link CacheKeyValueDelegate} does when generating keys.
+     */
+    @Nullable
+    private static String toKeyComponent(@Nullable final String criterion) {
+        return StringExtensions.isNullOrBlank(criterion)
+                ? null
+                : criterion.toLowerCase(Locale.US).trim();
+    }
+}
@@ -0,0 +1,130 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache;
+
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Size-bounded, in-memory cache of decrypted values keyed by their encrypted blob.
+ * <p>
+ * Used by {@link SharedPreferencesFileManager} to avoid decrypting (and MAC-verifying) the same
+ * blob more than once. Because an encrypted blob always decrypts to the same plaintext, entries
+ * never become incorrect; they are evicted when the backing entry is overwritten or removed only
+ * to release memory sooner.
+ * <p>
+ * Note that this cache holds plaintext values in memory and is therefore opt-in.
+ */
+public class DecryptedValueCache {
+
+    /**
+     * The default maximum number of entries held.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final LruCache<String, String> mCache;
+
+    /**
+     * Constructs a new DecryptedValueCache holding at most {@link #DEFAULT_MAX_ENTRIES} entries.
+     */
+    public DecryptedValueCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Constructs a new DecryptedValueCache.
+     *
+     * @param maxEntries The maximum number of decrypted values to hold.
+     */
+    public DecryptedValueCache(final int maxEntries) {
+        mCache = new LruCache<>(maxEntries);
+    }
+
+    /**
+     * Gets the decrypted value of the supplied blob, if cached.
+     *
+     * @param encryptedBlob The encrypted blob.
+     * @return The decrypted value or null if it is not cached.
+     */
+    @Nullable
+    public String get(@NonNull final String encryptedBlob) {
+        return mCache.get(encryptedBlob);
+    }
+
+    /**
+     * Caches the decrypted value of the supplied blob.
+     *
+     * @param encryptedBlob  The encrypted blob.
+     * @param decryptedValue Its decrypted value.
+     */
+    public void put(@NonNull final String encryptedBlob, @NonNull final String decryptedValue) {
+        mCache.put(encryptedBlob, decryptedValue);
+    }
+
+    /**
+     * Evicts the supplied blob, if cached.
+     *
+     * @param encryptedBlob The encrypted blob to evict.
+     */
+    public void evict(@Nullable final String encryptedBlob) {
+        if (null != encryptedBlob) {
+            mCache.remove(encryptedBlob);
+        }
+    }
+
+    /**
+     * Evicts all entries.
+     */
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Returns the number of lookups which were served from this cache.
+     *
+     * @return The hit count.
+     */
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    /**
+     * Returns the number of lookups which required a decryption.
+     *
+     * @return The miss count.
+     */
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    /**
+     * Returns the number of entries currently held.
+     *
+     * @return The size of this cache.
+     */
+    public int getSize() {
+        return mCache.size();
+    }
+}
@@ -0,0 +1,748 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.identity.common.adal.internal.AuthenticationConstants;
+import com.microsoft.identity.common.adal.internal.cache.IStorageHelper;
+import com.microsoft.identity.common.internal.logging.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An {@link ISharedPreferencesFileManager} which keeps all of its entries in one encrypted file,
+ * rather than in a {@link SharedPreferences} XML file holding one encrypted value per entry.
+ * <p>
+ * The file is a fixed header followed by the length-prefixed serialization of every entry,
+ * encrypted as a whole. It is read and decrypted once per process, after which reads are served
+ * from memory. Every commit re-encrypts the entries once and replaces the file atomically,
+ * by writing a temporary file and renaming it over the old one; group related writes with
+ * {@link #beginBatch()} so that they cost a single write. A write which cannot be persisted
+ * leaves the cache unchanged and throws an {@link IllegalStateException}.
+ * <p>
+ * A file which cannot be read or decrypted, e.g. because KeyStore is momentarily unavailable, is
+ * kept: reads see an empty cache and writes fail until a later access reads it, or until the cache
+ * is cleared. Only a file which is not in the expected format is set aside, as
+ * {@link #QUARANTINE_FILE_EXTENSION}, and replaced by an empty cache.
+ * <p>
+ * All instances for the same file in a process share its contents, and must be constructed with
+ * equivalent {@link IStorageHelper}s.
+ */
+public class EncryptedCacheFileManager implements ISharedPreferencesFileManager {
+
+    private static final String TAG = EncryptedCacheFileManager.class.getSimpleName();
+
+    /**
+     * Appended to the name of the cache to get the name of its file.
+     */
+    public static final String FILE_EXTENSION = ".bin";
+
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+
+    /**
+     * Appended to the name of a malformed cache file when it is set aside.
+     */
+    public static final String QUARANTINE_FILE_EXTENSION = ".corrupt";
+
+    /**
+     * "MSCF", identifies a cache file.
+     */
+    private static final int MAGIC = 0x4D534346;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Magic, format version and payload length.
+     */
+    private static final int HEADER_LENGTH = 12;
+
+    private static final char LENGTH_SEPARATOR = ':';
+
+    private static final Charset UTF8 = Charset.forName(AuthenticationConstants.ENCODING_UTF8);
+
+    /**
+     * File contents by path, shared by every instance in this process.
+     */
+    private static final ConcurrentHashMap<String, CacheFile> sCacheFiles =
+            new ConcurrentHashMap<>();
+
+    private final String mName;
+    private final CacheFile mCacheFile;
+    private final IStorageHelper mStorageHelper;
+
+    /**
+     * The write batch (if any) opened by the current thread.
+     */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    /**
+     * The in-memory contents of a cache file.
+     */
+    private static class CacheFile {
+
+        private final File mFile;
+
+        private final AtomicLong mGeneration;
+
+        private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+        /**
+         * Guarded by mLock. Once loaded, it is only replaced by a copy which has been persisted.
+         */
+        private Map<String, String> mEntries = new HashMap<>();
+
+        private volatile boolean mLoaded;
+
+        CacheFile(@NonNull final File file) {
+            mFile = file;
+            mGeneration = SharedPreferencesFileManager.generationOf(file.getName());
+        }
+    }
+
+    /**
+     * Thrown when a cache file is not in the expected format, i.e. it is truncated or corrupted.
+     */
+    private static class MalformedCacheFileException extends Exception {
+
+        MalformedCacheFileException(@NonNull final String message) {
+            super(message);
+        }
+
+        MalformedCacheFileException(@NonNull final String message,
+                                    @NonNull final Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Uncommitted writes accumulated between {@link #beginBatch()} and {@link #commitBatch()}.
+     */
+    private static class Batch {
+
+        /**
+         * Values written in this batch; a null value denotes a removal.
+         */
+        private final Map<String, String> mPendingValues = new HashMap<>();
+
+        private int mDepth;
+
+        /**
+         * True once any level of this batch was aborted; it is then discarded when closed.
+         */
+        private boolean mAborted;
+    }
+
+    /**
+     * Constructs an instance of EncryptedCacheFileManager which stores its entries unencrypted.
+     *
+     * @param context Interface to global information about an application environment.
+     * @param name    The name of the cache. Its file will be created if it does not exist.
+     */
+    public EncryptedCacheFileManager(@NonNull final Context context,
+                                     @NonNull final String name) {
+        this(context, name, null);
+    }
+
+    /**
+     * Constructs an instance of EncryptedCacheFileManager.
+     *
+     * @param context       Interface to global information about an application environment.
+     * @param name          The name of the cache. Its file will be created if it does not exist.
+     * @param storageHelper The {@link IStorageHelper} to handle encryption/decryption of the file.
+     */
+    public EncryptedCacheFileManager(@NonNull final Context context,
+                                     @NonNull final String name,
+                                     @Nullable final IStorageHelper storageHelper) {
+        Logger.verbose(TAG, "Init: " + TAG);
+        mName = name;
+        mStorageHelper = storageHelper;
+
+        final File file = new File(context.getFilesDir(), name + FILE_EXTENSION);
+        final CacheFile cacheFile = new CacheFile(file);
+        final CacheFile existing = sCacheFiles.putIfAbsent(file.getAbsolutePath(), cacheFile);
+
+        mCacheFile = null == existing ? cacheFile : existing;
+    }
+
+    /**
+     * Moves the entries of an existing {@link SharedPreferences}-backed cache into this file, then
+     * clears the old cache. This only happens once: if this file already exists, the old cache is
+     * left untouched.
+     *
+     * @param legacyFileManager The cache to migrate.
+     * @return True, if entries were migrated by this call.
+     */
+    public boolean migrateFrom(@NonNull final ISharedPreferencesFileManager legacyFileManager) {
+        final String methodName = ":migrateFrom";
+        final int entryCount;
+
+        mCacheFile.mLock.writeLock().lock();
+
+        try {
+            if (mCacheFile.mFile.exists()) {
+                return false;
+            }
+
+            final Map<String, String> legacyEntries = legacyFileManager.getAll();
+            final Map<String, String> entries = new HashMap<>(legacyEntries);
+
+            // Anything already written through this instance is newer
+            entries.putAll(mCacheFile.mEntries);
+
+            if (!persist(entries)) {
+                // Keep the old cache; we'll try again next time.
+                return false;
+            }
+
+            swapEntries(entries);
+            entryCount = legacyEntries.size();
+        } finally {
+            mCacheFile.mLock.writeLock().unlock();
+        }
+
+        legacyFileManager.clear();
+
+        Logger.info(
+                TAG + methodName,
+                "Migrated [" + entryCount + "] entries from "
+                        + legacyFileManager.getSharedPreferencesFileName()
+        );
+
+        return true;
+    }
+
+    @Override
+    public void putString(final String key, final String value) {
+        final Batch batch = mBatch.get();
+
+        if (null == batch) {
+            commit(Collections.singletonMap(key, value));
+        } else {
+            batch.mPendingValues.put(key, value);
+        }
+    }
+
+    @Override
+    @Nullable
+    public String getString(final String key) {
+        final Batch batch = mBatch.get();
+
+        if (null != batch && batch.mPendingValues.containsKey(key)) {
+            return batch.mPendingValues.get(key);
+        }
+
+        ensureLoaded();
+        mCacheFile.mLock.readLock().lock();
+
+        try {
+            return mCacheFile.mEntries.get(key);
+        } finally {
+            mCacheFile.mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void putLong(final String key, final long value) {
+        putString(key, String.valueOf(value));
+    }
+
+    @Override
+    public long getLong(final String key) {
+        final String result = getString(key);
+
+        if (!TextUtils.isEmpty(result)) {
+            return Long.parseLong(result);
+        }
+
+        return 0;
+    }
+
+    @Override
+    public String getSharedPreferencesFileName() {
+        return mName;
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        return getAllInternal(null);
+    }
+
+    @Override
+    public Map<String, String> getAll(@NonNull final ICacheKeyFilter filter) {
+        return getAllInternal(filter);
+    }
+
+    private Map<String, String> getAllInternal(@Nullable final ICacheKeyFilter filter) {
+        final Map<String, String> entries = new HashMap<>();
+
+        ensureLoaded();
+        mCacheFile.mLock.readLock().lock();
+
+        try {
+            for (final Map.Entry<String, String> entry : mCacheFile.mEntries.entrySet()) {
+                if (null == filter || filter.accept(entry.getKey())) {
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            mCacheFile.mLock.readLock().unlock();
+        }
+
+        final Batch batch = mBatch.get();
+
+        if (null != batch) {
+            // Overlay the writes of this thread's open batch
+            for (final Map.Entry<String, String> pendingEntry : batch.mPendingValues.entrySet()) {
+                if (null == pendingEntry.getValue()) {
+                    entries.remove(pendingEntry.getKey());
+                } else if (null == filter || filter.accept(pendingEntry.getKey())) {
+                    entries.put(pendingEntry.getKey(), pendingEntry.getValue());
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return !TextUtils.isEmpty(getString(key));
+    }
+
+    @Override
+    public void clear() {
+        final Batch batch = mBatch.get();
+
+        if (null != batch) {
+            // Clearing supersedes anything written so far in this batch; start over.
+            batch.mPendingValues.clear();
+        }
+
+        mCacheFile.mLock.writeLock().lock();
+
+        try {
+            // The (empty) file is kept, it records that migration has happened.
+            persistOrThrow(new HashMap<String, String>());
+        } finally {
+            mCacheFile.mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(final String key) {
+        Logger.info(
+                TAG,
+                "Removing cache key"
+        );
+
+        putString(key, null);
+
+        Logger.infoPII(
+                TAG,
+                "Removed cache key ["
+                        + key
+                        + "]"
+        );
+    }
+
+    @Override
+    public void beginBatch() {
+        Batch batch = mBatch.get();
+
+        if (null == batch) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+
+        batch.mDepth++;
+    }
+
+    @Override
+    public void commitBatch() {
+        closeBatch(false);
+    }
+
+    @Override
+    public void abortBatch() {
+        closeBatch(true);
+    }
+
+    private void closeBatch(final boolean abort) {
+        final String methodName = ":closeBatch";
+        final Batch batch = mBatch.get();
+
+        if (null == batch) {
+            throw new IllegalStateException("Batch closed without a matching beginBatch()");
+        }
+
+        batch.mAborted |= abort;
+
+        if (--batch.mDepth > 0) {
+            // Nested batch, the outermost one flushes.
+            return;
+        }
+
+        mBatch.remove();
+
+        if (batch.mAborted) {
+            Logger.warn(
+                    TAG + methodName,
+                    "Discarded [" + batch.mPendingValues.size() + "] batched writes."
+            );
+        } else if (!batch.mPendingValues.isEmpty()) {
+            commit(batch.mPendingValues);
+
+            Logger.verbose(
+                    TAG + methodName,
+                    "Committed [" + batch.mPendingValues.size() + "] batched writes."
+            );
+        }
+    }
+
+    @Override
+    public long getGeneration() {
+        return mCacheFile.mGeneration.get();
+    }
+
+    /**
+     * Applies the supplied writes to a copy of the entries and persists it. The cache only changes
+     * if the copy was written.
+     *
+     * @param changes The values to write; a null value denotes a removal.
+     * @throws IllegalStateException if the cache file could not be written.
+     */
+    private void commit(@NonNull final Map<String, String> changes) {
+        if (!ensureLoaded()) {
+            // Don't replace entries we could not read
+            throw new IllegalStateException("Failed to read cache file [" + mName + "]");
+        }
+
+        mCacheFile.mLock.writeLock().lock();
+
+        try {
+            final Map<String, String> entries = new HashMap<>(mCacheFile.mEntries);
+
+            for (final Map.Entry<String, String> change : changes.entrySet()) {
+                if (null == change.getValue()) {
+                    entries.remove(change.getKey());
+                } else {
+                    entries.put(change.getKey(), change.getValue());
+                }
+            }
+
+            persistOrThrow(entries);
+        } finally {
+            mCacheFile.mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Persists the supplied entries and makes them the contents of the cache. Must be called with
+     * the write lock held.
+     *
+     * @param entries The new contents of the cache.
+     * @throws IllegalStateException if the cache file could not be written; the cache is unchanged.
+     */
+    private void persistOrThrow(@NonNull final Map<String, String> entries) {
+        if (!persist(entries)) {
+            throw new IllegalStateException("Failed to write cache file [" + mName + "]");
+        }
+
+        swapEntries(entries);
+    }
+
+    /**
+     * Makes the supplied (persisted) entries the contents of the cache. Must be called with the
+     * write lock held.
+     */
+    private void swapEntries(@NonNull final Map<String, String> entries) {
+        mCacheFile.mEntries = entries;
+        mCacheFile.mLoaded = true;
+        SharedPreferencesFileManager.advanceGeneration(mCacheFile.mGeneration);
+    }
+
+    /**
+     * Loads the cache file, unless it already is.
+     *
+     * @return False, if the file exists but could not be read. It is kept, and read again on the
+     * next access.
+     */
+    private boolean ensureLoaded() {
+        final String methodName = ":ensureLoaded";
+
+        if (mCacheFile.mLoaded) {
+            return true;
+        }
+
+        mCacheFile.mLock.writeLock().lock();
+
+        try {
+            if (!mCacheFile.mLoaded) {
+                mCacheFile.mEntries.putAll(read());
+                mCacheFile.mLoaded = true;
+            }
+
+            return true;
+        } catch (final IOException | GeneralSecurityException e) {
+            Logger.error(
+                    TAG + methodName,
+                    "Failed to read cache file. "
+                            + "This usually signals an issue with KeyStore or the provided SecretKeys.",
+                    e
+            );
+
+            return false;
+        } finally {
+            mCacheFile.mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads and decrypts the cache file. A file which is not in the expected format is set aside,
+     * leaving the cache empty.
+     *
+     * @return The entries of the file; empty if it does not exist or is malformed.
+     * @throws IOException              If the file could not be read.
+     * @throws GeneralSecurityException If the file could not be decrypted.
+     */
+    @NonNull
+    private Map<String, String> read() throws IOException, GeneralSecurityException {
+        final String methodName = ":read";
+        final File file = mCacheFile.mFile;
+
+        if (!file.exists()) {
+            return new HashMap<>();
+        }
+
+        try {
+            String serialized = new String(readPayload(file), UTF8);
+
+            if (null != mStorageHelper && !serialized.isEmpty()) {
+                serialized = mStorageHelper.decrypt(serialized);
+            }
+
+            final Map<String, String> entries;
+
+            try {
+                entries = deserialize(serialized);
+            } catch (final IllegalArgumentException | IndexOutOfBoundsException e) {
+                // Decryption authenticated the payload, so it was written this way
+                throw new MalformedCacheFileException("Cache file payload is malformed.", e);
+            }
+
+            Logger.verbose(
+                    TAG + methodName,
+                    "Loaded [" + entries.size() + "] entries."
+            );
+
+            return entries;
+        } catch (final MalformedCacheFileException e) {
+            Logger.error(TAG + methodName, "Setting aside malformed cache file.", e);
+            quarantine(file);
+
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * Moves a malformed cache file out of the way, replacing any file set aside earlier.
+     */
+    private static void quarantine(@NonNull final File file) {
+        final String methodName = ":quarantine";
+        final File quarantinedFile = new File(file.getPath() + QUARANTINE_FILE_EXTENSION);
+
+        if (quarantinedFile.exists() && !quarantinedFile.delete()) {
+            Logger.warn(TAG + methodName, "Failed to delete previously quarantined cache file.");
+        }
+
+        if (!file.renameTo(quarantinedFile) && !file.delete()) {
+            Logger.warn(TAG + methodName, "Failed to remove malformed cache file.");
+        }
+    }
+
+    @NonNull
+    private static byte[] readPayload(@NonNull final File file)
+            throws IOException, MalformedCacheFileException {
+        final long size = file.length();
+
+        if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+            throw new MalformedCacheFileException("Cache file has an invalid length: " + size);
+        }
+
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file))
+        );
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new MalformedCacheFileException("Unrecognized cache file format.");
+            }
+
+            final int payloadLength = in.readInt();
+
+            if (payloadLength < 0 || payloadLength > size - HEADER_LENGTH) {
+                throw new MalformedCacheFileException("Cache file is truncated.");
+            }
+
+            final byte[] payload = new byte[payloadLength];
+            in.readFully(payload);
+
+            return payload;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Encrypts the supplied entries and atomically replaces the cache file with them.
+     *
+     * @return True, if the file was written.
+     */
+    private boolean persist(@NonNull final Map<String, String> entries) {
+        final String methodName = ":persist";
+        final byte[] payload;
+
+        try {
+            final String serialized = serialize(entries);
+            payload = (null == mStorageHelper || serialized.isEmpty()
+                    ? serialized
+                    : mStorageHelper.encrypt(serialized)
+            ).getBytes(UTF8);
+        } catch (final GeneralSecurityException | IOException e) {
+            // Don't log the error as it may contain a token
+            Logger.error(TAG + methodName, "Failed to encrypt cache file.", null);
+            return false;
+        }
+
+        final File file = mCacheFile.mFile;
+        final File tempFile = new File(file.getPath() + TEMP_FILE_EXTENSION);
+
+        try {
+            final FileOutputStream out = new FileOutputStream(tempFile);
+
+            try {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(payload.length);
+                out.write(header.array());
+                out.write(payload);
+                out.flush();
+                // The rename must not become visible before the data it points to
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to replace cache file.");
+            }
+
+            return true;
+        } catch (final IOException e) {
+            Logger.error(TAG + methodName, "Failed to write cache file.", e);
+
+            if (tempFile.exists() && !tempFile.delete()) {
+                Logger.warn(TAG + methodName, "Failed to delete temporary cache file.");
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Serializes the supplied entries as a sequence of length-prefixed keys and values, e.g.
+     * <code>3:key5:value</code>.
+     */
+    @NonNull
+    static String serialize(@NonNull final Map<String, String> entries) {
+        int capacity = 0;
+
+        for (final Map.Entry<String, String> entry : entries.entrySet()) {
+            capacity += entry.getKey().length() + entry.getValue().length() + 16;
+        }
+
+        final StringBuilder builder = new StringBuilder(capacity);
+
+        for (final Map.Entry<String, String> entry : entries.entrySet()) {
+            appendField(builder, entry.getKey());
+            appendField(builder, entry.getValue());
+        }
+
+        return builder.toString();
+    }
+
+    private static void appendField(@NonNull final StringBuilder builder,
+                                    @NonNull final String field) {
+        builder.append(field.length()).append(LENGTH_SEPARATOR).append(field);
+    }
+
+    /**
+     * Parses the output of {@link #serialize(Map)}.
+     *
+     * @throws IllegalArgumentException  If a length is malformed.
+     * @throws IndexOutOfBoundsException If the input is truncated.
+     */
+    @NonNull
+    static Map<String, String> deserialize(@NonNull final String serialized) {
+        final Map<String, String> entries = new HashMap<>();
+        int position = 0;
+
+        while (position < serialized.length()) {
+            int separator = serialized.indexOf(LENGTH_SEPARATOR, position);
+            final int keyStart = separator + 1;
+            final int keyEnd = keyStart + Integer.parseInt(serialized.substring(position, separator));
+
+            separator = serialized.indexOf(LENGTH_SEPARATOR, keyEnd);
+            final int valueStart = separator + 1;
+            final int valueEnd = valueStart + Integer.parseInt(serialized.substring(keyEnd, separator));
+
+            entries.put(
+                    serialized.substring(keyStart, keyEnd),
+                    serialized.substring(valueStart, valueEnd)
+            );
+
+            position = valueEnd;
+        }
+
+        return entries;
+    }
+}
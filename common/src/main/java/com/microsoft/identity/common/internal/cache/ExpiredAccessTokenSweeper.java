@@ -0,0 +1,166 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.identity.common.internal.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes AccessTokens which expired more than a retention period ago from a set of token caches,
+ * either on demand via {@link #sweep()} or periodically once {@link #start(long)} is called.
+ * <p>
+ * Expired AccessTokens are otherwise only removed when overwritten, so without sweeping, caches
+ * grow for as long as an app requests tokens for scopes or tenants it no longer uses. The
+ * retention period keeps recently expired AccessTokens available for extended-lifetime use.
+ * <p>
+ * Sweeps run on a single background thread shared by every sweeper in this process.
+ */
+public class ExpiredAccessTokenSweeper {
+
+    private static final String TAG = ExpiredAccessTokenSweeper.class.getSimpleName();
+
+    /**
+     * The default interval between sweeps.
+     */
+    public static final long DEFAULT_SWEEP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(12);
+
+    /**
+     * The default time for which AccessTokens are kept after they expire.
+     */
+    public static final long DEFAULT_RETENTION_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    private static final ScheduledExecutorService sSweepExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final List<IRemoveExpiredAccessTokens> mCaches;
+    private final long mRetentionSeconds;
+
+    /**
+     * The pending periodic sweep, or null if not started. Guarded by this.
+     */
+    private ScheduledFuture<?> mScheduledSweep;
+
+    /**
+     * Constructs a new ExpiredAccessTokenSweeper which keeps AccessTokens for
+     * {@link #DEFAULT_RETENTION_SECONDS} after they expire.
+     *
+     * @param caches The caches to sweep.
+     */
+    public ExpiredAccessTokenSweeper(@NonNull final List<? extends IRemoveExpiredAccessTokens> caches) {
+        this(caches, DEFAULT_RETENTION_SECONDS);
+    }
+
+    /**
+     * Constructs a new ExpiredAccessTokenSweeper.
+     *
+     * @param caches           The caches to sweep.
+     * @param retentionSeconds The time for which AccessTokens are kept after they expire.
+     */
+    public ExpiredAccessTokenSweeper(@NonNull final List<? extends IRemoveExpiredAccessTokens> caches,
+                                     final long retentionSeconds) {
+        if (retentionSeconds < 0) {
+            throw new IllegalArgumentException("Param [retentionSeconds] cannot be negative.");
+        }
+
+        mCaches = new ArrayList<>(caches);
+        mRetentionSeconds = retentionSeconds;
+    }
+
+    /**
+     * Sweeps every cache on the calling thread.
+     *
+     * @return The number of AccessTokens removed.
+     */
+    public int sweep() {
+        final String methodName = ":sweep";
+
+        final long cutoff = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())
+                - mRetentionSeconds;
+
+        int removed = 0;
+
+        for (final IRemoveExpiredAccessTokens cache : mCaches) {
+            try {
+                removed += cache.removeAccessTokensExpiredBefore(cutoff);
+            } catch (final RuntimeException e) {
+                // Leave this cache as it is; the others may still be swept
+                Logger.error(
+                        TAG + methodName,
+                        "Failed to remove expired AccessTokens.",
+                        e
+                );
+            }
+        }
+
+        Logger.info(
+                TAG + methodName,
+                "Removed [" + removed + "] expired AccessTokens."
+        );
+
+        return removed;
+    }
+
+    /**
+     * Sweeps every cache periodically in the background, the first time after one interval.
+     * Restarts the schedule if already started.
+     *
+     * @param intervalMillis The time between the end of one sweep and the start of the next.
+     */
+    public synchronized void start(final long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Param [intervalMillis] must be positive.");
+        }
+
+        stop();
+
+        mScheduledSweep = sSweepExecutor.scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        sweep();
+                    }
+                },
+                intervalMillis,
+                intervalMillis,
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Stops periodic sweeping. A sweep already under way runs to completion.
+     */
+    public synchronized void stop() {
+        if (null != mScheduledSweep) {
+            mScheduledSweep.cancel(false);
+            mScheduledSweep = null;
+        }
+    }
+}
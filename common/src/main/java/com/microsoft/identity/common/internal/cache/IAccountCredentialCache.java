@@ -22,6 +22,7 @@
 // THE SOFTWARE.
 package com.microsoft.identity.common.internal.cache;
 
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
 import com.microsoft.identity.common.internal.dto.AccountRecord;
 import com.microsoft.identity.common.internal.dto.Credential;
 import com.microsoft.identity.common.internal.dto.CredentialType;
@@ -112,6 +113,23 @@ public interface IAccountCredentialCache {
             final String authScheme
     );
 
+    /**
+     * Returns all of the Credentials matching the supplied query. Implementations may use the
+     * query to skip loading Credentials whose cache keys cannot match.
+     *
+     * @param query The criteria to match.
+     * @return A mutable List of Credentials matching the supplied criteria.
+     */
+    List<Credential> getCredentialsFilteredBy(final CredentialQuery query);
+
+    /**
+     * Returns the AccessTokens which expired before the supplied time, in order of expiry.
+     *
+     * @param epochSeconds The cutoff, in seconds from epoch.
+     * @return A mutable List of the AccessTokens whose expires_on is before the cutoff.
+     */
+    List<AccessTokenRecord> getAccessTokensExpiredBefore(final long epochSeconds);
+
     /**
      * Removes the supplied Account from the cache.
      *
@@ -133,4 +151,24 @@ public interface IAccountCredentialCache {
      */
     void clearAll();
 
+    /**
+     * Opens a write batch for the current thread: saves and removals made until the matching
+     * {@link #commitBatch()} are flushed to persistent storage together. Batches may be nested.
+     * <p>
+     * Callers should invoke {@link #commitBatch()} once every write of the batch succeeded, and
+     * {@link #abortBatch()} otherwise, from a finally block.
+     */
+    void beginBatch();
+
+    /**
+     * Closes the write batch opened by {@link #beginBatch()}, flushing it if it is the outermost.
+     */
+    void commitBatch();
+
+    /**
+     * Closes the write batch opened by {@link #beginBatch()}, discarding its saves and removals,
+     * along with those of any enclosing batch.
+     */
+    void abortBatch();
+
 }
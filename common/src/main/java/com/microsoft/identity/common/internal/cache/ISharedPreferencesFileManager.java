@@ -77,6 +77,15 @@ public interface ISharedPreferencesFileManager {
      */
     Map<String, String> getAll();
 
+    /**
+     * Returns the entries in the {@link SharedPreferences} file whose keys are accepted by the
+     * supplied filter. Values of rejected keys are never read or decrypted.
+     *
+     * @param filter The filter to apply to each key.
+     * @return A Map of the accepted entries.
+     */
+    Map<String, String> getAll(ICacheKeyFilter filter);
+
     /**
      * Tests if the {@link SharedPreferences} file contains an entry for the supplied key.
      *
@@ -96,4 +105,42 @@ public interface ISharedPreferencesFileManager {
      * @param key The key whose value should be cleared.
      */
     void remove(final String key);
+
+    /**
+     * Opens a write batch for the current thread. Until the matching {@link #commitBatch()},
+     * {@link #putString(String, String)}, {@link #putLong(String, long)} and
+     * {@link #remove(String)} calls made by this thread are staged in memory and visible to its
+     * own reads, then written to disk with a single commit. Batches may be nested; only the
+     * outermost {@link #commitBatch()} writes.
+     * <p>
+     * Callers should invoke {@link #commitBatch()} once every write of the batch succeeded, and
+     * {@link #abortBatch()} otherwise, from a finally block.
+     */
+    void beginBatch();
+
+    /**
+     * Closes the write batch opened by {@link #beginBatch()}, persisting its staged writes if this
+     * is the outermost batch.
+     *
+     * @throws IllegalStateException If no batch is open on the current thread.
+     */
+    void commitBatch();
+
+    /**
+     * Closes the write batch opened by {@link #beginBatch()}, discarding its staged writes. If the
+     * batch is nested, the enclosing batches are discarded too when the outermost is closed, as
+     * their writes would otherwise be persisted without these.
+     *
+     * @throws IllegalStateException If no batch is open on the current thread.
+     */
+    void abortBatch();
+
+    /**
+     * Returns the write generation of the {@link SharedPreferences} file: a counter, shared by
+     * every instance in this process which manages the same file, that advances each time a
+     * write is committed to it. Writes staged in a batch advance it once, on commit.
+     *
+     * @return The current write generation.
+     */
+    long getGeneration();
 }
@@ -0,0 +1,1091 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.identity.common.adal.internal.util.StringExtensions;
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.dto.AccountRecord;
+import com.microsoft.identity.common.internal.dto.Credential;
+import com.microsoft.identity.common.internal.dto.CredentialType;
+import com.microsoft.identity.common.internal.dto.IdTokenRecord;
+import com.microsoft.identity.common.internal.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write-through, in-memory {@link IAccountCredentialCache} which sits in front of a
+ * {@link SharedPreferencesAccountCredentialCache}.
+ * <p>
+ * Accounts and IdTokens in the backing {@link ISharedPreferencesFileManager} are decrypted and
+ * deserialized once, on first use. Thereafter, reads are served from deserialized records using
+ * secondary indexes on home_account_id, environment, client_id, credential type and realm so that
+ * a lookup only inspects those records which could possibly match. Writes are persisted to the
+ * backing store before the index is updated.
+ * <p>
+ * Credentials carrying a secret, such as AccessTokens and RefreshTokens, are only decrypted once a
+ * lookup could return them. Until then, they are known by their cache keys alone, which hold
+ * their home_account_id, environment, credential type and client_id in plain text. Enumerating
+ * Accounts therefore does not pay for the decryption of any tokens.
+ * <p>
+ * Loaded AccessTokens are also indexed by expires_on, so that expired ones can be found without
+ * inspecting the others; see {@link #getAccessTokensExpiredBefore(long)}.
+ * <p>
+ * Lookups proceed in parallel under a shared read lock; only writes are exclusive. Writes made to
+ * the same file through any other instance in this process advance its
+ * {@link ISharedPreferencesFileManager#getGeneration() generation}, upon which the index is
+ * rebuilt, so that instances may safely be long-lived.
+ * <p>
+ * A write batch holds the write lock from {@link #beginBatch()} until its matching commit or
+ * abort. Other threads therefore never see its uncommitted writes, nor reload the index from a
+ * file which lacks them; if the batch fails to commit, the index is reloaded on next use.
+ * <p>
+ * Records returned by this cache are shared with the index and must not be modified by callers.
+ */
+public class IndexedAccountCredentialCache extends AbstractAccountCredentialCache {
+
+    private static final String TAG = IndexedAccountCredentialCache.class.getSimpleName();
+
+    private final ICacheKeyValueDelegate mCacheValueDelegate;
+    private final ISharedPreferencesFileManager mSharedPreferencesFileManager;
+    private final SharedPreferencesAccountCredentialCache mBackingCache;
+
+    // Primary storage: cache key -> record
+    private final Map<String, AccountRecord> mAccounts = new HashMap<>();
+    private final Map<String, Credential> mCredentials = new HashMap<>();
+
+    // Secondary indexes: (lowercased) field value -> cache keys
+    private final SecondaryIndex mAccountsByHomeAccountId = new SecondaryIndex();
+    private final SecondaryIndex mAccountsByEnvironment = new SecondaryIndex();
+    private final SecondaryIndex mAccountsByRealm = new SecondaryIndex();
+    private final SecondaryIndex mCredentialsByHomeAccountId = new SecondaryIndex();
+    private final SecondaryIndex mCredentialsByEnvironment = new SecondaryIndex();
+    private final SecondaryIndex mCredentialsByCredentialType = new SecondaryIndex();
+    private final SecondaryIndex mCredentialsByClientId = new SecondaryIndex();
+    private final SecondaryIndex mCredentialsByRealm = new SecondaryIndex();
+
+    // Loaded AccessTokens by expires_on (seconds from epoch) -> cache keys
+    private final TreeMap<Long, Set<String>> mAccessTokensByExpiry = new TreeMap<>();
+
+    // Credentials not decrypted yet: credential type -> cache keys
+    private final Map<CredentialType, Set<String>> mDeferredCredentialKeys =
+            new EnumMap<>(CredentialType.class);
+
+    /**
+     * Guards the records and indexes: lookups share the read lock, while loading, saves and
+     * removals take the write lock.
+     */
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    private volatile boolean mLoaded = false;
+
+    /**
+     * The write generation of the backing file which the index reflects.
+     */
+    private volatile long mGeneration;
+
+    /**
+     * The write batch (if any) opened by the current thread.
+     */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    private static class Batch {
+
+        private int mDepth;
+
+        /**
+         * True once any level of this batch was aborted, in which case the backing file discards
+         * all of its writes.
+         */
+        private boolean mAborted;
+    }
+
+    /**
+     * Constructor of IndexedAccountCredentialCache.
+     *
+     * @param accountCacheValueDelegate    ICacheKeyValueDelegate
+     * @param sharedPreferencesFileManager ISharedPreferencesFileManager
+     */
+    public IndexedAccountCredentialCache(
+            @NonNull final ICacheKeyValueDelegate accountCacheValueDelegate,
+            @NonNull final ISharedPreferencesFileManager sharedPreferencesFileManager) {
+        Logger.verbose(TAG, "Init: " + TAG);
+        mCacheValueDelegate = accountCacheValueDelegate;
+        mSharedPreferencesFileManager = sharedPreferencesFileManager;
+        mBackingCache = new SharedPreferencesAccountCredentialCache(
+                accountCacheValueDelegate,
+                sharedPreferencesFileManager
+        );
+    }
+
+    @Override
+    public void saveAccount(@NonNull final AccountRecord account) {
+        ensureLoaded();
+
+        final String cacheKey = mCacheValueDelegate.generateCacheKey(account);
+
+        mLock.writeLock().lock();
+
+        try {
+            final long generation = mSharedPreferencesFileManager.getGeneration();
+            mBackingCache.saveAccount(account);
+            indexAccount(cacheKey, account);
+            adoptOwnWrite(generation);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void saveCredential(@NonNull final Credential credential) {
+        ensureLoaded();
+
+        final String cacheKey = mCacheValueDelegate.generateCacheKey(credential);
+
+        mLock.writeLock().lock();
+
+        try {
+            final long generation = mSharedPreferencesFileManager.getGeneration();
+            mBackingCache.saveCredential(credential);
+            indexCredential(cacheKey, credential);
+            adoptOwnWrite(generation);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public AccountRecord getAccount(@NonNull final String cacheKey) {
+        ensureLoaded();
+        mLock.readLock().lock();
+
+        try {
+            return mAccounts.get(cacheKey);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public Credential getCredential(@NonNull final String cacheKey) {
+        ensureLoaded();
+        lockForLookup(selectKey(cacheKey));
+
+        try {
+            return mCredentials.get(cacheKey);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @NonNull
+    public List<AccountRecord> getAccounts() {
+        ensureLoaded();
+        mLock.readLock().lock();
+
+        try {
+            return new ArrayList<>(mAccounts.values());
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @NonNull
+    public List<AccountRecord> getAccountsFilteredBy(
+            @Nullable final String homeAccountId,
+            @Nullable final String environment,
+            @Nullable final String realm) {
+        ensureLoaded();
+
+        final List<AccountRecord> candidates;
+
+        mLock.readLock().lock();
+
+        try {
+            final Set<String> candidateKeys = smallestOf(
+                    mAccountsByHomeAccountId.lookup(homeAccountId),
+                    mAccountsByEnvironment.lookup(environment),
+                    mAccountsByRealm.lookup(realm)
+            );
+
+            candidates = collect(mAccounts, candidateKeys);
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        // The candidates are a private copy: match them without holding the lock
+
+        return getAccountsFilteredByInternal(
+                homeAccountId,
+                environment,
+                realm,
+                candidates
+        );
+    }
+
+    @Override
+    @NonNull
+    public List<Credential> getCredentials() {
+        ensureLoaded();
+        lockForLookup(selectTypes(null));
+
+        try {
+            return new ArrayList<>(mCredentials.values());
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @NonNull
+    public List<Credential> getCredentialsFilteredBy(
+            @Nullable final String homeAccountId,
+            @Nullable final String environment,
+            @Nullable final CredentialType credentialType,
+            @Nullable final String clientId,
+            @Nullable final String realm,
+            @Nullable final String target,
+            @Nullable final String authScheme) {
+        ensureLoaded();
+
+        // Realm is only a match criterion for AccessTokens and IdTokens, so the realm index may
+        // only be consulted when the query is restricted to one of those types.
+        final boolean realmIndexApplies = isRealmScopedType(credentialType);
+
+        final List<Credential> candidates;
+
+        lockForLookup(selectMatches(
+                new CredentialQuery(
+                        homeAccountId,
+                        environment,
+                        credentialType,
+                        clientId,
+                        realm,
+                        target,
+                        authScheme
+                )
+        ));
+
+        try {
+            final Set<String> candidateKeys = smallestOf(
+                    mCredentialsByHomeAccountId.lookup(homeAccountId),
+                    mCredentialsByEnvironment.lookup(environment),
+                    mCredentialsByCredentialType.lookup(
+                            null == credentialType ? null : credentialType.name()
+                    ),
+                    mCredentialsByClientId.lookup(clientId),
+                    realmIndexApplies ? mCredentialsByRealm.lookup(realm) : null
+            );
+
+            candidates = collect(mCredentials, candidateKeys);
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        // The candidates are a private copy: match them without holding the lock
+
+        return getCredentialsFilteredByInternal(
+                homeAccountId,
+                environment,
+                credentialType,
+                clientId,
+                realm,
+                target,
+                authScheme,
+                candidates
+        );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * As expires_on is only known once decrypted, this loads every AccessToken not loaded yet.
+     */
+    @Override
+    @NonNull
+    public List<AccessTokenRecord> getAccessTokensExpiredBefore(final long epochSeconds) {
+        ensureLoaded();
+        lockForLookup(selectTypes(ACCESS_TOKEN_TYPES));
+
+        try {
+            final List<AccessTokenRecord> result = new ArrayList<>();
+
+            for (final Set<String> cacheKeys
+                    : mAccessTokensByExpiry.headMap(epochSeconds).values()) {
+                for (final String cacheKey : cacheKeys) {
+                    result.add((AccessTokenRecord) mCredentials.get(cacheKey));
+                }
+            }
+
+            return result;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean removeAccount(@NonNull final AccountRecord accountToRemove) {
+        final String methodName = ":removeAccount";
+
+        if (null == accountToRemove) {
+            throw new IllegalArgumentException("Param [accountToRemove] cannot be null.");
+        }
+
+        ensureLoaded();
+
+        final String generatedKey = mCacheValueDelegate.generateCacheKey(accountToRemove);
+        final String cacheKey;
+
+        mLock.writeLock().lock();
+
+        try {
+            cacheKey = findKey(mAccounts, generatedKey, accountToRemove);
+
+            if (null != cacheKey) {
+                final long generation = mSharedPreferencesFileManager.getGeneration();
+                mSharedPreferencesFileManager.remove(cacheKey);
+                unindexAccount(cacheKey);
+                adoptOwnWrite(generation);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+
+        Logger.info(TAG + methodName, "Account was removed? [" + (null != cacheKey) + "]");
+
+        return null != cacheKey;
+    }
+
+    @Override
+    public boolean removeCredential(@NonNull final Credential credentialToRemove) {
+        final String methodName = ":removeCredential";
+
+        if (null == credentialToRemove) {
+            throw new IllegalArgumentException("Param [credentialToRemove] cannot be null.");
+        }
+
+        ensureLoaded();
+
+        final String generatedKey = mCacheValueDelegate.generateCacheKey(credentialToRemove);
+        final String cacheKey;
+
+        mLock.writeLock().lock();
+
+        try {
+            if (isDeferred(generatedKey)) {
+                loadDeferredCredentialsLocked(Collections.singleton(generatedKey));
+            }
+
+            String foundKey = findKey(mCredentials, generatedKey, credentialToRemove);
+
+            if (null == foundKey && hasDeferredCredentials()) {
+                // The record may have been persisted under another key which is not loaded yet
+                loadDeferredCredentialsLocked(
+                        getDeferredCredentialKeys(
+                                CredentialType.fromString(credentialToRemove.getCredentialType())
+                        )
+                );
+                foundKey = findKey(mCredentials, generatedKey, credentialToRemove);
+            }
+
+            cacheKey = foundKey;
+
+            if (null != cacheKey) {
+                final long generation = mSharedPreferencesFileManager.getGeneration();
+                mSharedPreferencesFileManager.remove(cacheKey);
+                unindexCredential(cacheKey);
+                adoptOwnWrite(generation);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+
+        Logger.info(TAG + methodName, "Credential was removed? [" + (null != cacheKey) + "]");
+
+        return null != cacheKey;
+    }
+
+    @Override
+    public void clearAll() {
+        mLock.writeLock().lock();
+
+        try {
+            mBackingCache.clearAll();
+            clearIndexes();
+
+            // The backing store is now empty, there is nothing left to load.
+            mGeneration = mSharedPreferencesFileManager.getGeneration();
+            mLoaded = true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void beginBatch() {
+        // Held until the matching commitBatch() or abortBatch()
+        mLock.writeLock().lock();
+
+        try {
+            mSharedPreferencesFileManager.beginBatch();
+        } catch (final RuntimeException e) {
+            mLock.writeLock().unlock();
+            throw e;
+        }
+
+        Batch batch = mBatch.get();
+
+        if (null == batch) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+
+        batch.mDepth++;
+    }
+
+    @Override
+    public void commitBatch() {
+        closeBatch(false);
+    }
+
+    @Override
+    public void abortBatch() {
+        closeBatch(true);
+    }
+
+    private void closeBatch(final boolean abort) {
+        final Batch batch = mBatch.get();
+
+        if (null == batch) {
+            throw new IllegalStateException("Batch closed without a matching beginBatch()");
+        }
+
+        batch.mAborted |= abort;
+
+        if (--batch.mDepth == 0) {
+            mBatch.remove();
+        }
+
+        // This thread holds the write lock since the matching beginBatch()
+        try {
+            final long generation = mSharedPreferencesFileManager.getGeneration();
+            boolean closed = false;
+
+            try {
+                if (abort) {
+                    mSharedPreferencesFileManager.abortBatch();
+                } else {
+                    mSharedPreferencesFileManager.commitBatch();
+                }
+
+                closed = true;
+            } finally {
+                if (!closed || batch.mAborted) {
+                    // The index already reflects writes which the backing file does not hold
+                    mLoaded = false;
+                } else {
+                    adoptOwnWrite(generation);
+                }
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Populates the in-memory index from the backing store, if it has not been loaded yet or the
+     * backing file has since been written through another instance.
+     * Must not be called while holding the read lock.
+     */
+    private void ensureLoaded() {
+        if (isCurrent()) {
+            return;
+        }
+
+        mLock.writeLock().lock();
+
+        try {
+            if (!isCurrent()) {
+                load();
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private boolean isCurrent() {
+        return mLoaded && mGeneration == mSharedPreferencesFileManager.getGeneration();
+    }
+
+    /**
+     * Called with the write lock held after this instance wrote to the backing file. If nobody
+     * else wrote to it in the meantime the index stays current, otherwise it is reloaded on next
+     * use.
+     *
+     * @param generationBeforeWrite The file generation observed just before writing.
+     */
+    private void adoptOwnWrite(final long generationBeforeWrite) {
+        final long generation = mSharedPreferencesFileManager.getGeneration();
+
+        if (generationBeforeWrite == mGeneration && generation - generationBeforeWrite <= 1) {
+            mGeneration = generation;
+        } else {
+            mLoaded = false;
+        }
+    }
+
+    private void load() {
+        final String methodName = ":load";
+
+        // Read the generation first: a write racing with the load makes the index stale at once
+        final long generation = mSharedPreferencesFileManager.getGeneration();
+
+        clearIndexes();
+
+        for (final Map.Entry<String, AccountRecord> entry
+                : mBackingCache.getAccountsWithKeys().entrySet()) {
+            indexAccount(entry.getKey(), entry.getValue());
+        }
+
+        // Only IdTokens are decrypted now; the keys of the remaining Credentials are set aside
+        final Map<String, Credential> credentials = mBackingCache.getCredentialsWithKeys(
+                new ICacheKeyFilter() {
+                    @Override
+                    public boolean accept(@NonNull final String cacheKey) {
+                        final CredentialType credentialType =
+                                CacheKeyTokenizer.getCredentialType(cacheKey);
+
+                        if (null == credentialType) {
+                            // An Account
+                            return false;
+                        }
+
+                        if (isDeferredType(credentialType)) {
+                            deferCredential(credentialType, cacheKey);
+                            return false;
+                        }
+
+                        return true;
+                    }
+                }
+        );
+
+        for (final Map.Entry<String, Credential> entry : credentials.entrySet()) {
+            indexCredential(entry.getKey(), entry.getValue());
+        }
+
+        mGeneration = generation;
+        mLoaded = true;
+
+        Logger.verbose(
+                TAG + methodName,
+                "Indexed [" + mAccounts.size() + "] Accounts, ["
+                        + mCredentials.size() + "] Credentials, deferred ["
+                        + getDeferredCredentialKeys(null).size() + "] Credentials."
+        );
+    }
+
+    /**
+     * Selects the deferred Credentials a lookup needs. Called with the read or write lock held.
+     */
+    private interface DeferredKeySelector {
+
+        /**
+         * @return The cache keys of the deferred Credentials to load; empty if none.
+         */
+        @NonNull
+        Set<String> select();
+    }
+
+    /**
+     * Acquires the read lock for a lookup, having first decrypted and indexed the deferred
+     * Credentials chosen by the supplied selector. The lock is held continuously from the load
+     * through the lookup, as the write lock is downgraded, so that a reload in between cannot
+     * defer the loaded Credentials again. The caller must release the read lock.
+     * Must not be called while holding the read lock.
+     */
+    private void lockForLookup(@NonNull final DeferredKeySelector selector) {
+        final boolean anyDeferred;
+
+        mLock.readLock().lock();
+
+        try {
+            anyDeferred = !selector.select().isEmpty();
+        } catch (final RuntimeException e) {
+            mLock.readLock().unlock();
+            throw e;
+        }
+
+        if (!anyDeferred) {
+            return;
+        }
+
+        mLock.readLock().unlock();
+        mLock.writeLock().lock();
+
+        try {
+            // Selected again: the index may have been reloaded while no lock was held
+            loadDeferredCredentialsLocked(selector.select());
+            mLock.readLock().lock();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return A selector of the supplied cache key, if it is deferred.
+     */
+    @NonNull
+    private DeferredKeySelector selectKey(@NonNull final String cacheKey) {
+        return new DeferredKeySelector() {
+            @Override
+            @NonNull
+            public Set<String> select() {
+                return isDeferred(cacheKey)
+                        ? Collections.singleton(cacheKey)
+                        : Collections.<String>emptySet();
+            }
+        };
+    }
+
+    /**
+     * @return A selector of the deferred Credentials whose cache keys may match the supplied
+     * query.
+     */
+    @NonNull
+    private DeferredKeySelector selectMatches(@NonNull final CredentialQuery query) {
+        return new DeferredKeySelector() {
+            @Override
+            @NonNull
+            public Set<String> select() {
+                final Set<String> cacheKeys = new HashSet<>();
+
+                for (final String cacheKey : getDeferredCredentialKeys(query.getCredentialType())) {
+                    if (query.accept(cacheKey)) {
+                        cacheKeys.add(cacheKey);
+                    }
+                }
+
+                return cacheKeys;
+            }
+        };
+    }
+
+    /**
+     * @return A selector of the deferred Credentials of the supplied types, or of every type if
+     * null.
+     */
+    @NonNull
+    private DeferredKeySelector selectTypes(@Nullable final CredentialType[] credentialTypes) {
+        return new DeferredKeySelector() {
+            @Override
+            @NonNull
+            public Set<String> select() {
+                if (null == credentialTypes) {
+                    return getDeferredCredentialKeys(null);
+                }
+
+                final Set<String> cacheKeys = new HashSet<>();
+
+                for (final CredentialType credentialType : credentialTypes) {
+                    cacheKeys.addAll(getDeferredCredentialKeys(credentialType));
+                }
+
+                return cacheKeys;
+            }
+        };
+    }
+
+    /**
+     * Called with the write lock held: decrypts the supplied cache keys which are still deferred
+     * in one pass over the backing store and indexes the resulting Credentials.
+     */
+    private void loadDeferredCredentialsLocked(@NonNull final Collection<String> cacheKeys) {
+        final String methodName = ":loadDeferredCredentialsLocked";
+        final Set<String> deferredKeys = new HashSet<>();
+
+        for (final String cacheKey : cacheKeys) {
+            if (isDeferred(cacheKey)) {
+                deferredKeys.add(cacheKey);
+            }
+        }
+
+        if (deferredKeys.isEmpty()) {
+            return;
+        }
+
+        final Map<String, Credential> credentials = mBackingCache.getCredentialsWithKeys(
+                new ICacheKeyFilter() {
+                    @Override
+                    public boolean accept(@NonNull final String cacheKey) {
+                        return deferredKeys.contains(cacheKey);
+                    }
+                }
+        );
+
+        // Keys which could not be loaded are gone or undecryptable: forget them either way
+        for (final String cacheKey : deferredKeys) {
+            undeferCredential(cacheKey);
+        }
+
+        for (final Map.Entry<String, Credential> entry : credentials.entrySet()) {
+            indexCredential(entry.getKey(), entry.getValue());
+        }
+
+        Logger.verbose(
+                TAG + methodName,
+                "Loaded [" + credentials.size() + "] of [" + deferredKeys.size()
+                        + "] deferred Credentials."
+        );
+    }
+
+    private boolean isDeferred(@NonNull final String cacheKey) {
+        final CredentialType credentialType = CacheKeyTokenizer.getCredentialType(cacheKey);
+
+        if (null == credentialType) {
+            return false;
+        }
+
+        final Set<String> cacheKeys = mDeferredCredentialKeys.get(credentialType);
+
+        return null != cacheKeys && cacheKeys.contains(cacheKey);
+    }
+
+    private boolean hasDeferredCredentials() {
+        return !mDeferredCredentialKeys.isEmpty();
+    }
+
+    /**
+     * Returns a copy of the deferred cache keys of the supplied type, or of all types if null.
+     */
+    @NonNull
+    private Set<String> getDeferredCredentialKeys(@Nullable final CredentialType credentialType) {
+        final Set<String> result = new HashSet<>();
+
+        for (final Map.Entry<CredentialType, Set<String>> entry
+                : mDeferredCredentialKeys.entrySet()) {
+            if (null == credentialType || credentialType == entry.getKey()) {
+                result.addAll(entry.getValue());
+            }
+        }
+
+        return result;
+    }
+
+    private void deferCredential(@NonNull final CredentialType credentialType,
+                                 @NonNull final String cacheKey) {
+        Set<String> cacheKeys = mDeferredCredentialKeys.get(credentialType);
+
+        if (null == cacheKeys) {
+            cacheKeys = new HashSet<>();
+            mDeferredCredentialKeys.put(credentialType, cacheKeys);
+        }
+
+        cacheKeys.add(cacheKey);
+    }
+
+    private void undeferCredential(@NonNull final String cacheKey) {
+        final CredentialType credentialType = CacheKeyTokenizer.getCredentialType(cacheKey);
+
+        if (null == credentialType) {
+            return;
+        }
+
+        final Set<String> cacheKeys = mDeferredCredentialKeys.get(credentialType);
+
+        if (null != cacheKeys && cacheKeys.remove(cacheKey) && cacheKeys.isEmpty()) {
+            mDeferredCredentialKeys.remove(credentialType);
+        }
+    }
+
+    /**
+     * IdTokens are needed to enumerate Accounts; the secrets of all other Credentials are only
+     * decrypted when a lookup could return them.
+     */
+    private static boolean isDeferredType(@NonNull final CredentialType credentialType) {
+        return CredentialType.IdToken != credentialType
+                && CredentialType.V1IdToken != credentialType;
+    }
+
+    private void clearIndexes() {
+        mAccounts.clear();
+        mCredentials.clear();
+        mDeferredCredentialKeys.clear();
+        mAccessTokensByExpiry.clear();
+        mAccountsByHomeAccountId.clear();
+        mAccountsByEnvironment.clear();
+        mAccountsByRealm.clear();
+        mCredentialsByHomeAccountId.clear();
+        mCredentialsByEnvironment.clear();
+        mCredentialsByCredentialType.clear();
+        mCredentialsByClientId.clear();
+        mCredentialsByRealm.clear();
+    }
+
+    private void indexAccount(@NonNull final String cacheKey,
+                              @NonNull final AccountRecord account) {
+        unindexAccount(cacheKey);
+        mAccounts.put(cacheKey, account);
+        mAccountsByHomeAccountId.add(account.getHomeAccountId(), cacheKey);
+        mAccountsByEnvironment.add(account.getEnvironment(), cacheKey);
+        mAccountsByRealm.add(account.getRealm(), cacheKey);
+    }
+
+    private void unindexAccount(@NonNull final String cacheKey) {
+        final AccountRecord account = mAccounts.remove(cacheKey);
+
+        if (null != account) {
+            mAccountsByHomeAccountId.remove(account.getHomeAccountId(), cacheKey);
+            mAccountsByEnvironment.remove(account.getEnvironment(), cacheKey);
+            mAccountsByRealm.remove(account.getRealm(), cacheKey);
+        }
+    }
+
+    private void indexCredential(@NonNull final String cacheKey,
+                                 @NonNull final Credential credential) {
+        unindexCredential(cacheKey);
+        mCredentials.put(cacheKey, credential);
+        mCredentialsByHomeAccountId.add(credential.getHomeAccountId(), cacheKey);
+        mCredentialsByEnvironment.add(credential.getEnvironment(), cacheKey);
+        mCredentialsByCredentialType.add(credential.getCredentialType(), cacheKey);
+        mCredentialsByClientId.add(credential.getClientId(), cacheKey);
+        mCredentialsByRealm.add(getRealm(credential), cacheKey);
+
+        if (credential instanceof AccessTokenRecord) {
+            indexExpiry((AccessTokenRecord) credential, cacheKey);
+        }
+    }
+
+    private void unindexCredential(@NonNull final String cacheKey) {
+        undeferCredential(cacheKey);
+
+        final Credential credential = mCredentials.remove(cacheKey);
+
+        if (null != credential) {
+            mCredentialsByHomeAccountId.remove(credential.getHomeAccountId(), cacheKey);
+            mCredentialsByEnvironment.remove(credential.getEnvironment(), cacheKey);
+            mCredentialsByCredentialType.remove(credential.getCredentialType(), cacheKey);
+            mCredentialsByClientId.remove(credential.getClientId(), cacheKey);
+            mCredentialsByRealm.remove(getRealm(credential), cacheKey);
+
+            if (credential instanceof AccessTokenRecord) {
+                unindexExpiry((AccessTokenRecord) credential, cacheKey);
+            }
+        }
+    }
+
+    private void indexExpiry(@NonNull final AccessTokenRecord accessToken,
+                             @NonNull final String cacheKey) {
+        final Long expiresOn = getExpiresOnSeconds(accessToken);
+
+        if (null == expiresOn) {
+            return;
+        }
+
+        Set<String> cacheKeys = mAccessTokensByExpiry.get(expiresOn);
+
+        if (null == cacheKeys) {
+            cacheKeys = new HashSet<>();
+            mAccessTokensByExpiry.put(expiresOn, cacheKeys);
+        }
+
+        cacheKeys.add(cacheKey);
+    }
+
+    private void unindexExpiry(@NonNull final AccessTokenRecord accessToken,
+                               @NonNull final String cacheKey) {
+        final Long expiresOn = getExpiresOnSeconds(accessToken);
+
+        if (null == expiresOn) {
+            return;
+        }
+
+        final Set<String> cacheKeys = mAccessTokensByExpiry.get(expiresOn);
+
+        if (null != cacheKeys && cacheKeys.remove(cacheKey) && cacheKeys.isEmpty()) {
+            mAccessTokensByExpiry.remove(expiresOn);
+        }
+    }
+
+    /**
+     * Returns the expires_on of the supplied AccessToken, or null if it is malformed.
+     */
+    @Nullable
+    private static Long getExpiresOnSeconds(@NonNull final AccessTokenRecord accessToken) {
+        try {
+            return accessToken.getExpiresOnSeconds();
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static String getRealm(@NonNull final Credential credential) {
+        if (credential instanceof AccessTokenRecord) {
+            return ((AccessTokenRecord) credential).getRealm();
+        } else if (credential instanceof IdTokenRecord) {
+            return ((IdTokenRecord) credential).getRealm();
+        }
+
+        return null;
+    }
+
+    private static boolean isRealmScopedType(@Nullable final CredentialType credentialType) {
+        return CredentialType.AccessToken == credentialType
+                || CredentialType.AccessToken_With_AuthScheme == credentialType
+                || CredentialType.IdToken == credentialType
+                || CredentialType.V1IdToken == credentialType;
+    }
+
+    /**
+     * Locates the cache key of the supplied record. The generated key is tried first; should the
+     * record have been persisted under a different key, the remaining entries are inspected.
+     */
+    @Nullable
+    private static <T> String findKey(@NonNull final Map<String, T> records,
+                                      @NonNull final String generatedKey,
+                                      @NonNull final T record) {
+        if (record.equals(records.get(generatedKey))) {
+            return generatedKey;
+        }
+
+        for (final Map.Entry<String, T> entry : records.entrySet()) {
+            if (record.equals(entry.getValue())) {
+                return entry.getKey();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Copies the records stored under the supplied keys, or every record if keys is null.
+     */
+    @NonNull
+    private static <T> List<T> collect(@NonNull final Map<String, T> records,
+                                       @Nullable final Set<String> cacheKeys) {
+        if (null == cacheKeys) {
+            return new ArrayList<>(records.values());
+        }
+
+        final List<T> result = new ArrayList<>(cacheKeys.size());
+
+        for (final String cacheKey : cacheKeys) {
+            result.add(records.get(cacheKey));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the smallest of the supplied candidate key sets, ignoring null (unfiltered) sets.
+     *
+     * @return The smallest candidate set or null, if no filter was applied.
+     */
+    @Nullable
+    @SafeVarargs
+    private static Set<String> smallestOf(@Nullable final Set<String>... candidateSets) {
+        Set<String> smallest = null;
+
+        for (final Set<String> candidates : candidateSets) {
+            if (null != candidates && (null == smallest || candidates.size() < smallest.size())) {
+                smallest = candidates;
+            }
+        }
+
+        return smallest;
+    }
+
+    /**
+     * A case-insensitive multimap of field value to the cache keys of records bearing that value.
+     */
+    private static class SecondaryIndex {
+
+        private final Map<String, Set<String>> mIndex = new HashMap<>();
+
+        private static String normalize(@Nullable final String value) {
+            return null == value ? "" : value.toLowerCase(Locale.US);
+        }
+
+        void add(@Nullable final String value, @NonNull final String cacheKey) {
+            final String normalizedValue = normalize(value);
+            Set<String> cacheKeys = mIndex.get(normalizedValue);
+
+            if (null == cacheKeys) {
+                cacheKeys = new HashSet<>();
+                mIndex.put(normalizedValue, cacheKeys);
+            }
+
+            cacheKeys.add(cacheKey);
+        }
+
+        void remove(@Nullable final String value, @NonNull final String cacheKey) {
+            final String normalizedValue = normalize(value);
+            final Set<String> cacheKeys = mIndex.get(normalizedValue);
+
+            if (null != cacheKeys) {
+                cacheKeys.remove(cacheKey);
+
+                if (cacheKeys.isEmpty()) {
+                    mIndex.remove(normalizedValue);
+                }
+            }
+        }
+
+        /**
+         * Returns the cache keys matching the supplied value, an empty Set if none do, or null
+         * if the value is blank (and therefore not a filter criterion).
+         */
+        @Nullable
+        Set<String> lookup(@Nullable final String value) {
+            if (StringExtensions.isNullOrBlank(value)) {
+                return null;
+            }
+
+            final Set<String> cacheKeys = mIndex.get(normalize(value));
+
+            return null == cacheKeys ? Collections.<String>emptySet() : cacheKeys;
+        }
+
+        void clear() {
+            mIndex.clear();
+        }
+    }
+}
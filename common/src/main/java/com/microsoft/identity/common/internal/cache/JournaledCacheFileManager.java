@@ -0,0 +1,1016 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.identity.common.adal.internal.AuthenticationConstants;
+import com.microsoft.identity.common.adal.internal.cache.IStorageHelper;
+import com.microsoft.identity.common.internal.logging.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * An {@link ISharedPreferencesFileManager} backed by an append-only journal of put and remove
+ * records, rather than by a {@link SharedPreferences} XML file which is rewritten in full on every
+ * commit. A write appends one record per changed key, so its cost no longer grows with the number
+ * of entries in the cache.
+ * <p>
+ * Each record is prefixed with its length and a CRC32 of its contents. The journal is replayed
+ * once per process; replay stops at the first incomplete or corrupt record, which is where a crash
+ * during an append leaves off, and the journal is truncated there. A journal which cannot be read
+ * at all is kept: reads see an empty cache and writes fail until a later access reads it, or until
+ * the cache is cleared. Once superseded records make
+ * up most of the journal, it is compacted: the live entries are written to a new journal, which
+ * atomically replaces the old one. A write which cannot be persisted leaves the cache unchanged
+ * and throws an {@link IllegalStateException}.
+ * <p>
+ * Values are encrypted individually with the {@link IStorageHelper}, as in a
+ * {@link SharedPreferencesFileManager}; keys are stored in the clear. All instances for the same
+ * journal in a process share its contents, and must be constructed with equivalent
+ * {@link IStorageHelper}s.
+ */
+public class JournaledCacheFileManager implements ISharedPreferencesFileManager {
+
+    private static final String TAG = JournaledCacheFileManager.class.getSimpleName();
+
+    /**
+     * Appended to the name of the cache to get the name of its journal.
+     */
+    public static final String FILE_EXTENSION = ".journal";
+
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+
+    /**
+     * "MSJL", identifies a journal.
+     */
+    private static final int MAGIC = 0x4D534A4C;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Magic and format version.
+     */
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * Record length and CRC.
+     */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    private static final byte OP_PUT = 1;
+
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * Journals smaller than this are never compacted.
+     */
+    private static final long COMPACTION_MIN_LENGTH = 64 * 1024;
+
+    /**
+     * A journal is compacted once it is this many times larger than its live records.
+     */
+    private static final int COMPACTION_RATIO = 2;
+
+    private static final Charset UTF8 = Charset.forName(AuthenticationConstants.ENCODING_UTF8);
+
+    /**
+     * Journal contents by path, shared by every instance in this process.
+     */
+    private static final ConcurrentHashMap<String, Journal> sJournals = new ConcurrentHashMap<>();
+
+    private final String mName;
+    private final Journal mJournal;
+    private final IStorageHelper mStorageHelper;
+
+    /**
+     * The write batch (if any) opened by the current thread.
+     */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    /**
+     * The in-memory state of a journal.
+     */
+    private static class Journal {
+
+        private final File mFile;
+
+        private final AtomicLong mGeneration;
+
+        private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+        /**
+         * The live entries. Guarded by mLock, as are the fields below.
+         */
+        private Map<String, Entry> mEntries = new HashMap<>();
+
+        private volatile boolean mLoaded;
+
+        /**
+         * The length of the journal file.
+         */
+        private long mLength;
+
+        /**
+         * The length the journal would have if it were compacted.
+         */
+        private long mLiveLength;
+
+        Journal(@NonNull final File file) {
+            mFile = file;
+            mGeneration = SharedPreferencesFileManager.generationOf(file.getName());
+        }
+    }
+
+    /**
+     * A live entry: its value, and the value (possibly encrypted) and size of its put record.
+     */
+    private static class Entry {
+
+        private final String mValue;
+
+        private final String mStoredValue;
+
+        private final int mRecordLength;
+
+        Entry(@NonNull final String value,
+              @NonNull final String storedValue,
+              final int recordLength) {
+            mValue = value;
+            mStoredValue = storedValue;
+            mRecordLength = recordLength;
+        }
+    }
+
+    /**
+     * Uncommitted writes accumulated between {@link #beginBatch()} and {@link #commitBatch()}.
+     */
+    private static class Batch {
+
+        /**
+         * Values written in this batch; a null value denotes a removal.
+         */
+        private final Map<String, String> mPendingValues = new HashMap<>();
+
+        private int mDepth;
+
+        /**
+         * True once any level of this batch was aborted; it is then discarded when closed.
+         */
+        private boolean mAborted;
+    }
+
+    /**
+     * Constructs an instance of JournaledCacheFileManager which stores its values unencrypted.
+     *
+     * @param context Interface to global information about an application environment.
+     * @param name    The name of the cache. Its journal will be created if it does not exist.
+     */
+    public JournaledCacheFileManager(@NonNull final Context context,
+                                     @NonNull final String name) {
+        this(context, name, null);
+    }
+
+    /**
+     * Constructs an instance of JournaledCacheFileManager.
+     *
+     * @param context       Interface to global information about an application environment.
+     * @param name          The name of the cache. Its journal will be created if it does not exist.
+     * @param storageHelper The {@link IStorageHelper} to handle encryption/decryption of values.
+     */
+    public JournaledCacheFileManager(@NonNull final Context context,
+                                     @NonNull final String name,
+                                     @Nullable final IStorageHelper storageHelper) {
+        Logger.verbose(TAG, "Init: " + TAG);
+        mName = name;
+        mStorageHelper = storageHelper;
+
+        final File file = new File(context.getFilesDir(), name + FILE_EXTENSION);
+        final Journal journal = new Journal(file);
+        final Journal existing = sJournals.putIfAbsent(file.getAbsolutePath(), journal);
+
+        mJournal = null == existing ? journal : existing;
+    }
+
+    /**
+     * Moves the entries of an existing {@link SharedPreferences}-backed cache into this journal,
+     * then clears the old cache. This only happens once: if this journal already exists, the old
+     * cache is left untouched.
+     *
+     * @param legacyFileManager The cache to migrate.
+     * @return True, if entries were migrated by this call.
+     */
+    public boolean migrateFrom(@NonNull final ISharedPreferencesFileManager legacyFileManager) {
+        final String methodName = ":migrateFrom";
+
+        if (mJournal.mFile.exists()) {
+            return false;
+        }
+
+        final Map<String, String> legacyEntries = legacyFileManager.getAll();
+        final Map<String, Entry> entries = new HashMap<>();
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+        // Encrypt outside of the lock
+        for (final Map.Entry<String, String> legacyEntry : legacyEntries.entrySet()) {
+            final String storedValue = encrypt(legacyEntry.getValue());
+
+            if (null == storedValue) {
+                // Keep the old cache; we'll try again next time.
+                return false;
+            }
+
+            record.reset();
+            entries.put(legacyEntry.getKey(), new Entry(
+                    legacyEntry.getValue(),
+                    storedValue,
+                    writeRecord(record, OP_PUT, legacyEntry.getKey(), storedValue)
+            ));
+        }
+
+        mJournal.mLock.writeLock().lock();
+
+        try {
+            if (mJournal.mFile.exists()) {
+                return false;
+            }
+
+            // Anything already written through this instance is newer
+            entries.putAll(mJournal.mEntries);
+
+            if (!compact(entries)) {
+                // Keep the old cache; we'll try again next time.
+                return false;
+            }
+
+            mJournal.mEntries = entries;
+            mJournal.mLoaded = true;
+            SharedPreferencesFileManager.advanceGeneration(mJournal.mGeneration);
+        } finally {
+            mJournal.mLock.writeLock().unlock();
+        }
+
+        legacyFileManager.clear();
+
+        Logger.info(
+                TAG + methodName,
+                "Migrated [" + legacyEntries.size() + "] entries from "
+                        + legacyFileManager.getSharedPreferencesFileName()
+        );
+
+        return true;
+    }
+
+    @Override
+    public void putString(final String key, final String value) {
+        final Batch batch = mBatch.get();
+
+        if (null == batch) {
+            commit(Collections.singletonMap(key, value));
+        } else {
+            batch.mPendingValues.put(key, value);
+        }
+    }
+
+    @Override
+    @Nullable
+    public String getString(final String key) {
+        final Batch batch = mBatch.get();
+
+        if (null != batch && batch.mPendingValues.containsKey(key)) {
+            return batch.mPendingValues.get(key);
+        }
+
+        ensureLoaded();
+        mJournal.mLock.readLock().lock();
+
+        try {
+            final Entry entry = mJournal.mEntries.get(key);
+
+            return null == entry ? null : entry.mValue;
+        } finally {
+            mJournal.mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void putLong(final String key, final long value) {
+        putString(key, String.valueOf(value));
+    }
+
+    @Override
+    public long getLong(final String key) {
+        final String result = getString(key);
+
+        if (!TextUtils.isEmpty(result)) {
+            return Long.parseLong(result);
+        }
+
+        return 0;
+    }
+
+    @Override
+    public String getSharedPreferencesFileName() {
+        return mName;
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        return getAllInternal(null);
+    }
+
+    @Override
+    public Map<String, String> getAll(@NonNull final ICacheKeyFilter filter) {
+        return getAllInternal(filter);
+    }
+
+    private Map<String, String> getAllInternal(@Nullable final ICacheKeyFilter filter) {
+        final Map<String, String> entries = new HashMap<>();
+
+        ensureLoaded();
+        mJournal.mLock.readLock().lock();
+
+        try {
+            for (final Map.Entry<String, Entry> entry : mJournal.mEntries.entrySet()) {
+                if (null == filter || filter.accept(entry.getKey())) {
+                    entries.put(entry.getKey(), entry.getValue().mValue);
+                }
+            }
+        } finally {
+            mJournal.mLock.readLock().unlock();
+        }
+
+        final Batch batch = mBatch.get();
+
+        if (null != batch) {
+            // Overlay the writes of this thread's open batch
+            for (final Map.Entry<String, String> pendingEntry : batch.mPendingValues.entrySet()) {
+                if (null == pendingEntry.getValue()) {
+                    entries.remove(pendingEntry.getKey());
+                } else if (null == filter || filter.accept(pendingEntry.getKey())) {
+                    entries.put(pendingEntry.getKey(), pendingEntry.getValue());
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return !TextUtils.isEmpty(getString(key));
+    }
+
+    @Override
+    public void clear() {
+        final Batch batch = mBatch.get();
+
+        if (null != batch) {
+            // Clearing supersedes anything written so far in this batch; start over.
+            batch.mPendingValues.clear();
+        }
+
+        mJournal.mLock.writeLock().lock();
+
+        try {
+            final Map<String, Entry> entries = new HashMap<>();
+
+            compactOrThrow(entries);
+            mJournal.mEntries = entries;
+            mJournal.mLoaded = true;
+            SharedPreferencesFileManager.advanceGeneration(mJournal.mGeneration);
+        } finally {
+            mJournal.mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(final String key) {
+        Logger.info(
+                TAG,
+                "Removing cache key"
+        );
+
+        putString(key, null);
+
+        Logger.infoPII(
+                TAG,
+                "Removed cache key ["
+                        + key
+                        + "]"
+        );
+    }
+
+    @Override
+    public void beginBatch() {
+        Batch batch = mBatch.get();
+
+        if (null == batch) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+
+        batch.mDepth++;
+    }
+
+    @Override
+    public void commitBatch() {
+        closeBatch(false);
+    }
+
+    @Override
+    public void abortBatch() {
+        closeBatch(true);
+    }
+
+    private void closeBatch(final boolean abort) {
+        final String methodName = ":closeBatch";
+        final Batch batch = mBatch.get();
+
+        if (null == batch) {
+            throw new IllegalStateException("Batch closed without a matching beginBatch()");
+        }
+
+        batch.mAborted |= abort;
+
+        if (--batch.mDepth > 0) {
+            // Nested batch, the outermost one flushes.
+            return;
+        }
+
+        mBatch.remove();
+
+        if (batch.mAborted) {
+            Logger.warn(
+                    TAG + methodName,
+                    "Discarded [" + batch.mPendingValues.size() + "] batched writes."
+            );
+        } else if (!batch.mPendingValues.isEmpty()) {
+            commit(batch.mPendingValues);
+
+            Logger.verbose(
+                    TAG + methodName,
+                    "Committed [" + batch.mPendingValues.size() + "] batched writes."
+            );
+        }
+    }
+
+    @Override
+    public long getGeneration() {
+        return mJournal.mGeneration.get();
+    }
+
+    /**
+     * Appends a record for each of the supplied writes, with a single write and sync, and
+     * compacts the journal if it has grown too large. The writes are only applied in memory once
+     * they are in the journal.
+     *
+     * @param changes The values to write; a null value denotes a removal.
+     * @throws IllegalStateException if the journal could not be written; the cache is unchanged.
+     */
+    private void commit(@NonNull final Map<String, String> changes) {
+        final String methodName = ":commit";
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final Map<String, Entry> newEntries = new HashMap<>();
+
+        // Encrypt outside of the lock
+        for (final Map.Entry<String, String> change : changes.entrySet()) {
+            final String key = change.getKey();
+            final String value = change.getValue();
+
+            if (null == value) {
+                writeRecord(records, OP_REMOVE, key, null);
+                continue;
+            }
+
+            final String storedValue = encrypt(value);
+
+            if (null == storedValue) {
+                // Don't leave a stale value behind
+                writeRecord(records, OP_REMOVE, key, null);
+                continue;
+            }
+
+            newEntries.put(key, new Entry(
+                    value,
+                    storedValue,
+                    writeRecord(records, OP_PUT, key, storedValue)
+            ));
+        }
+
+        if (!ensureLoaded()) {
+            // Don't rewrite a journal we could not read
+            throw new IllegalStateException("Failed to read journal [" + mName + "]");
+        }
+
+        mJournal.mLock.writeLock().lock();
+
+        try {
+            if (append(records.toByteArray())) {
+                mJournal.mLiveLength += applyChanges(mJournal.mEntries, changes, newEntries);
+
+                if (mJournal.mLength >= COMPACTION_MIN_LENGTH
+                        && mJournal.mLength > COMPACTION_RATIO * mJournal.mLiveLength) {
+                    Logger.verbose(
+                            TAG + methodName,
+                            "Compacting journal of [" + mJournal.mLength + "] bytes."
+                    );
+
+                    // The journal is intact if this fails; it is retried on the next commit.
+                    compact(mJournal.mEntries);
+                }
+            } else {
+                // Rewrite the journal with the writes applied instead.
+                final Map<String, Entry> entries = new HashMap<>(mJournal.mEntries);
+
+                applyChanges(entries, changes, newEntries);
+                compactOrThrow(entries);
+                mJournal.mEntries = entries;
+            }
+
+            SharedPreferencesFileManager.advanceGeneration(mJournal.mGeneration);
+        } finally {
+            mJournal.mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the supplied writes to the supplied entries.
+     *
+     * @return The change in the length of the live records.
+     */
+    private static long applyChanges(@NonNull final Map<String, Entry> entries,
+                                     @NonNull final Map<String, String> changes,
+                                     @NonNull final Map<String, Entry> newEntries) {
+        long lengthChange = 0;
+
+        for (final String key : changes.keySet()) {
+            final Entry previous = entries.remove(key);
+
+            if (null != previous) {
+                lengthChange -= previous.mRecordLength;
+            }
+
+            final Entry entry = newEntries.get(key);
+
+            if (null != entry) {
+                entries.put(key, entry);
+                lengthChange += entry.mRecordLength;
+            }
+        }
+
+        return lengthChange;
+    }
+
+    /**
+     * Appends the supplied records to the journal. Must hold the write lock.
+     *
+     * @return True, if the records were appended. False if there is no journal to append to, or
+     * the append failed; the journal must then be rewritten with {@link #compact(Map)}.
+     */
+    private boolean append(@NonNull final byte[] records) {
+        final String methodName = ":append";
+
+        if (0 == mJournal.mLength || !mJournal.mFile.exists()) {
+            return false;
+        }
+
+        try {
+            final FileOutputStream out = new FileOutputStream(mJournal.mFile, true);
+
+            try {
+                out.write(records);
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            mJournal.mLength += records.length;
+
+            return true;
+        } catch (final IOException e) {
+            Logger.error(TAG + methodName, "Failed to append to journal.", e);
+
+            // We no longer know where the journal ends; it must be rewritten.
+            mJournal.mLength = 0;
+
+            return false;
+        }
+    }
+
+    /**
+     * Rewrites the journal with the supplied entries, see {@link #compact(Map)}.
+     *
+     * @throws IllegalStateException if the journal could not be written.
+     */
+    private void compactOrThrow(@NonNull final Map<String, Entry> entries) {
+        if (!compact(entries)) {
+            throw new IllegalStateException("Failed to write journal [" + mName + "]");
+        }
+    }
+
+    /**
+     * Writes the supplied entries to a new journal, which then atomically replaces the current
+     * one. Must hold the write lock.
+     *
+     * @return True, if the journal was replaced. Otherwise the current journal is left as it was.
+     */
+    private boolean compact(@NonNull final Map<String, Entry> entries) {
+        final String methodName = ":compact";
+        final ByteArrayOutputStream journal = new ByteArrayOutputStream(
+                (int) Math.min(Integer.MAX_VALUE, HEADER_LENGTH + mJournal.mLiveLength)
+        );
+        final DataOutputStream header = new DataOutputStream(journal);
+        long liveLength = HEADER_LENGTH;
+
+        try {
+            header.writeInt(MAGIC);
+            header.writeInt(FORMAT_VERSION);
+        } catch (final IOException e) {
+            // Cannot happen, writing to memory
+            throw new IllegalStateException(e);
+        }
+
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            liveLength += writeRecord(journal, OP_PUT, entry.getKey(), entry.getValue().mStoredValue);
+        }
+
+        final File file = mJournal.mFile;
+        final File tempFile = new File(file.getPath() + TEMP_FILE_EXTENSION);
+
+        try {
+            final FileOutputStream out = new FileOutputStream(tempFile);
+
+            try {
+                journal.writeTo(out);
+                out.flush();
+                // The rename must not become visible before the data it points to
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to replace journal.");
+            }
+
+            mJournal.mLength = journal.size();
+            mJournal.mLiveLength = liveLength;
+
+            return true;
+        } catch (final IOException e) {
+            Logger.error(TAG + methodName, "Failed to write journal.", e);
+
+            if (tempFile.exists() && !tempFile.delete()) {
+                Logger.warn(TAG + methodName, "Failed to delete temporary journal.");
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Replays the journal, unless it already has been.
+     *
+     * @return False, if the journal exists but could not be read. It is kept, and replayed again
+     * on the next access.
+     */
+    private boolean ensureLoaded() {
+        final String methodName = ":ensureLoaded";
+
+        if (mJournal.mLoaded) {
+            return true;
+        }
+
+        mJournal.mLock.writeLock().lock();
+
+        try {
+            if (!mJournal.mLoaded) {
+                replay();
+                mJournal.mLoaded = true;
+            }
+
+            return true;
+        } catch (final IOException e) {
+            Logger.error(TAG + methodName, "Failed to read journal.", e);
+
+            return false;
+        } finally {
+            mJournal.mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the live entries from the journal, truncating it after the last valid record; if
+     * even its header is invalid, nothing is kept. Values which cannot be decrypted are removed.
+     * Must hold the write lock.
+     *
+     * @throws IOException If the journal could not be read. The cache is left as it was.
+     */
+    private void replay() throws IOException {
+        final String methodName = ":replay";
+        final File file = mJournal.mFile;
+
+        if (!file.exists()) {
+            return;
+        }
+
+        final Map<String, String> storedValues = new HashMap<>();
+        final Map<String, Integer> recordLengths = new HashMap<>();
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final long length = channel.size();
+
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Journal is too large to read: " + length);
+            }
+
+            int validLength = 0;
+
+            if (length >= HEADER_LENGTH) {
+                final MappedByteBuffer buffer =
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+                if (buffer.getInt() == MAGIC && buffer.getInt() == FORMAT_VERSION) {
+                    validLength = readRecords(buffer, storedValues, recordLengths);
+                } else {
+                    Logger.warn(TAG + methodName, "Unrecognized journal format.");
+                }
+            }
+
+            mJournal.mLength = validLength;
+
+            if (validLength < length) {
+                Logger.warn(
+                        TAG + methodName,
+                        "Discarding [" + (length - validLength) + "] bytes after the last "
+                                + "valid record."
+                );
+
+                try {
+                    randomAccessFile.setLength(validLength);
+                } catch (final IOException e) {
+                    Logger.warn(TAG + methodName, "Failed to truncate journal: " + e.getMessage());
+
+                    // Appends would land after the invalid bytes; rewrite it on the next write.
+                    mJournal.mLength = 0;
+                }
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+
+        final Map<String, String> values = decryptAll(storedValues);
+        final ByteArrayOutputStream removals = new ByteArrayOutputStream();
+        long liveLength = HEADER_LENGTH;
+
+        for (final Map.Entry<String, String> storedValue : storedValues.entrySet()) {
+            final String key = storedValue.getKey();
+            final String value = values.get(key);
+
+            if (TextUtils.isEmpty(value)) {
+                Logger.warn(
+                        TAG + methodName,
+                        "Failed to decrypt value! "
+                                + "This usually signals an issue with KeyStore or the provided SecretKeys."
+                );
+                writeRecord(removals, OP_REMOVE, key, null);
+                continue;
+            }
+
+            final int recordLength = recordLengths.get(key);
+            mJournal.mEntries.put(key, new Entry(value, storedValue.getValue(), recordLength));
+            liveLength += recordLength;
+        }
+
+        mJournal.mLiveLength = liveLength;
+
+        if (removals.size() > 0 && !append(removals.toByteArray())) {
+            // Failing this, the removals are retried when the journal is next replayed.
+            compact(mJournal.mEntries);
+        }
+
+        Logger.verbose(
+                TAG + methodName,
+                "Replayed journal of [" + mJournal.mLength + "] bytes into ["
+                        + mJournal.mEntries.size() + "] entries."
+        );
+    }
+
+    /**
+     * Applies the records in the supplied buffer, which is positioned after the journal header,
+     * stopping at the first incomplete or corrupt record.
+     *
+     * @return The offset just past the last valid record.
+     */
+    private static int readRecords(@NonNull final ByteBuffer buffer,
+                                   @NonNull final Map<String, String> storedValues,
+                                   @NonNull final Map<String, Integer> recordLengths) {
+        final CRC32 crc = new CRC32();
+        byte[] body = new byte[0];
+
+        while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+            final int recordStart = buffer.position();
+            final int bodyLength = buffer.getInt();
+            final int checksum = buffer.getInt();
+
+            if (bodyLength <= 0 || bodyLength > buffer.remaining()) {
+                return recordStart;
+            }
+
+            if (body.length < bodyLength) {
+                body = new byte[bodyLength];
+            }
+
+            buffer.get(body, 0, bodyLength);
+            crc.reset();
+            crc.update(body, 0, bodyLength);
+
+            final String key = (int) crc.getValue() == checksum
+                    ? applyRecord(body, bodyLength, storedValues)
+                    : null;
+
+            if (null == key) {
+                return recordStart;
+            }
+
+            if (storedValues.containsKey(key)) {
+                recordLengths.put(key, RECORD_HEADER_LENGTH + bodyLength);
+            } else {
+                recordLengths.remove(key);
+            }
+        }
+
+        return buffer.position();
+    }
+
+    /**
+     * Applies a single record body: op, key and, for a put, the stored value.
+     *
+     * @return The key of the record, or null if it is malformed.
+     */
+    @Nullable
+    private static String applyRecord(@NonNull final byte[] body,
+                                      final int bodyLength,
+                                      @NonNull final Map<String, String> storedValues) {
+        if (bodyLength < 5) {
+            return null;
+        }
+
+        final int keyLength = readInt(body, 1);
+
+        if (keyLength < 0 || keyLength > bodyLength - 5) {
+            return null;
+        }
+
+        final String key = new String(body, 5, keyLength, UTF8);
+        final int valueOffset = 5 + keyLength;
+
+        if (OP_REMOVE == body[0] && valueOffset == bodyLength) {
+            storedValues.remove(key);
+            return key;
+        }
+
+        if (OP_PUT != body[0] || valueOffset + 4 > bodyLength) {
+            return null;
+        }
+
+        final int valueLength = readInt(body, valueOffset);
+
+        if (valueLength != bodyLength - valueOffset - 4) {
+            return null;
+        }
+
+        storedValues.put(key, new String(body, valueOffset + 4, valueLength, UTF8));
+
+        return key;
+    }
+
+    private static int readInt(@NonNull final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFF) << 24
+                | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8
+                | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Writes a record: body length, CRC32 of the body, then the body (op, key and, for a put, the
+     * value, each string prefixed with its length).
+     *
+     * @return The length of the record.
+     */
+    private static int writeRecord(@NonNull final ByteArrayOutputStream out,
+                                   final byte op,
+                                   @NonNull final String key,
+                                   @Nullable final String value) {
+        final byte[] keyBytes = key.getBytes(UTF8);
+        final byte[] valueBytes = null == value ? null : value.getBytes(UTF8);
+        final int bodyLength = 1 + 4 + keyBytes.length
+                + (null == valueBytes ? 0 : 4 + valueBytes.length);
+        final byte[] record = new byte[RECORD_HEADER_LENGTH + bodyLength];
+
+        int position = RECORD_HEADER_LENGTH;
+        record[position++] = op;
+        position = putBytes(record, position, keyBytes);
+
+        if (null != valueBytes) {
+            putBytes(record, position, valueBytes);
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEADER_LENGTH, bodyLength);
+        putInt(record, 0, bodyLength);
+        putInt(record, 4, (int) crc.getValue());
+
+        out.write(record, 0, record.length);
+
+        return record.length;
+    }
+
+    private static int putBytes(@NonNull final byte[] target,
+                                final int offset,
+                                @NonNull final byte[] bytes) {
+        putInt(target, offset, bytes.length);
+        System.arraycopy(bytes, 0, target, offset + 4, bytes.length);
+
+        return offset + 4 + bytes.length;
+    }
+
+    private static void putInt(@NonNull final byte[] target, final int offset, final int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    @Nullable
+    private String encrypt(@NonNull final String value) {
+        final String methodName = ":encrypt";
+
+        if (null == mStorageHelper) {
+            return value;
+        }
+
+        try {
+            return mStorageHelper.encrypt(value);
+        } catch (final GeneralSecurityException | IOException e) {
+            // Don't log the error as it may contain a token
+            Logger.error(TAG + methodName, "Failed to encrypt value", null);
+            return null;
+        }
+    }
+
+    @NonNull
+    private Map<String, String> decryptAll(@NonNull final Map<String, String> storedValues) {
+        if (null == mStorageHelper || storedValues.isEmpty()) {
+            return storedValues;
+        }
+
+        return SharedPreferencesFileManager.decryptValues(mStorageHelper, storedValues);
+    }
+}
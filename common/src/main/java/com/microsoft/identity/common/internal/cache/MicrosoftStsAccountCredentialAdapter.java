@@ -98,6 +98,7 @@ public class MicrosoftStsAccountCredentialAdapter
 
             // Optional fields
             accessToken.setExtendedExpiresOn(getExtendedExpiresOn(response));
+            accessToken.setRefreshOn(getRefreshOn(response));
             accessToken.setAuthority(strategy.getAuthorityFromTokenEndpoint());
             accessToken.setAccessTokenType(response.getTokenType());
 
@@ -273,6 +274,16 @@ public class MicrosoftStsAccountCredentialAdapter
         return String.valueOf(currentTimeSecs + extExpiresIn);
     }
 
+    private String getRefreshOn(final MicrosoftStsTokenResponse response) {
+        if (null == response.getRefreshIn()) {
+            return null;
+        }
+
+        final long currentTimeSecs = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+
+        return String.valueOf(currentTimeSecs + response.getRefreshIn());
+    }
+
     private String getRealm(final MicrosoftStsOAuth2Strategy msStrategy, final MicrosoftStsTokenResponse msTokenResponse) {
         final MicrosoftStsAccount msAccount = msStrategy.createAccount(msTokenResponse);
         return msAccount.getRealm();
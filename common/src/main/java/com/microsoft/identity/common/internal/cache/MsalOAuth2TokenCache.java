@@ -39,6 +39,7 @@ import com.microsoft.identity.common.internal.dto.Credential;
 import com.microsoft.identity.common.internal.dto.CredentialType;
 import com.microsoft.identity.common.internal.dto.IdTokenRecord;
 import com.microsoft.identity.common.internal.dto.RefreshTokenRecord;
+import com.microsoft.identity.common.internal.dto.ScopeSet;
 import com.microsoft.identity.common.internal.logging.Logger;
 import com.microsoft.identity.common.internal.providers.microsoft.MicrosoftAccount;
 import com.microsoft.identity.common.internal.providers.microsoft.MicrosoftRefreshToken;
@@ -59,12 +60,13 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.microsoft.identity.common.exception.ErrorStrings.ACCOUNT_IS_SCHEMA_NONCOMPLIANT;
 import static com.microsoft.identity.common.exception.ErrorStrings.CREDENTIAL_IS_SCHEMA_NONCOMPLIANT;
 import static com.microsoft.identity.common.internal.authscheme.BearerAuthenticationSchemeInternal.SCHEME_BEARER;
+import static com.microsoft.identity.common.internal.cache.AbstractAccountCredentialCache.DEFAULT_SCOPE_SET;
 import static com.microsoft.identity.common.internal.cache.SharedPreferencesAccountCredentialCache.DEFAULT_ACCOUNT_CREDENTIAL_SHARED_PREFERENCES;
-import static com.microsoft.identity.common.internal.controllers.BaseController.DEFAULT_SCOPES;
 import static com.microsoft.identity.common.internal.dto.CredentialType.ID_TOKEN_TYPES;
 
 @SuppressWarnings("PMD.AvoidDuplicateLiterals")
@@ -75,12 +77,19 @@ public class MsalOAuth2TokenCache
                 GenericAccount extends BaseAccount,
                 GenericRefreshToken extends com.microsoft.identity.common.internal.providers.oauth2.RefreshToken>
         extends OAuth2TokenCache<GenericOAuth2Strategy, GenericAuthorizationRequest, GenericTokenResponse>
-        implements IShareSingleSignOnState<GenericAccount, GenericRefreshToken> {
+        implements IShareSingleSignOnState<GenericAccount, GenericRefreshToken>,
+        IRemoveExpiredAccessTokens {
 
     private static final String TAG = MsalOAuth2TokenCache.class.getSimpleName();
 
     private IAccountCredentialCache mAccountCredentialCache;
 
+    /**
+     * Keeps aggregated loads from observing a save halfway through: saves take the write lock,
+     * while aggregated loads share the read lock and so no longer queue behind one another.
+     */
+    private final ReentrantReadWriteLock mAggregationLock = new ReentrantReadWriteLock();
+
     private final IAccountCredentialAdapter<
             GenericOAuth2Strategy,
             GenericAuthorizationRequest,
@@ -140,7 +149,7 @@ public class MsalOAuth2TokenCache
                         storageHelper
                 );
         final IAccountCredentialCache accountCredentialCache =
-                new SharedPreferencesAccountCredentialCache(
+                new IndexedAccountCredentialCache(
                         cacheKeyValueDelegate,
                         sharedPreferencesFileManager
                 );
@@ -154,6 +163,110 @@ public class MsalOAuth2TokenCache
         );
     }
 
+    /**
+     * Factory method for creating an instance of MsalOAuth2TokenCache which keeps its entries in a
+     * single encrypted file (see {@link EncryptedCacheFileManager}) instead of the default
+     * {@link android.content.SharedPreferences} file. The first time this is called, the contents
+     * of the default file are migrated.
+     *
+     * @param context The Application Context
+     * @return An instance of the MsalOAuth2TokenCache.
+     */
+    public static MsalOAuth2TokenCache<
+            MicrosoftStsOAuth2Strategy,
+            MicrosoftStsAuthorizationRequest,
+            MicrosoftStsTokenResponse,
+            MicrosoftAccount,
+            MicrosoftRefreshToken> createWithEncryptedCacheFile(@NonNull final Context context) {
+        final String methodName = ":createWithEncryptedCacheFile";
+
+        Logger.verbose(
+                TAG + methodName,
+                "Creating MsalOAuth2TokenCache"
+        );
+
+        final ICacheKeyValueDelegate cacheKeyValueDelegate = new CacheKeyValueDelegate();
+        final IStorageHelper storageHelper = new StorageHelper(context);
+        final EncryptedCacheFileManager encryptedCacheFileManager =
+                new EncryptedCacheFileManager(
+                        context,
+                        DEFAULT_ACCOUNT_CREDENTIAL_SHARED_PREFERENCES,
+                        storageHelper
+                );
+        encryptedCacheFileManager.migrateFrom(
+                new SharedPreferencesFileManager(
+                        context,
+                        DEFAULT_ACCOUNT_CREDENTIAL_SHARED_PREFERENCES,
+                        storageHelper
+                )
+        );
+        final IAccountCredentialCache accountCredentialCache =
+                new IndexedAccountCredentialCache(
+                        cacheKeyValueDelegate,
+                        encryptedCacheFileManager
+                );
+        final MicrosoftStsAccountCredentialAdapter accountCredentialAdapter =
+                new MicrosoftStsAccountCredentialAdapter();
+
+        return new MsalOAuth2TokenCache<>(
+                context,
+                accountCredentialCache,
+                accountCredentialAdapter
+        );
+    }
+
+    /**
+     * Factory method for creating an instance of MsalOAuth2TokenCache which keeps its entries in an
+     * append-only journal (see {@link JournaledCacheFileManager}) instead of the default
+     * {@link android.content.SharedPreferences} file. The first time this is called, the contents
+     * of the default file are migrated.
+     *
+     * @param context The Application Context
+     * @return An instance of the MsalOAuth2TokenCache.
+     */
+    public static MsalOAuth2TokenCache<
+            MicrosoftStsOAuth2Strategy,
+            MicrosoftStsAuthorizationRequest,
+            MicrosoftStsTokenResponse,
+            MicrosoftAccount,
+            MicrosoftRefreshToken> createWithJournaledCacheFile(@NonNull final Context context) {
+        final String methodName = ":createWithJournaledCacheFile";
+
+        Logger.verbose(
+                TAG + methodName,
+                "Creating MsalOAuth2TokenCache"
+        );
+
+        final ICacheKeyValueDelegate cacheKeyValueDelegate = new CacheKeyValueDelegate();
+        final IStorageHelper storageHelper = new StorageHelper(context);
+        final JournaledCacheFileManager journaledCacheFileManager =
+                new JournaledCacheFileManager(
+                        context,
+                        DEFAULT_ACCOUNT_CREDENTIAL_SHARED_PREFERENCES,
+                        storageHelper
+                );
+        journaledCacheFileManager.migrateFrom(
+                new SharedPreferencesFileManager(
+                        context,
+                        DEFAULT_ACCOUNT_CREDENTIAL_SHARED_PREFERENCES,
+                        storageHelper
+                )
+        );
+        final IAccountCredentialCache accountCredentialCache =
+                new IndexedAccountCredentialCache(
+                        cacheKeyValueDelegate,
+                        journaledCacheFileManager
+                );
+        final MicrosoftStsAccountCredentialAdapter accountCredentialAdapter =
+                new MicrosoftStsAccountCredentialAdapter();
+
+        return new MsalOAuth2TokenCache<>(
+                context,
+                accountCredentialCache,
+                accountCredentialAdapter
+        );
+    }
+
 
     void validateNonNull(@Nullable final Object object,
                          @NonNull final String type) throws ClientException {
@@ -200,8 +313,16 @@ public class MsalOAuth2TokenCache
                 "Accounts/Credentials are valid.... proceeding"
         );
 
-        saveAccounts(accountRecord);
-        saveCredentialsInternal(idTokenRecord, accessTokenRecord);
+        mAccountCredentialCache.beginBatch();
+        boolean batchSucceeded = false;
+
+        try {
+            saveAccounts(accountRecord);
+            saveCredentialsInternal(idTokenRecord, accessTokenRecord);
+            batchSucceeded = true;
+        } finally {
+            endBatch(batchSucceeded);
+        }
 
         final CacheRecord result = new CacheRecord();
         result.setAccount(accountRecord);
@@ -224,9 +345,19 @@ public class MsalOAuth2TokenCache
             @NonNull AccessTokenRecord accessTokenRecord) throws ClientException {
         // Use the just-saved ICacheRecord to locate other cache records belonging to this
         // principal which may be associated to another tenant
-        return mergeCacheRecordWithOtherTenantCacheRecords(
-                save(accountRecord, idTokenRecord, accessTokenRecord)
-        );
+        mAccountCredentialCache.beginBatch();
+        boolean batchSucceeded = false;
+
+        try {
+            final List<ICacheRecord> result = mergeCacheRecordWithOtherTenantCacheRecords(
+                    save(accountRecord, idTokenRecord, accessTokenRecord)
+            );
+            batchSucceeded = true;
+
+            return result;
+        } finally {
+            endBatch(batchSucceeded);
+        }
     }
 
     @NonNull
@@ -308,12 +439,21 @@ public class MsalOAuth2TokenCache
                 idTokenToSave
         );
 
-        // remove old refresh token if it's MRRT or FRT
-        removeRefreshTokenIfNeeded(accountToSave, refreshTokenToSave);
+        // Flush the removals and saves below to disk together
+        mAccountCredentialCache.beginBatch();
+        boolean batchSucceeded = false;
 
-        // Save the Account and Credentials...
-        saveAccounts(accountToSave);
-        saveCredentialsInternal(accessTokenToSave, refreshTokenToSave, idTokenToSave);
+        try {
+            // remove old refresh token if it's MRRT or FRT
+            removeRefreshTokenIfNeeded(accountToSave, refreshTokenToSave);
+
+            // Save the Account and Credentials...
+            saveAccounts(accountToSave);
+            saveCredentialsInternal(accessTokenToSave, refreshTokenToSave, idTokenToSave);
+            batchSucceeded = true;
+        } finally {
+            endBatch(batchSucceeded);
+        }
 
         final CacheRecord result = new CacheRecord();
         result.setAccount(accountToSave);
@@ -330,10 +470,24 @@ public class MsalOAuth2TokenCache
             @NonNull final GenericOAuth2Strategy oAuth2Strategy,
             @NonNull final GenericAuthorizationRequest request,
             @NonNull final GenericTokenResponse response) throws ClientException {
-        synchronized (this) {
-            return mergeCacheRecordWithOtherTenantCacheRecords(
-                    save(oAuth2Strategy, request, response)
-            );
+        mAggregationLock.writeLock().lock();
+
+        try {
+            mAccountCredentialCache.beginBatch();
+            boolean batchSucceeded = false;
+
+            try {
+                final List<ICacheRecord> result = mergeCacheRecordWithOtherTenantCacheRecords(
+                        save(oAuth2Strategy, request, response)
+                );
+                batchSucceeded = true;
+
+                return result;
+            } finally {
+                endBatch(batchSucceeded);
+            }
+        } finally {
+            mAggregationLock.writeLock().unlock();
         }
     }
 
@@ -500,8 +654,16 @@ public class MsalOAuth2TokenCache
             );
         } else {
             // Save the inputs
-            saveAccounts(accountToSave);
-            saveCredentialsInternal(idTokenToSave);
+            mAccountCredentialCache.beginBatch();
+            boolean batchSucceeded = false;
+
+            try {
+                saveAccounts(accountToSave);
+                saveCredentialsInternal(idTokenToSave);
+                batchSucceeded = true;
+            } finally {
+                endBatch(batchSucceeded);
+            }
 
             // Set them as the result outputs
             result.setAccount(accountToSave);
@@ -694,7 +856,9 @@ public class MsalOAuth2TokenCache
                                                             @Nullable final String target,
                                                             @NonNull final AccountRecord account,
                                                             @NonNull final AbstractAuthenticationScheme authScheme) {
-        synchronized (this) {
+        mAggregationLock.readLock().lock();
+
+        try {
             final List<ICacheRecord> result = new ArrayList<>();
 
             final ICacheRecord primaryCacheRecord = load(clientId, target, account, authScheme);
@@ -717,6 +881,8 @@ public class MsalOAuth2TokenCache
             }
 
             return result;
+        } finally {
+            mAggregationLock.readLock().unlock();
         }
     }
 
@@ -783,6 +949,40 @@ public class MsalOAuth2TokenCache
         return mAccountCredentialCache.removeCredential(credential);
     }
 
+    @Override
+    public int removeAccessTokensExpiredBefore(final long epochSeconds) {
+        final String methodName = ":removeAccessTokensExpiredBefore";
+
+        final List<AccessTokenRecord> expiredAccessTokens =
+                mAccountCredentialCache.getAccessTokensExpiredBefore(epochSeconds);
+
+        int removed = 0;
+
+        if (!expiredAccessTokens.isEmpty()) {
+            mAccountCredentialCache.beginBatch();
+            boolean batchSucceeded = false;
+
+            try {
+                for (final AccessTokenRecord accessToken : expiredAccessTokens) {
+                    if (mAccountCredentialCache.removeCredential(accessToken)) {
+                        removed++;
+                    }
+                }
+
+                batchSucceeded = true;
+            } finally {
+                endBatch(batchSucceeded);
+            }
+        }
+
+        Logger.info(
+                TAG + methodName,
+                "Expired AccessTokens removed: [" + removed + "]"
+        );
+
+        return removed;
+    }
+
     @Override
     @Nullable
     public AccountRecord getAccount(@Nullable final String environment,
@@ -1268,52 +1468,62 @@ public class MsalOAuth2TokenCache
                 "IsRealmAgnostic? " + isRealmAgnostic
         );
 
-        if (null != typesToRemove && typesToRemove.length > 0) {
-            for (final CredentialType type : typesToRemove) {
-                // A count of the deleted creds...
-                int deletedCredentialsOfTypeCount = removeCredentialsOfTypeForAccount(
-                        environment,
-                        clientId,
-                        type,
-                        targetAccount,
-                        isRealmAgnostic
-                );
+        // Flush all of the deletions below to disk together
+        mAccountCredentialCache.beginBatch();
+        boolean batchSucceeded = false;
+
+        final List<AccountRecord> deletedAccounts = new ArrayList<>();
 
-                com.microsoft.identity.common.internal.logging.Logger.info(
+        try {
+            if (null != typesToRemove && typesToRemove.length > 0) {
+                for (final CredentialType type : typesToRemove) {
+                    // A count of the deleted creds...
+                    int deletedCredentialsOfTypeCount = removeCredentialsOfTypeForAccount(
+                            environment,
+                            clientId,
+                            type,
+                            targetAccount,
+                            isRealmAgnostic
+                    );
+
+                    com.microsoft.identity.common.internal.logging.Logger.info(
+                            TAG + methodName,
+                            "Removed "
+                                    + deletedCredentialsOfTypeCount
+                                    + " credentials of type: "
+                                    + type
+                    );
+                }
+            } else {
+                com.microsoft.identity.common.internal.logging.Logger.warn(
                         TAG + methodName,
-                        "Removed "
-                                + deletedCredentialsOfTypeCount
-                                + " credentials of type: "
-                                + type
+                        "removeAccount called, but no CredentialTypes to remove specified"
                 );
             }
-        } else {
-            com.microsoft.identity.common.internal.logging.Logger.warn(
-                    TAG + methodName,
-                    "removeAccount called, but no CredentialTypes to remove specified"
-            );
-        }
 
-        final List<AccountRecord> deletedAccounts = new ArrayList<>();
-
-        if (isRealmAgnostic) {
-            // Remove all Accounts associated with this home_account_id...
-            final List<AccountRecord> accountsToRemove = mAccountCredentialCache.getAccountsFilteredBy(
-                    homeAccountId,
-                    environment,
-                    null // wildcard (*) realm
-            );
+            if (isRealmAgnostic) {
+                // Remove all Accounts associated with this home_account_id...
+                final List<AccountRecord> accountsToRemove = mAccountCredentialCache.getAccountsFilteredBy(
+                        homeAccountId,
+                        environment,
+                        null // wildcard (*) realm
+                );
 
-            for (final AccountRecord accountToRemove : accountsToRemove) {
-                if (mAccountCredentialCache.removeAccount(accountToRemove)) {
-                    deletedAccounts.add(accountToRemove);
+                for (final AccountRecord accountToRemove : accountsToRemove) {
+                    if (mAccountCredentialCache.removeAccount(accountToRemove)) {
+                        deletedAccounts.add(accountToRemove);
+                    }
+                }
+            } else {
+                // Remove only the target Account
+                if (mAccountCredentialCache.removeAccount(targetAccount)) {
+                    deletedAccounts.add(targetAccount);
                 }
             }
-        } else {
-            // Remove only the target Account
-            if (mAccountCredentialCache.removeAccount(targetAccount)) {
-                deletedAccounts.add(targetAccount);
-            }
+
+            batchSucceeded = true;
+        } finally {
+            endBatch(batchSucceeded);
         }
 
         return new AccountDeletionRecord(deletedAccounts);
@@ -1415,6 +1625,21 @@ public class MsalOAuth2TokenCache
         return credentialsRemoved;
     }
 
+    /**
+     * Closes the write batch opened by {@link IAccountCredentialCache#beginBatch()}, persisting
+     * its writes only if everything in it succeeded, so that a failure part-way through never
+     * leaves, say, an AccessToken saved without its RefreshToken.
+     *
+     * @param succeeded True if every write of the batch was made.
+     */
+    private void endBatch(final boolean succeeded) {
+        if (succeeded) {
+            mAccountCredentialCache.commitBatch();
+        } else {
+            mAccountCredentialCache.abortBatch();
+        }
+    }
+
     private void saveAccounts(final AccountRecord... accounts) {
         for (final AccountRecord account : accounts) {
             mAccountCredentialCache.saveAccount(account);
@@ -1525,43 +1750,26 @@ public class MsalOAuth2TokenCache
                                     boolean omitDefaultScopes) {
         final String methodName = "scopesIntersect";
 
-        final Set<String> token1Scopes = scopesAsSet(token1);
-        final Set<String> token2Scopes = scopesAsSet(token2);
+        final ScopeSet token1Scopes = token1.getScopeSet();
+        final ScopeSet token2Scopes = token2.getScopeSet();
 
-        if (omitDefaultScopes) {
-            // Remove the default scopes (if present), do not consider them in lookup criteria
-            token1Scopes.removeAll(DEFAULT_SCOPES);
-            token2Scopes.removeAll(DEFAULT_SCOPES);
-        }
+        // Remove the default scopes (if present), do not consider them in lookup criteria
+        final boolean result = token1Scopes.intersects(
+                token2Scopes,
+                omitDefaultScopes ? DEFAULT_SCOPE_SET : ScopeSet.EMPTY
+        );
 
-        boolean result = false;
-        for (final String scope : token2Scopes) {
-            if (token1Scopes.contains(scope)) {
-                Logger.info(TAG + ":" + methodName, "Scopes intersect.");
-                Logger.infoPII(
-                        TAG + ":" + methodName,
-                        token1Scopes.toString() + " contains [" + scope + "]"
-                );
-                result = true;
-                break;
-            }
+        if (result) {
+            Logger.info(TAG + ":" + methodName, "Scopes intersect.");
+            Logger.infoPII(
+                    TAG + ":" + methodName,
+                    "[" + token1Scopes + "] intersects [" + token2Scopes + "]"
+            );
         }
 
         return result;
     }
 
-    private Set<String> scopesAsSet(final AccessTokenRecord token) {
-        final Set<String> scopeSet = new HashSet<>();
-        final String scopeString = token.getTarget();
-
-        if (!StringExtensions.isNullOrBlank(scopeString)) {
-            final String[] scopeArray = scopeString.split("\\s+");
-            scopeSet.addAll(Arrays.asList(scopeArray));
-        }
-
-        return scopeSet;
-    }
-
     private static boolean isSchemaCompliant(final Class<?> clazz, final String[][] params) {
         final String methodName = "isSchemaCompliant";
 
@@ -1685,29 +1893,37 @@ public class MsalOAuth2TokenCache
                 accountDto.getAuthorityType()
         );
 
-        if (isFamilyRefreshToken || isMultiResourceCapable) {
-            final int refreshTokensRemoved = removeRefreshTokensForAccount(
-                    accountDto,
-                    isFamilyRefreshToken,
-                    accountDto.getEnvironment(),
-                    rt.getClientId()
-            );
+        mAccountCredentialCache.beginBatch();
+        boolean batchSucceeded = false;
 
-            Logger.info(
-                    TAG + methodName,
-                    "Refresh tokens removed: [" + refreshTokensRemoved + "]"
-            );
+        try {
+            if (isFamilyRefreshToken || isMultiResourceCapable) {
+                final int refreshTokensRemoved = removeRefreshTokensForAccount(
+                        accountDto,
+                        isFamilyRefreshToken,
+                        accountDto.getEnvironment(),
+                        rt.getClientId()
+                );
 
-            if (refreshTokensRemoved > 1) {
-                Logger.warn(
+                Logger.info(
                         TAG + methodName,
-                        "Multiple refresh tokens found for Account."
+                        "Refresh tokens removed: [" + refreshTokensRemoved + "]"
                 );
+
+                if (refreshTokensRemoved > 1) {
+                    Logger.warn(
+                            TAG + methodName,
+                            "Multiple refresh tokens found for Account."
+                    );
+                }
             }
-        }
 
-        saveAccounts(accountDto);
-        saveCredentialsInternal(idToken, rt);
+            saveAccounts(accountDto);
+            saveCredentialsInternal(idToken, rt);
+            batchSucceeded = true;
+        } finally {
+            endBatch(batchSucceeded);
+        }
     }
 
     @Override
@@ -27,6 +27,7 @@ import androidx.annotation.Nullable;
 
 import com.microsoft.identity.common.adal.internal.util.StringExtensions;
 import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.dto.AccountCredentialBase;
 import com.microsoft.identity.common.internal.dto.AccountRecord;
 import com.microsoft.identity.common.internal.dto.Credential;
 import com.microsoft.identity.common.internal.dto.CredentialType;
@@ -37,13 +38,9 @@ import com.microsoft.identity.common.internal.logging.Logger;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
-
-import static com.microsoft.identity.common.internal.cache.CacheKeyValueDelegate.CACHE_VALUE_SEPARATOR;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @SuppressWarnings("PMD.AvoidDuplicateLiterals")
 public class SharedPreferencesAccountCredentialCache extends AbstractAccountCredentialCache {
@@ -83,11 +80,36 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
     private static final String ACCOUNT_RECORD_DESERIALIZATION_FAILED = DESERIALIZATION_FAILED + AccountRecord.class.getSimpleName();
     private static final String CREDENTIAL_DESERIALIZATION_FAILED = DESERIALIZATION_FAILED + Credential.class.getSimpleName();
 
+    /**
+     * Accepts the cache keys of Accounts.
+     */
+    private static final ICacheKeyFilter ACCOUNT_KEY_FILTER = new ICacheKeyFilter() {
+        @Override
+        public boolean accept(@NonNull final String cacheKey) {
+            return null == CacheKeyTokenizer.getCredentialType(cacheKey);
+        }
+    };
+
+    /**
+     * Accepts the cache keys of Credentials.
+     */
+    private static final ICacheKeyFilter CREDENTIAL_KEY_FILTER = new ICacheKeyFilter() {
+        @Override
+        public boolean accept(@NonNull final String cacheKey) {
+            return null != CacheKeyTokenizer.getCredentialType(cacheKey);
+        }
+    };
+
     // SharedPreferences used to store Accounts and Credentials
     private final ISharedPreferencesFileManager mSharedPreferencesFileManager;
 
     private final ICacheKeyValueDelegate mCacheValueDelegate;
 
+    /**
+     * Guards the cache: reads share the read lock, saves and removals take the write lock.
+     */
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
     /**
      * Constructor of SharedPreferencesAccountCredentialCache.
      *
@@ -103,31 +125,48 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
     }
 
     @Override
-    public synchronized void saveAccount(@NonNull final AccountRecord account) {
+    public void saveAccount(@NonNull final AccountRecord account) {
         Logger.verbose(TAG, "Saving Account...");
         Logger.verbose(TAG, "Account type: [" + account.getClass().getSimpleName() + "]");
         final String cacheKey = mCacheValueDelegate.generateCacheKey(account);
         Logger.verbosePII(TAG, "Generated cache key: [" + cacheKey + "]");
         final String cacheValue = mCacheValueDelegate.generateCacheValue(account);
-        mSharedPreferencesFileManager.putString(cacheKey, cacheValue);
+        putString(cacheKey, cacheValue);
     }
 
     @Override
-    public synchronized void saveCredential(@NonNull Credential credential) {
+    public void saveCredential(@NonNull Credential credential) {
         Logger.verbose(TAG, "Saving credential...");
         final String cacheKey = mCacheValueDelegate.generateCacheKey(credential);
         Logger.verbosePII(TAG, "Generated cache key: [" + cacheKey + "]");
         final String cacheValue = mCacheValueDelegate.generateCacheValue(credential);
-        mSharedPreferencesFileManager.putString(cacheKey, cacheValue);
+        putString(cacheKey, cacheValue);
+    }
+
+    private void putString(@NonNull final String cacheKey, @NonNull final String cacheValue) {
+        mLock.writeLock().lock();
+
+        try {
+            mSharedPreferencesFileManager.putString(cacheKey, cacheValue);
+        } finally {
+            mLock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized AccountRecord getAccount(@NonNull final String cacheKey) {
+    public AccountRecord getAccount(@NonNull final String cacheKey) {
         Logger.verbose(TAG, "Loading Account by key...");
-        AccountRecord account = mCacheValueDelegate.fromCacheValue(
-                mSharedPreferencesFileManager.getString(cacheKey),
-                AccountRecord.class
-        );
+        final String cacheValue;
+
+        mLock.readLock().lock();
+
+        try {
+            cacheValue = mSharedPreferencesFileManager.getString(cacheKey);
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        AccountRecord account = mCacheValueDelegate.fromCacheValue(cacheValue, AccountRecord.class);
 
         if (null == account) {
             // We could not deserialize the target AccountRecord...
@@ -138,16 +177,50 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
             );
         } else if (EMPTY_ACCOUNT.equals(account)) {
             Logger.warn(TAG, "The returned Account was uninitialized. Removing...");
-            mSharedPreferencesFileManager.remove(cacheKey);
+            removeIfUnchanged(cacheKey, EMPTY_ACCOUNT, AccountRecord.class);
             account = null;
         }
 
         return account;
     }
 
+    /**
+     * Removes the entry under the supplied key if it still holds the expected record. Used to
+     * remove entries found while only holding the read lock, which cannot be upgraded: the entry
+     * is re-read under the write lock, as it may have been overwritten in the meantime.
+     *
+     * @param cacheKey The key of the entry to remove.
+     * @param expected The record the entry was found to hold.
+     * @param clazz    The type of the record.
+     * @return True if the entry was removed.
+     */
+    private boolean removeIfUnchanged(@NonNull final String cacheKey,
+                                      @NonNull final AccountCredentialBase expected,
+                                      @NonNull final Class<? extends AccountCredentialBase> clazz) {
+        mLock.writeLock().lock();
+
+        try {
+            final AccountCredentialBase current = mCacheValueDelegate.fromCacheValue(
+                    mSharedPreferencesFileManager.getString(cacheKey),
+                    clazz
+            );
+
+            if (!expected.equals(current)) {
+                Logger.verbose(TAG, "Entry changed since it was read, not removing.");
+                return false;
+            }
+
+            mSharedPreferencesFileManager.remove(cacheKey);
+
+            return true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
     @Override
     @Nullable
-    public synchronized Credential getCredential(@NonNull final String cacheKey) {
+    public Credential getCredential(@NonNull final String cacheKey) {
         // TODO add support for more Credential types...
         Logger.verbose(TAG, "getCredential()");
         Logger.verbosePII(TAG, "Using cache key: [" + cacheKey + "]");
@@ -162,10 +235,17 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
         Credential credential = null;
 
         if (null != clazz) {
-            credential = mCacheValueDelegate.fromCacheValue(
-                    mSharedPreferencesFileManager.getString(cacheKey),
-                    clazz
-            );
+            final String cacheValue;
+
+            mLock.readLock().lock();
+
+            try {
+                cacheValue = mSharedPreferencesFileManager.getString(cacheKey);
+            } finally {
+                mLock.readLock().unlock();
+            }
+
+            credential = mCacheValueDelegate.fromCacheValue(cacheValue, clazz);
         }
 
         if (null == credential) {
@@ -181,35 +261,39 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
             // The returned credential came back uninitialized...
             // Remove the entry and return null...
             Logger.warn(TAG, "The returned Credential was uninitialized. Removing...");
-            mSharedPreferencesFileManager.remove(cacheKey);
+            removeIfUnchanged(cacheKey, credential, clazz);
             credential = null;
         }
 
         return credential;
     }
 
+    /**
+     * Loads every Account in the backing {@link ISharedPreferencesFileManager}, keyed by the cache
+     * key under which it was persisted.
+     *
+     * @return A mutable Map of cache keys to Accounts.
+     */
     @NonNull
-    private Map<String, AccountRecord> getAccountsWithKeys() {
+    Map<String, AccountRecord> getAccountsWithKeys() {
         Logger.verbose(TAG, "Loading Accounts + keys...");
-        final Map<String, ?> cacheValues = mSharedPreferencesFileManager.getAll();
+        final Map<String, ?> cacheValues = mSharedPreferencesFileManager.getAll(ACCOUNT_KEY_FILTER);
         final Map<String, AccountRecord> accounts = new HashMap<>();
 
         for (Map.Entry<String, ?> cacheValue : cacheValues.entrySet()) {
             final String cacheKey = cacheValue.getKey();
-            if (isAccount(cacheKey)) {
-                final AccountRecord account = mCacheValueDelegate.fromCacheValue(
-                        cacheValue.getValue().toString(),
-                        AccountRecord.class
-                );
+            final AccountRecord account = mCacheValueDelegate.fromCacheValue(
+                    cacheValue.getValue().toString(),
+                    AccountRecord.class
+            );
 
-                if (null == account) {
-                    Logger.warn(
-                            TAG,
-                            ACCOUNT_RECORD_DESERIALIZATION_FAILED
-                    );
-                } else {
-                    accounts.put(cacheKey, account);
-                }
+            if (null == account) {
+                Logger.warn(
+                        TAG,
+                        ACCOUNT_RECORD_DESERIALIZATION_FAILED
+                );
+            } else {
+                accounts.put(cacheKey, account);
             }
         }
 
@@ -220,12 +304,18 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
 
     @Override
     @NonNull
-    public synchronized List<AccountRecord> getAccounts() {
-        Logger.verbose(TAG, "Loading Accounts...(no arg)");
-        final Map<String, AccountRecord> allAccounts = getAccountsWithKeys();
-        final List<AccountRecord> accounts = new ArrayList<>(allAccounts.values());
-        Logger.info(TAG, "Found [" + accounts.size() + "] Accounts...");
-        return accounts;
+    public List<AccountRecord> getAccounts() {
+        mLock.readLock().lock();
+
+        try {
+            Logger.verbose(TAG, "Loading Accounts...(no arg)");
+            final Map<String, AccountRecord> allAccounts = getAccountsWithKeys();
+            final List<AccountRecord> accounts = new ArrayList<>(allAccounts.values());
+            Logger.info(TAG, "Found [" + accounts.size() + "] Accounts...");
+            return accounts;
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     @Override
@@ -250,28 +340,44 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
         return matchingAccounts;
     }
 
+    /**
+     * Loads every Credential in the backing {@link ISharedPreferencesFileManager}, keyed by the
+     * cache key under which it was persisted.
+     *
+     * @return A mutable Map of cache keys to Credentials.
+     */
     @NonNull
-    private Map<String, Credential> getCredentialsWithKeys() {
+    Map<String, Credential> getCredentialsWithKeys() {
+        return getCredentialsWithKeys(CREDENTIAL_KEY_FILTER);
+    }
+
+    /**
+     * Loads the Credentials whose cache keys are accepted by the supplied filter, keyed by the
+     * cache key under which each was persisted. Rejected entries are not decrypted.
+     *
+     * @param filter The filter to apply to each cache key; it must reject the keys of Accounts.
+     * @return A mutable Map of cache keys to Credentials.
+     */
+    @NonNull
+    Map<String, Credential> getCredentialsWithKeys(@NonNull final ICacheKeyFilter filter) {
         Logger.verbose(TAG, "Loading Credentials with keys...");
-        final Map<String, ?> cacheValues = mSharedPreferencesFileManager.getAll();
+        final Map<String, ?> cacheValues = mSharedPreferencesFileManager.getAll(filter);
         final Map<String, Credential> credentials = new HashMap<>();
 
         for (Map.Entry<String, ?> cacheValue : cacheValues.entrySet()) {
             final String cacheKey = cacheValue.getKey();
-            if (isCredential(cacheKey)) {
-                final Credential credential = mCacheValueDelegate.fromCacheValue(
-                        cacheValue.getValue().toString(),
-                        credentialClassForType(cacheKey)
-                );
+            final Credential credential = mCacheValueDelegate.fromCacheValue(
+                    cacheValue.getValue().toString(),
+                    credentialClassForType(cacheKey)
+            );
 
-                if (null == credential) {
-                    Logger.warn(
-                            TAG,
-                            CREDENTIAL_DESERIALIZATION_FAILED
-                    );
-                } else {
-                    credentials.put(cacheKey, credential);
-                }
+            if (null == credential) {
+                Logger.warn(
+                        TAG,
+                        CREDENTIAL_DESERIALIZATION_FAILED
+                );
+            } else {
+                credentials.put(cacheKey, credential);
             }
         }
 
@@ -282,11 +388,17 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
 
     @Override
     @NonNull
-    public synchronized List<Credential> getCredentials() {
-        Logger.verbose(TAG, "Loading Credentials...");
-        final Map<String, Credential> allCredentials = getCredentialsWithKeys();
-        final List<Credential> creds = new ArrayList<>(allCredentials.values());
-        return creds;
+    public List<Credential> getCredentials() {
+        mLock.readLock().lock();
+
+        try {
+            Logger.verbose(TAG, "Loading Credentials...");
+            final Map<String, Credential> allCredentials = getCredentialsWithKeys();
+            final List<Credential> creds = new ArrayList<>(allCredentials.values());
+            return creds;
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     @Override
@@ -299,19 +411,43 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
             @Nullable final String realm,
             @Nullable final String target,
             @Nullable final String authScheme) {
+        return getCredentialsFilteredBy(
+                new CredentialQuery(
+                        homeAccountId,
+                        environment,
+                        credentialType,
+                        clientId,
+                        realm,
+                        target,
+                        authScheme
+                )
+        );
+    }
+
+    @Override
+    @NonNull
+    public List<Credential> getCredentialsFilteredBy(@NonNull final CredentialQuery query) {
         Logger.verbose(TAG, "getCredentialsFilteredBy()");
 
-        final List<Credential> allCredentials = getCredentials();
+        final List<Credential> candidateCredentials;
+
+        mLock.readLock().lock();
+
+        try {
+            candidateCredentials = new ArrayList<>(getCredentialsWithKeys(query).values());
+        } finally {
+            mLock.readLock().unlock();
+        }
 
         final List<Credential> matchingCredentials = getCredentialsFilteredByInternal(
-                homeAccountId,
-                environment,
-                credentialType,
-                clientId,
-                realm,
-                target,
-                authScheme,
-                allCredentials
+                query.getHomeAccountId(),
+                query.getEnvironment(),
+                query.getCredentialType(),
+                query.getClientId(),
+                query.getRealm(),
+                query.getTarget(),
+                query.getAuthScheme(),
+                candidateCredentials
         );
 
         Logger.verbose(TAG, "Found [" + matchingCredentials.size() + "] matching Credentials...");
@@ -326,20 +462,29 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
             throw new IllegalArgumentException("Param [accountToRemove] cannot be null.");
         }
 
-        final Map<String, AccountRecord> accounts = getAccountsWithKeys();
+        String cacheKeyToRemove = null;
+
+        mLock.readLock().lock();
 
-        boolean accountRemoved = false;
-        for (final Map.Entry<String, AccountRecord> entry : accounts.entrySet()) {
-            Logger.verbosePII(TAG, "Inspecting: [" + entry.getKey() + "]");
-            final IAccountRecord currentAccount = entry.getValue();
+        try {
+            final Map<String, AccountRecord> accounts = getAccountsWithKeys();
 
-            if (currentAccount.equals(accountToRemove)) {
-                mSharedPreferencesFileManager.remove(entry.getKey());
-                accountRemoved = true;
-                break;
+            for (final Map.Entry<String, AccountRecord> entry : accounts.entrySet()) {
+                Logger.verbosePII(TAG, "Inspecting: [" + entry.getKey() + "]");
+                final IAccountRecord currentAccount = entry.getValue();
+
+                if (currentAccount.equals(accountToRemove)) {
+                    cacheKeyToRemove = entry.getKey();
+                    break;
+                }
             }
+        } finally {
+            mLock.readLock().unlock();
         }
 
+        final boolean accountRemoved = null != cacheKeyToRemove
+                && removeIfUnchanged(cacheKeyToRemove, accountToRemove, AccountRecord.class);
+
         Logger.info(TAG, "Account was removed? [" + accountRemoved + "]");
 
         return accountRemoved;
@@ -353,20 +498,33 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
             throw new IllegalArgumentException("Param [credentialToRemove] cannot be null.");
         }
 
-        final Map<String, Credential> credentials = getCredentialsWithKeys();
+        String cacheKeyToRemove = null;
 
-        boolean credentialRemoved = false;
-        for (final Map.Entry<String, Credential> entry : credentials.entrySet()) {
-            Logger.verbosePII(TAG, "Inspecting: [" + entry.getKey() + "]");
-            final Credential currentCredential = entry.getValue();
+        mLock.readLock().lock();
 
-            if (currentCredential.equals(credentialToRemove)) {
-                mSharedPreferencesFileManager.remove(entry.getKey());
-                credentialRemoved = true;
-                break;
+        try {
+            final Map<String, Credential> credentials = getCredentialsWithKeys();
+
+            for (final Map.Entry<String, Credential> entry : credentials.entrySet()) {
+                Logger.verbosePII(TAG, "Inspecting: [" + entry.getKey() + "]");
+                final Credential currentCredential = entry.getValue();
+
+                if (currentCredential.equals(credentialToRemove)) {
+                    cacheKeyToRemove = entry.getKey();
+                    break;
+                }
             }
+        } finally {
+            mLock.readLock().unlock();
         }
 
+        final boolean credentialRemoved = null != cacheKeyToRemove
+                && removeIfUnchanged(
+                cacheKeyToRemove,
+                credentialToRemove,
+                credentialClassForType(cacheKeyToRemove)
+        );
+
         Logger.info(TAG, "Credential was removed? [" + credentialRemoved + "]");
 
         return credentialRemoved;
@@ -374,18 +532,34 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
 
     @Override
     public void clearAll() {
-        Logger.info(TAG, "Clearing all SharedPreferences entries...");
-        mSharedPreferencesFileManager.clear();
-        Logger.info(TAG, "SharedPreferences cleared.");
+        mLock.writeLock().lock();
+
+        try {
+            Logger.info(TAG, "Clearing all SharedPreferences entries...");
+            mSharedPreferencesFileManager.clear();
+            Logger.info(TAG, "SharedPreferences cleared.");
+        } finally {
+            mLock.writeLock().unlock();
+        }
     }
 
-    private Class<? extends Credential> credentialClassForType(@NonNull final String cacheKey) {
-        Logger.verbose(TAG, "Resolving class for key/CredentialType...");
-        Logger.verbosePII(TAG, "Supplied key: [" + cacheKey + "]");
+    @Override
+    public void beginBatch() {
+        mSharedPreferencesFileManager.beginBatch();
+    }
 
-        final CredentialType targetType = getCredentialTypeForCredentialCacheKey(cacheKey);
+    @Override
+    public void commitBatch() {
+        mSharedPreferencesFileManager.commitBatch();
+    }
 
-        Logger.verbose(TAG, "CredentialType matched: [" + targetType + "]");
+    @Override
+    public void abortBatch() {
+        mSharedPreferencesFileManager.abortBatch();
+    }
+
+    private Class<? extends Credential> credentialClassForType(@NonNull final String cacheKey) {
+        final CredentialType targetType = getCredentialTypeForCredentialCacheKey(cacheKey);
 
         return getTargetClassForCredentialType(cacheKey, targetType);
     }
@@ -402,58 +576,7 @@ public class SharedPreferencesAccountCredentialCache extends AbstractAccountCred
             throw new IllegalArgumentException("Param [cacheKey] cannot be null.");
         }
 
-        Logger.verbosePII(TAG, "Evaluating cache key for CredentialType [" + cacheKey + "]");
-
-        final Set<String> credentialTypesLowerCase = new HashSet<>();
-
-        for (final String credentialTypeStr : CredentialType.valueSet()) {
-            credentialTypesLowerCase.add(credentialTypeStr.toLowerCase(Locale.US));
-        }
-
-        CredentialType type = null;
-        for (final String credentialTypeStr : credentialTypesLowerCase) {
-            if (cacheKey.contains(CACHE_VALUE_SEPARATOR + credentialTypeStr + CACHE_VALUE_SEPARATOR)) {
-                Logger.verbose(TAG, "Cache key is a Credential type...");
-
-                if (credentialTypeStr.equalsIgnoreCase(CredentialType.AccessToken.name())) {
-                    type = CredentialType.AccessToken;
-                    break;
-                } else if (credentialTypeStr.equalsIgnoreCase(CredentialType.AccessToken_With_AuthScheme.name())) {
-                    type = CredentialType.AccessToken_With_AuthScheme;
-                    break;
-                } else if (credentialTypeStr.equalsIgnoreCase(CredentialType.RefreshToken.name())) {
-                    type = CredentialType.RefreshToken;
-                    break;
-                } else if (credentialTypeStr.equalsIgnoreCase(CredentialType.IdToken.name())) {
-                    type = CredentialType.IdToken;
-                    break;
-                } else if (credentialTypeStr.equalsIgnoreCase(CredentialType.V1IdToken.name())) {
-                    type = CredentialType.V1IdToken;
-                    break;
-                } else {
-                    // TODO Log a warning and skip this value?
-                    Logger.warn(TAG, "Unexpected credential type.");
-                }
-            }
-        }
-
-        Logger.verbose(TAG, "Cache key was type: [" + type + "]");
-
-        return type;
-    }
-
-    private boolean isAccount(@NonNull final String cacheKey) {
-        Logger.verbosePII(TAG, "Evaluating cache key: [" + cacheKey + "]");
-        boolean isAccount = null == getCredentialTypeForCredentialCacheKey(cacheKey);
-        Logger.verbose(TAG, "isAccount? [" + isAccount + "]");
-        return isAccount;
-    }
-
-    private boolean isCredential(@NonNull String cacheKey) {
-        Logger.verbosePII(TAG, "Evaluating cache key: [" + cacheKey + "]");
-        boolean isCredential = null != getCredentialTypeForCredentialCacheKey(cacheKey);
-        Logger.verbose(TAG, "isCredential? [" + isCredential + "]");
-        return isCredential;
+        return CacheKeyTokenizer.getCredentialType(cacheKey);
     }
 
 }
@@ -33,10 +33,17 @@ import com.microsoft.identity.common.internal.logging.Logger;
 
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * {@link IBrokerApplicationMetadataCache} backed by SharedPreferences. Lookups are served from
+ * indexes keyed by (clientId, environment, uid) and by FoCI membership, which are rebuilt from
+ * memory only when the contents of the cache change.
+ */
 public class SharedPreferencesBrokerApplicationMetadataCache
         extends SharedPreferencesSimpleCacheImpl<BrokerApplicationMetadata>
         implements IBrokerApplicationMetadataCache {
@@ -47,19 +54,138 @@ public class SharedPreferencesBrokerApplicationMetadataCache
 
     private static final String KEY_CACHE_LIST = "app-meta-cache";
 
+    private volatile Index mIndex;
+
+    /**
+     * Lookup structures derived from one version of the cache contents.
+     */
+    private static final class Index {
+
+        private final long mVersion;
+
+        private final Map<MetadataKey, BrokerApplicationMetadata> mMetadataByKey = new HashMap<>();
+
+        private final Set<String> mAllClientIds = new HashSet<>();
+
+        private final Set<String> mFociClientIds = new HashSet<>();
+
+        private final Set<String> mNonFociClientIds = new HashSet<>();
+
+        private final List<BrokerApplicationMetadata> mFociApplicationMetadata = new ArrayList<>();
+
+        Index(final long version, @NonNull final List<BrokerApplicationMetadata> allMetadata) {
+            mVersion = version;
+
+            for (final BrokerApplicationMetadata metadata : allMetadata) {
+                final MetadataKey key = new MetadataKey(
+                        metadata.getClientId(),
+                        metadata.getEnvironment(),
+                        metadata.getUid()
+                );
+
+                // As for a linear search, the first match wins
+                if (!mMetadataByKey.containsKey(key)) {
+                    mMetadataByKey.put(key, metadata);
+                }
+
+                mAllClientIds.add(metadata.getClientId());
+
+                if (TextUtils.isEmpty(metadata.getFoci())) {
+                    mNonFociClientIds.add(metadata.getClientId());
+                } else {
+                    mFociClientIds.add(metadata.getClientId());
+                }
+            }
+
+            for (final BrokerApplicationMetadata metadata : allMetadata) {
+                if (mFociClientIds.contains(metadata.getClientId())) {
+                    mFociApplicationMetadata.add(metadata);
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies the metadata of an app: (clientId, environment, uid).
+     */
+    private static final class MetadataKey {
+
+        private final String mClientId;
+
+        private final String mEnvironment;
+
+        private final int mUid;
+
+        MetadataKey(@Nullable final String clientId,
+                    @Nullable final String environment,
+                    final int uid) {
+            mClientId = clientId;
+            mEnvironment = environment;
+            mUid = uid;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof MetadataKey)) {
+                return false;
+            }
+
+            final MetadataKey that = (MetadataKey) o;
+
+            if (mUid != that.mUid) {
+                return false;
+            }
+
+            if (mClientId != null ? !mClientId.equals(that.mClientId) : that.mClientId != null) {
+                return false;
+            }
+
+            return mEnvironment != null
+                    ? mEnvironment.equals(that.mEnvironment)
+                    : that.mEnvironment == null;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mClientId != null ? mClientId.hashCode() : 0;
+            result = 31 * result + (mEnvironment != null ? mEnvironment.hashCode() : 0);
+            result = 31 * result + mUid;
+            return result;
+        }
+    }
+
     public SharedPreferencesBrokerApplicationMetadataCache(@NonNull final Context context) {
         super(context, DEFAULT_APP_METADATA_CACHE_NAME, KEY_CACHE_LIST);
     }
 
+    /**
+     * Returns the index of the current contents, rebuilding it if they have changed.
+     */
+    @NonNull
+    private Index getIndex() {
+        final Index index = mIndex;
+
+        if (null != index && index.mVersion == getVersion()) {
+            return index;
+        }
+
+        // The version and contents are read together, so the index is stamped with its own version
+        final Snapshot<BrokerApplicationMetadata> snapshot = getSnapshot();
+        final Index rebuilt = new Index(snapshot.getVersion(), snapshot.getItems());
+        mIndex = rebuilt;
+
+        return rebuilt;
+    }
+
     @Override
     public Set<String> getAllClientIds() {
         final String methodName = ":getAllClientIds";
 
-        final Set<String> allClientIds = new HashSet<>();
-
-        for (final BrokerApplicationMetadata metadata : getAll()) {
-            allClientIds.add(metadata.getClientId());
-        }
+        final Set<String> allClientIds = new HashSet<>(getIndex().mAllClientIds);
 
         Logger.verbose(
                 TAG + methodName,
@@ -83,19 +209,7 @@ public class SharedPreferencesBrokerApplicationMetadataCache
 
     @Override
     public List<BrokerApplicationMetadata> getAllFociApplicationMetadata() {
-        final Set<String> fociClientIds = getAllFociClientIds();
-
-        final List<BrokerApplicationMetadata> result = new ArrayList<>();
-
-        final List<BrokerApplicationMetadata> allMetadata = getAll();
-
-        for (final BrokerApplicationMetadata metadata : allMetadata) {
-            if (fociClientIds.contains(metadata.getClientId())) {
-                result.add(metadata);
-            }
-        }
-
-        return result;
+        return new ArrayList<>(getIndex().mFociApplicationMetadata);
     }
 
     /**
@@ -107,19 +221,10 @@ public class SharedPreferencesBrokerApplicationMetadataCache
     private Set<String> getAllFociClientIds(final boolean inverseMatch) {
         final String methodName = ":getAllFociClientIds";
 
-        final Set<String> allFociClientIds = new HashSet<>();
-
-        for (final BrokerApplicationMetadata metadata : getAll()) {
-            if (!inverseMatch) { // match FoCI
-                if (!TextUtils.isEmpty(metadata.getFoci())) {
-                    allFociClientIds.add(metadata.getClientId());
-                }
-            } else { // match non FoCI
-                if (TextUtils.isEmpty(metadata.getFoci())) {
-                    allFociClientIds.add(metadata.getClientId());
-                }
-            }
-        }
+        final Index index = getIndex();
+        final Set<String> allFociClientIds = new HashSet<>(
+                inverseMatch ? index.mNonFociClientIds : index.mFociClientIds
+        );
 
         Logger.verbose(
                 TAG + methodName,
@@ -138,22 +243,9 @@ public class SharedPreferencesBrokerApplicationMetadataCache
                                                  final int processUid) {
         final String methodName = ":getMetadata";
 
-        final List<BrokerApplicationMetadata> allMetadata = getAll();
-        BrokerApplicationMetadata result = null;
-
-        for (final BrokerApplicationMetadata metadata : allMetadata) {
-            if (clientId.equals(metadata.getClientId())
-                    && environment.equals(metadata.getEnvironment())
-                    && processUid == metadata.getUid()) {
-                Logger.verbose(
-                        TAG + metadata,
-                        "Metadata located."
-                );
-
-                result = metadata;
-                break;
-            }
-        }
+        final BrokerApplicationMetadata result = getIndex().mMetadataByKey.get(
+                new MetadataKey(clientId, environment, processUid)
+        );
 
         if (null == result) {
             Logger.warn(
@@ -164,6 +256,11 @@ public class SharedPreferencesBrokerApplicationMetadataCache
                             + environment
                             + "]"
             );
+        } else {
+            Logger.verbose(
+                    TAG + methodName,
+                    "Metadata located."
+            );
         }
 
         return result;
@@ -31,13 +31,17 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.microsoft.identity.common.adal.internal.cache.IStorageHelper;
+import com.microsoft.identity.common.adal.internal.cache.StorageHelper;
 import com.microsoft.identity.common.adal.internal.util.StringExtensions;
 import com.microsoft.identity.common.internal.logging.Logger;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Convenience class for accessing {@link SharedPreferences}.
@@ -46,9 +50,52 @@ public class SharedPreferencesFileManager implements ISharedPreferencesFileManag
 
     private static final String TAG = SharedPreferencesFileManager.class.getSimpleName();
 
+    /**
+     * Write generations by file name, shared by every instance in this process.
+     */
+    private static final ConcurrentHashMap<String, AtomicLong> sFileGenerations =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on every committed write to any file in this process.
+     */
+    private static final AtomicLong sProcessGeneration = new AtomicLong();
+
     private final String mSharedPreferencesFileName;
     private final SharedPreferences mSharedPreferences;
     private final IStorageHelper mStorageHelper;
+    private final DecryptedValueCache mDecryptedValueCache;
+
+    private final AtomicLong mGeneration;
+
+    /**
+     * The write batch (if any) opened by the current thread.
+     */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    /**
+     * Uncommitted writes accumulated between {@link #beginBatch()} and {@link #commitBatch()}.
+     */
+    private static class Batch {
+
+        private SharedPreferences.Editor mEditor;
+
+        /**
+         * Plaintext values written in this batch; a null value denotes a removal.
+         */
+        private final Map<String, String> mPendingValues = new HashMap<>();
+
+        private int mDepth;
+
+        /**
+         * True once any level of this batch was aborted; it is then discarded when closed.
+         */
+        private boolean mAborted;
+
+        Batch(@NonNull final SharedPreferences.Editor editor) {
+            mEditor = editor;
+        }
+    }
 
     /**
      * Constructs an instance of SharedPreferencesFileManager.
@@ -63,8 +110,10 @@ public class SharedPreferencesFileManager implements ISharedPreferencesFileManag
             final String name) {
         Logger.verbose(TAG, "Init: " + TAG);
         mSharedPreferencesFileName = name;
+        mGeneration = generationOf(name);
         mSharedPreferences = context.getSharedPreferences(name, Context.MODE_PRIVATE);
         mStorageHelper = null;
+        mDecryptedValueCache = null;
     }
 
     /**
@@ -81,8 +130,10 @@ public class SharedPreferencesFileManager implements ISharedPreferencesFileManag
             final int operatingMode) {
         Logger.verbose(TAG, "Init with operating mode: " + TAG);
         mSharedPreferencesFileName = name;
+        mGeneration = generationOf(name);
         mSharedPreferences = context.getSharedPreferences(name, operatingMode);
         mStorageHelper = null;
+        mDecryptedValueCache = null;
     }
 
     /**
@@ -100,8 +151,10 @@ public class SharedPreferencesFileManager implements ISharedPreferencesFileManag
             final IStorageHelper storageHelper) {
         Logger.verbose(TAG, "Init with storage helper:  " + TAG);
         mSharedPreferencesFileName = name;
+        mGeneration = generationOf(name);
         mSharedPreferences = context.getSharedPreferences(name, Context.MODE_PRIVATE);
         mStorageHelper = storageHelper;
+        mDecryptedValueCache = null;
     }
 
     /**
@@ -120,8 +173,34 @@ public class SharedPreferencesFileManager implements ISharedPreferencesFileManag
             final IStorageHelper storageHelper) {
         Logger.verbose(TAG, "Init with operating mode and storage helper " + TAG);
         mSharedPreferencesFileName = name;
+        mGeneration = generationOf(name);
         mSharedPreferences = context.getSharedPreferences(name, operatingMode);
         mStorageHelper = storageHelper;
+        mDecryptedValueCache = null;
+    }
+
+    /**
+     * Constructs an instance of SharedPreferencesFileManager which caches decrypted values.
+     * The default operating mode is {@link Context#MODE_PRIVATE}
+     *
+     * @param context             Interface to global information about an application environment.
+     * @param name                The desired {@link android.content.SharedPreferences} file. It will be created
+     *                            if it does not exist.
+     * @param storageHelper       The {@link IStorageHelper} to handle encryption/decryption of values.
+     * @param decryptedValueCache The {@link DecryptedValueCache} in which to keep decrypted values.
+     *                            May be shared by several instances.
+     */
+    public SharedPreferencesFileManager(
+            final Context context,
+            final String name,
+            final IStorageHelper storageHelper,
+            final DecryptedValueCache decryptedValueCache) {
+        Logger.verbose(TAG, "Init with storage helper and decrypted value cache: " + TAG);
+        mSharedPreferencesFileName = name;
+        mGeneration = generationOf(name);
+        mSharedPreferences = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+        mStorageHelper = storageHelper;
+        mDecryptedValueCache = decryptedValueCache;
     }
 
     // Suppressing because cache integrity is a greater concern than perf
@@ -130,21 +209,45 @@ public class SharedPreferencesFileManager implements ISharedPreferencesFileManag
     public final void putString(
             final String key,
             final String value) {
-        final SharedPreferences.Editor editor = mSharedPreferences.edit();
+        final Batch batch = mBatch.get();
+        final SharedPreferences.Editor editor = null == batch
+                ? mSharedPreferences.edit()
+                : batch.mEditor;
+
+        String storedValue = value;
 
         if (null == mStorageHelper) {
             editor.putString(key, value);
         } else {
             final String encryptedValue = encrypt(value);
             editor.putString(key, encryptedValue);
+
+            if (null == encryptedValue) {
+                // A null value is treated as a removal by the Editor
+                storedValue = null;
+            } else if (null != mDecryptedValueCache) {
+                mDecryptedValueCache.evict(mSharedPreferences.getString(key, null));
+                mDecryptedValueCache.put(encryptedValue, value);
+            }
         }
 
-        editor.commit();
+        if (null == batch) {
+            editor.commit();
+            advanceGeneration();
+        } else {
+            batch.mPendingValues.put(key, storedValue);
+        }
     }
 
     @Override
     @Nullable
     public final String getString(final String key) {
+        final Batch batch = mBatch.get();
+
+        if (null != batch && batch.mPendingValues.containsKey(key)) {
+            return batch.mPendingValues.get(key);
+        }
+
         String restoredValue = mSharedPreferences.getString(key, null);
 
         if (null != mStorageHelper && !StringExtensions.isNullOrBlank(restoredValue)) {
@@ -191,22 +294,42 @@ public class SharedPreferencesFileManager implements ISharedPreferencesFileManag
 
     @Override
     public final Map<String, String> getAll() {
+        return getAllInternal(null);
+    }
+
+    @Override
+    public final Map<String, String> getAll(@NonNull final ICacheKeyFilter filter) {
+        return getAllInternal(filter);
+    }
+
+    private Map<String, String> getAllInternal(@Nullable final ICacheKeyFilter filter) {
         final Map<String, String> entries = (Map<String, String>) mSharedPreferences.getAll();
 
+        if (null != filter) {
+            // Drop rejected keys before paying for their decryption
+            final Iterator<String> keyIterator = entries.keySet().iterator();
+
+            while (keyIterator.hasNext()) {
+                if (!filter.accept(keyIterator.next())) {
+                    keyIterator.remove();
+                }
+            }
+        }
+
         if (null != mStorageHelper) {
-            final Iterator<Map.Entry<String, String>> iterator = entries.entrySet().iterator();
+            decryptAll(entries);
+        }
 
-            while (iterator.hasNext()) {
-                final Map.Entry<String, String> entry = iterator.next();
-                final String decryptedValue = decrypt(entry.getValue());
+        final Batch batch = mBatch.get();
 
-                if (TextUtils.isEmpty(decryptedValue)) {
-                    logWarningAndRemoveKey(entry.getKey());
-                    iterator.remove();
-                    continue;
+        if (null != batch) {
+            // Overlay the writes of this thread's open batch
+            for (final Map.Entry<String, String> pendingEntry : batch.mPendingValues.entrySet()) {
+                if (null == pendingEntry.getValue()) {
+                    entries.remove(pendingEntry.getKey());
+                } else if (null == filter || filter.accept(pendingEntry.getKey())) {
+                    entries.put(pendingEntry.getKey(), pendingEntry.getValue());
                 }
-
-                entry.setValue(decryptedValue);
             }
         }
 
@@ -221,9 +344,22 @@ public class SharedPreferencesFileManager implements ISharedPreferencesFileManag
     @SuppressLint("ApplySharedPref")
     @Override
     public final void clear() {
+        final Batch batch = mBatch.get();
+
+        if (null != batch) {
+            // Clearing supersedes anything written so far in this batch; start over.
+            batch.mPendingValues.clear();
+            batch.mEditor = mSharedPreferences.edit();
+        }
+
         final SharedPreferences.Editor editor = mSharedPreferences.edit();
         editor.clear();
         editor.commit();
+        advanceGeneration();
+
+        if (null != mDecryptedValueCache) {
+            mDecryptedValueCache.evictAll();
+        }
     }
 
     @SuppressLint("ApplySharedPref")
@@ -234,9 +370,21 @@ public class SharedPreferencesFileManager implements ISharedPreferencesFileManag
                 "Removing cache key"
         );
 
-        final SharedPreferences.Editor editor = mSharedPreferences.edit();
-        editor.remove(key);
-        editor.commit();
+        if (null != mDecryptedValueCache) {
+            mDecryptedValueCache.evict(mSharedPreferences.getString(key, null));
+        }
+
+        final Batch batch = mBatch.get();
+
+        if (null == batch) {
+            final SharedPreferences.Editor editor = mSharedPreferences.edit();
+            editor.remove(key);
+            editor.commit();
+            advanceGeneration();
+        } else {
+            batch.mEditor.remove(key);
+            batch.mPendingValues.put(key, null);
+        }
 
         Logger.infoPII(
                 TAG,
@@ -246,6 +394,109 @@ public class SharedPreferencesFileManager implements ISharedPreferencesFileManag
         );
     }
 
+    @Override
+    public void beginBatch() {
+        Batch batch = mBatch.get();
+
+        if (null == batch) {
+            batch = new Batch(mSharedPreferences.edit());
+            mBatch.set(batch);
+        }
+
+        batch.mDepth++;
+    }
+
+    @Override
+    public void commitBatch() {
+        closeBatch(false);
+    }
+
+    @Override
+    public void abortBatch() {
+        closeBatch(true);
+    }
+
+    @SuppressLint("ApplySharedPref")
+    private void closeBatch(final boolean abort) {
+        final String methodName = ":closeBatch";
+        final Batch batch = mBatch.get();
+
+        if (null == batch) {
+            throw new IllegalStateException("Batch closed without a matching beginBatch()");
+        }
+
+        batch.mAborted |= abort;
+
+        if (--batch.mDepth > 0) {
+            // Nested batch, the outermost one flushes.
+            return;
+        }
+
+        mBatch.remove();
+
+        if (batch.mAborted) {
+            // The staged Editor is dropped without being committed
+            Logger.warn(
+                    TAG + methodName,
+                    "Discarded [" + batch.mPendingValues.size() + "] batched writes."
+            );
+        } else if (!batch.mPendingValues.isEmpty()) {
+            batch.mEditor.commit();
+            advanceGeneration();
+
+            Logger.verbose(
+                    TAG + methodName,
+                    "Committed [" + batch.mPendingValues.size() + "] batched writes."
+            );
+        }
+    }
+
+    @Override
+    public long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Returns the number of writes committed to any {@link SharedPreferencesFileManager} file in
+     * this process. A cheap way to tell whether anything derived from several files is still
+     * current.
+     *
+     * @return The process-wide write generation.
+     */
+    public static long getProcessGeneration() {
+        return sProcessGeneration.get();
+    }
+
+    /**
+     * Returns the write generation counter for the named file, creating it if needed. Other
+     * {@link ISharedPreferencesFileManager} backends in this package use it so their writes are
+     * reflected in {@link #getProcessGeneration()}.
+     *
+     * @param name The file name.
+     * @return The shared counter.
+     */
+    @NonNull
+    static AtomicLong generationOf(@NonNull final String name) {
+        final AtomicLong generation = new AtomicLong();
+        final AtomicLong existing = sFileGenerations.putIfAbsent(name, generation);
+
+        return null == existing ? generation : existing;
+    }
+
+    /**
+     * Records a committed write to the file whose counter is supplied.
+     *
+     * @param generation The counter returned by {@link #generationOf(String)}.
+     */
+    static void advanceGeneration(@NonNull final AtomicLong generation) {
+        generation.incrementAndGet();
+        sProcessGeneration.incrementAndGet();
+    }
+
+    private void advanceGeneration() {
+        advanceGeneration(mGeneration);
+    }
+
     @Nullable
     private String encrypt(@NonNull final String clearText) {
         return encryptDecryptInternal(clearText, true);
@@ -253,7 +504,109 @@ public class SharedPreferencesFileManager implements ISharedPreferencesFileManag
 
     @Nullable
     private String decrypt(@NonNull final String encryptedBlob) {
-        return encryptDecryptInternal(encryptedBlob, false);
+        if (null == mDecryptedValueCache) {
+            return encryptDecryptInternal(encryptedBlob, false);
+        }
+
+        String result = mDecryptedValueCache.get(encryptedBlob);
+
+        if (null == result) {
+            result = encryptDecryptInternal(encryptedBlob, false);
+
+            if (!StringExtensions.isNullOrBlank(result)) {
+                mDecryptedValueCache.put(encryptedBlob, result);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Decrypts the supplied entries in place, removing those which cannot be decrypted. Values
+     * found in the {@link DecryptedValueCache} are reused; the rest are decrypted in bulk.
+     */
+    private void decryptAll(@NonNull final Map<String, String> entries) {
+        final Map<String, String> encryptedEntries = new HashMap<>();
+
+        for (final Map.Entry<String, String> entry : entries.entrySet()) {
+            final String cachedValue = null == mDecryptedValueCache
+                    ? null
+                    : mDecryptedValueCache.get(entry.getValue());
+
+            if (null == cachedValue) {
+                encryptedEntries.put(entry.getKey(), entry.getValue());
+            } else {
+                entry.setValue(cachedValue);
+            }
+        }
+
+        if (encryptedEntries.isEmpty()) {
+            return;
+        }
+
+        final Map<String, String> decryptedEntries = decryptValues(mStorageHelper, encryptedEntries);
+
+        for (final Map.Entry<String, String> encryptedEntry : encryptedEntries.entrySet()) {
+            final String key = encryptedEntry.getKey();
+            final String decryptedValue = decryptedEntries.get(key);
+
+            if (TextUtils.isEmpty(decryptedValue)) {
+                logWarningAndRemoveKey(key);
+                entries.remove(key);
+                continue;
+            }
+
+            entries.put(key, decryptedValue);
+
+            if (null != mDecryptedValueCache) {
+                mDecryptedValueCache.put(encryptedEntry.getValue(), decryptedValue);
+            }
+        }
+    }
+
+    /**
+     * Decrypts the supplied values, in bulk if the storage helper is a {@link StorageHelper} and
+     * one at a time through {@link IStorageHelper#decrypt(String)} otherwise.
+     *
+     * @param storageHelper   The storage helper which encrypted the values.
+     * @param encryptedValues The values to decrypt, by key.
+     * @return The decrypted values, by key. Values which could not be decrypted are left out.
+     */
+    @NonNull
+    static Map<String, String> decryptValues(@NonNull final IStorageHelper storageHelper,
+                                             @NonNull final Map<String, String> encryptedValues) {
+        final String methodName = ":decryptValues";
+
+        if (storageHelper instanceof StorageHelper) {
+            return ((StorageHelper) storageHelper).decryptAll(encryptedValues);
+        }
+
+        final Map<String, String> decryptedValues = new HashMap<>();
+
+        for (final Map.Entry<String, String> entry : encryptedValues.entrySet()) {
+            if (StringExtensions.isNullOrBlank(entry.getValue())) {
+                continue;
+            }
+
+            try {
+                decryptedValues.put(entry.getKey(), storageHelper.decrypt(entry.getValue()));
+            } catch (final GeneralSecurityException | IOException e) {
+                // Don't log the error as it may contain a token
+                Logger.warn(TAG + methodName, "Failed to decrypt a value.");
+            }
+        }
+
+        return decryptedValues;
+    }
+
+    /**
+     * Returns the {@link DecryptedValueCache} in use, if any.
+     *
+     * @return The DecryptedValueCache or null, if decrypted values are not cached.
+     */
+    @Nullable
+    public DecryptedValueCache getDecryptedValueCache() {
+        return mDecryptedValueCache;
     }
 
     @Nullable
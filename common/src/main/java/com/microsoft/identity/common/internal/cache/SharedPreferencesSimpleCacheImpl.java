@@ -22,6 +22,7 @@
 //  THE SOFTWARE.
 package com.microsoft.identity.common.internal.cache;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 
@@ -31,15 +32,20 @@ import com.google.gson.Gson;
 import com.microsoft.identity.common.internal.logging.Logger;
 
 import java.lang.reflect.Type;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A simple metadata store definition that uses SharedPreferences to persist, read, update, and
  * delete data.
  * <p>
- * Data serializes as JSON.
+ * Data serializes as JSON. The JSON is parsed once per process, after which reads are served from
+ * memory and writes are written through; an insert of an item which is already cached, or a remove
+ * of one which is not, does not touch the file.
  *
  * @param <T> The type of metadata that will be persisted.
  */
@@ -49,9 +55,66 @@ public abstract class SharedPreferencesSimpleCacheImpl<T> implements ISimpleCach
 
     private static final String EMPTY_ARRAY = "[]";
 
+    /**
+     * Cache contents by package, file and key, shared by every instance in this process.
+     */
+    private static final ConcurrentHashMap<String, Contents> sContents = new ConcurrentHashMap<>();
+
     private final SharedPreferences mSharedPrefs;
     private final String mKeySingleEntry;
     private final Gson mGson = new Gson();
+    private final Contents mContents;
+
+    /**
+     * The parsed contents of a cache.
+     */
+    private static class Contents {
+
+        private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+        /**
+         * The cached items, in the order they were stored; null until loaded. Guarded by mLock.
+         */
+        private Set<Object> mItems;
+
+        /**
+         * Incremented each time the items change.
+         */
+        private volatile long mVersion;
+    }
+
+    /**
+     * The items of a cache together with the version they were read at.
+     *
+     * @param <T> The type of the items.
+     */
+    protected static final class Snapshot<T> {
+
+        private final List<T> mItems;
+
+        private final long mVersion;
+
+        Snapshot(@NonNull final List<T> items, final long version) {
+            mItems = items;
+            mVersion = version;
+        }
+
+        /**
+         * @return The items, in the order they were stored.
+         */
+        @NonNull
+        public List<T> getItems() {
+            return mItems;
+        }
+
+        /**
+         * @return The version the items were read at, see
+         * {@link SharedPreferencesSimpleCacheImpl#getVersion()}.
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+    }
 
     public SharedPreferencesSimpleCacheImpl(@NonNull final Context context,
                                             @NonNull final String prefsName,
@@ -65,6 +128,13 @@ public abstract class SharedPreferencesSimpleCacheImpl<T> implements ISimpleCach
                 Context.MODE_PRIVATE
         );
         mKeySingleEntry = singleKey;
+
+        final Contents contents = new Contents();
+        final Contents existing = sContents.putIfAbsent(
+                context.getPackageName() + "/" + prefsName + "/" + singleKey,
+                contents
+        );
+        mContents = null == existing ? contents : existing;
     }
 
     /**
@@ -74,90 +144,116 @@ public abstract class SharedPreferencesSimpleCacheImpl<T> implements ISimpleCach
      */
     protected abstract Type getListTypeToken();
 
+    /**
+     * Returns a counter which is incremented each time the contents of this cache change, so that
+     * subclasses can tell whether anything they derive from {@link #getAll()} is still current.
+     *
+     * @return The current version of the contents.
+     */
+    protected final long getVersion() {
+        return mContents.mVersion;
+    }
+
     @Override
     public boolean insert(T t) {
         final String methodName = ":insert";
 
-        final Set<T> allMetadata = new HashSet<>(getAll());
-        Logger.verbose(
-                TAG + methodName,
-                "Existing metadata contained ["
-                        + allMetadata.size()
-                        + "] elements."
-        );
+        mContents.mLock.writeLock().lock();
 
-        allMetadata.add(t);
-
-        Logger.verbose(
-                TAG + methodName,
-                "New metadata set size: ["
-                        + allMetadata.size()
-                        + "]"
-        );
+        try {
+            final Set<Object> allMetadata = getItems();
 
-        final String json = mGson.toJson(allMetadata);
+            Logger.verbose(
+                    TAG + methodName,
+                    "Existing metadata contained ["
+                            + allMetadata.size()
+                            + "] elements."
+            );
 
-        Logger.verbose(
-                TAG + methodName,
-                "Writing cache entry."
-        );
+            if (!allMetadata.add(t)) {
+                Logger.verbose(
+                        TAG + methodName,
+                        "Entry already cached."
+                );
 
-        final boolean success = mSharedPrefs.edit().putString(mKeySingleEntry, json).commit();
+                return true;
+            }
 
-        if (success) {
             Logger.verbose(
                     TAG + methodName,
-                    "Cache successfully updated."
+                    "New metadata set size: ["
+                            + allMetadata.size()
+                            + "]"
             );
-        } else {
-            Logger.warn(
+
+            Logger.verbose(
                     TAG + methodName,
-                    "Error writing to cache."
+                    "Writing cache entry."
             );
-        }
 
-        return success;
+            final boolean success = write(allMetadata);
+
+            if (success) {
+                Logger.verbose(
+                        TAG + methodName,
+                        "Cache successfully updated."
+                );
+            } else {
+                Logger.warn(
+                        TAG + methodName,
+                        "Error writing to cache."
+                );
+
+                allMetadata.remove(t);
+            }
+
+            return success;
+        } finally {
+            mContents.mLock.writeLock().unlock();
+        }
     }
 
     @Override
     public boolean remove(T t) {
         final String methodName = ":remove";
 
-        final Set<T> allMetadata = new HashSet<>(getAll());
+        mContents.mLock.writeLock().lock();
 
-        Logger.verbose(
-                TAG + methodName,
-                "Existing metadata contained ["
-                        + allMetadata.size()
-                        + "] elements."
-        );
+        try {
+            final Set<Object> allMetadata = getItems();
 
-        final boolean removed = allMetadata.remove(t);
+            Logger.verbose(
+                    TAG + methodName,
+                    "Existing metadata contained ["
+                            + allMetadata.size()
+                            + "] elements."
+            );
 
-        Logger.verbose(
-                TAG + methodName,
-                "New metadata set size: ["
-                        + allMetadata.size()
-                        + "]"
-        );
+            final boolean removed = allMetadata.remove(t);
 
-        if (!removed) {
-            // Nothing to do, wasn't cached in the first place!
-            Logger.warn(
+            Logger.verbose(
                     TAG + methodName,
-                    "Nothing to delete -- cache entry is missing!"
+                    "New metadata set size: ["
+                            + allMetadata.size()
+                            + "]"
             );
 
-            return true;
-        } else {
-            final String json = mGson.toJson(allMetadata);
+            if (!removed) {
+                // Nothing to do, wasn't cached in the first place!
+                Logger.warn(
+                        TAG + methodName,
+                        "Nothing to delete -- cache entry is missing!"
+                );
+
+                return true;
+            }
 
             Logger.verbose(
                     TAG + methodName,
                     "Writing new cache values..."
             );
 
-            final boolean written = mSharedPrefs.edit().putString(mKeySingleEntry, json).commit();
+            final boolean written = write(allMetadata);
 
             Logger.verbose(
                     TAG + methodName,
@@ -166,50 +262,128 @@ public abstract class SharedPreferencesSimpleCacheImpl<T> implements ISimpleCach
                             + "]"
             );
 
+            if (!written) {
+                allMetadata.add(t);
+            }
+
             return written;
+        } finally {
+            mContents.mLock.writeLock().unlock();
         }
     }
 
     @Override
     public List<T> getAll() {
-        final String methodName = ":getAll";
-        final String jsonList = mSharedPrefs.getString(mKeySingleEntry, EMPTY_ARRAY);
+        return getSnapshot().getItems();
+    }
 
-        final Type listType = getListTypeToken();
+    /**
+     * Returns the items of this cache, as {@link #getAll()}, along with the version they were read
+     * at; unlike a separate call to {@link #getVersion()}, the two are guaranteed to match.
+     *
+     * @return The current contents.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    protected final Snapshot<T> getSnapshot() {
+        final String methodName = ":getSnapshot";
+
+        mContents.mLock.readLock().lock();
+
+        try {
+            if (null != mContents.mItems) {
+                return new Snapshot<>(
+                        new ArrayList<>((Set<T>) mContents.mItems),
+                        mContents.mVersion
+                );
+            }
+        } finally {
+            mContents.mLock.readLock().unlock();
+        }
 
-        final List<T> result = mGson.fromJson(
-                jsonList,
-                listType
-        );
+        mContents.mLock.writeLock().lock();
 
-        Logger.verbose(
-                TAG + methodName,
-                "Found ["
-                        + result.size()
-                        + "] cache entries."
-        );
+        try {
+            final List<T> loaded = new ArrayList<>((Set<T>) getItems());
+
+            Logger.verbose(
+                    TAG + methodName,
+                    "Found ["
+                            + loaded.size()
+                            + "] cache entries."
+            );
 
-        return result;
+            return new Snapshot<>(loaded, mContents.mVersion);
+        } finally {
+            mContents.mLock.writeLock().unlock();
+        }
     }
 
     @Override
     public boolean clear() {
         final String methodName = ":clear";
 
-        final boolean cleared = mSharedPrefs.edit().clear().commit();
+        mContents.mLock.writeLock().lock();
 
-        if (!cleared) {
-            Logger.warn(
-                    TAG + methodName,
-                    "Failed to clear cache."
-            );
-        } else {
-            Logger.verbose(
-                    TAG + methodName,
-                    "Cache successfully cleared."
-            );
+        try {
+            final boolean cleared = mSharedPrefs.edit().clear().commit();
+
+            if (!cleared) {
+                Logger.warn(
+                        TAG + methodName,
+                        "Failed to clear cache."
+                );
+
+                // We no longer know what is on disk; reload it next time.
+                mContents.mItems = null;
+            } else {
+                Logger.verbose(
+                        TAG + methodName,
+                        "Cache successfully cleared."
+                );
+
+                mContents.mItems = new LinkedHashSet<>();
+            }
+
+            mContents.mVersion++;
+
+            return cleared;
+        } finally {
+            mContents.mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the cached items, parsing them from the file if not yet loaded. Must hold the write
+     * lock.
+     */
+    @NonNull
+    private Set<Object> getItems() {
+        if (null == mContents.mItems) {
+            final String jsonList = mSharedPrefs.getString(mKeySingleEntry, EMPTY_ARRAY);
+            final List<Object> items = mGson.fromJson(jsonList, getListTypeToken());
+
+            mContents.mItems = null == items
+                    ? new LinkedHashSet<>()
+                    : new LinkedHashSet<>(items);
+            mContents.mVersion++;
+        }
+
+        return mContents.mItems;
+    }
+
+    // Suppressing because cache integrity is a greater concern than perf
+    @SuppressLint("ApplySharedPref")
+    private boolean write(@NonNull final Set<Object> items) {
+        final boolean written = mSharedPrefs
+                .edit()
+                .putString(mKeySingleEntry, mGson.toJson(items))
+                .commit();
+
+        if (written) {
+            mContents.mVersion++;
         }
 
-        return cleared;
+        return written;
     }
 }
@@ -0,0 +1,406 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.identity.common.internal.logging.Logger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link ISharedPreferencesFileManager} decorator which writes behind: puts and removes are
+ * staged in memory, coalesced per key, and written to the wrapped file manager in a single batch
+ * on a background thread, at most {@link #FLUSH_DELAY_MILLIS} after the first of them. Reads see
+ * staged writes immediately, through any instance wrapping the same file.
+ * <p>
+ * Staged writes are lost if the process dies before they are flushed. Only use this for data
+ * where losing an update is harmless, such as telemetry or the clock skew; never for tokens or
+ * other credentials.
+ */
+public class WriteBehindSharedPreferencesFileManager implements ISharedPreferencesFileManager {
+
+    private static final String TAG = WriteBehindSharedPreferencesFileManager.class.getSimpleName();
+
+    /**
+     * The longest a staged write waits before it is flushed.
+     */
+    public static final long FLUSH_DELAY_MILLIS = 1000;
+
+    private static final ScheduledExecutorService sFlushExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Staged writes by file name, shared by every instance in this process.
+     */
+    private static final ConcurrentHashMap<String, PendingWrites> sPendingWrites =
+            new ConcurrentHashMap<>();
+
+    private final ISharedPreferencesFileManager mDelegate;
+    private final PendingWrites mPendingWrites;
+
+    /**
+     * The write batch (if any) opened by the current thread. Its writes are only staged for
+     * flushing once it is committed.
+     */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    /**
+     * The staged writes of a file.
+     */
+    private static class PendingWrites {
+
+        /**
+         * Held for the whole of a flush, so that flushes are applied in order.
+         */
+        private final Object mFlushLock = new Object();
+
+        /**
+         * Values written since the last flush; a null value denotes a removal. Guarded by this.
+         */
+        private final Map<String, String> mValues = new HashMap<>();
+
+        /**
+         * Guarded by this.
+         */
+        private boolean mFlushScheduled;
+    }
+
+    /**
+     * Uncommitted writes accumulated between {@link #beginBatch()} and {@link #commitBatch()}.
+     */
+    private static class Batch {
+
+        /**
+         * Values written in this batch; a null value denotes a removal.
+         */
+        private final Map<String, String> mPendingValues = new HashMap<>();
+
+        private int mDepth;
+
+        /**
+         * True once any level of this batch was aborted; it is then discarded when closed.
+         */
+        private boolean mAborted;
+    }
+
+    /**
+     * Constructs an instance of WriteBehindSharedPreferencesFileManager.
+     *
+     * @param delegate The file manager to write to.
+     */
+    public WriteBehindSharedPreferencesFileManager(@NonNull final ISharedPreferencesFileManager delegate) {
+        Logger.verbose(TAG, "Init: " + TAG);
+        mDelegate = delegate;
+
+        final PendingWrites pendingWrites = new PendingWrites();
+        final PendingWrites existing = sPendingWrites.putIfAbsent(
+                delegate.getSharedPreferencesFileName(),
+                pendingWrites
+        );
+
+        mPendingWrites = null == existing ? pendingWrites : existing;
+    }
+
+    @Override
+    public void putString(final String key, final String value) {
+        final Batch batch = mBatch.get();
+
+        if (null == batch) {
+            stage(Collections.singletonMap(key, value));
+        } else {
+            batch.mPendingValues.put(key, value);
+        }
+    }
+
+    /**
+     * Stages the supplied writes, scheduling a flush if none is pending.
+     *
+     * @param values The values to write; a null value denotes a removal.
+     */
+    private void stage(@NonNull final Map<String, String> values) {
+        synchronized (mPendingWrites) {
+            mPendingWrites.mValues.putAll(values);
+
+            if (mPendingWrites.mFlushScheduled) {
+                return;
+            }
+
+            mPendingWrites.mFlushScheduled = true;
+        }
+
+        sFlushExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    @Nullable
+    public String getString(final String key) {
+        final Batch batch = mBatch.get();
+
+        if (null != batch && batch.mPendingValues.containsKey(key)) {
+            return batch.mPendingValues.get(key);
+        }
+
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.mValues.containsKey(key)) {
+                return mPendingWrites.mValues.get(key);
+            }
+        }
+
+        return mDelegate.getString(key);
+    }
+
+    @Override
+    public void putLong(final String key, final long value) {
+        putString(key, String.valueOf(value));
+    }
+
+    @Override
+    public long getLong(final String key) {
+        final String result = getString(key);
+
+        if (!TextUtils.isEmpty(result)) {
+            return Long.parseLong(result);
+        }
+
+        return 0;
+    }
+
+    @Override
+    public String getSharedPreferencesFileName() {
+        return mDelegate.getSharedPreferencesFileName();
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        return getAllInternal(null);
+    }
+
+    @Override
+    public Map<String, String> getAll(@NonNull final ICacheKeyFilter filter) {
+        return getAllInternal(filter);
+    }
+
+    private Map<String, String> getAllInternal(@Nullable final ICacheKeyFilter filter) {
+        // Keep a flush from landing between reading the file and overlaying the staged writes
+        synchronized (mPendingWrites.mFlushLock) {
+            final Map<String, String> entries = null == filter
+                    ? mDelegate.getAll()
+                    : mDelegate.getAll(filter);
+
+            synchronized (mPendingWrites) {
+                overlay(entries, mPendingWrites.mValues, filter);
+            }
+
+            final Batch batch = mBatch.get();
+
+            if (null != batch) {
+                // This thread's open batch is newer still
+                overlay(entries, batch.mPendingValues, filter);
+            }
+
+            return entries;
+        }
+    }
+
+    private static void overlay(@NonNull final Map<String, String> entries,
+                                @NonNull final Map<String, String> pendingValues,
+                                @Nullable final ICacheKeyFilter filter) {
+        for (final Map.Entry<String, String> pendingEntry : pendingValues.entrySet()) {
+            if (null == pendingEntry.getValue()) {
+                entries.remove(pendingEntry.getKey());
+            } else if (null == filter || filter.accept(pendingEntry.getKey())) {
+                entries.put(pendingEntry.getKey(), pendingEntry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return !TextUtils.isEmpty(getString(key));
+    }
+
+    @Override
+    public void clear() {
+        final Batch batch = mBatch.get();
+
+        if (null != batch) {
+            // Clearing supersedes anything written so far in this batch; start over.
+            batch.mPendingValues.clear();
+        }
+
+        synchronized (mPendingWrites.mFlushLock) {
+            synchronized (mPendingWrites) {
+                mPendingWrites.mValues.clear();
+            }
+
+            mDelegate.clear();
+        }
+    }
+
+    @Override
+    public void remove(final String key) {
+        putString(key, null);
+    }
+
+    @Override
+    public void beginBatch() {
+        Batch batch = mBatch.get();
+
+        if (null == batch) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+
+        batch.mDepth++;
+    }
+
+    @Override
+    public void commitBatch() {
+        closeBatch(false);
+    }
+
+    @Override
+    public void abortBatch() {
+        closeBatch(true);
+    }
+
+    private void closeBatch(final boolean abort) {
+        final String methodName = ":closeBatch";
+        final Batch batch = mBatch.get();
+
+        if (null == batch) {
+            throw new IllegalStateException("Batch closed without a matching beginBatch()");
+        }
+
+        batch.mAborted |= abort;
+
+        if (--batch.mDepth > 0) {
+            // Nested batch, the outermost one stages its writes.
+            return;
+        }
+
+        mBatch.remove();
+
+        if (batch.mAborted) {
+            Logger.warn(
+                    TAG + methodName,
+                    "Discarded [" + batch.mPendingValues.size() + "] batched writes."
+            );
+        } else if (!batch.mPendingValues.isEmpty()) {
+            stage(batch.mPendingValues);
+        }
+    }
+
+    /**
+     * Returns the write generation of the wrapped file manager, which advances when staged writes
+     * are flushed rather than when they are made.
+     *
+     * @return The current write generation.
+     */
+    @Override
+    public long getGeneration() {
+        return mDelegate.getGeneration();
+    }
+
+    /**
+     * Writes all staged writes to the wrapped file manager now, on the calling thread.
+     */
+    public void flush() {
+        final String methodName = ":flush";
+
+        synchronized (mPendingWrites.mFlushLock) {
+            final Map<String, String> values;
+
+            synchronized (mPendingWrites) {
+                mPendingWrites.mFlushScheduled = false;
+
+                if (mPendingWrites.mValues.isEmpty()) {
+                    return;
+                }
+
+                values = new HashMap<>(mPendingWrites.mValues);
+            }
+
+            mDelegate.beginBatch();
+            boolean batchSucceeded = false;
+
+            try {
+                for (final Map.Entry<String, String> entry : values.entrySet()) {
+                    if (null == entry.getValue()) {
+                        mDelegate.remove(entry.getKey());
+                    } else {
+                        mDelegate.putString(entry.getKey(), entry.getValue());
+                    }
+                }
+
+                batchSucceeded = true;
+            } finally {
+                // On failure, the writes stay staged for the next flush
+                if (batchSucceeded) {
+                    mDelegate.commitBatch();
+                } else {
+                    mDelegate.abortBatch();
+                }
+            }
+
+            synchronized (mPendingWrites) {
+                // Keep anything written again while we were flushing; it will be flushed later.
+                for (final Map.Entry<String, String> entry : values.entrySet()) {
+                    final String key = entry.getKey();
+
+                    if (!mPendingWrites.mValues.containsKey(key)) {
+                        continue;
+                    }
+
+                    final String pendingValue = mPendingWrites.mValues.get(key);
+
+                    if (null == pendingValue
+                            ? null == entry.getValue()
+                            : pendingValue.equals(entry.getValue())) {
+                        mPendingWrites.mValues.remove(key);
+                    }
+                }
+            }
+
+            Logger.verbose(
+                    TAG + methodName,
+                    "Flushed [" + values.size() + "] writes."
+            );
+        }
+    }
+}
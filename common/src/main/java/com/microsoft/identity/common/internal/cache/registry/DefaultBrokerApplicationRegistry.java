@@ -32,11 +32,18 @@ import com.microsoft.identity.common.internal.cache.SharedPreferencesSimpleCache
 import com.microsoft.identity.common.internal.logging.Logger;
 
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A basic registry (key/value) style data store for tracking info about apps which bind to the
  * broker.
+ * <p>
+ * Lookups are served without locking from an index keyed by (clientId, uid), which is rebuilt
+ * from memory only when entries are inserted or removed.
  */
 public class DefaultBrokerApplicationRegistry
         extends SharedPreferencesSimpleCacheImpl<BrokerApplicationRegistryData>
@@ -47,6 +54,83 @@ public class DefaultBrokerApplicationRegistry
     private static final String DEFAULT_APP_REGISTRY_CACHE_NAME = "com.microsoft.identity.app-registry";
     private static final String KEY_APP_REGISTRY = "app-registry";
 
+    private static final AtomicLong sLookupCount = new AtomicLong();
+    private static final AtomicLong sLookupNanos = new AtomicLong();
+    private static final AtomicLong sIndexBuildCount = new AtomicLong();
+
+    private volatile Index mIndex;
+
+    /**
+     * Registry entries by (clientId, uid), derived from one version of the registry contents.
+     */
+    private static final class Index {
+
+        private final long mVersion;
+
+        /**
+         * Entries for each key, in registry order.
+         */
+        private final Map<RegistryKey, List<BrokerApplicationRegistryData>> mEntries =
+                new HashMap<>();
+
+        Index(final long version, @NonNull final List<BrokerApplicationRegistryData> allMetadata) {
+            mVersion = version;
+
+            for (final BrokerApplicationRegistryData metadata : allMetadata) {
+                final RegistryKey key = new RegistryKey(metadata.getClientId(), metadata.getUid());
+                List<BrokerApplicationRegistryData> entries = mEntries.get(key);
+
+                if (null == entries) {
+                    entries = new ArrayList<>(1);
+                    mEntries.put(key, entries);
+                }
+
+                entries.add(metadata);
+            }
+        }
+    }
+
+    /**
+     * Identifies the registry entries of an app, across environments: (clientId, uid).
+     */
+    private static final class RegistryKey {
+
+        private final String mClientId;
+
+        private final int mUid;
+
+        RegistryKey(@Nullable final String clientId, final int uid) {
+            mClientId = clientId;
+            mUid = uid;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof RegistryKey)) {
+                return false;
+            }
+
+            final RegistryKey that = (RegistryKey) o;
+
+            if (mUid != that.mUid) {
+                return false;
+            }
+
+            return mClientId != null ? mClientId.equals(that.mClientId) : that.mClientId == null;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mClientId != null ? mClientId.hashCode() : 0;
+            result = 31 * result + mUid;
+            return result;
+        }
+    }
+
     public DefaultBrokerApplicationRegistry(@NonNull final Context context) {
         super(context, DEFAULT_APP_REGISTRY_CACHE_NAME, KEY_APP_REGISTRY);
     }
@@ -62,24 +146,24 @@ public class DefaultBrokerApplicationRegistry
                                                      @Nullable final String environment,
                                                      final int processUid) {
         final String methodName = ":getMetadata";
+        final long start = System.nanoTime();
 
-        final List<BrokerApplicationRegistryData> allMetadata = getAll();
+        final List<BrokerApplicationRegistryData> entries =
+                getIndex().mEntries.get(new RegistryKey(clientId, processUid));
         BrokerApplicationRegistryData result = null;
 
-        for (final BrokerApplicationRegistryData metadata : allMetadata) {
-            if (clientId.equals(metadata.getClientId())
-                    && processUid == metadata.getUid()
-                    && (null == environment || environment.equals(metadata.getEnvironment()))) {
-                Logger.verbose(
-                        TAG + metadata,
-                        "Metadata located."
-                );
-
-                result = metadata;
-                break;
+        if (null != entries) {
+            for (final BrokerApplicationRegistryData metadata : entries) {
+                if (null == environment || environment.equals(metadata.getEnvironment())) {
+                    result = metadata;
+                    break;
+                }
             }
         }
 
+        sLookupNanos.addAndGet(System.nanoTime() - start);
+        sLookupCount.incrementAndGet();
+
         if (null == result) {
             Logger.warn(
                     TAG + methodName,
@@ -89,8 +173,62 @@ public class DefaultBrokerApplicationRegistry
                             + environment
                             + "]"
             );
+        } else {
+            Logger.verbose(
+                    TAG + methodName,
+                    "Metadata located."
+            );
         }
 
         return result;
     }
+
+    /**
+     * Returns the index of the current registry contents, rebuilding it if they have changed.
+     */
+    @NonNull
+    private Index getIndex() {
+        final Index index = mIndex;
+
+        if (null != index && index.mVersion == getVersion()) {
+            return index;
+        }
+
+        final Snapshot<BrokerApplicationRegistryData> snapshot = getSnapshot();
+        final Index rebuilt = new Index(snapshot.getVersion(), snapshot.getItems());
+        mIndex = rebuilt;
+        sIndexBuildCount.incrementAndGet();
+
+        return rebuilt;
+    }
+
+    /**
+     * Returns the number of {@link #getMetadata(String, String, int)} calls made in this process.
+     *
+     * @return The lookup count.
+     */
+    public static long getLookupCount() {
+        return sLookupCount.get();
+    }
+
+    /**
+     * Returns the total time spent in {@link #getMetadata(String, String, int)} lookups in this
+     * process, including any index rebuilds they triggered. Divide by {@link #getLookupCount()}
+     * for the mean latency.
+     *
+     * @return The total lookup time, in nanoseconds.
+     */
+    public static long getTotalLookupNanos() {
+        return sLookupNanos.get();
+    }
+
+    /**
+     * Returns the number of times a registry index has been built in this process: once per
+     * instance, and again after each change to the registry.
+     *
+     * @return The index build count.
+     */
+    public static long getIndexBuildCount() {
+        return sIndexBuildCount.get();
+    }
 }
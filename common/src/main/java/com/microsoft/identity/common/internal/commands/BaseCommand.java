@@ -48,6 +48,9 @@ public abstract class BaseCommand<T> implements Command<T> {
     @EqualsAndHashCode.Exclude
     private String publicApiId;
 
+    @EqualsAndHashCode.Exclude
+    private transient CommandKey commandKey;
+
     public BaseCommand(@NonNull final CommandParameters parameters,
                        @NonNull final BaseController controller,
                        @NonNull final CommandCallback callback,
@@ -79,4 +82,21 @@ public abstract class BaseCommand<T> implements Command<T> {
     public boolean isEligibleForCaching() {
         return false;
     }
+
+    /**
+     * Returns the key identifying this command among equal ones, computed on first use. The
+     * parameters of this command must not change thereafter.
+     *
+     * @return The {@link CommandKey} of this command.
+     */
+    public CommandKey getCommandKey() {
+        CommandKey key = commandKey;
+
+        if (null == key) {
+            key = new CommandKey(this);
+            commandKey = key;
+        }
+
+        return key;
+    }
 }
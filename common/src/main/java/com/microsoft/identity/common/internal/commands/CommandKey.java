@@ -0,0 +1,77 @@
+//  Copyright (c) Microsoft Corporation.
+//  All rights reserved.
+//
+//  This code is licensed under the MIT License.
+//
+//  Permission is hereby granted, free of charge, to any person obtaining a copy
+//  of this software and associated documentation files(the "Software"), to deal
+//  in the Software without restriction, including without limitation the rights
+//  to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+//  copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions :
+//
+//  The above copyright notice and this permission notice shall be included in
+//  all copies or substantial portions of the Software.
+//
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+//  THE SOFTWARE.
+package com.microsoft.identity.common.internal.commands;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.identity.common.internal.commands.parameters.CommandParameters;
+
+/**
+ * Identifies a {@link BaseCommand} among equal ones, for the single-flight execution and result
+ * caching of the dispatcher: two keys are equal if their commands are of the same class and have
+ * equal parameters.
+ * <p>
+ * The hash code of the parameters is computed once, when the key is created, so lookups no
+ * longer hash the whole parameter graph, and only keys whose hash codes match compare their
+ * parameters. Parameters must therefore not be modified once the key exists, apart from fields
+ * which take no part in their equality, such as the correlation id.
+ */
+public final class CommandKey {
+
+    private final Class<?> mCommandClass;
+    private final CommandParameters mParameters;
+    private final int mHashCode;
+
+    CommandKey(@NonNull final BaseCommand<?> command) {
+        mCommandClass = command.getClass();
+        mParameters = command.getParameters();
+        mHashCode = 31 * mCommandClass.hashCode()
+                + (null == mParameters ? 0 : mParameters.hashCode());
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof CommandKey)) {
+            return false;
+        }
+
+        final CommandKey other = (CommandKey) o;
+
+        if (mHashCode != other.mHashCode || mCommandClass != other.mCommandClass) {
+            return false;
+        }
+
+        return null == mParameters
+                ? null == other.mParameters
+                : mParameters == other.mParameters || mParameters.equals(other.mParameters);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+}
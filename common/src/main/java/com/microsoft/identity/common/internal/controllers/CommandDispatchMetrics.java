@@ -0,0 +1,156 @@
+//  Copyright (c) Microsoft Corporation.
+//  All rights reserved.
+//
+//  This code is licensed under the MIT License.
+//
+//  Permission is hereby granted, free of charge, to any person obtaining a copy
+//  of this software and associated documentation files(the "Software"), to deal
+//  in the Software without restriction, including without limitation the rights
+//  to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+//  copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions :
+//
+//  The above copyright notice and this permission notice shall be included in
+//  all copies or substantial portions of the Software.
+//
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+//  THE SOFTWARE.
+package com.microsoft.identity.common.internal.controllers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how the commands of one public API fared in the {@link CommandDispatcher}:
+ * how many waited, how long they waited for a thread and how long they then ran. Comparing wait
+ * and run times tells whether latency under load comes from queueing or from execution.
+ * <p>
+ * Values are live and read individually, so they may be mutually inconsistent by the commands
+ * in flight while they are read.
+ */
+public class CommandDispatchMetrics {
+
+    private final AtomicLong mSubmittedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    private final AtomicLong mQueueDepth = new AtomicLong();
+    private final AtomicLong mRunningCount = new AtomicLong();
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+    private final AtomicLong mTotalRunNanos = new AtomicLong();
+    private final AtomicLong mMaxRunNanos = new AtomicLong();
+
+    void onSubmitted() {
+        mSubmittedCount.incrementAndGet();
+        mQueueDepth.incrementAndGet();
+    }
+
+    void onRejected() {
+        mQueueDepth.decrementAndGet();
+        mRejectedCount.incrementAndGet();
+    }
+
+    void onStarted(final long waitNanos) {
+        mQueueDepth.decrementAndGet();
+        mRunningCount.incrementAndGet();
+        mTotalWaitNanos.addAndGet(waitNanos);
+        updateMax(mMaxWaitNanos, waitNanos);
+    }
+
+    void onFinished(final long runNanos) {
+        mRunningCount.decrementAndGet();
+        mCompletedCount.incrementAndGet();
+        mTotalRunNanos.addAndGet(runNanos);
+        updateMax(mMaxRunNanos, runNanos);
+    }
+
+    /**
+     * @return The number of commands submitted.
+     */
+    public long getSubmittedCount() {
+        return mSubmittedCount.get();
+    }
+
+    /**
+     * @return The number of commands rejected because the queue was full.
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return The number of commands which ran to completion.
+     */
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    /**
+     * @return The number of commands currently waiting for a thread.
+     */
+    public long getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * @return The number of commands currently running.
+     */
+    public long getRunningCount() {
+        return mRunningCount.get();
+    }
+
+    /**
+     * @return The total time commands waited for a thread, in nanoseconds.
+     */
+    public long getTotalWaitNanos() {
+        return mTotalWaitNanos.get();
+    }
+
+    /**
+     * @return The longest time a command waited for a thread, in nanoseconds.
+     */
+    public long getMaxWaitNanos() {
+        return mMaxWaitNanos.get();
+    }
+
+    /**
+     * @return The total time commands ran, in nanoseconds.
+     */
+    public long getTotalRunNanos() {
+        return mTotalRunNanos.get();
+    }
+
+    /**
+     * @return The longest time a command ran, in nanoseconds.
+     */
+    public long getMaxRunNanos() {
+        return mMaxRunNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CommandDispatchMetrics{"
+                + "submitted=" + getSubmittedCount()
+                + ", rejected=" + getRejectedCount()
+                + ", completed=" + getCompletedCount()
+                + ", queueDepth=" + getQueueDepth()
+                + ", running=" + getRunningCount()
+                + ", totalWaitNanos=" + getTotalWaitNanos()
+                + ", maxWaitNanos=" + getMaxWaitNanos()
+                + ", totalRunNanos=" + getTotalRunNanos()
+                + ", maxRunNanos=" + getMaxRunNanos()
+                + '}';
+    }
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current = max.get();
+
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+}
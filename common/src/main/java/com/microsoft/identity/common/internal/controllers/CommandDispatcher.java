@@ -40,6 +40,7 @@ import com.microsoft.identity.common.exception.ClientException;
 import com.microsoft.identity.common.exception.IntuneAppProtectionPolicyRequiredException;
 import com.microsoft.identity.common.exception.UserCancelException;
 import com.microsoft.identity.common.internal.commands.BaseCommand;
+import com.microsoft.identity.common.internal.commands.CommandKey;
 import com.microsoft.identity.common.internal.commands.InteractiveTokenCommand;
 import com.microsoft.identity.common.internal.commands.parameters.BrokerInteractiveTokenCommandParameters;
 import com.microsoft.identity.common.internal.commands.parameters.InteractiveTokenCommandParameters;
@@ -51,12 +52,21 @@ import com.microsoft.identity.common.internal.result.AcquireTokenResult;
 import com.microsoft.identity.common.internal.result.LocalAuthenticationResult;
 import com.microsoft.identity.common.internal.telemetry.Telemetry;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.microsoft.identity.common.adal.internal.AuthenticationConstants.AuthorizationIntentAction.CANCEL_INTERACTIVE_REQUEST;
 import static com.microsoft.identity.common.adal.internal.AuthenticationConstants.AuthorizationIntentAction.RETURN_INTERACTIVE_REQUEST_RESULT;
@@ -67,84 +77,340 @@ public class CommandDispatcher {
 
     private static final String TAG = CommandDispatcher.class.getSimpleName();
 
-    private static final int SILENT_REQUEST_THREAD_POOL_SIZE = 5;
+    private static final String UNKNOWN_API_ID = "unknown";
     private static final ExecutorService sInteractiveExecutor = Executors.newSingleThreadExecutor();
-    private static final ExecutorService sSilentExecutor = Executors.newFixedThreadPool(SILENT_REQUEST_THREAD_POOL_SIZE);
     private static final Object sLock = new Object();
     private static InteractiveTokenCommand sCommand = null;
     private static final CommandResultCache sCommandResultCache = new CommandResultCache();
-    private static final Set<BaseCommand> sExecutingCommands = Collections.synchronizedSet(new HashSet<BaseCommand>());
 
     /**
-     * submitSilent - Run a command using the silent thread pool
+     * Cacheable silent commands being executed, each mapped to the equal commands submitted while
+     * it runs. Those receive its result rather than being executed themselves.
+     * Guarded by itself.
+     */
+    private static final Map<CommandKey, List<BaseCommand>> sExecutingCommands = new HashMap<>();
+
+    private static final AtomicLong sCoalescedCommandCount = new AtomicLong();
+
+    /**
+     * Dispatch metrics by public API id.
+     */
+    private static final ConcurrentHashMap<String, CommandDispatchMetrics> sDispatchMetrics =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Guards replacing the silent executor.
+     */
+    private static final Object sSilentExecutorLock = new Object();
+
+    private static volatile ExecutorService sSilentExecutor =
+            createSilentExecutor(new CommandDispatcherConfiguration.Builder().build());
+
+    /**
+     * True if sSilentExecutor was created here, rather than supplied, and must be shut down when
+     * replaced. Guarded by sSilentExecutorLock.
+     */
+    private static boolean sOwnsSilentExecutor = true;
+
+    private static final AtomicReference<TokenRefreshScheduler> sTokenRefreshScheduler =
+            new AtomicReference<>();
+
+    /**
+     * Replaces the executor of silent commands with one built from the supplied configuration.
+     * Commands already submitted complete on the previous executor.
+     *
+     * @param configuration The configuration to apply.
+     */
+    public static void configure(@NonNull final CommandDispatcherConfiguration configuration) {
+        final String methodName = ":configure";
+
+        synchronized (sSilentExecutorLock) {
+            final ExecutorService previousExecutor = sSilentExecutor;
+            final boolean ownedPreviousExecutor = sOwnsSilentExecutor;
+
+            if (null != configuration.getSilentExecutor()) {
+                sSilentExecutor = configuration.getSilentExecutor();
+                sOwnsSilentExecutor = false;
+            } else {
+                sSilentExecutor = createSilentExecutor(configuration);
+                sOwnsSilentExecutor = true;
+            }
+
+            if (ownedPreviousExecutor) {
+                previousExecutor.shutdown();
+            }
+        }
+
+        Logger.info(
+                TAG + methodName,
+                "Silent executor replaced. Supplied by caller? ["
+                        + (null != configuration.getSilentExecutor()) + "]"
+        );
+    }
+
+    /**
+     * Sets the scheduler renewing the AccessTokens of recently used silent requests ahead of
+     * their expiry. No AccessToken is renewed ahead of time unless one is set.
+     *
+     * @param tokenRefreshScheduler The scheduler to use, or null to stop refreshing.
+     */
+    public static void setTokenRefreshScheduler(@Nullable final TokenRefreshScheduler tokenRefreshScheduler) {
+        final TokenRefreshScheduler previousScheduler =
+                sTokenRefreshScheduler.getAndSet(tokenRefreshScheduler);
+
+        if (null != previousScheduler && previousScheduler != tokenRefreshScheduler) {
+            previousScheduler.cancelAll();
+        }
+    }
+
+    private static ExecutorService createSilentExecutor(
+            @NonNull final CommandDispatcherConfiguration configuration) {
+        return new ThreadPoolExecutor(
+                configuration.getSilentThreadPoolSize(),
+                configuration.getSilentThreadPoolSize(),
+                0L,
+                TimeUnit.MILLISECONDS,
+                new DispatchQueue(configuration.getSilentQueueCapacity()),
+                new DispatchRejectionHandler(configuration.getRejectionPolicy())
+        );
+    }
+
+    /**
+     * Returns the dispatch metrics of every public API which submitted a command, by
+     * {@link com.microsoft.identity.common.internal.eststelemetry.PublicApiId}.
+     *
+     * @return An unmodifiable snapshot of the metrics registered so far; the metrics are live.
+     */
+    @NonNull
+    public static Map<String, CommandDispatchMetrics> getDispatchMetrics() {
+        return Collections.unmodifiableMap(new HashMap<>(sDispatchMetrics));
+    }
+
+    @NonNull
+    private static CommandDispatchMetrics getDispatchMetrics(@NonNull final BaseCommand command) {
+        final String publicApiId = null == command.getPublicApiId()
+                ? UNKNOWN_API_ID
+                : command.getPublicApiId();
+
+        CommandDispatchMetrics metrics = sDispatchMetrics.get(publicApiId);
+
+        if (null == metrics) {
+            final CommandDispatchMetrics newMetrics = new CommandDispatchMetrics();
+            metrics = sDispatchMetrics.putIfAbsent(publicApiId, newMetrics);
+
+            if (null == metrics) {
+                metrics = newMetrics;
+            }
+        }
+
+        return metrics;
+    }
+
+    /**
+     * Returns the number of silent commands which were not executed because an equal command was
+     * already executing, and which received its result instead.
+     *
+     * @return The number of coalesced commands since process start.
+     */
+    public static long getCoalescedCommandCount() {
+        return sCoalescedCommandCount.get();
+    }
+
+    /**
+     * submitSilent - Run a command using the silent thread pool, as a foreground command
      *
      * @param command
+     * @see #submitSilent(BaseCommand, CommandPriority)
      */
     public static void submitSilent(@NonNull final BaseCommand command) {
+        submitSilent(command, CommandPriority.FOREGROUND);
+    }
+
+    /**
+     * submitSilent - Run a command using the silent thread pool
+     * <p>
+     * If an equal command is already executing, the supplied command is not executed: its
+     * callback receives the result of the executing command. If the queue of the thread pool is
+     * full, the command fails with {@link ClientException#COMMAND_REJECTED}.
+     *
+     * @param command
+     * @param priority The priority of the command over others waiting for a thread.
+     */
+    public static void submitSilent(@NonNull final BaseCommand command,
+                                    @NonNull final CommandPriority priority) {
         final String methodName = ":submitSilent";
         Logger.verbose(
                 TAG + methodName,
                 "Beginning execution of silent command."
         );
 
-        if (sExecutingCommands.contains(command)) {
-            new Handler(Looper.getMainLooper()).post(new Runnable() {
-                @Override
-                public void run() {
-                    command.getCallback().onError(new ClientException(ClientException.DUPLICATE_COMMAND, "The same command was already received and is being processed."));
+        // Computed once, the key of the command is shared by the single-flight and result caches
+        final CommandKey commandKey = command.getCommandKey();
+
+        if (command.isEligibleForCaching()) {
+            synchronized (sExecutingCommands) {
+                final List<BaseCommand> coalescedCommands = sExecutingCommands.get(commandKey);
+
+                if (null != coalescedCommands) {
+                    coalescedCommands.add(command);
+                    sCoalescedCommandCount.incrementAndGet();
+
+                    Logger.info(
+                            TAG + methodName,
+                            "The same command is already executing, awaiting its result."
+                    );
+
+                    return;
                 }
-            });
-        } else if (command.isEligibleForCaching()) {
-            sExecutingCommands.add(command);
+
+                sExecutingCommands.put(commandKey, new ArrayList<BaseCommand>());
+            }
         }
 
-        sSilentExecutor.execute(new Runnable() {
+        final DispatchTask task = new DispatchTask(priority, getDispatchMetrics(command), new Runnable() {
             @Override
             public void run() {
-                final String correlationId = initializeDiagnosticContext(command.getParameters().getCorrelationId());
+                CommandResult commandResult = null;
+                final Handler handler = new Handler(Looper.getMainLooper());
+
+                try {
+                    final String correlationId = initializeDiagnosticContext(command.getParameters().getCorrelationId());
 
-                // set correlation id on parameters as it may not already be set
-                command.getParameters().setCorrelationId(correlationId);
+                    // set correlation id on parameters as it may not already be set
+                    command.getParameters().setCorrelationId(correlationId);
 
-                EstsTelemetry.getInstance().initTelemetryForCommand(command);
+                    EstsTelemetry.getInstance().initTelemetryForCommand(command);
 
-                EstsTelemetry.getInstance().emitApiId(command.getPublicApiId());
+                    EstsTelemetry.getInstance().emitApiId(command.getPublicApiId());
 
-                CommandResult commandResult = null;
-                Handler handler = new Handler(Looper.getMainLooper());
+                    //Log operation parameters
+                    if (command.getParameters() instanceof SilentTokenCommandParameters) {
+                        logSilentRequestParams(methodName, (SilentTokenCommandParameters) command.getParameters());
+                        EstsTelemetry.getInstance().emitForceRefresh(((SilentTokenCommandParameters) command.getParameters()).isForceRefresh());
+                    }
 
-                //Log operation parameters
-                if (command.getParameters() instanceof SilentTokenCommandParameters) {
-                    logSilentRequestParams(methodName, (SilentTokenCommandParameters) command.getParameters());
-                    EstsTelemetry.getInstance().emitForceRefresh(((SilentTokenCommandParameters) command.getParameters()).isForceRefresh());
-                }
+                    //Check cache to see if the same command completed recently
+                    commandResult = sCommandResultCache.get(commandKey);
+
+                    //If nothing in cache, execute the command and cache the result
+                    if (commandResult == null) {
+                        commandResult = executeCommand(command);
+                        cacheCommandResult(command, commandResult);
+                    } else {
+                        Logger.info(
+                                TAG + methodName,
+                                "Silent command result returned from cache."
+                        );
+                    }
 
-                //Check cache to see if the same command completed in the last 30 seconds
-                commandResult = sCommandResultCache.get(command);
+                    // set correlation id on Local Authentication Result
+                    setCorrelationIdOnResult(commandResult, correlationId);
 
-                //If nothing in cache, execute the command and cache the result
-                if (commandResult == null) {
-                    commandResult = executeCommand(command);
-                    cacheCommandResult(command, commandResult);
-                } else {
-                    Logger.info(
-                            TAG + methodName,
-                            "Silent command result returned from cache."
-                    );
-                }
+                    Telemetry.getInstance().flush(correlationId);
+                    EstsTelemetry.getInstance().flush(command, commandResult);
+                } finally {
+                    // Whatever happened, every caller gets a result and the command is released
+                    if (null == commandResult) {
+                        Logger.error(
+                                TAG + methodName,
+                                "Silent command ended without a result.",
+                                null
+                        );
+
+                        commandResult = new CommandResult(
+                                CommandResult.ResultStatus.ERROR,
+                                new ClientException(
+                                        ClientException.UNKNOWN_ERROR,
+                                        "The command ended without a result."
+                                )
+                        );
+                    }
 
-                // set correlation id on Local Authentication Result
-                setCorrelationIdOnResult(commandResult, correlationId);
+                    //Return the result via the callback
+                    returnCommandResult(command, commandResult, handler);
 
-                Telemetry.getInstance().flush(correlationId);
-                EstsTelemetry.getInstance().flush(command, commandResult);
+                    // Coalesced commands share this result and its correlation id
+                    for (final BaseCommand coalescedCommand : releaseExecutingCommand(command)) {
+                        returnCommandResult(coalescedCommand, commandResult, handler);
+                    }
 
-                sExecutingCommands.remove(command);
+                    trackForRefresh(command, commandResult);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                Logger.warn(
+                        TAG + methodName,
+                        "Silent command rejected, the queue is full."
+                );
+
+                final CommandResult commandResult = new CommandResult(
+                        CommandResult.ResultStatus.ERROR,
+                        new ClientException(
+                                ClientException.COMMAND_REJECTED,
+                                "Too many commands are waiting to be executed."
+                        )
+                );
+                final Handler handler = new Handler(Looper.getMainLooper());
 
-                //Return the result via the callback
                 returnCommandResult(command, commandResult, handler);
+
+                for (final BaseCommand coalescedCommand : releaseExecutingCommand(command)) {
+                    returnCommandResult(coalescedCommand, commandResult, handler);
+                }
             }
         });
+
+        try {
+            sSilentExecutor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            task.reject();
+        }
+    }
+
+    /**
+     * Hands the supplied completed command to the {@link TokenRefreshScheduler}, if one is set.
+     * A failure to do so is logged; it does not affect the command.
+     */
+    private static void trackForRefresh(@NonNull final BaseCommand command,
+                                        @NonNull final CommandResult commandResult) {
+        final String methodName = ":trackForRefresh";
+        final TokenRefreshScheduler tokenRefreshScheduler = sTokenRefreshScheduler.get();
+
+        if (null == tokenRefreshScheduler) {
+            return;
+        }
+
+        try {
+            tokenRefreshScheduler.onCommandCompleted(command, commandResult);
+        } catch (final RuntimeException e) {
+            Logger.error(
+                    TAG + methodName,
+                    "Failed to track the command for AccessToken refresh.",
+                    e
+            );
+        }
+    }
+
+    /**
+     * Ends the single-flight execution of the supplied command, if it is cacheable.
+     *
+     * @return The equal commands which were submitted while it executed.
+     */
+    @NonNull
+    private static List<BaseCommand> releaseExecutingCommand(@NonNull final BaseCommand command) {
+        List<BaseCommand> coalescedCommands = null;
+
+        if (command.isEligibleForCaching()) {
+            synchronized (sExecutingCommands) {
+                coalescedCommands = sExecutingCommands.remove(command.getCommandKey());
+            }
+        }
+
+        return null == coalescedCommands
+                ? Collections.<BaseCommand>emptyList()
+                : coalescedCommands;
     }
 
     static void clearCommandCache() {
@@ -233,7 +499,7 @@ public class CommandDispatcher {
      */
     private static void cacheCommandResult(BaseCommand command, CommandResult commandResult) {
         if (command.isEligibleForCaching() && eligibleToCache(commandResult)) {
-            sCommandResultCache.put(command, commandResult);
+            sCommandResultCache.put(command.getCommandKey(), commandResult);
         }
     }
 
@@ -306,7 +572,7 @@ public class CommandDispatcher {
                 );
             }
 
-            sInteractiveExecutor.execute(new Runnable() {
+            sInteractiveExecutor.execute(new DispatchTask(CommandPriority.FOREGROUND, getDispatchMetrics(command), new Runnable() {
                 @Override
                 public void run() {
                     final String correlationId = initializeDiagnosticContext(
@@ -352,7 +618,7 @@ public class CommandDispatcher {
                     Telemetry.getInstance().flush(correlationId);
                     returnCommandResult(command, commandResult, handler);
                 }
-            });
+            }, null));
         }
     }
 
@@ -502,6 +768,27 @@ public class CommandDispatcher {
         return sCommandResultCache.getSize();
     }
 
+    /**
+     * @return The number of silent commands whose result was returned from the result cache.
+     */
+    public static long getCachedResultHitCount() {
+        return sCommandResultCache.getHitCount();
+    }
+
+    /**
+     * @return The number of silent commands which found no result in the result cache.
+     */
+    public static long getCachedResultMissCount() {
+        return sCommandResultCache.getMissCount();
+    }
+
+    /**
+     * @return The number of results evicted from the result cache.
+     */
+    public static long getCachedResultEvictionCount() {
+        return sCommandResultCache.getEvictionCount();
+    }
+
     private static void setCorrelationIdOnResult(@NonNull final CommandResult commandResult,
                                                  @NonNull final String correlationId) {
         // set correlation id on Local Authentication Result
@@ -513,4 +800,54 @@ public class CommandDispatcher {
         }
     }
 
+    /**
+     * Rejects silent commands submitted while the queue is full, applying the configured
+     * {@link CommandDispatcherConfiguration.RejectionPolicy}.
+     */
+    private static final class DispatchRejectionHandler implements RejectedExecutionHandler {
+
+        private final CommandDispatcherConfiguration.RejectionPolicy mRejectionPolicy;
+
+        DispatchRejectionHandler(
+                @NonNull final CommandDispatcherConfiguration.RejectionPolicy rejectionPolicy) {
+            mRejectionPolicy = rejectionPolicy;
+        }
+
+        @Override
+        public void rejectedExecution(@NonNull final Runnable runnable,
+                                      @NonNull final ThreadPoolExecutor executor) {
+            if (!executor.isShutdown()
+                    && CommandDispatcherConfiguration.RejectionPolicy.SHED_BACKGROUND == mRejectionPolicy
+                    && runnable instanceof DispatchTask
+                    && CommandPriority.FOREGROUND == ((DispatchTask) runnable).getPriority()) {
+                final DispatchTask shedTask = findLastBackgroundTask(executor);
+
+                if (null != shedTask && executor.getQueue().remove(shedTask)) {
+                    shedTask.reject();
+                    executor.execute(runnable);
+                    return;
+                }
+            }
+
+            throw new RejectedExecutionException("Silent command queue is full.");
+        }
+
+        /**
+         * Returns the queued background task which would run last, or null if there is none.
+         */
+        @Nullable
+        private static DispatchTask findLastBackgroundTask(@NonNull final ThreadPoolExecutor executor) {
+            DispatchTask lastTask = null;
+
+            for (final Runnable queued : executor.getQueue()) {
+                if (queued instanceof DispatchTask
+                        && CommandPriority.BACKGROUND == ((DispatchTask) queued).getPriority()
+                        && (null == lastTask || lastTask.compareTo((DispatchTask) queued) < 0)) {
+                    lastTask = (DispatchTask) queued;
+                }
+            }
+
+            return lastTask;
+        }
+    }
 }
@@ -0,0 +1,169 @@
+//  Copyright (c) Microsoft Corporation.
+//  All rights reserved.
+//
+//  This code is licensed under the MIT License.
+//
+//  Permission is hereby granted, free of charge, to any person obtaining a copy
+//  of this software and associated documentation files(the "Software"), to deal
+//  in the Software without restriction, including without limitation the rights
+//  to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+//  copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions :
+//
+//  The above copyright notice and this permission notice shall be included in
+//  all copies or substantial portions of the Software.
+//
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+//  THE SOFTWARE.
+package com.microsoft.identity.common.internal.controllers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Configures how the {@link CommandDispatcher} executes silent commands.
+ * See {@link CommandDispatcher#configure(CommandDispatcherConfiguration)}.
+ */
+public class CommandDispatcherConfiguration {
+
+    /**
+     * The default number of threads executing silent commands.
+     */
+    public static final int DEFAULT_SILENT_THREAD_POOL_SIZE = 5;
+
+    /**
+     * The default number of silent commands which may wait for a thread: unbounded.
+     */
+    public static final int DEFAULT_SILENT_QUEUE_CAPACITY = Integer.MAX_VALUE;
+
+    /**
+     * What happens to a silent command submitted while the queue is full.
+     */
+    public enum RejectionPolicy {
+
+        /**
+         * The submitted command fails with {@code ClientException.COMMAND_REJECTED}.
+         */
+        REJECT_NEW,
+
+        /**
+         * If the submitted command is a foreground one, the most recently queued background
+         * command fails with {@code ClientException.COMMAND_REJECTED} to make room for it.
+         * Otherwise, as {@link #REJECT_NEW}.
+         */
+        SHED_BACKGROUND
+    }
+
+    private final int mSilentThreadPoolSize;
+    private final int mSilentQueueCapacity;
+    private final RejectionPolicy mRejectionPolicy;
+    private final ExecutorService mSilentExecutor;
+
+    private CommandDispatcherConfiguration(@NonNull final Builder builder) {
+        mSilentThreadPoolSize = builder.mSilentThreadPoolSize;
+        mSilentQueueCapacity = builder.mSilentQueueCapacity;
+        mRejectionPolicy = builder.mRejectionPolicy;
+        mSilentExecutor = builder.mSilentExecutor;
+    }
+
+    /**
+     * @return The number of threads executing silent commands.
+     */
+    public int getSilentThreadPoolSize() {
+        return mSilentThreadPoolSize;
+    }
+
+    /**
+     * @return The number of silent commands which may wait for a thread.
+     */
+    public int getSilentQueueCapacity() {
+        return mSilentQueueCapacity;
+    }
+
+    /**
+     * @return What happens to a silent command submitted while the queue is full.
+     */
+    @NonNull
+    public RejectionPolicy getRejectionPolicy() {
+        return mRejectionPolicy;
+    }
+
+    /**
+     * @return The ExecutorService supplied to execute silent commands, or null if the dispatcher
+     * creates its own.
+     */
+    @Nullable
+    public ExecutorService getSilentExecutor() {
+        return mSilentExecutor;
+    }
+
+    /**
+     * API for creating {@link CommandDispatcherConfiguration} instances.
+     */
+    public static class Builder {
+        private int mSilentThreadPoolSize = DEFAULT_SILENT_THREAD_POOL_SIZE;
+        private int mSilentQueueCapacity = DEFAULT_SILENT_QUEUE_CAPACITY;
+        private RejectionPolicy mRejectionPolicy = RejectionPolicy.REJECT_NEW;
+        private ExecutorService mSilentExecutor;
+
+        public Builder() {
+        }
+
+        /**
+         * Sets the number of threads executing silent commands.
+         */
+        public Builder silentThreadPoolSize(final int silentThreadPoolSize) {
+            if (silentThreadPoolSize < 1) {
+                throw new IllegalArgumentException("Thread pool size must be positive.");
+            }
+
+            mSilentThreadPoolSize = silentThreadPoolSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of silent commands which may wait for a thread.
+         */
+        public Builder silentQueueCapacity(final int silentQueueCapacity) {
+            if (silentQueueCapacity < 1) {
+                throw new IllegalArgumentException("Queue capacity must be positive.");
+            }
+
+            mSilentQueueCapacity = silentQueueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets what happens to a silent command submitted while the queue is full.
+         */
+        public Builder rejectionPolicy(@NonNull final RejectionPolicy rejectionPolicy) {
+            mRejectionPolicy = rejectionPolicy;
+            return this;
+        }
+
+        /**
+         * Supplies the ExecutorService to execute silent commands with, in place of the one the
+         * dispatcher would otherwise create. The thread pool size, queue capacity and rejection
+         * policy are then up to the supplied ExecutorService; it is not shut down by the
+         * dispatcher.
+         */
+        public Builder silentExecutor(@Nullable final ExecutorService silentExecutor) {
+            mSilentExecutor = silentExecutor;
+            return this;
+        }
+
+        /**
+         * Create a {@link CommandDispatcherConfiguration}.
+         */
+        public CommandDispatcherConfiguration build() {
+            return new CommandDispatcherConfiguration(this);
+        }
+    }
+}
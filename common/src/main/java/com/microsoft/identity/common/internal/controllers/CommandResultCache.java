@@ -22,62 +22,233 @@
 //  THE SOFTWARE.
 package com.microsoft.identity.common.internal.controllers;
 
-import android.util.LruCache;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import com.microsoft.identity.common.internal.commands.BaseCommand;
+import com.microsoft.identity.common.exception.BaseException;
+import com.microsoft.identity.common.exception.ClientException;
+import com.microsoft.identity.common.internal.commands.CommandKey;
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.result.ILocalAuthenticationResult;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Name: CommandResultCache
  * Responsibilities: Caching results of commands on behalf of the command dispatcher
+ * <p>
+ * Results are held for at most {@link #DEFAULT_VALIDITY_MILLIS}, less if the access token they
+ * carry expires sooner, or {@link #TRANSIENT_ERROR_VALIDITY_MILLIS} for errors which are likely to
+ * resolve themselves, such as the network being unavailable. Lookups do not lock: expired entries
+ * are dropped when they are looked up and swept on writes, after which the least recently used
+ * entries are evicted down to the maximum item count.
  */
 public class CommandResultCache {
 
     private final static int DEFAULT_ITEM_COUNT = 250;
 
-    //Cache items allowed is still TBD... for now using default value of 250
-    private LruCache<BaseCommand, CommandResultCacheItem> mCache;
+    /**
+     * The longest duration for which a result is returned from the cache.
+     */
+    public static final long DEFAULT_VALIDITY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The duration for which errors caused by the device, rather than the request, are cached.
+     */
+    public static final long TRANSIENT_ERROR_VALIDITY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * The interval at which writes sweep expired entries out of the cache.
+     */
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final ConcurrentHashMap<CommandKey, CommandResultCacheItem> mCache =
+            new ConcurrentHashMap<>();
+    private final Object mTrimLock = new Object();
+    private final int mMaxItemCount;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+
+    private volatile long mNextSweepNanos = System.nanoTime() + SWEEP_INTERVAL_NANOS;
 
     public CommandResultCache() {
-        mCache = new LruCache<>(DEFAULT_ITEM_COUNT);
+        this(DEFAULT_ITEM_COUNT);
     }
 
-    public CommandResultCache(int maxItemCount) {
-        mCache = new LruCache<>(maxItemCount);
+    public CommandResultCache(final int maxItemCount) {
+        if (maxItemCount <= 0) {
+            throw new IllegalArgumentException("maxItemCount must be positive.");
+        }
+
+        mMaxItemCount = maxItemCount;
     }
 
-    public CommandResult get(BaseCommand key) {
-        synchronized (mCache) {
-            CommandResultCacheItem item = mCache.get(key);
-            if (item != null) {
-                if (item.isExpired()) {
-                    mCache.remove(key);
-                    return null;
-                } else {
-                    return item.getValue();
-                }
-            } else {
-                return null;
+    @Nullable
+    public CommandResult get(@NonNull final CommandKey key) {
+        final long now = System.nanoTime();
+        final CommandResultCacheItem item = mCache.get(key);
+
+        if (null == item) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+
+        if (item.isExpired(now)) {
+            if (mCache.remove(key, item)) {
+                mEvictionCount.incrementAndGet();
             }
+
+            mMissCount.incrementAndGet();
+            return null;
         }
+
+        item.setLastAccessNanos(now);
+        mHitCount.incrementAndGet();
+
+        return item.getValue();
     }
 
-    public void put(BaseCommand key, CommandResult value) {
+    public void put(@NonNull final CommandKey key, @NonNull final CommandResult value) {
+        final long validityMillis = getValidityMillis(value);
+
+        if (validityMillis <= 0) {
+            return;
+        }
+
+        final long now = System.nanoTime();
 
-        CommandResultCacheItem cacheItem = new CommandResultCacheItem(value);
         //NOTE: If an existing item using this key already in the cache it will be replaced
-        mCache.put(key, cacheItem);
-        //Object old = mCache.put(key, cacheItem);
-        //We may want to log old if we see problems here, since the the old value is the value being replace with the new item.
+        mCache.put(key, new CommandResultCacheItem(value, validityMillis, now));
+
+        if (mCache.size() > mMaxItemCount || now - mNextSweepNanos >= 0) {
+            trim(now);
+        }
+    }
+
+    /**
+     * Removes the expired entries from the cache.
+     */
+    public void evictExpired() {
+        synchronized (mTrimLock) {
+            evictExpired(System.nanoTime());
+        }
     }
 
     public int getSize() {
-        return this.mCache.size();
+        return mCache.size();
     }
 
     public void clear() {
-        synchronized (mCache) {
-            mCache = new LruCache<>(DEFAULT_ITEM_COUNT);
+        mCache.clear();
+    }
+
+    /**
+     * @return The number of lookups which returned a result.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return The number of lookups which found no result, or an expired one.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return The number of results removed from the cache because they expired or because it
+     * was full.
+     */
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * Returns the duration for which the supplied result may be cached, or 0 if it must not be.
+     *
+     * @param commandResult The result to cache.
+     * @return The validity of the result, in milliseconds.
+     */
+    static long getValidityMillis(@NonNull final CommandResult commandResult) {
+        final Object result = commandResult.getResult();
+
+        if (result instanceof BaseException && isTransientError((BaseException) result)) {
+            return TRANSIENT_ERROR_VALIDITY_MILLIS;
+        }
+
+        if (result instanceof ILocalAuthenticationResult) {
+            final AccessTokenRecord accessTokenRecord =
+                    ((ILocalAuthenticationResult) result).getAccessTokenRecord();
+
+            if (null != accessTokenRecord) {
+                try {
+                    final long millisToExpiry = TimeUnit.SECONDS.toMillis(
+                            accessTokenRecord.getExpiresOnSeconds()
+                    ) - System.currentTimeMillis();
+
+                    return Math.max(0, Math.min(DEFAULT_VALIDITY_MILLIS, millisToExpiry));
+                } catch (final NumberFormatException e) {
+                    // The token will be renewed on the next request, keep the default validity
+                }
+            }
         }
+
+        return DEFAULT_VALIDITY_MILLIS;
+    }
+
+    private static boolean isTransientError(@NonNull final BaseException exception) {
+        final String errorCode = exception.getErrorCode();
+
+        return ClientException.DEVICE_NETWORK_NOT_AVAILABLE.equals(errorCode)
+                || ClientException.IO_ERROR.equals(errorCode)
+                || ClientException.INTERRUPTED_OPERATION.equals(errorCode);
     }
 
+    private void trim(final long now) {
+        synchronized (mTrimLock) {
+            // Expired entries go first, before any entry still in use is evicted
+            if (mCache.size() > mMaxItemCount || now - mNextSweepNanos >= 0) {
+                evictExpired(now);
+            }
+
+            while (mCache.size() > mMaxItemCount) {
+                Map.Entry<CommandKey, CommandResultCacheItem> eldest = null;
+
+                for (final Map.Entry<CommandKey, CommandResultCacheItem> entry : mCache.entrySet()) {
+                    if (null == eldest
+                            || entry.getValue().getLastAccessNanos() - eldest.getValue().getLastAccessNanos() < 0) {
+                        eldest = entry;
+                    }
+                }
+
+                if (null == eldest) {
+                    break;
+                }
+
+                if (mCache.remove(eldest.getKey(), eldest.getValue())) {
+                    mEvictionCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void evictExpired(final long now) {
+        final Iterator<CommandResultCacheItem> iterator = mCache.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+                mEvictionCount.incrementAndGet();
+            }
+        }
+
+        mNextSweepNanos = now + SWEEP_INTERVAL_NANOS;
+    }
 }
@@ -22,37 +22,53 @@
 //  THE SOFTWARE.
 package com.microsoft.identity.common.internal.controllers;
 
-import java.util.Calendar;
-import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * A {@link CommandResult} held by the {@link CommandResultCache}, with its expiry and last access
+ * measured on the monotonic {@link System#nanoTime()} clock, so that changes of the wall clock
+ * neither extend nor cut short its validity.
+ */
 public class CommandResultCacheItem {
 
-    private final static int VALIDITY_DURATION = 30;
+    private final CommandResult mValue;
+    private final long mExpiresAtNanos;
+    private volatile long mLastAccessNanos;
 
-    private CommandResult mValue;
-    private Date mExpiresOn;
+    /**
+     * @param value          The result to cache.
+     * @param validityMillis The duration for which the result may be returned from the cache.
+     */
+    public CommandResultCacheItem(final CommandResult value, final long validityMillis) {
+        this(value, validityMillis, System.nanoTime());
+    }
 
-    public CommandResultCacheItem(CommandResult value){
+    CommandResultCacheItem(final CommandResult value,
+                           final long validityMillis,
+                           final long nowNanos) {
         mValue = value;
-        mExpiresOn = getExpiresOn();
+        mExpiresAtNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(validityMillis);
+        mLastAccessNanos = nowNanos;
     }
 
-    private Date getExpiresOn(){
-        final Calendar calendar = Calendar.getInstance();
-        calendar.add(Calendar.SECOND, VALIDITY_DURATION);
-        return calendar.getTime();
+    public boolean isExpired() {
+        return isExpired(System.nanoTime());
     }
 
-    public boolean isExpired(){
-        final Calendar calendar = Calendar.getInstance();
-        final Date now = calendar.getTime();
-
-        return now.after(mExpiresOn);
+    boolean isExpired(final long nowNanos) {
+        // Compare the difference, as nanoTime values may overflow
+        return nowNanos - mExpiresAtNanos >= 0;
     }
 
-    public CommandResult getValue(){
+    public CommandResult getValue() {
         return mValue;
     }
 
+    long getLastAccessNanos() {
+        return mLastAccessNanos;
+    }
 
+    void setLastAccessNanos(final long nowNanos) {
+        mLastAccessNanos = nowNanos;
+    }
 }
@@ -0,0 +1,105 @@
+//  Copyright (c) Microsoft Corporation.
+//  All rights reserved.
+//
+//  This code is licensed under the MIT License.
+//
+//  Permission is hereby granted, free of charge, to any person obtaining a copy
+//  of this software and associated documentation files(the "Software"), to deal
+//  in the Software without restriction, including without limitation the rights
+//  to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+//  copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions :
+//
+//  The above copyright notice and this permission notice shall be included in
+//  all copies or substantial portions of the Software.
+//
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+//  THE SOFTWARE.
+package com.microsoft.identity.common.internal.controllers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A unit of work submitted to an executor of the {@link CommandDispatcher}. Records its wait and
+ * run times in the {@link CommandDispatchMetrics} of its public API, and orders itself by
+ * {@link CommandPriority}, then by submission, in a priority queue.
+ */
+final class DispatchTask implements Runnable, Comparable<DispatchTask> {
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    private final CommandPriority mPriority;
+    private final long mSequence;
+    private final CommandDispatchMetrics mMetrics;
+    private final Runnable mTask;
+    private final Runnable mRejectionTask;
+    private final long mSubmittedNanos;
+
+    /**
+     * Constructs a new DispatchTask, counting it as submitted.
+     *
+     * @param priority      The priority of the task.
+     * @param metrics       The metrics to record the task in.
+     * @param task          The work to run.
+     * @param rejectionTask The work to run instead, should the task be rejected.
+     */
+    DispatchTask(@NonNull final CommandPriority priority,
+                 @NonNull final CommandDispatchMetrics metrics,
+                 @NonNull final Runnable task,
+                 @Nullable final Runnable rejectionTask) {
+        mPriority = priority;
+        mSequence = sSequence.getAndIncrement();
+        mMetrics = metrics;
+        mTask = task;
+        mRejectionTask = rejectionTask;
+        mSubmittedNanos = System.nanoTime();
+        mMetrics.onSubmitted();
+    }
+
+    @NonNull
+    CommandPriority getPriority() {
+        return mPriority;
+    }
+
+    @Override
+    public void run() {
+        final long startNanos = System.nanoTime();
+        mMetrics.onStarted(startNanos - mSubmittedNanos);
+
+        try {
+            mTask.run();
+        } finally {
+            mMetrics.onFinished(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Called in place of {@link #run()} when the task will not be executed.
+     */
+    void reject() {
+        mMetrics.onRejected();
+
+        if (null != mRejectionTask) {
+            mRejectionTask.run();
+        }
+    }
+
+    @Override
+    public int compareTo(@NonNull final DispatchTask other) {
+        final int byPriority = mPriority.compareTo(other.mPriority);
+
+        if (0 != byPriority) {
+            return byPriority;
+        }
+
+        return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+    }
+}
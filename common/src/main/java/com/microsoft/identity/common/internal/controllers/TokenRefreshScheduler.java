@@ -0,0 +1,617 @@
+//  Copyright (c) Microsoft Corporation.
+//  All rights reserved.
+//
+//  This code is licensed under the MIT License.
+//
+//  Permission is hereby granted, free of charge, to any person obtaining a copy
+//  of this software and associated documentation files(the "Software"), to deal
+//  in the Software without restriction, including without limitation the rights
+//  to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+//  copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions :
+//
+//  The above copyright notice and this permission notice shall be included in
+//  all copies or substantial portions of the Software.
+//
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+//  THE SOFTWARE.
+package com.microsoft.identity.common.internal.controllers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.microsoft.identity.common.exception.BaseException;
+import com.microsoft.identity.common.internal.commands.BaseCommand;
+import com.microsoft.identity.common.internal.commands.CommandCallback;
+import com.microsoft.identity.common.internal.commands.CommandKey;
+import com.microsoft.identity.common.internal.commands.SilentTokenCommand;
+import com.microsoft.identity.common.internal.commands.parameters.SilentTokenCommandParameters;
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.logging.Logger;
+import com.microsoft.identity.common.internal.result.ILocalAuthenticationResult;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renews the AccessTokens of recently used silent requests in the background, ahead of their
+ * expiry, so that the next silent request for the same account and scopes is served from the
+ * token cache rather than the network.
+ * <p>
+ * Opt-in, see {@link CommandDispatcher#setTokenRefreshScheduler(TokenRefreshScheduler)}. Once
+ * set, each successful {@link SilentTokenCommand} is tracked, and a force-refreshing copy of it
+ * is submitted as a {@link CommandPriority#BACKGROUND} command at the refresh_on time the
+ * service sent with its AccessToken, or else shortly before the AccessToken expires. Refreshes
+ * are brought forward by a random jitter so that tokens issued together are not renewed
+ * together, and stop once the request has not been made for the activity window. A refresh
+ * whose result has not arrived within five minutes gives up its slot and stops tracking the
+ * request.
+ */
+public class TokenRefreshScheduler {
+
+    private static final String TAG = TokenRefreshScheduler.class.getSimpleName();
+
+    /**
+     * The default time before expiry at which AccessTokens without a refresh_on are renewed.
+     */
+    public static final long DEFAULT_REFRESH_AHEAD_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+
+    /**
+     * The default time after its last use for which a request keeps being refreshed.
+     */
+    public static final long DEFAULT_ACTIVITY_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The default largest time by which a refresh is brought forward.
+     */
+    public static final long DEFAULT_MAX_JITTER_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The default number of refreshes which may execute at once.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_REFRESHES = 2;
+
+    /**
+     * The default number of requests tracked; the least recently used is dropped beyond it.
+     */
+    public static final int DEFAULT_MAX_TRACKED_REQUESTS = 20;
+
+    /**
+     * The shortest delay before a refresh, so that AccessTokens which live shorter than the
+     * refresh-ahead time are not renewed in a loop.
+     */
+    @VisibleForTesting
+    static final long MIN_REFRESH_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The time after which a refresh which has not delivered its result is given up on.
+     */
+    @VisibleForTesting
+    static final long REFRESH_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ScheduledExecutorService sRefreshTimer =
+            Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Source of the current time, in milliseconds since the epoch.
+     */
+    @VisibleForTesting
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final long mRefreshAheadSeconds;
+    private final long mActivityWindowMillis;
+    private final long mMaxJitterMillis;
+    private final int mMaxConcurrentRefreshes;
+    private final int mMaxTrackedRequests;
+    private final ScheduledExecutorService mTimer;
+    private final Clock mClock;
+
+    private final Random mRandom = new Random();
+    private final AtomicLong mRefreshCount = new AtomicLong();
+
+    /**
+     * The tracked requests, by the key of the silent command which made them. Guarded by this.
+     */
+    private final Map<CommandKey, TrackedRequest> mTrackedRequests = new HashMap<>();
+
+    /**
+     * The number of refreshes submitted and not yet completed. Guarded by this.
+     */
+    private int mRefreshesInFlight;
+
+    @VisibleForTesting
+    TokenRefreshScheduler(@NonNull final Builder builder) {
+        mRefreshAheadSeconds = builder.mRefreshAheadSeconds;
+        mActivityWindowMillis = builder.mActivityWindowMillis;
+        mMaxJitterMillis = builder.mMaxJitterMillis;
+        mMaxConcurrentRefreshes = builder.mMaxConcurrentRefreshes;
+        mMaxTrackedRequests = builder.mMaxTrackedRequests;
+        mTimer = builder.mTimer;
+        mClock = builder.mClock;
+    }
+
+    /**
+     * @return The number of requests currently tracked for refresh.
+     */
+    public synchronized int getTrackedRequestCount() {
+        return mTrackedRequests.size();
+    }
+
+    /**
+     * @return The number of refreshes submitted so far.
+     */
+    public long getRefreshCount() {
+        return mRefreshCount.get();
+    }
+
+    /**
+     * Stops tracking every request. Refreshes already submitted run to completion.
+     */
+    public synchronized void cancelAll() {
+        for (final TrackedRequest trackedRequest : mTrackedRequests.values()) {
+            trackedRequest.cancelScheduledRefresh();
+        }
+
+        mTrackedRequests.clear();
+    }
+
+    /**
+     * Tracks the supplied command if it is a silent token request which succeeded, scheduling
+     * the refresh of the AccessToken it returned.
+     *
+     * @param command       The command which completed.
+     * @param commandResult Its result.
+     */
+    void onCommandCompleted(@NonNull final BaseCommand command,
+                            @NonNull final CommandResult commandResult) {
+        if (!(command instanceof SilentTokenCommand)
+                || command.getCallback() instanceof RefreshCallback
+                || CommandResult.ResultStatus.COMPLETED != commandResult.getStatus()
+                || !(commandResult.getResult() instanceof ILocalAuthenticationResult)) {
+            return;
+        }
+
+        final AccessTokenRecord accessTokenRecord =
+                ((ILocalAuthenticationResult) commandResult.getResult()).getAccessTokenRecord();
+
+        if (null == accessTokenRecord) {
+            return;
+        }
+
+        final CommandKey key = command.getCommandKey();
+
+        synchronized (this) {
+            TrackedRequest trackedRequest = mTrackedRequests.get(key);
+
+            if (null == trackedRequest) {
+                if (mTrackedRequests.size() >= mMaxTrackedRequests) {
+                    untrackLeastRecentlyUsed();
+                }
+
+                trackedRequest = new TrackedRequest(key, (SilentTokenCommand) command);
+                mTrackedRequests.put(key, trackedRequest);
+            }
+
+            trackedRequest.mLastUsedMillis = mClock.currentTimeMillis();
+
+            // An ongoing refresh schedules the next one itself
+            if (!trackedRequest.mRefreshing) {
+                scheduleRefresh(trackedRequest, accessTokenRecord);
+            }
+        }
+    }
+
+    /**
+     * Schedules the refresh of the supplied request, unless one is already scheduled for the
+     * same or a later AccessToken. Must hold this.
+     */
+    private void scheduleRefresh(@NonNull final TrackedRequest trackedRequest,
+                                 @NonNull final AccessTokenRecord accessTokenRecord) {
+        final String methodName = ":scheduleRefresh";
+
+        final long expiresOnSeconds;
+        final long refreshAtMillis;
+
+        try {
+            expiresOnSeconds = accessTokenRecord.getExpiresOnSeconds();
+            refreshAtMillis = getRefreshAtMillis(accessTokenRecord);
+        } catch (final NumberFormatException e) {
+            Logger.warn(
+                    TAG + methodName,
+                    "Malformed AccessToken expiry, the request is not refreshed."
+            );
+            untrack(trackedRequest);
+            return;
+        }
+
+        // Results served from the result cache may carry the AccessToken a refresh replaced
+        if (null != trackedRequest.mScheduledRefresh
+                && expiresOnSeconds <= trackedRequest.mExpiresOnSeconds) {
+            return;
+        }
+
+        final long delayMillis = Math.max(
+                MIN_REFRESH_DELAY_MILLIS,
+                refreshAtMillis - nextJitterMillis() - mClock.currentTimeMillis()
+        );
+
+        trackedRequest.mExpiresOnSeconds = expiresOnSeconds;
+        schedule(trackedRequest, delayMillis);
+
+        Logger.verbose(
+                TAG + methodName,
+                "AccessToken refresh scheduled in [" + delayMillis + "] ms."
+        );
+    }
+
+    private long getRefreshAtMillis(@NonNull final AccessTokenRecord accessTokenRecord) {
+        final long refreshAheadSeconds = accessTokenRecord.getExpiresOnSeconds() - mRefreshAheadSeconds;
+        final String refreshOn = accessTokenRecord.getRefreshOn();
+
+        // The refresh_on hint is followed, unless it comes later than the refresh-ahead time
+        final long refreshAtSeconds = null == refreshOn
+                ? refreshAheadSeconds
+                : Math.min(Long.parseLong(refreshOn), refreshAheadSeconds);
+
+        return TimeUnit.SECONDS.toMillis(refreshAtSeconds);
+    }
+
+    /**
+     * Schedules the refresh of the supplied request after the supplied delay, replacing any
+     * scheduled before. Must hold this.
+     */
+    private void schedule(@NonNull final TrackedRequest trackedRequest, final long delayMillis) {
+        trackedRequest.cancelScheduledRefresh();
+        trackedRequest.mScheduledRefresh = mTimer.schedule(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(trackedRequest);
+                    }
+                },
+                delayMillis,
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    private void refresh(@NonNull final TrackedRequest trackedRequest) {
+        final String methodName = ":refresh";
+        final SilentTokenCommand refreshCommand;
+
+        synchronized (this) {
+            if (mTrackedRequests.get(trackedRequest.mKey) != trackedRequest) {
+                return;
+            }
+
+            trackedRequest.mScheduledRefresh = null;
+
+            if (mClock.currentTimeMillis() - trackedRequest.mLastUsedMillis > mActivityWindowMillis) {
+                Logger.verbose(
+                        TAG + methodName,
+                        "The request was not made recently, it is no longer refreshed."
+                );
+                untrack(trackedRequest);
+                return;
+            }
+
+            if (mRefreshesInFlight >= mMaxConcurrentRefreshes) {
+                // Try again shortly, spread out from the refreshes holding the slots
+                schedule(trackedRequest, MIN_REFRESH_DELAY_MILLIS + nextJitterMillis());
+                return;
+            }
+
+            final RefreshCallback callback = new RefreshCallback(trackedRequest);
+
+            mRefreshesInFlight++;
+            trackedRequest.mRefreshing = true;
+            refreshCommand = trackedRequest.createRefreshCommand(callback);
+            callback.mTimeout = mTimer.schedule(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onTimeout();
+                        }
+                    },
+                    REFRESH_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS
+            );
+        }
+
+        mRefreshCount.incrementAndGet();
+
+        Logger.info(
+                TAG + methodName,
+                "Refreshing AccessToken ahead of its expiry."
+        );
+
+        submitRefresh(refreshCommand);
+    }
+
+    /**
+     * Submits the supplied refresh command for execution.
+     */
+    @VisibleForTesting
+    void submitRefresh(@NonNull final SilentTokenCommand refreshCommand) {
+        CommandDispatcher.submitSilent(refreshCommand, CommandPriority.BACKGROUND);
+    }
+
+    /**
+     * Releases the slot of a refresh and schedules the next one. Must hold this, and be called
+     * once per refresh.
+     */
+    private void onRefreshCompleted(@NonNull final TrackedRequest trackedRequest,
+                                    @Nullable final AccessTokenRecord accessTokenRecord) {
+        mRefreshesInFlight--;
+        trackedRequest.mRefreshing = false;
+
+        if (mTrackedRequests.get(trackedRequest.mKey) != trackedRequest) {
+            return;
+        }
+
+        if (null == accessTokenRecord) {
+            // The request is tracked again the next time it succeeds
+            untrack(trackedRequest);
+        } else {
+            scheduleRefresh(trackedRequest, accessTokenRecord);
+        }
+    }
+
+    /**
+     * Must hold this.
+     */
+    private void untrackLeastRecentlyUsed() {
+        TrackedRequest leastRecentlyUsed = null;
+
+        for (final TrackedRequest trackedRequest : mTrackedRequests.values()) {
+            if (null == leastRecentlyUsed
+                    || trackedRequest.mLastUsedMillis < leastRecentlyUsed.mLastUsedMillis) {
+                leastRecentlyUsed = trackedRequest;
+            }
+        }
+
+        if (null != leastRecentlyUsed) {
+            untrack(leastRecentlyUsed);
+        }
+    }
+
+    /**
+     * Must hold this.
+     */
+    private void untrack(@NonNull final TrackedRequest trackedRequest) {
+        trackedRequest.cancelScheduledRefresh();
+        mTrackedRequests.remove(trackedRequest.mKey);
+    }
+
+    private long nextJitterMillis() {
+        return (long) (mRandom.nextDouble() * mMaxJitterMillis);
+    }
+
+    /**
+     * A silent request tracked for refresh. Its mutable fields are guarded by the scheduler.
+     */
+    private static final class TrackedRequest {
+
+        private final CommandKey mKey;
+        private final SilentTokenCommandParameters mParameters;
+        private final List<BaseController> mControllers;
+        private final String mPublicApiId;
+
+        private long mLastUsedMillis;
+        private long mExpiresOnSeconds;
+        private ScheduledFuture<?> mScheduledRefresh;
+        private boolean mRefreshing;
+
+        TrackedRequest(@NonNull final CommandKey key, @NonNull final SilentTokenCommand command) {
+            mKey = key;
+            mParameters = (SilentTokenCommandParameters) command.getParameters();
+            mControllers = command.getControllers();
+            mPublicApiId = command.getPublicApiId();
+        }
+
+        SilentTokenCommand createRefreshCommand(@NonNull final RefreshCallback callback) {
+            // Each refresh gets its own correlation id
+            final SilentTokenCommandParameters refreshParameters = mParameters.toBuilder()
+                    .forceRefresh(true)
+                    .correlationId(null)
+                    .build();
+
+            return new SilentTokenCommand(refreshParameters, mControllers, callback, mPublicApiId);
+        }
+
+        void cancelScheduledRefresh() {
+            if (null != mScheduledRefresh) {
+                mScheduledRefresh.cancel(false);
+                mScheduledRefresh = null;
+            }
+        }
+    }
+
+    /**
+     * Receives the result of one refresh. Its mutable fields are guarded by the scheduler.
+     */
+    private final class RefreshCallback
+            implements CommandCallback<ILocalAuthenticationResult, BaseException> {
+
+        private final TrackedRequest mTrackedRequest;
+
+        private ScheduledFuture<?> mTimeout;
+
+        /**
+         * True once the refresh delivered its result or timed out; whichever comes later is
+         * ignored.
+         */
+        private boolean mCompleted;
+
+        RefreshCallback(@NonNull final TrackedRequest trackedRequest) {
+            mTrackedRequest = trackedRequest;
+        }
+
+        @Override
+        public void onTaskCompleted(final ILocalAuthenticationResult result) {
+            complete(null == result ? null : result.getAccessTokenRecord());
+        }
+
+        @Override
+        public void onError(final BaseException error) {
+            Logger.warn(
+                    TAG + ":onError",
+                    "AccessToken refresh failed: " + error.getErrorCode()
+            );
+
+            complete(null);
+        }
+
+        @Override
+        public void onCancel() {
+            complete(null);
+        }
+
+        void onTimeout() {
+            Logger.warn(
+                    TAG + ":onTimeout",
+                    "AccessToken refresh did not complete in time, its slot is released."
+            );
+
+            complete(null);
+        }
+
+        private void complete(@Nullable final AccessTokenRecord accessTokenRecord) {
+            synchronized (TokenRefreshScheduler.this) {
+                if (mCompleted) {
+                    return;
+                }
+
+                mCompleted = true;
+
+                if (null != mTimeout) {
+                    mTimeout.cancel(false);
+                }
+
+                onRefreshCompleted(mTrackedRequest, accessTokenRecord);
+            }
+        }
+    }
+
+    /**
+     * API for creating {@link TokenRefreshScheduler} instances.
+     */
+    public static class Builder {
+        private long mRefreshAheadSeconds = DEFAULT_REFRESH_AHEAD_SECONDS;
+        private long mActivityWindowMillis = DEFAULT_ACTIVITY_WINDOW_MILLIS;
+        private long mMaxJitterMillis = DEFAULT_MAX_JITTER_MILLIS;
+        private int mMaxConcurrentRefreshes = DEFAULT_MAX_CONCURRENT_REFRESHES;
+        private int mMaxTrackedRequests = DEFAULT_MAX_TRACKED_REQUESTS;
+        private ScheduledExecutorService mTimer = sRefreshTimer;
+        private Clock mClock = SYSTEM_CLOCK;
+
+        public Builder() {
+        }
+
+        /**
+         * Sets the time before expiry at which AccessTokens without a refresh_on are renewed.
+         */
+        public Builder refreshAheadSeconds(final long refreshAheadSeconds) {
+            if (refreshAheadSeconds < 0) {
+                throw new IllegalArgumentException("Refresh-ahead time cannot be negative.");
+            }
+
+            mRefreshAheadSeconds = refreshAheadSeconds;
+            return this;
+        }
+
+        /**
+         * Sets the time after its last use for which a request keeps being refreshed.
+         */
+        public Builder activityWindowMillis(final long activityWindowMillis) {
+            if (activityWindowMillis <= 0) {
+                throw new IllegalArgumentException("Activity window must be positive.");
+            }
+
+            mActivityWindowMillis = activityWindowMillis;
+            return this;
+        }
+
+        /**
+         * Sets the largest time by which a refresh is brought forward.
+         */
+        public Builder maxJitterMillis(final long maxJitterMillis) {
+            if (maxJitterMillis < 0) {
+                throw new IllegalArgumentException("Jitter cannot be negative.");
+            }
+
+            mMaxJitterMillis = maxJitterMillis;
+            return this;
+        }
+
+        /**
+         * Sets the number of refreshes which may execute at once.
+         */
+        public Builder maxConcurrentRefreshes(final int maxConcurrentRefreshes) {
+            if (maxConcurrentRefreshes < 1) {
+                throw new IllegalArgumentException("Concurrent refreshes must be positive.");
+            }
+
+            mMaxConcurrentRefreshes = maxConcurrentRefreshes;
+            return this;
+        }
+
+        /**
+         * Sets the number of requests tracked; the least recently used is dropped beyond it.
+         */
+        public Builder maxTrackedRequests(final int maxTrackedRequests) {
+            if (maxTrackedRequests < 1) {
+                throw new IllegalArgumentException("Tracked requests must be positive.");
+            }
+
+            mMaxTrackedRequests = maxTrackedRequests;
+            return this;
+        }
+
+        /**
+         * Sets the executor on which refreshes and their timeouts are scheduled.
+         */
+        @VisibleForTesting
+        Builder timer(@NonNull final ScheduledExecutorService timer) {
+            mTimer = timer;
+            return this;
+        }
+
+        /**
+         * Sets the source of the current time.
+         */
+        @VisibleForTesting
+        Builder clock(@NonNull final Clock clock) {
+            mClock = clock;
+            return this;
+        }
+
+        /**
+         * Create a {@link TokenRefreshScheduler}.
+         */
+        public TokenRefreshScheduler build() {
+            return new TokenRefreshScheduler(this);
+        }
+    }
+}
@@ -27,8 +27,6 @@ import androidx.annotation.Nullable;
 import com.google.gson.annotations.SerializedName;
 import com.microsoft.identity.common.internal.platform.IDevicePopManager;
 
-import java.util.Calendar;
-import java.util.Date;
 import java.util.concurrent.TimeUnit;
 
 import static com.microsoft.identity.common.internal.dto.AccessTokenRecord.SerializedNames.ACCESS_TOKEN_TYPE;
@@ -36,6 +34,7 @@ import static com.microsoft.identity.common.internal.dto.AccessTokenRecord.Seria
 import static com.microsoft.identity.common.internal.dto.AccessTokenRecord.SerializedNames.EXTENDED_EXPIRES_ON;
 import static com.microsoft.identity.common.internal.dto.AccessTokenRecord.SerializedNames.KID;
 import static com.microsoft.identity.common.internal.dto.AccessTokenRecord.SerializedNames.REALM;
+import static com.microsoft.identity.common.internal.dto.AccessTokenRecord.SerializedNames.REFRESH_ON;
 import static com.microsoft.identity.common.internal.dto.AccessTokenRecord.SerializedNames.TARGET;
 import static com.microsoft.identity.common.internal.dto.AccessTokenRecord.SerializedNames.TOKEN_TYPE;
 import static com.microsoft.identity.common.internal.dto.Credential.SerializedNames.EXPIRES_ON;
@@ -64,6 +63,11 @@ public class AccessTokenRecord extends Credential {
          */
         public static final String EXTENDED_EXPIRES_ON = "extended_expires_on";
 
+        /**
+         * String of refresh on.
+         */
+        public static final String REFRESH_ON = "refresh_on";
+
         /**
          * String of realm.
          */
@@ -108,6 +112,13 @@ public class AccessTokenRecord extends Credential {
     @SerializedName(EXTENDED_EXPIRES_ON)
     private String mExtendedExpiresOn;
 
+    /**
+     * Time after which the service recommends renewing this token, ahead of its expiry. Measured
+     * in seconds from epoch (1970). Can be null.
+     */
+    @SerializedName(REFRESH_ON)
+    private String mRefreshOn;
+
     /**
      * Full tenant or organizational identifier that account belongs to. Can be null.
      */
@@ -123,6 +134,11 @@ public class AccessTokenRecord extends Credential {
     @SerializedName(TARGET)
     private String mTarget;
 
+    /**
+     * The parsed form of mTarget, see {@link #getScopeSet()}.
+     */
+    private transient ScopeSet mScopeSet;
+
     /**
      * Token expiry time. This value should be calculated based on the current UTC time measured
      * locally and the value expires_in returned from the service. Measured in milliseconds from
@@ -131,6 +147,11 @@ public class AccessTokenRecord extends Credential {
     @SerializedName(EXPIRES_ON)
     private String mExpiresOn;
 
+    /**
+     * The parsed form of mExpiresOn, see {@link #getExpiresOnSeconds()}.
+     */
+    private transient ParsedExpiry mParsedExpiry;
+
     /**
      * Gets the kid.
      * <p>
@@ -190,6 +211,24 @@ public class AccessTokenRecord extends Credential {
         mTarget = target;
     }
 
+    /**
+     * Gets the target, parsed as a {@link ScopeSet}. The parsed set is retained until the target
+     * changes.
+     *
+     * @return The ScopeSet of the target.
+     */
+    public ScopeSet getScopeSet() {
+        final String target = mTarget;
+        ScopeSet scopeSet = mScopeSet;
+
+        if (null == scopeSet || !scopeSet.isParsedFrom(target)) {
+            scopeSet = ScopeSet.of(target);
+            mScopeSet = scopeSet;
+        }
+
+        return scopeSet;
+    }
+
     /**
      * Gets the access_token_type.
      *
@@ -244,6 +283,25 @@ public class AccessTokenRecord extends Credential {
         mExtendedExpiresOn = extendedExpiresOn;
     }
 
+    /**
+     * Gets the refresh_on.
+     *
+     * @return The refresh_on to get.
+     */
+    @Nullable
+    public String getRefreshOn() {
+        return mRefreshOn;
+    }
+
+    /**
+     * Sets the refresh_on.
+     *
+     * @param refreshOn The refresh_on to set.
+     */
+    public void setRefreshOn(@Nullable final String refreshOn) {
+        mRefreshOn = refreshOn;
+    }
+
     /**
      * Gets the expires_on.
      *
@@ -262,20 +320,46 @@ public class AccessTokenRecord extends Credential {
         mExpiresOn = expiresOn;
     }
 
-    private boolean isExpired(final String expires) {
-        // Init a Calendar for the current time/date
-        final Calendar calendar = Calendar.getInstance();
-        final Date validity = calendar.getTime();
-        // Init a Date for the accessToken's expiry
-        long epoch = Long.valueOf(expires);
-        final Date expiresOn = new Date(
-                TimeUnit.SECONDS.toMillis(epoch)
-        );
-        return expiresOn.before(validity);
+    /**
+     * Gets the expires_on, parsed as seconds from epoch. The parsed value is retained until the
+     * expires_on changes.
+     *
+     * @return The expires_on in seconds from epoch.
+     * @throws NumberFormatException If the expires_on is not a number.
+     */
+    public long getExpiresOnSeconds() {
+        final String expiresOn = mExpiresOn;
+        ParsedExpiry parsedExpiry = mParsedExpiry;
+
+        if (null == parsedExpiry || !parsedExpiry.isParsedFrom(expiresOn)) {
+            parsedExpiry = new ParsedExpiry(expiresOn);
+            mParsedExpiry = parsedExpiry;
+        }
+
+        return parsedExpiry.mSeconds;
     }
 
     @Override
     public boolean isExpired() {
-        return isExpired(getExpiresOn());
+        return TimeUnit.SECONDS.toMillis(getExpiresOnSeconds()) < System.currentTimeMillis();
+    }
+
+    /**
+     * An expires_on String and its value, kept together so that readers never pair one with the
+     * value of another.
+     */
+    private static final class ParsedExpiry {
+
+        private final String mExpiresOn;
+        private final long mSeconds;
+
+        ParsedExpiry(final String expiresOn) {
+            mSeconds = Long.parseLong(expiresOn);
+            mExpiresOn = expiresOn;
+        }
+
+        boolean isParsedFrom(final String expiresOn) {
+            return mExpiresOn.equals(expiresOn);
+        }
     }
 }
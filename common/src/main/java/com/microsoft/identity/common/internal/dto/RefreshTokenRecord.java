@@ -55,6 +55,11 @@ public class RefreshTokenRecord extends Credential {
     @SerializedName(TARGET)
     private String mTarget;
 
+    /**
+     * The parsed form of mTarget, see {@link #getScopeSet()}.
+     */
+    private transient ScopeSet mScopeSet;
+
     /**
      * Gets the target.
      *
@@ -73,6 +78,24 @@ public class RefreshTokenRecord extends Credential {
         mTarget = target;
     }
 
+    /**
+     * Gets the target, parsed as a {@link ScopeSet}. The parsed set is retained until the target
+     * changes.
+     *
+     * @return The ScopeSet of the target.
+     */
+    public ScopeSet getScopeSet() {
+        final String target = mTarget;
+        ScopeSet scopeSet = mScopeSet;
+
+        if (null == scopeSet || !scopeSet.isParsedFrom(target)) {
+            scopeSet = ScopeSet.of(target);
+            mScopeSet = scopeSet;
+        }
+
+        return scopeSet;
+    }
+
     /**
      * Gets the family_id.
      *
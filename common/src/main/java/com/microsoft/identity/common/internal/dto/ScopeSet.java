@@ -0,0 +1,394 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.dto;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable, parsed credential target: a whitespace-delimited set of scopes.
+ * <p>
+ * Scopes are matched case-insensitively. Each distinct scope is assigned an id from a per-process
+ * dictionary, and a ScopeSet holds the sorted ids of its scopes, so containment and intersection
+ * tests compare int arrays without allocating. Instances are interned by target.
+ * <p>
+ * The dictionary is bounded. Once it is full, sets with a scope it does not know hold no ids and
+ * are compared by their sorted scope strings instead.
+ */
+public final class ScopeSet {
+
+    /**
+     * The ScopeSet containing no scopes.
+     */
+    public static final ScopeSet EMPTY = new ScopeSet("", new int[0]);
+
+    /**
+     * The maximum number of distinct scopes assigned an id.
+     */
+    private static final int MAX_SCOPE_IDS = 4096;
+
+    /**
+     * Returned by {@link #idOf(String)} for a scope which cannot be assigned an id.
+     */
+    private static final int NO_SCOPE_ID = -1;
+
+    /**
+     * The maximum number of ScopeSets retained by {@link #of(String)}.
+     */
+    private static final int MAX_INTERNED_SCOPE_SETS = 1024;
+
+    private static final ConcurrentMap<String, Integer> sScopeIds = new ConcurrentHashMap<>();
+    private static final AtomicInteger sNextScopeId = new AtomicInteger();
+    private static final ConcurrentMap<String, ScopeSet> sInternedScopeSets = new ConcurrentHashMap<>();
+
+    private final String mTarget;
+
+    /**
+     * The sorted, distinct ids of the scopes of this set, or null if some scope has no id.
+     */
+    @Nullable
+    private final int[] mScopeIds;
+
+    /**
+     * The sorted, distinct scopes of this set; only parsed when comparing by scope strings.
+     */
+    @Nullable
+    private volatile String[] mScopes;
+
+    private ScopeSet(@NonNull final String target, @Nullable final int[] scopeIds) {
+        mTarget = target;
+        mScopeIds = scopeIds;
+    }
+
+    /**
+     * Returns the ScopeSet of the supplied target.
+     *
+     * @param target The whitespace-delimited scopes. May be null.
+     * @return The parsed ScopeSet.
+     */
+    @NonNull
+    public static ScopeSet of(@Nullable final String target) {
+        if (null == target) {
+            return EMPTY;
+        }
+
+        ScopeSet scopeSet = sInternedScopeSets.get(target);
+
+        if (null == scopeSet) {
+            scopeSet = new ScopeSet(target, parse(target));
+
+            if (sInternedScopeSets.size() < MAX_INTERNED_SCOPE_SETS) {
+                final ScopeSet existing = sInternedScopeSets.putIfAbsent(target, scopeSet);
+
+                if (null != existing) {
+                    scopeSet = existing;
+                }
+            }
+        }
+
+        return scopeSet;
+    }
+
+    /**
+     * Returns the ScopeSet of the supplied scopes.
+     *
+     * @param scopes The scopes.
+     * @return The parsed ScopeSet.
+     */
+    @NonNull
+    public static ScopeSet of(@NonNull final Collection<String> scopes) {
+        final StringBuilder target = new StringBuilder();
+
+        for (final String scope : scopes) {
+            target.append(scope).append(' ');
+        }
+
+        return of(target.toString().trim());
+    }
+
+    /**
+     * Tests if this set contains every scope of the supplied set, disregarding ignored scopes.
+     *
+     * @param other   The scopes which must be contained.
+     * @param ignored Scopes to leave out of the comparison, e.g. the default scopes.
+     * @return True if every scope of other, except for those ignored, is in this set.
+     */
+    public boolean containsAll(@NonNull final ScopeSet other, @NonNull final ScopeSet ignored) {
+        if (!hasScopeIds(other, ignored)) {
+            return containsAllScopes(other, ignored);
+        }
+
+        int index = 0;
+
+        for (final int scopeId : other.mScopeIds) {
+            if (ignored.contains(scopeId)) {
+                continue;
+            }
+
+            while (index < mScopeIds.length && mScopeIds[index] < scopeId) {
+                index++;
+            }
+
+            if (index == mScopeIds.length || mScopeIds[index] != scopeId) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Tests if this set shares a scope with the supplied set, disregarding ignored scopes.
+     *
+     * @param other   The set to compare.
+     * @param ignored Scopes to leave out of the comparison, e.g. the default scopes.
+     * @return True if a scope other than those ignored is in both sets.
+     */
+    public boolean intersects(@NonNull final ScopeSet other, @NonNull final ScopeSet ignored) {
+        if (!hasScopeIds(other, ignored)) {
+            return intersectsScopes(other, ignored);
+        }
+
+        int index = 0;
+        int otherIndex = 0;
+
+        while (index < mScopeIds.length && otherIndex < other.mScopeIds.length) {
+            final int scopeId = mScopeIds[index];
+            final int otherScopeId = other.mScopeIds[otherIndex];
+
+            if (scopeId < otherScopeId) {
+                index++;
+            } else if (scopeId > otherScopeId) {
+                otherIndex++;
+            } else if (ignored.contains(scopeId)) {
+                index++;
+                otherIndex++;
+            } else {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the number of distinct scopes in this set.
+     *
+     * @return The number of scopes.
+     */
+    public int size() {
+        return null == mScopeIds ? getScopes().length : mScopeIds.length;
+    }
+
+    /**
+     * Tests if this set was parsed from the supplied target.
+     *
+     * @param target The target to compare.
+     * @return True if this set's target equals the supplied one.
+     */
+    public boolean isParsedFrom(@Nullable final String target) {
+        return mTarget.equals(target);
+    }
+
+    private boolean contains(final int scopeId) {
+        return Arrays.binarySearch(mScopeIds, scopeId) >= 0;
+    }
+
+    private boolean hasScopeIds(@NonNull final ScopeSet other, @NonNull final ScopeSet ignored) {
+        return null != mScopeIds && null != other.mScopeIds && null != ignored.mScopeIds;
+    }
+
+    private boolean containsAllScopes(@NonNull final ScopeSet other, @NonNull final ScopeSet ignored) {
+        final String[] scopes = getScopes();
+        final String[] ignoredScopes = ignored.getScopes();
+
+        for (final String scope : other.getScopes()) {
+            if (Arrays.binarySearch(ignoredScopes, scope) < 0
+                    && Arrays.binarySearch(scopes, scope) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean intersectsScopes(@NonNull final ScopeSet other, @NonNull final ScopeSet ignored) {
+        final String[] otherScopes = other.getScopes();
+        final String[] ignoredScopes = ignored.getScopes();
+
+        for (final String scope : getScopes()) {
+            if (Arrays.binarySearch(ignoredScopes, scope) < 0
+                    && Arrays.binarySearch(otherScopes, scope) >= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @NonNull
+    private String[] getScopes() {
+        String[] scopes = mScopes;
+
+        if (null == scopes) {
+            final Set<String> distinctScopes = new TreeSet<>();
+
+            for (final String scope : split(mTarget)) {
+                distinctScopes.add(scope.toLowerCase(Locale.US));
+            }
+
+            scopes = distinctScopes.toArray(new String[0]);
+            mScopes = scopes;
+        }
+
+        return scopes;
+    }
+
+    /**
+     * Splits the target on whitespace, as the regex \s+ would.
+     */
+    @NonNull
+    private static List<String> split(@NonNull final String target) {
+        final List<String> scopes = new ArrayList<>();
+        int start = -1;
+
+        for (int i = 0; i <= target.length(); i++) {
+            if (i == target.length() || isWhitespace(target.charAt(i))) {
+                if (start >= 0) {
+                    scopes.add(target.substring(start, i));
+                    start = -1;
+                }
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+
+        return scopes;
+    }
+
+    /**
+     * Splits the target on whitespace (as the regex \s+ would) and maps its scopes to their ids.
+     *
+     * @return The sorted, distinct ids, or null if some scope cannot be assigned an id.
+     */
+    @Nullable
+    private static int[] parse(@NonNull final String target) {
+        int[] scopeIds = new int[4];
+        int count = 0;
+        int start = -1;
+
+        for (int i = 0; i <= target.length(); i++) {
+            if (i == target.length() || isWhitespace(target.charAt(i))) {
+                if (start >= 0) {
+                    if (count == scopeIds.length) {
+                        scopeIds = Arrays.copyOf(scopeIds, count * 2);
+                    }
+
+                    final int scopeId = idOf(target.substring(start, i).toLowerCase(Locale.US));
+
+                    if (NO_SCOPE_ID == scopeId) {
+                        return null;
+                    }
+
+                    scopeIds[count++] = scopeId;
+                    start = -1;
+                }
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+
+        Arrays.sort(scopeIds, 0, count);
+
+        // Remove duplicates
+        int distinct = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || scopeIds[distinct - 1] != scopeIds[i]) {
+                scopeIds[distinct++] = scopeIds[i];
+            }
+        }
+
+        return Arrays.copyOf(scopeIds, distinct);
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static int idOf(@NonNull final String scope) {
+        Integer scopeId = sScopeIds.get(scope);
+
+        if (null == scopeId) {
+            if (sScopeIds.size() >= MAX_SCOPE_IDS) {
+                // Racing threads may overshoot the bound slightly, which is harmless
+                return NO_SCOPE_ID;
+            }
+
+            final Integer newScopeId = sNextScopeId.getAndIncrement();
+            scopeId = sScopeIds.putIfAbsent(scope, newScopeId);
+
+            if (null == scopeId) {
+                scopeId = newScopeId;
+            }
+        }
+
+        return scopeId;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ScopeSet)) return false;
+
+        final ScopeSet other = (ScopeSet) o;
+
+        if (null != mScopeIds && null != other.mScopeIds) {
+            return Arrays.equals(mScopeIds, other.mScopeIds);
+        }
+
+        return Arrays.equals(getScopes(), other.getScopes());
+    }
+
+    @Override
+    public int hashCode() {
+        // Based on the scopes rather than their ids, to agree with sets which hold no ids
+        return Arrays.hashCode(getScopes());
+    }
+
+    @Override
+    public String toString() {
+        return mTarget;
+    }
+}
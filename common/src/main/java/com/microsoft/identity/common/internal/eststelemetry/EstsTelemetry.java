@@ -31,6 +31,7 @@ import com.microsoft.identity.common.exception.BaseException;
 import com.microsoft.identity.common.exception.ServiceException;
 import com.microsoft.identity.common.internal.cache.ISharedPreferencesFileManager;
 import com.microsoft.identity.common.internal.cache.SharedPreferencesFileManager;
+import com.microsoft.identity.common.internal.cache.WriteBehindSharedPreferencesFileManager;
 import com.microsoft.identity.common.internal.commands.BaseCommand;
 import com.microsoft.identity.common.internal.commands.TokenCommand;
 import com.microsoft.identity.common.internal.controllers.CommandResult;
@@ -212,10 +213,13 @@ public class EstsTelemetry {
                 "Creating Last Request Telemetry Cache"
         );
 
+        // Losing the last request telemetry is harmless, so write it behind.
         final ISharedPreferencesFileManager sharedPreferencesFileManager =
-                new SharedPreferencesFileManager(
-                        context,
-                        LAST_REQUEST_TELEMETRY_SHARED_PREFERENCES
+                new WriteBehindSharedPreferencesFileManager(
+                        new SharedPreferencesFileManager(
+                                context,
+                                LAST_REQUEST_TELEMETRY_SHARED_PREFERENCES
+                        )
                 );
 
         return new SharedPreferencesLastRequestTelemetryCache(sharedPreferencesFileManager);
@@ -36,6 +36,8 @@ public class MicrosoftTokenResponse extends TokenResponse {
 
     private static final String FAMILY_ID = "foci";
 
+    private static final String REFRESH_IN = "refresh_in";
+
     /**
      * Optionally extended access_token TTL. In the event of STS outage, this field may be used to
      * extend the valid lifetime of an access_token.
@@ -57,6 +59,14 @@ public class MicrosoftTokenResponse extends TokenResponse {
     @SerializedName(EXT_EXPIRES_IN)
     private Long mExtendedExpiresIn;
 
+    /**
+     * Optional hint of the number of seconds after which the access_token should be renewed,
+     * ahead of its expiry.
+     */
+    @Expose()
+    @SerializedName(REFRESH_IN)
+    private Long mRefreshIn;
+
     /**
      * Information to uniquely identify the family that the client application belongs to.
      */
@@ -193,6 +203,24 @@ public class MicrosoftTokenResponse extends TokenResponse {
         mExtendedExpiresIn = extExpiresIn;
     }
 
+    /**
+     * Gets the refresh_in.
+     *
+     * @return The refresh_in to get.
+     */
+    public Long getRefreshIn() {
+        return mRefreshIn;
+    }
+
+    /**
+     * Sets the refresh_in.
+     *
+     * @param refreshIn The refresh_in to set.
+     */
+    public void setRefreshIn(final Long refreshIn) {
+        mRefreshIn = refreshIn;
+    }
+
     /**
      * Gets the response client_info.
      *
@@ -26,7 +26,9 @@ import android.content.Context;
 
 import androidx.annotation.NonNull;
 
+import com.microsoft.identity.common.internal.cache.ISharedPreferencesFileManager;
 import com.microsoft.identity.common.internal.cache.SharedPreferencesFileManager;
+import com.microsoft.identity.common.internal.cache.WriteBehindSharedPreferencesFileManager;
 
 import java.util.Calendar;
 import java.util.Date;
@@ -41,12 +43,16 @@ public class ClockSkewManager implements IClockSkewManager {
         private static final String KEY_SKEW = "skew";
     }
 
-    private SharedPreferencesFileManager mClockSkewPreferences;
+    private ISharedPreferencesFileManager mClockSkewPreferences;
 
     public ClockSkewManager(@NonNull final Context context) {
-        mClockSkewPreferences = new SharedPreferencesFileManager(
-                context,
-                PreferencesMetadata.SKEW_PREFERENCES_FILENAME
+        // The skew is refreshed by every response; losing an update is harmless, so keep the
+        // write off the request thread.
+        mClockSkewPreferences = new WriteBehindSharedPreferencesFileManager(
+                new SharedPreferencesFileManager(
+                        context,
+                        PreferencesMetadata.SKEW_PREFERENCES_FILENAME
+                )
         );
     }
 
@@ -39,6 +39,32 @@ public class AccessTokenTest {
         Assert.assertTrue(accessToken.isExpired());
     }
 
+    @Test
+    public void testNotExpired() {
+        final AccessTokenRecord accessToken = new AccessTokenRecord();
+        accessToken.setExpiresOn(String.valueOf(System.currentTimeMillis() / 1000 + 3600));
+        Assert.assertFalse(accessToken.isExpired());
+    }
+
+    @Test
+    public void testExpiryFollowsExpiresOn() {
+        final AccessTokenRecord accessToken = new AccessTokenRecord();
+        accessToken.setExpiresOn("1000");
+        Assert.assertEquals(1000, accessToken.getExpiresOnSeconds());
+        Assert.assertTrue(accessToken.isExpired());
+
+        // The parsed expiry must not outlive the expires_on it was parsed from
+        accessToken.setExpiresOn(String.valueOf(System.currentTimeMillis() / 1000 + 3600));
+        Assert.assertFalse(accessToken.isExpired());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testMalformedExpiresOn() {
+        final AccessTokenRecord accessToken = new AccessTokenRecord();
+        accessToken.setExpiresOn("tomorrow");
+        accessToken.isExpired();
+    }
+
     private String getCurrentTimeStr() {
         return String.valueOf(
                 Calendar
@@ -0,0 +1,154 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common;
+
+import com.microsoft.identity.common.internal.cache.CacheKeyTokenizer;
+import com.microsoft.identity.common.internal.cache.CacheKeyValueDelegate;
+import com.microsoft.identity.common.internal.cache.ICacheKeyValueDelegate;
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.dto.AccountRecord;
+import com.microsoft.identity.common.internal.dto.CredentialType;
+import com.microsoft.identity.common.internal.dto.IdTokenRecord;
+import com.microsoft.identity.common.internal.dto.RefreshTokenRecord;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheKeyTokenizerTest {
+
+    private static final String HOME_ACCOUNT_ID = "29f3807a-4fb0-42f2-a44a-236aa0cb3f97.0287f963-2d72-4363-9e3a-5705c5b0f031";
+    private static final String ENVIRONMENT = "login.microsoftonline.com";
+    private static final String CLIENT_ID = "0287f963-2d72-4363-9e3a-5705c5b0f031";
+    private static final String TARGET = "user.read user.write https://graph.windows.net";
+    private static final String REALM = "3c62ac97-29eb-4aed-a3c8-add0298508d";
+
+    private ICacheKeyValueDelegate mDelegate;
+    private CacheKeyTokenizer mTokenizer;
+
+    @Before
+    public void setUp() {
+        mDelegate = new CacheKeyValueDelegate();
+        mTokenizer = new CacheKeyTokenizer();
+    }
+
+    @Test
+    public void accessToken() {
+        final AccessTokenRecord accessToken = new AccessTokenRecord();
+        accessToken.setHomeAccountId(HOME_ACCOUNT_ID);
+        accessToken.setEnvironment(ENVIRONMENT);
+        accessToken.setCredentialType(CredentialType.AccessToken.name());
+        accessToken.setClientId(CLIENT_ID);
+        accessToken.setRealm(REALM);
+        accessToken.setTarget(TARGET);
+
+        final String cacheKey = mDelegate.generateCacheKey(accessToken);
+        assertEquals(CredentialType.AccessToken, CacheKeyTokenizer.getCredentialType(cacheKey));
+        assertTrue(mTokenizer.tokenize(cacheKey));
+        assertEquals(CredentialType.AccessToken, mTokenizer.getCredentialType());
+    }
+
+    @Test
+    public void accessTokenWithAuthScheme() {
+        final AccessTokenRecord accessToken = new AccessTokenRecord();
+        accessToken.setHomeAccountId(HOME_ACCOUNT_ID);
+        accessToken.setEnvironment(ENVIRONMENT);
+        accessToken.setCredentialType(CredentialType.AccessToken_With_AuthScheme.name());
+        accessToken.setClientId(CLIENT_ID);
+        accessToken.setRealm(REALM);
+        accessToken.setTarget(TARGET);
+        accessToken.setAccessTokenType("PoP");
+
+        final String cacheKey = mDelegate.generateCacheKey(accessToken);
+        assertEquals(
+                CredentialType.AccessToken_With_AuthScheme,
+                CacheKeyTokenizer.getCredentialType(cacheKey)
+        );
+    }
+
+    @Test
+    public void refreshTokenWithoutHomeAccountId() {
+        final RefreshTokenRecord refreshToken = new RefreshTokenRecord();
+        refreshToken.setEnvironment(ENVIRONMENT);
+        refreshToken.setCredentialType(CredentialType.RefreshToken.name());
+        refreshToken.setClientId(CLIENT_ID);
+        refreshToken.setTarget(TARGET);
+
+        final String cacheKey = mDelegate.generateCacheKey(refreshToken);
+        assertEquals(CredentialType.RefreshToken, CacheKeyTokenizer.getCredentialType(cacheKey));
+    }
+
+    @Test
+    public void idTokens() {
+        final IdTokenRecord idToken = new IdTokenRecord();
+        idToken.setHomeAccountId(HOME_ACCOUNT_ID);
+        idToken.setEnvironment(ENVIRONMENT);
+        idToken.setCredentialType(CredentialType.IdToken.name());
+        idToken.setClientId(CLIENT_ID);
+        idToken.setRealm(REALM);
+
+        assertEquals(
+                CredentialType.IdToken,
+                CacheKeyTokenizer.getCredentialType(mDelegate.generateCacheKey(idToken))
+        );
+
+        idToken.setCredentialType(CredentialType.V1IdToken.name());
+
+        assertEquals(
+                CredentialType.V1IdToken,
+                CacheKeyTokenizer.getCredentialType(mDelegate.generateCacheKey(idToken))
+        );
+    }
+
+    @Test
+    public void account() {
+        final AccountRecord account = new AccountRecord();
+        account.setHomeAccountId(HOME_ACCOUNT_ID);
+        account.setEnvironment(ENVIRONMENT);
+        account.setRealm(REALM);
+
+        final String cacheKey = mDelegate.generateCacheKey(account);
+        assertNull(CacheKeyTokenizer.getCredentialType(cacheKey));
+        assertFalse(mTokenizer.tokenize(cacheKey));
+        assertFalse(mTokenizer.isCredential());
+    }
+
+    @Test
+    public void typeNameMustBeAWholeSegment() {
+        assertNull(CacheKeyTokenizer.getCredentialType("home-env-accesstokens-client-realm-target"));
+        assertNull(CacheKeyTokenizer.getCredentialType("home-env-accesstoken"));
+        assertNull(CacheKeyTokenizer.getCredentialType("home-env-password-client-realm-target"));
+    }
+
+    @Test
+    public void tokenizerIsReusable() {
+        assertTrue(mTokenizer.tokenize("home-env-refreshtoken-client--"));
+        assertEquals(CredentialType.RefreshToken, mTokenizer.getCredentialType());
+        assertFalse(mTokenizer.tokenize("home-env-realm"));
+        assertNull(mTokenizer.getCredentialType());
+    }
+}
@@ -22,6 +22,7 @@
 // THE SOFTWARE.
 package com.microsoft.identity.common;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -309,6 +310,33 @@ public class CacheKeyValueDelegateTest {
         final AccessTokenRecord record = mDelegate.fromCacheValue(jsonStr, AccessTokenRecord.class);
         assertEquals(authScheme, record.getAccessTokenType());
     }
+    @Test
+    public void accessTokenCacheValueMatchesTreeSerialization() {
+        final AccessTokenRecord accessToken = new AccessTokenRecord();
+        accessToken.setHomeAccountId(HOME_ACCOUNT_ID);
+        accessToken.setEnvironment(ENVIRONMENT);
+        accessToken.setCredentialType(CredentialType.AccessToken.name().toLowerCase(Locale.US));
+        accessToken.setClientId(CLIENT_ID);
+        accessToken.setRealm(REALM);
+        accessToken.setTarget(TARGET);
+
+        final Map<String, JsonElement> additionalFields = new HashMap<>();
+        additionalFields.put("foo", new JsonPrimitive("<bar>"));
+        additionalFields.put("numbers", new JsonArray());
+        additionalFields.put("nothing", null);
+        additionalFields.put(Credential.SerializedNames.ENVIRONMENT, new JsonPrimitive("replaced"));
+        accessToken.setAdditionalFields(additionalFields);
+
+        // The format written before cache values were streamed
+        final Gson gson = new Gson();
+        final JsonObject expected = gson.toJsonTree(accessToken).getAsJsonObject();
+
+        for (final Map.Entry<String, JsonElement> additionalField : additionalFields.entrySet()) {
+            expected.add(additionalField.getKey(), additionalField.getValue());
+        }
+
+        assertEquals(gson.toJson(expected), mDelegate.generateCacheValue(accessToken));
+    }
     // End AccessTokens
 
     // Accounts
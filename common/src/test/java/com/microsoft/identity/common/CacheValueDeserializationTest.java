@@ -0,0 +1,255 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.annotations.SerializedName;
+import com.microsoft.identity.common.internal.cache.CacheKeyValueDelegate;
+import com.microsoft.identity.common.internal.cache.ICacheKeyValueDelegate;
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.dto.AccountCredentialBase;
+import com.microsoft.identity.common.internal.dto.AccountRecord;
+import com.microsoft.identity.common.internal.dto.Credential;
+import com.microsoft.identity.common.internal.dto.CredentialType;
+import com.microsoft.identity.common.internal.dto.IdTokenRecord;
+import com.microsoft.identity.common.internal.dto.RefreshTokenRecord;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compares the single-pass deserialization of cache values against the previous two-pass
+ * implementation (Gson, then a second JsonParser pass to recover the additionalFields).
+ */
+public class CacheValueDeserializationTest {
+
+    private static final String ADDITIONAL_FIELDS = ""
+            + "\"foo\":\"bar\","
+            + "\"numbers\":[1,2,3],"
+            + "\"objects\":[{\"hello\":\"hallo\"}],"
+            + "\"nothing\":null";
+
+    private static final String ACCOUNT = "{"
+            + "\"home_account_id\":\"29f3807a-4fb0-42f2-a44a-236aa0cb3f97.0287f963-2d72-4363-9e3a-5705c5b0f031\","
+            + "\"environment\":\"login.microsoftonline.com\","
+            + "\"realm\":\"0287f963-2d72-4363-9e3a-5705c5b0f031\","
+            + "\"local_account_id\":\"90bc88e6-7c76-45e8-a4e3-a0b1dc0a8ce1\","
+            + "\"username\":\"user@contoso.com\","
+            + "\"authority_type\":\"MSSTS\","
+            + ADDITIONAL_FIELDS
+            + "}";
+
+    private static final String ACCESS_TOKEN = "{"
+            + "\"home_account_id\":\"29f3807a-4fb0-42f2-a44a-236aa0cb3f97.0287f963-2d72-4363-9e3a-5705c5b0f031\","
+            + "\"environment\":\"login.microsoftonline.com\","
+            + "\"credential_type\":\"AccessToken\","
+            + "\"client_id\":\"0287f963-2d72-4363-9e3a-5705c5b0f031\","
+            + "\"secret\":\"secret\","
+            + "\"realm\":\"3c62ac97-29eb-4aed-a3c8-add0298508d\","
+            + "\"target\":\"user.read user.write\","
+            + "\"cached_at\":\"1500000000\","
+            + "\"expires_on\":\"1500003600\","
+            + "\"access_token_type\":\"Bearer\","
+            + ADDITIONAL_FIELDS
+            + "}";
+
+    private static final String REFRESH_TOKEN = "{"
+            + "\"home_account_id\":\"29f3807a-4fb0-42f2-a44a-236aa0cb3f97.0287f963-2d72-4363-9e3a-5705c5b0f031\","
+            + "\"environment\":\"login.microsoftonline.com\","
+            + "\"credential_type\":\"RefreshToken\","
+            + "\"client_id\":\"0287f963-2d72-4363-9e3a-5705c5b0f031\","
+            + "\"secret\":\"secret\","
+            + "\"family_id\":\"1\","
+            + "\"target\":\"user.read user.write\","
+            + ADDITIONAL_FIELDS
+            + "}";
+
+    private static final String ID_TOKEN = "{"
+            + "\"home_account_id\":\"29f3807a-4fb0-42f2-a44a-236aa0cb3f97.0287f963-2d72-4363-9e3a-5705c5b0f031\","
+            + "\"environment\":\"login.microsoftonline.com\","
+            + "\"credential_type\":\"IdToken\","
+            + "\"client_id\":\"0287f963-2d72-4363-9e3a-5705c5b0f031\","
+            + "\"secret\":\"header.payload.signature\","
+            + "\"realm\":\"3c62ac97-29eb-4aed-a3c8-add0298508d\","
+            + ADDITIONAL_FIELDS
+            + "}";
+
+    private static final int ITERATIONS = 5000;
+
+    private final Gson mGson = new Gson();
+
+    private ICacheKeyValueDelegate mDelegate;
+
+    @Before
+    public void setUp() {
+        mDelegate = new CacheKeyValueDelegate();
+    }
+
+    @Test
+    public void accountMatchesTwoPassResult() {
+        assertMatchesTwoPassResult(ACCOUNT, AccountRecord.class);
+    }
+
+    @Test
+    public void accessTokenMatchesTwoPassResult() {
+        assertMatchesTwoPassResult(ACCESS_TOKEN, AccessTokenRecord.class);
+    }
+
+    @Test
+    public void refreshTokenMatchesTwoPassResult() {
+        assertMatchesTwoPassResult(REFRESH_TOKEN, RefreshTokenRecord.class);
+    }
+
+    @Test
+    public void idTokenMatchesTwoPassResult() {
+        assertMatchesTwoPassResult(ID_TOKEN, IdTokenRecord.class);
+    }
+
+    @Test
+    public void alternateNameIsRetainedAsAdditionalField() {
+        final AccessTokenRecord accessToken = mDelegate.fromCacheValue(ACCESS_TOKEN, AccessTokenRecord.class);
+
+        assertEquals("Bearer", accessToken.getAccessTokenType());
+        assertEquals("Bearer", accessToken.getAdditionalFields().get("access_token_type").getAsString());
+        assertEquals(CredentialType.AccessToken.name(), accessToken.getCredentialType());
+    }
+
+    @Test
+    public void malformedValueIsRejected() {
+        assertNull(mDelegate.fromCacheValue("{\"secret\":", AccessTokenRecord.class));
+        assertNull(mDelegate.fromCacheValue("{\"secret\":{}}", AccessTokenRecord.class));
+        assertNull(mDelegate.fromCacheValue("", AccessTokenRecord.class));
+    }
+
+    @Test
+    public void cacheValuesRoundTrip() {
+        assertRoundTrips(ACCOUNT, AccountRecord.class);
+        assertRoundTrips(ACCESS_TOKEN, AccessTokenRecord.class);
+        assertRoundTrips(REFRESH_TOKEN, RefreshTokenRecord.class);
+        assertRoundTrips(ID_TOKEN, IdTokenRecord.class);
+    }
+
+    /**
+     * Compares deserializing many access tokens, as loading a cache does, against the previous
+     * two-pass deserialization, which parses every value a second time for its additionalFields.
+     */
+    @Test
+    public void testDeserializationBenchmark() {
+        // Warm up both paths
+        for (int i = 0; i < ITERATIONS; i++) {
+            fromCacheValueTwoPass(ACCESS_TOKEN, AccessTokenRecord.class);
+            mDelegate.fromCacheValue(ACCESS_TOKEN, AccessTokenRecord.class);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals("Bearer", ((AccessTokenRecord) fromCacheValueTwoPass(ACCESS_TOKEN, AccessTokenRecord.class)).getAccessTokenType());
+        }
+        final long twoPassNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals("Bearer", mDelegate.fromCacheValue(ACCESS_TOKEN, AccessTokenRecord.class).getAccessTokenType());
+        }
+        final long singlePassNanos = System.nanoTime() - start;
+
+        System.out.println("Deserialized " + ITERATIONS + " access tokens: two-pass "
+                + TimeUnit.NANOSECONDS.toMillis(twoPassNanos) + "ms, single-pass "
+                + TimeUnit.NANOSECONDS.toMillis(singlePassNanos) + "ms");
+    }
+
+    private void assertRoundTrips(final String cacheValue,
+                                  final Class<? extends AccountCredentialBase> clazz) {
+        final AccountCredentialBase record = mDelegate.fromCacheValue(cacheValue, clazz);
+        final String roundTripped = record instanceof AccountRecord
+                ? mDelegate.generateCacheValue((AccountRecord) record)
+                : mDelegate.generateCacheValue((Credential) record);
+
+        final JsonObject expected = new JsonParser().parse(cacheValue).getAsJsonObject();
+        // Null members are not serialized
+        expected.remove("nothing");
+
+        assertEquals(expected, new JsonParser().parse(roundTripped));
+    }
+
+    private void assertMatchesTwoPassResult(final String cacheValue,
+                                            final Class<? extends AccountCredentialBase> clazz) {
+        final AccountCredentialBase expected = fromCacheValueTwoPass(cacheValue, clazz);
+        final AccountCredentialBase actual = mDelegate.fromCacheValue(cacheValue, clazz);
+
+        assertEquals(mGson.toJson(expected), mGson.toJson(actual));
+        assertEquals(expected.getAdditionalFields(), actual.getAdditionalFields());
+    }
+
+    /**
+     * The deserialization performed by {@link CacheKeyValueDelegate} before single-pass adapters.
+     */
+    private AccountCredentialBase fromCacheValueTwoPass(final String cacheValue,
+                                                        final Class<? extends AccountCredentialBase> clazz) {
+        final AccountCredentialBase result = mGson.fromJson(cacheValue, clazz);
+        final JsonObject incomingJson = new JsonParser().parse(cacheValue).getAsJsonObject();
+
+        for (final String expectedField : getExpectedJsonFields(clazz)) {
+            incomingJson.remove(expectedField);
+        }
+
+        final Map<String, JsonElement> additionalFields = new HashMap<>();
+
+        for (final String key : incomingJson.keySet()) {
+            additionalFields.put(key, incomingJson.get(key));
+        }
+
+        result.setAdditionalFields(additionalFields);
+
+        return result;
+    }
+
+    private static Set<String> getExpectedJsonFields(final Class<?> clazz) {
+        final Set<String> serializedNames = new HashSet<>();
+
+        for (Class<?> current = clazz; current != AccountCredentialBase.class; current = current.getSuperclass()) {
+            for (final Field field : current.getDeclaredFields()) {
+                final SerializedName serializedName = field.getAnnotation(SerializedName.class);
+
+                if (null != serializedName) {
+                    serializedNames.add(serializedName.value());
+                }
+            }
+        }
+
+        return serializedNames;
+    }
+}
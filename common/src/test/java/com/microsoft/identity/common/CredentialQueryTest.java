@@ -0,0 +1,140 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common;
+
+import com.microsoft.identity.common.internal.cache.CacheKeyValueDelegate;
+import com.microsoft.identity.common.internal.cache.CredentialQuery;
+import com.microsoft.identity.common.internal.cache.ICacheKeyValueDelegate;
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.dto.AccountRecord;
+import com.microsoft.identity.common.internal.dto.CredentialType;
+import com.microsoft.identity.common.internal.dto.RefreshTokenRecord;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CredentialQueryTest {
+
+    private static final String HOME_ACCOUNT_ID = "29f3807a-4fb0-42f2-a44a-236aa0cb3f97.0287f963-2d72-4363-9e3a-5705c5b0f031";
+    private static final String ENVIRONMENT = "login.windows-ppe.net";
+    private static final String CLIENT_ID = "0287f963-2d72-4363-9e3a-5705c5b0f031";
+    private static final String TARGET = "user.read user.write";
+    private static final String REALM = "3c62ac97-29eb-4aed-a3c8-add0298508d";
+
+    private String mAccessTokenKey;
+    private String mFamilyRefreshTokenKey;
+    private String mAccountKey;
+
+    @Before
+    public void setUp() {
+        final ICacheKeyValueDelegate delegate = new CacheKeyValueDelegate();
+
+        final AccessTokenRecord accessToken = new AccessTokenRecord();
+        accessToken.setHomeAccountId(HOME_ACCOUNT_ID);
+        accessToken.setEnvironment(ENVIRONMENT);
+        accessToken.setCredentialType(CredentialType.AccessToken.name());
+        accessToken.setClientId(CLIENT_ID);
+        accessToken.setRealm(REALM);
+        accessToken.setTarget(TARGET);
+        mAccessTokenKey = delegate.generateCacheKey(accessToken);
+
+        final RefreshTokenRecord refreshToken = new RefreshTokenRecord();
+        refreshToken.setHomeAccountId(HOME_ACCOUNT_ID);
+        refreshToken.setEnvironment(ENVIRONMENT);
+        refreshToken.setCredentialType(CredentialType.RefreshToken.name());
+        refreshToken.setClientId(CLIENT_ID);
+        refreshToken.setFamilyId("1");
+        refreshToken.setTarget(TARGET);
+        mFamilyRefreshTokenKey = delegate.generateCacheKey(refreshToken);
+
+        final AccountRecord account = new AccountRecord();
+        account.setHomeAccountId(HOME_ACCOUNT_ID);
+        account.setEnvironment(ENVIRONMENT);
+        account.setRealm(REALM);
+        mAccountKey = delegate.generateCacheKey(account);
+    }
+
+    @Test
+    public void acceptsMatchingKeys() {
+        final CredentialQuery query = new CredentialQuery(
+                HOME_ACCOUNT_ID.toUpperCase(),
+                ENVIRONMENT,
+                null,
+                CLIENT_ID,
+                REALM,
+                TARGET,
+                null
+        );
+
+        assertTrue(query.accept(mAccessTokenKey));
+        assertTrue(query.accept(mFamilyRefreshTokenKey));
+        assertFalse(query.accept(mAccountKey));
+    }
+
+    @Test
+    public void rejectsOtherCredentialType() {
+        final CredentialQuery query = new CredentialQuery(
+                null,
+                null,
+                CredentialType.IdToken,
+                null,
+                null,
+                null,
+                null
+        );
+
+        assertFalse(query.accept(mAccessTokenKey));
+        assertFalse(query.accept(mFamilyRefreshTokenKey));
+    }
+
+    @Test
+    public void rejectsOtherAccountAndEnvironment() {
+        assertFalse(
+                new CredentialQuery(CLIENT_ID, null, null, null, null, null, null)
+                        .accept(mAccessTokenKey)
+        );
+        assertFalse(
+                new CredentialQuery(null, "windows-ppe.net", null, null, null, null, null)
+                        .accept(mAccessTokenKey)
+        );
+    }
+
+    @Test
+    public void familyRefreshTokensAreNotFilteredByClientId() {
+        final CredentialQuery query = new CredentialQuery(
+                null,
+                null,
+                null,
+                "another-client-id",
+                null,
+                null,
+                null
+        );
+
+        assertFalse(query.accept(mAccessTokenKey));
+        assertTrue(query.accept(mFamilyRefreshTokenKey));
+    }
+}
@@ -0,0 +1,116 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common;
+
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.dto.ScopeSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScopeSetTest {
+
+    private static final ScopeSet DEFAULT_SCOPES = ScopeSet.of("openid offline_access profile");
+
+    @Test
+    public void parsesWhitespaceDelimitedScopes() {
+        final ScopeSet scopes = ScopeSet.of("  User.Read\tuser.read  Mail.Read\n");
+
+        assertEquals(2, scopes.size());
+        assertEquals(ScopeSet.of("mail.read user.read"), scopes);
+        assertEquals(0, ScopeSet.of((String) null).size());
+        assertEquals(0, ScopeSet.of(" ").size());
+    }
+
+    @Test
+    public void internsByTarget() {
+        assertSame(ScopeSet.of("user.read mail.read"), ScopeSet.of("user.read mail.read"));
+    }
+
+    @Test
+    public void containsAll() {
+        final ScopeSet credential = ScopeSet.of("user.read mail.read openid profile");
+
+        assertTrue(credential.containsAll(ScopeSet.of("User.Read"), ScopeSet.EMPTY));
+        assertTrue(credential.containsAll(ScopeSet.of("mail.read user.read"), ScopeSet.EMPTY));
+        assertTrue(credential.containsAll(ScopeSet.EMPTY, ScopeSet.EMPTY));
+        assertFalse(credential.containsAll(ScopeSet.of("user.read calendars.read"), ScopeSet.EMPTY));
+        assertFalse(credential.containsAll(ScopeSet.of("user.read offline_access"), ScopeSet.EMPTY));
+        assertTrue(credential.containsAll(ScopeSet.of("user.read offline_access"), DEFAULT_SCOPES));
+    }
+
+    @Test
+    public void intersects() {
+        final ScopeSet credential = ScopeSet.of("user.read openid");
+
+        assertTrue(credential.intersects(ScopeSet.of("mail.read USER.READ"), DEFAULT_SCOPES));
+        assertTrue(credential.intersects(ScopeSet.of("openid"), ScopeSet.EMPTY));
+        assertFalse(credential.intersects(ScopeSet.of("openid"), DEFAULT_SCOPES));
+        assertFalse(credential.intersects(ScopeSet.EMPTY, ScopeSet.EMPTY));
+    }
+
+    @Test
+    public void comparesScopeStringsOnceDictionaryIsFull() {
+        final ScopeSet known = ScopeSet.of("user.read mail.read");
+        final StringBuilder target = new StringBuilder();
+
+        for (int i = 0; i < 5000; i++) {
+            target.append("filler.").append(i).append(' ');
+        }
+
+        ScopeSet.of(target.toString());
+
+        final ScopeSet unknown = ScopeSet.of("User.Read Mail.Read unassigned.scope");
+
+        assertEquals(3, unknown.size());
+        assertTrue(unknown.containsAll(known, ScopeSet.EMPTY));
+        assertFalse(known.containsAll(unknown, ScopeSet.EMPTY));
+        assertTrue(known.containsAll(unknown, ScopeSet.of("unassigned.scope")));
+        assertTrue(known.intersects(unknown, DEFAULT_SCOPES));
+        assertFalse(ScopeSet.of("unassigned.scope").intersects(unknown, ScopeSet.of("unassigned.scope")));
+
+        final ScopeSet reordered = ScopeSet.of("unassigned.scope mail.read user.read");
+
+        assertEquals(unknown, reordered);
+        assertEquals(unknown.hashCode(), reordered.hashCode());
+        assertFalse(known.equals(unknown));
+    }
+
+    @Test
+    public void recordReparsesChangedTarget() {
+        final AccessTokenRecord accessToken = new AccessTokenRecord();
+        accessToken.setTarget("user.read");
+
+        final ScopeSet scopes = accessToken.getScopeSet();
+        assertSame(scopes, accessToken.getScopeSet());
+
+        accessToken.setTarget("user.read mail.read");
+        assertNotSame(scopes, accessToken.getScopeSet());
+        assertEquals(2, accessToken.getScopeSet().size());
+    }
+}
@@ -0,0 +1,97 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.SerializedName;
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AccountCredentialTypeAdapterFactoryTest {
+
+    /**
+     * A record declaring fields of types other than String.
+     */
+    static class ExtendedAccessTokenRecord extends AccessTokenRecord {
+
+        @SerializedName("refresh_count")
+        private int mRefreshCount = -1;
+
+        @SerializedName("capabilities")
+        private List<String> mCapabilities;
+    }
+
+    private final TypeAdapter<ExtendedAccessTokenRecord> mAdapter =
+            AccountCredentialTypeAdapterFactory.newAdapter(new Gson(), ExtendedAccessTokenRecord.class);
+
+    @Test
+    public void nonStringFieldsAreReadThroughGson() throws IOException {
+        final ExtendedAccessTokenRecord record = mAdapter.fromJson("{"
+                + "\"secret\":\"secret\","
+                + "\"refresh_count\":3,"
+                + "\"capabilities\":[\"cp1\",\"cp2\"],"
+                + "\"foo\":\"bar\""
+                + "}");
+
+        assertEquals("secret", record.getSecret());
+        assertEquals(3, record.mRefreshCount);
+        assertEquals(Arrays.asList("cp1", "cp2"), record.mCapabilities);
+        assertEquals(1, record.getAdditionalFields().size());
+        assertEquals("bar", record.getAdditionalFields().get("foo").getAsString());
+    }
+
+    @Test
+    public void nullPrimitiveFieldKeepsItsDefault() throws IOException {
+        final ExtendedAccessTokenRecord record = mAdapter.fromJson("{\"refresh_count\":null}");
+
+        assertEquals(-1, record.mRefreshCount);
+        assertFalse(record.getAdditionalFields().containsKey("refresh_count"));
+    }
+
+    @Test
+    public void nonStringFieldsAreWrittenThroughGson() throws IOException {
+        final ExtendedAccessTokenRecord record = new ExtendedAccessTokenRecord();
+        record.setSecret("secret");
+        record.mRefreshCount = 2;
+        record.mCapabilities = Arrays.asList("cp1");
+
+        final JsonObject json = new JsonParser().parse(mAdapter.toJson(record)).getAsJsonObject();
+
+        assertEquals("secret", json.get("secret").getAsString());
+        assertEquals(2, json.get("refresh_count").getAsInt());
+        assertTrue(json.get("capabilities").isJsonArray());
+        assertEquals("cp1", json.get("capabilities").getAsJsonArray().get(0).getAsString());
+    }
+}
@@ -0,0 +1,83 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache;
+
+import com.microsoft.identity.common.adal.internal.cache.IStorageHelper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class SharedPreferencesFileManagerDecryptValuesTest {
+
+    /**
+     * "Decrypts" values by removing their prefix; values without it fail to decrypt.
+     */
+    private static final IStorageHelper PREFIX_STORAGE_HELPER = new IStorageHelper() {
+        @Override
+        public String encrypt(final String clearText) {
+            return "enc:" + clearText;
+        }
+
+        @Override
+        public String decrypt(final String encryptedBlob) throws GeneralSecurityException {
+            if (!encryptedBlob.startsWith("enc:")) {
+                throw new GeneralSecurityException("Not encrypted by this helper");
+            }
+
+            return encryptedBlob.substring("enc:".length());
+        }
+
+        @Override
+        public SecretKey loadSecretKeyForEncryption() {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    @Test
+    public void otherStorageHelpersDecryptValueByValue() {
+        final Map<String, String> encryptedValues = new HashMap<>();
+        encryptedValues.put("key1", "enc:value1");
+        encryptedValues.put("key2", "enc:value2");
+        encryptedValues.put("tampered", "value3");
+        encryptedValues.put("blank", " ");
+
+        final Map<String, String> decryptedValues = SharedPreferencesFileManager.decryptValues(
+                PREFIX_STORAGE_HELPER,
+                encryptedValues
+        );
+
+        assertEquals(2, decryptedValues.size());
+        assertEquals("value1", decryptedValues.get("key1"));
+        assertEquals("value2", decryptedValues.get("key2"));
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.cache.registry;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class DefaultBrokerApplicationRegistryTest {
+
+    private static final String CLIENT_ID = "client-id";
+    private static final String OTHER_CLIENT_ID = "other-client-id";
+    private static final String ENVIRONMENT = "login.microsoftonline.com";
+    private static final String OTHER_ENVIRONMENT = "login.windows.net";
+    private static final int UID = 10001;
+
+    private DefaultBrokerApplicationRegistry mRegistry;
+
+    @Before
+    public void setUp() {
+        mRegistry = new DefaultBrokerApplicationRegistry(
+                ApplicationProvider.getApplicationContext()
+        );
+        // The parsed contents are shared across instances in a process
+        mRegistry.clear();
+    }
+
+    private static BrokerApplicationRegistryData newEntry(@NonNull final String clientId,
+                                                          @NonNull final String environment,
+                                                          final int uid) {
+        final BrokerApplicationRegistryData entry = new BrokerApplicationRegistryData();
+        entry.setClientId(clientId);
+        entry.setEnvironment(environment);
+        entry.setUid(uid);
+
+        return entry;
+    }
+
+    @Test
+    public void lookupsShareOneIndex() {
+        final BrokerApplicationRegistryData entry = newEntry(CLIENT_ID, ENVIRONMENT, UID);
+        final BrokerApplicationRegistryData otherEnvironmentEntry =
+                newEntry(CLIENT_ID, OTHER_ENVIRONMENT, UID);
+        assertTrue(mRegistry.insert(entry));
+        assertTrue(mRegistry.insert(otherEnvironmentEntry));
+
+        final long indexBuildCount = DefaultBrokerApplicationRegistry.getIndexBuildCount();
+        final long lookupCount = DefaultBrokerApplicationRegistry.getLookupCount();
+        final long lookupNanos = DefaultBrokerApplicationRegistry.getTotalLookupNanos();
+
+        assertEquals(entry, mRegistry.getMetadata(CLIENT_ID, ENVIRONMENT, UID));
+        assertEquals(
+                otherEnvironmentEntry,
+                mRegistry.getMetadata(CLIENT_ID, OTHER_ENVIRONMENT, UID)
+        );
+        // Any environment: the first entry in registry order
+        assertEquals(entry, mRegistry.getMetadata(CLIENT_ID, null, UID));
+        assertNull(mRegistry.getMetadata(CLIENT_ID, ENVIRONMENT, UID + 1));
+        assertNull(mRegistry.getMetadata(OTHER_CLIENT_ID, ENVIRONMENT, UID));
+
+        assertEquals(indexBuildCount + 1, DefaultBrokerApplicationRegistry.getIndexBuildCount());
+        assertEquals(lookupCount + 5, DefaultBrokerApplicationRegistry.getLookupCount());
+        assertTrue(DefaultBrokerApplicationRegistry.getTotalLookupNanos() > lookupNanos);
+    }
+
+    @Test
+    public void insertAndRemoveInvalidateIndex() {
+        final BrokerApplicationRegistryData entry = newEntry(CLIENT_ID, ENVIRONMENT, UID);
+        final BrokerApplicationRegistryData otherEntry =
+                newEntry(OTHER_CLIENT_ID, ENVIRONMENT, UID);
+        assertTrue(mRegistry.insert(entry));
+
+        final long indexBuildCount = DefaultBrokerApplicationRegistry.getIndexBuildCount();
+
+        assertNull(mRegistry.getMetadata(OTHER_CLIENT_ID, ENVIRONMENT, UID));
+        assertEquals(indexBuildCount + 1, DefaultBrokerApplicationRegistry.getIndexBuildCount());
+
+        assertTrue(mRegistry.insert(otherEntry));
+        assertEquals(otherEntry, mRegistry.getMetadata(OTHER_CLIENT_ID, ENVIRONMENT, UID));
+        assertEquals(indexBuildCount + 2, DefaultBrokerApplicationRegistry.getIndexBuildCount());
+
+        // Inserting an entry which is already registered changes nothing
+        assertTrue(mRegistry.insert(otherEntry));
+        assertEquals(otherEntry, mRegistry.getMetadata(OTHER_CLIENT_ID, ENVIRONMENT, UID));
+        assertEquals(indexBuildCount + 2, DefaultBrokerApplicationRegistry.getIndexBuildCount());
+
+        assertTrue(mRegistry.remove(otherEntry));
+        assertNull(mRegistry.getMetadata(OTHER_CLIENT_ID, ENVIRONMENT, UID));
+        assertEquals(entry, mRegistry.getMetadata(CLIENT_ID, ENVIRONMENT, UID));
+        assertEquals(indexBuildCount + 3, DefaultBrokerApplicationRegistry.getIndexBuildCount());
+    }
+
+    @Test
+    public void changesThroughAnotherInstanceInvalidateIndex() {
+        final BrokerApplicationRegistryData entry = newEntry(CLIENT_ID, ENVIRONMENT, UID);
+        assertNull(mRegistry.getMetadata(CLIENT_ID, ENVIRONMENT, UID));
+
+        final DefaultBrokerApplicationRegistry otherRegistry = new DefaultBrokerApplicationRegistry(
+                ApplicationProvider.getApplicationContext()
+        );
+        assertTrue(otherRegistry.insert(entry));
+
+        assertEquals(entry, mRegistry.getMetadata(CLIENT_ID, ENVIRONMENT, UID));
+    }
+}
@@ -0,0 +1,198 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.controllers;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.identity.common.internal.commands.BaseCommand;
+import com.microsoft.identity.common.internal.commands.CommandCallback;
+import com.microsoft.identity.common.internal.commands.parameters.CommandParameters;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CommandDispatcherTest {
+
+    private static final int COMMAND_COUNT = 5;
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Counts the results delivered to the callbacks of a group of commands.
+     */
+    private static class CountingCallback implements CommandCallback<Object, Object> {
+
+        private final AtomicInteger mCompletedCount = new AtomicInteger();
+
+        private final AtomicInteger mErrorCount = new AtomicInteger();
+
+        @Override
+        public void onCancel() {
+        }
+
+        @Override
+        public void onTaskCompleted(final Object result) {
+            mCompletedCount.incrementAndGet();
+        }
+
+        @Override
+        public void onError(final Object error) {
+            mErrorCount.incrementAndGet();
+        }
+
+        int getResultCount() {
+            return mCompletedCount.get() + mErrorCount.get();
+        }
+    }
+
+    /**
+     * A cacheable command which counts its executions, and blocks in them until released.
+     */
+    private static class BlockingCommand extends BaseCommand<String> {
+
+        private final AtomicInteger mExecutionCount;
+
+        private final CountDownLatch mRelease;
+
+        private final boolean mFail;
+
+        BlockingCommand(@NonNull final String clientId,
+                        @NonNull final CountingCallback callback,
+                        @NonNull final AtomicInteger executionCount,
+                        @NonNull final CountDownLatch release,
+                        final boolean fail) {
+            super(
+                    CommandParameters.builder().clientId(clientId).build(),
+                    new ArrayList<BaseController>(),
+                    callback,
+                    "test"
+            );
+            mExecutionCount = executionCount;
+            mRelease = release;
+            mFail = fail;
+        }
+
+        @Override
+        public String execute() throws Exception {
+            mExecutionCount.incrementAndGet();
+            assertTrue(mRelease.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+            if (mFail) {
+                throw new IllegalStateException("Failed on purpose");
+            }
+
+            return "result";
+        }
+
+        @Override
+        public boolean isEligibleForCaching() {
+            return true;
+        }
+
+        @Override
+        public boolean isEligibleForEstsTelemetry() {
+            return false;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        CommandDispatcher.clearCommandCache();
+    }
+
+    @Test
+    public void equalCommandsExecuteOnce() throws InterruptedException {
+        final CountingCallback callback = submitEqualCommands("coalesced_client", false);
+
+        assertEquals(COMMAND_COUNT, callback.mCompletedCount.get());
+        assertEquals(0, callback.mErrorCount.get());
+    }
+
+    @Test
+    public void equalCommandsShareFailure() throws InterruptedException {
+        final CountingCallback callback = submitEqualCommands("failing_client", true);
+
+        assertEquals(0, callback.mCompletedCount.get());
+        assertEquals(COMMAND_COUNT, callback.mErrorCount.get());
+    }
+
+    /**
+     * Submits {@link #COMMAND_COUNT} equal commands while the first executes, then waits for
+     * all of their results.
+     */
+    @NonNull
+    private static CountingCallback submitEqualCommands(@NonNull final String clientId,
+                                                        final boolean fail)
+            throws InterruptedException {
+        final CountingCallback callback = new CountingCallback();
+        final AtomicInteger executionCount = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final long coalescedCount = CommandDispatcher.getCoalescedCommandCount();
+
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            CommandDispatcher.submitSilent(
+                    new BlockingCommand(clientId, callback, executionCount, release, fail)
+            );
+        }
+
+        release.countDown();
+        awaitResults(callback, COMMAND_COUNT);
+
+        assertEquals(1, executionCount.get());
+        assertEquals(
+                coalescedCount + COMMAND_COUNT - 1,
+                CommandDispatcher.getCoalescedCommandCount()
+        );
+
+        return callback;
+    }
+
+    /**
+     * Runs the results posted to the main looper until the expected number arrived.
+     */
+    private static void awaitResults(@NonNull final CountingCallback callback,
+                                     final int resultCount) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        while (callback.getResultCount() < resultCount && System.currentTimeMillis() < deadline) {
+            ShadowLooper.idleMainLooper();
+            Thread.sleep(10);
+        }
+
+        // No more than expected
+        ShadowLooper.idleMainLooper();
+        assertEquals(resultCount, callback.getResultCount());
+    }
+}
@@ -0,0 +1,178 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.controllers;
+
+import com.microsoft.identity.common.exception.ClientException;
+import com.microsoft.identity.common.internal.commands.BaseCommand;
+import com.microsoft.identity.common.internal.commands.CommandCallback;
+import com.microsoft.identity.common.internal.commands.CommandKey;
+import com.microsoft.identity.common.internal.commands.parameters.CommandParameters;
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.result.ILocalAuthenticationResult;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CommandResultCacheTest {
+
+    private static final CommandResult RESULT =
+            new CommandResult(CommandResult.ResultStatus.COMPLETED, null);
+
+    private static CommandKey getCommandKey(final String clientId) {
+        final CommandParameters parameters = CommandParameters.builder()
+                .clientId(clientId)
+                .build();
+
+        return new BaseCommand<Void>(
+                parameters,
+                new ArrayList<BaseController>(),
+                mock(CommandCallback.class),
+                "test"
+        ) {
+            @Override
+            public Void execute() {
+                return null;
+            }
+
+            @Override
+            public boolean isEligibleForEstsTelemetry() {
+                return false;
+            }
+        }.getCommandKey();
+    }
+
+    private static CommandResult getResultWithTokenExpiringIn(final long seconds) {
+        final AccessTokenRecord accessTokenRecord = new AccessTokenRecord();
+        accessTokenRecord.setExpiresOn(String.valueOf(
+                TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + seconds
+        ));
+
+        final ILocalAuthenticationResult result = mock(ILocalAuthenticationResult.class);
+        when(result.getAccessTokenRecord()).thenReturn(accessTokenRecord);
+
+        return new CommandResult(CommandResult.ResultStatus.COMPLETED, result);
+    }
+
+    @Test
+    public void testEqualCommandsShareKey() {
+        final CommandKey key = getCommandKey("client");
+        final CommandKey equalKey = getCommandKey("client");
+
+        assertNotSame(key, equalKey);
+        assertEquals(key, equalKey);
+        assertEquals(key.hashCode(), equalKey.hashCode());
+        assertFalse(key.equals(getCommandKey("other_client")));
+    }
+
+    @Test
+    public void testHitsAndMissesAreCounted() {
+        final CommandResultCache cache = new CommandResultCache();
+
+        assertNull(cache.get(getCommandKey("client")));
+
+        cache.put(getCommandKey("client"), RESULT);
+
+        assertSame(RESULT, cache.get(getCommandKey("client")));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedResultIsEvicted() {
+        final CommandResultCache cache = new CommandResultCache(2);
+
+        cache.put(getCommandKey("a"), RESULT);
+        cache.put(getCommandKey("b"), RESULT);
+        cache.get(getCommandKey("a"));
+        cache.put(getCommandKey("c"), RESULT);
+
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertSame(RESULT, cache.get(getCommandKey("a")));
+        assertNull(cache.get(getCommandKey("b")));
+        assertSame(RESULT, cache.get(getCommandKey("c")));
+    }
+
+    @Test
+    public void testItemExpiresOnMonotonicClock() {
+        final long now = 0L;
+        final CommandResultCacheItem item = new CommandResultCacheItem(RESULT, 1000, now);
+
+        assertFalse(item.isExpired(now + TimeUnit.MILLISECONDS.toNanos(999)));
+        assertTrue(item.isExpired(now + TimeUnit.MILLISECONDS.toNanos(1000)));
+    }
+
+    @Test
+    public void testValidityIsCappedByAccessTokenExpiry() {
+        final long validityMillis = CommandResultCache.getValidityMillis(getResultWithTokenExpiringIn(10));
+
+        assertTrue(validityMillis > 0);
+        assertTrue(validityMillis <= TimeUnit.SECONDS.toMillis(10));
+
+        assertEquals(
+                CommandResultCache.DEFAULT_VALIDITY_MILLIS,
+                CommandResultCache.getValidityMillis(getResultWithTokenExpiringIn(3600))
+        );
+    }
+
+    @Test
+    public void testResultWithExpiredAccessTokenIsNotCached() {
+        final CommandResultCache cache = new CommandResultCache();
+
+        cache.put(getCommandKey("client"), getResultWithTokenExpiringIn(-1));
+
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testTransientErrorsAreCachedBriefly() {
+        final CommandResult networkError = new CommandResult(
+                CommandResult.ResultStatus.ERROR,
+                new ClientException(ClientException.DEVICE_NETWORK_NOT_AVAILABLE)
+        );
+        final CommandResult requestError = new CommandResult(
+                CommandResult.ResultStatus.ERROR,
+                new ClientException(ClientException.SCOPE_EMPTY_OR_NULL)
+        );
+
+        assertEquals(
+                CommandResultCache.TRANSIENT_ERROR_VALIDITY_MILLIS,
+                CommandResultCache.getValidityMillis(networkError)
+        );
+        assertEquals(
+                CommandResultCache.DEFAULT_VALIDITY_MILLIS,
+                CommandResultCache.getValidityMillis(requestError)
+        );
+    }
+}
@@ -0,0 +1,108 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.controllers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DispatchQueueTest {
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Test
+    public void testForegroundTasksRunFirstInSubmissionOrder() {
+        final CommandDispatchMetrics metrics = new CommandDispatchMetrics();
+        final DispatchQueue queue = new DispatchQueue(Integer.MAX_VALUE);
+
+        final DispatchTask background = new DispatchTask(CommandPriority.BACKGROUND, metrics, NO_OP, null);
+        final DispatchTask firstForeground = new DispatchTask(CommandPriority.FOREGROUND, metrics, NO_OP, null);
+        final DispatchTask secondForeground = new DispatchTask(CommandPriority.FOREGROUND, metrics, NO_OP, null);
+
+        queue.offer(background);
+        queue.offer(secondForeground);
+        queue.offer(firstForeground);
+
+        assertSame(firstForeground, queue.poll());
+        assertSame(secondForeground, queue.poll());
+        assertSame(background, queue.poll());
+    }
+
+    @Test
+    public void testOfferFailsAtCapacity() {
+        final CommandDispatchMetrics metrics = new CommandDispatchMetrics();
+        final DispatchQueue queue = new DispatchQueue(1);
+
+        assertTrue(queue.offer(new DispatchTask(CommandPriority.FOREGROUND, metrics, NO_OP, null)));
+        assertFalse(queue.offer(new DispatchTask(CommandPriority.FOREGROUND, metrics, NO_OP, null)));
+        assertEquals(0, queue.remainingCapacity());
+
+        queue.poll();
+
+        assertTrue(queue.offer(new DispatchTask(CommandPriority.FOREGROUND, metrics, NO_OP, null)));
+    }
+
+    @Test
+    public void testMetricsTrackQueueAndRun() {
+        final CommandDispatchMetrics metrics = new CommandDispatchMetrics();
+        final List<String> events = new ArrayList<>();
+
+        final DispatchTask executed = new DispatchTask(CommandPriority.FOREGROUND, metrics, new Runnable() {
+            @Override
+            public void run() {
+                events.add("run");
+            }
+        }, null);
+        final DispatchTask rejected = new DispatchTask(CommandPriority.BACKGROUND, metrics, NO_OP, new Runnable() {
+            @Override
+            public void run() {
+                events.add("rejected");
+            }
+        });
+
+        assertEquals(2, metrics.getSubmittedCount());
+        assertEquals(2, metrics.getQueueDepth());
+
+        executed.run();
+        rejected.reject();
+
+        assertEquals(0, metrics.getQueueDepth());
+        assertEquals(0, metrics.getRunningCount());
+        assertEquals(1, metrics.getCompletedCount());
+        assertEquals(1, metrics.getRejectedCount());
+        assertTrue(metrics.getMaxWaitNanos() <= metrics.getTotalWaitNanos());
+        assertEquals(2, events.size());
+        assertEquals("run", events.get(0));
+        assertEquals("rejected", events.get(1));
+    }
+}
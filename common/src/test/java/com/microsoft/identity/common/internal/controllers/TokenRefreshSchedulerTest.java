@@ -0,0 +1,374 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.identity.common.internal.controllers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.identity.common.exception.ClientException;
+import com.microsoft.identity.common.internal.commands.CommandCallback;
+import com.microsoft.identity.common.internal.commands.SilentTokenCommand;
+import com.microsoft.identity.common.internal.commands.parameters.SilentTokenCommandParameters;
+import com.microsoft.identity.common.internal.dto.AccessTokenRecord;
+import com.microsoft.identity.common.internal.result.ILocalAuthenticationResult;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class TokenRefreshSchedulerTest {
+
+    private static final long START_MILLIS = TimeUnit.SECONDS.toMillis(1600000000L);
+
+    private static final long REFRESH_AHEAD_SECONDS = 300;
+
+    private static final long ACCESS_TOKEN_LIFETIME_SECONDS = 3600;
+
+    private long mNowMillis;
+
+    /**
+     * Everything scheduled on the timer, in order; nothing runs unless a test runs it.
+     */
+    private final List<ScheduledTask> mScheduledTasks = new ArrayList<>();
+
+    private final List<SilentTokenCommand> mSubmittedRefreshes = new ArrayList<>();
+
+    private ScheduledExecutorService mTimer;
+
+    /**
+     * A task scheduled on the fake timer.
+     */
+    private static class ScheduledTask implements ScheduledFuture<Object> {
+
+        private final Runnable mRunnable;
+
+        private final long mDelayMillis;
+
+        private boolean mCancelled;
+
+        ScheduledTask(@NonNull final Runnable runnable, final long delayMillis) {
+            mRunnable = runnable;
+            mDelayMillis = delayMillis;
+        }
+
+        void run() {
+            assertFalse(mCancelled);
+            mRunnable.run();
+        }
+
+        @Override
+        public long getDelay(@NonNull final TimeUnit unit) {
+            return unit.convert(mDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(@NonNull final Delayed other) {
+            return Long.compare(mDelayMillis, other.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            mCancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mCancelled;
+        }
+
+        @Override
+        public Object get() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object get(final long timeout, @NonNull final TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mNowMillis = START_MILLIS;
+        mTimer = mock(ScheduledExecutorService.class);
+
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) {
+                final Object[] arguments = invocation.getArguments();
+                final ScheduledTask task = new ScheduledTask(
+                        (Runnable) arguments[0],
+                        ((TimeUnit) arguments[2]).toMillis((Long) arguments[1])
+                );
+                mScheduledTasks.add(task);
+
+                return task;
+            }
+        }).when(mTimer).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @NonNull
+    private TokenRefreshScheduler newScheduler(@NonNull final TokenRefreshScheduler.Builder builder) {
+        builder.refreshAheadSeconds(REFRESH_AHEAD_SECONDS)
+                .maxJitterMillis(0)
+                .timer(mTimer)
+                .clock(new TokenRefreshScheduler.Clock() {
+                    @Override
+                    public long currentTimeMillis() {
+                        return mNowMillis;
+                    }
+                });
+
+        return new TokenRefreshScheduler(builder) {
+            @Override
+            void submitRefresh(@NonNull final SilentTokenCommand refreshCommand) {
+                mSubmittedRefreshes.add(refreshCommand);
+            }
+        };
+    }
+
+    @NonNull
+    private static SilentTokenCommand newCommand(@NonNull final String clientId) {
+        return new SilentTokenCommand(
+                SilentTokenCommandParameters.builder().clientId(clientId).build(),
+                new ArrayList<BaseController>(),
+                mock(CommandCallback.class),
+                "test"
+        );
+    }
+
+    @NonNull
+    private ILocalAuthenticationResult newResult(@Nullable final Long refreshInSeconds) {
+        final long nowSeconds = TimeUnit.MILLISECONDS.toSeconds(mNowMillis);
+        final AccessTokenRecord accessTokenRecord = new AccessTokenRecord();
+        accessTokenRecord.setExpiresOn(String.valueOf(nowSeconds + ACCESS_TOKEN_LIFETIME_SECONDS));
+
+        if (null != refreshInSeconds) {
+            accessTokenRecord.setRefreshOn(String.valueOf(nowSeconds + refreshInSeconds));
+        }
+
+        final ILocalAuthenticationResult result = mock(ILocalAuthenticationResult.class);
+        when(result.getAccessTokenRecord()).thenReturn(accessTokenRecord);
+
+        return result;
+    }
+
+    private void complete(@NonNull final TokenRefreshScheduler scheduler,
+                          @NonNull final SilentTokenCommand command) {
+        scheduler.onCommandCompleted(
+                command,
+                new CommandResult(CommandResult.ResultStatus.COMPLETED, newResult(null))
+        );
+    }
+
+    @NonNull
+    private ScheduledTask lastScheduledTask() {
+        return mScheduledTasks.get(mScheduledTasks.size() - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    @NonNull
+    private static CommandCallback<ILocalAuthenticationResult, Object> callbackOf(
+            @NonNull final SilentTokenCommand command) {
+        return (CommandCallback<ILocalAuthenticationResult, Object>) command.getCallback();
+    }
+
+    @Test
+    public void refreshOnHintIsFollowed() {
+        final TokenRefreshScheduler scheduler = newScheduler(new TokenRefreshScheduler.Builder());
+
+        scheduler.onCommandCompleted(
+                newCommand("client"),
+                new CommandResult(CommandResult.ResultStatus.COMPLETED, newResult(600L))
+        );
+
+        assertEquals(1, scheduler.getTrackedRequestCount());
+        assertEquals(TimeUnit.SECONDS.toMillis(600), lastScheduledTask().mDelayMillis);
+    }
+
+    @Test
+    public void refreshAheadOfExpiryWithoutLaterHint() {
+        final TokenRefreshScheduler scheduler = newScheduler(new TokenRefreshScheduler.Builder());
+        final long refreshAheadDelayMillis = TimeUnit.SECONDS.toMillis(
+                ACCESS_TOKEN_LIFETIME_SECONDS - REFRESH_AHEAD_SECONDS
+        );
+
+        complete(scheduler, newCommand("client"));
+        assertEquals(refreshAheadDelayMillis, lastScheduledTask().mDelayMillis);
+
+        // A refresh_on later than the refresh-ahead time is not followed
+        scheduler.onCommandCompleted(
+                newCommand("other_client"),
+                new CommandResult(
+                        CommandResult.ResultStatus.COMPLETED,
+                        newResult(ACCESS_TOKEN_LIFETIME_SECONDS - 60)
+                )
+        );
+        assertEquals(refreshAheadDelayMillis, lastScheduledTask().mDelayMillis);
+    }
+
+    @Test
+    public void concurrentRefreshesAreCappedAndRetried() {
+        final TokenRefreshScheduler scheduler = newScheduler(
+                new TokenRefreshScheduler.Builder().maxConcurrentRefreshes(1)
+        );
+
+        complete(scheduler, newCommand("a"));
+        final ScheduledTask refreshA = lastScheduledTask();
+        complete(scheduler, newCommand("b"));
+        final ScheduledTask refreshB = lastScheduledTask();
+
+        refreshA.run();
+        assertEquals(1, mSubmittedRefreshes.size());
+        assertTrue(mSubmittedRefreshes.get(0).getParameters() instanceof SilentTokenCommandParameters);
+        assertTrue(((SilentTokenCommandParameters) mSubmittedRefreshes.get(0).getParameters()).isForceRefresh());
+
+        // No slot left: retried later
+        refreshB.run();
+        assertEquals(1, mSubmittedRefreshes.size());
+        final ScheduledTask retryB = lastScheduledTask();
+        assertEquals(TokenRefreshScheduler.MIN_REFRESH_DELAY_MILLIS, retryB.mDelayMillis);
+
+        // The refresh of a completes, and schedules the next one
+        final int scheduledCount = mScheduledTasks.size();
+        callbackOf(mSubmittedRefreshes.get(0)).onTaskCompleted(newResult(null));
+        assertEquals(scheduledCount + 1, mScheduledTasks.size());
+
+        retryB.run();
+        assertEquals(2, mSubmittedRefreshes.size());
+        assertEquals(2, scheduler.getRefreshCount());
+        assertEquals(2, scheduler.getTrackedRequestCount());
+    }
+
+    @Test
+    public void requestsNotMadeWithinActivityWindowAreUntracked() {
+        final TokenRefreshScheduler scheduler = newScheduler(
+                new TokenRefreshScheduler.Builder()
+                        .activityWindowMillis(TimeUnit.MINUTES.toMillis(30))
+        );
+
+        complete(scheduler, newCommand("client"));
+        mNowMillis += TimeUnit.MINUTES.toMillis(31);
+        lastScheduledTask().run();
+
+        assertEquals(0, mSubmittedRefreshes.size());
+        assertEquals(0, scheduler.getTrackedRequestCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedRequestIsUntracked() {
+        final TokenRefreshScheduler scheduler = newScheduler(
+                new TokenRefreshScheduler.Builder().maxTrackedRequests(2)
+        );
+
+        complete(scheduler, newCommand("a"));
+        mNowMillis += 1000;
+        complete(scheduler, newCommand("b"));
+        final ScheduledTask refreshB = lastScheduledTask();
+        mNowMillis += 1000;
+        // a is now more recently used than b; its refresh moves to its new AccessToken
+        complete(scheduler, newCommand("a"));
+        final ScheduledTask refreshA = lastScheduledTask();
+        mNowMillis += 1000;
+        complete(scheduler, newCommand("c"));
+
+        assertEquals(2, scheduler.getTrackedRequestCount());
+        assertTrue(refreshB.isCancelled());
+        assertFalse(refreshA.isCancelled());
+    }
+
+    @Test
+    public void failedRefreshUntracksRequest() {
+        final TokenRefreshScheduler scheduler = newScheduler(
+                new TokenRefreshScheduler.Builder().maxConcurrentRefreshes(1)
+        );
+
+        complete(scheduler, newCommand("a"));
+        lastScheduledTask().run();
+        final ScheduledTask timeout = lastScheduledTask();
+        assertEquals(TokenRefreshScheduler.REFRESH_TIMEOUT_MILLIS, timeout.mDelayMillis);
+
+        callbackOf(mSubmittedRefreshes.get(0)).onError(new ClientException("network_error"));
+
+        assertEquals(0, scheduler.getTrackedRequestCount());
+        assertTrue(timeout.isCancelled());
+
+        // The slot was released
+        complete(scheduler, newCommand("b"));
+        lastScheduledTask().run();
+        assertEquals(2, mSubmittedRefreshes.size());
+    }
+
+    @Test
+    public void undeliveredRefreshTimesOut() {
+        final TokenRefreshScheduler scheduler = newScheduler(
+                new TokenRefreshScheduler.Builder().maxConcurrentRefreshes(1)
+        );
+
+        complete(scheduler, newCommand("a"));
+        lastScheduledTask().run();
+        final ScheduledTask timeout = lastScheduledTask();
+
+        complete(scheduler, newCommand("b"));
+        final ScheduledTask refreshB = lastScheduledTask();
+
+        // The result of a never arrives
+        timeout.run();
+        assertEquals(1, scheduler.getTrackedRequestCount());
+
+        refreshB.run();
+        assertEquals(2, mSubmittedRefreshes.size());
+
+        // A late result does not release the slot held by b a second time
+        callbackOf(mSubmittedRefreshes.get(0)).onTaskCompleted(newResult(null));
+        complete(scheduler, newCommand("c"));
+        lastScheduledTask().run();
+        assertEquals(2, mSubmittedRefreshes.size());
+    }
+}